@@ -57,6 +57,7 @@ import ac.robinson.bettertogether.host.PluginFinder;
 import ac.robinson.bettertogether.hotspot.BaseHotspotActivity;
 import ac.robinson.bettertogether.hotspot.ConnectionOptions;
 import ac.robinson.bettertogether.hotspot.HotspotManagerService;
+import ac.robinson.bettertogether.hotspot.ProtocolConstants;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.widget.Toolbar;
@@ -250,8 +251,8 @@ public class ConnectionSetupActivity extends BaseHotspotActivity implements Plug
 			ConnectionOptions connectionOptions = new ConnectionOptions();
 			connectionOptions.mName = ConnectionOptions.formatHotspotName(ConnectionOptions.DEFAULT_HOTSPOT_NAME_FORMAT,
 					getString(R.string.app_name_short),
-					BetterTogetherUtils.getRandomString(HotspotManagerService.MESSAGE_ID_SIZE));
-			connectionOptions.mPassword = BetterTogetherUtils.getRandomString(HotspotManagerService.MESSAGE_ID_SIZE);
+					BetterTogetherUtils.getRandomString(ProtocolConstants.MESSAGE_ID_SIZE));
+			connectionOptions.mPassword = BetterTogetherUtils.getRandomString(ProtocolConstants.MESSAGE_ID_SIZE);
 			connectionOptions.mPluginPackage = plugin.getPackageName();
 			setHotspotUrl(connectionOptions.getHotspotUrl());
 
@@ -19,6 +19,7 @@ package ac.robinson.bettertogether.event;
 public class EventType {
 	public enum Type {
 		UNKNOWN, // only happens when used in RemoteConnection (on error)
-		WIFI, BLUETOOTH
+		WIFI, BLUETOOTH,
+		LOOPBACK // in-process connections, for testing (never reported in events)
 	}
 }
@@ -19,13 +19,44 @@ package ac.robinson.bettertogether.event;
 import android.util.Log;
 
 import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
-import ac.robinson.bettertogether.hotspot.HotspotManagerService;
+import ac.robinson.bettertogether.hotspot.ProtocolConstants;
+import ac.robinson.bettertogether.hotspot.MessageSerializer;
 
 public class MessageReceivedEvent {
 
-	public final String mDeliveredBy;
-	public final String mMessageSource;
-	public final BroadcastMessage mMessage;
+	// events are pooled (in the same way as android.os.Message) so that receiving a message doesn't create garbage
+	private static final int MAX_POOL_SIZE = 16;
+	private static final int MAX_POOLED_PAYLOAD_SIZE = ProtocolConstants.MESSAGE_PART_SIZE;
+	private static final Object sPoolLock = new Object();
+	private static MessageReceivedEvent sPool;
+	private static int sPoolSize = 0;
+	private MessageReceivedEvent mNext;
+
+	public String mDeliveredBy;
+	public boolean mUrgent; // the sender flagged this message as urgent (i.e., not to be delayed by batching)
+
+	// where the message came from originally (relayed messages have been forwarded by other devices on the way), so that
+	// it keeps the same identity when it is forwarded again - see RelayFilter
+	public boolean mRelayed; // the message's from id has already been set
+	public int mHopCount;
+	public long mOriginSessionId; // 0 = unknown (e.g., an older device)
+	public int mOriginMessageId;
+
+	public long mTraceId; // 0 = not traced - see TraceLog
+
+	// set from the frame headers, so that a server can forward the message without decoding it - see getSenderId and
+	// isSystemMessage (both are also available from the decoded message, for older devices that don't send them)
+	public String mSenderId; // the from id, for relayed messages; null = not sent
+	public boolean mSystemKnown; // the sender says whether messages are system messages (see FrameCodec.FLAG_SYSTEM)
+	public boolean mSystem;
+
+	private byte[] mPayload = new byte[0]; // reused between events - only the first mPayloadLength bytes are valid
+	private int mPayloadLength;
+	private BroadcastMessage mMessage; // decoded from the payload on first use
+
+	private OnConsumedListener mOnConsumedListener; // told when this event is recycled
+	private int mCredit;
+	private long mReceiveTime; // System.nanoTime() when the event was obtained - for connection metrics
 
 	private static final BroadcastMessage sErrorMessage = new BroadcastMessage(BroadcastMessage.TYPE_ERROR, "");
 
@@ -34,22 +65,124 @@ public class MessageReceivedEvent {
 	}
 
 	static {
-		sErrorMessage.setFrom(HotspotManagerService.SERVER_MESSAGE_ID);
+		sErrorMessage.setFrom(ProtocolConstants.SERVER_MESSAGE_ID);
+	}
+
+	private MessageReceivedEvent() {
 	}
 
-	public MessageReceivedEvent(String deliveredBy, String message) {
-		mDeliveredBy = deliveredBy;
-		mMessageSource = message;
+	// the payload is copied, so the source buffer can be reused as soon as this method returns
+	public static MessageReceivedEvent obtain(String deliveredBy, byte[] source, int offset, int length) {
+		MessageReceivedEvent event = obtain(deliveredBy);
+		if (event.mPayload.length < length) {
+			event.mPayload = new byte[length];
+		}
+		System.arraycopy(source, offset, event.mPayload, 0, length);
+		event.mPayloadLength = length;
+		return event;
+	}
+
+	// the event takes ownership of the payload (used for reassembled messages, which are already a fresh copy)
+	public static MessageReceivedEvent obtainWithPayload(String deliveredBy, byte[] payload, int length) {
+		MessageReceivedEvent event = obtain(deliveredBy);
+		event.mPayload = payload;
+		event.mPayloadLength = length;
+		return event;
+	}
+
+	private static MessageReceivedEvent obtain(String deliveredBy) {
+		MessageReceivedEvent event = null;
+		synchronized (sPoolLock) {
+			if (sPool != null) {
+				event = sPool;
+				sPool = event.mNext;
+				event.mNext = null;
+				sPoolSize -= 1;
+			}
+		}
+		if (event == null) {
+			event = new MessageReceivedEvent();
+		}
+		event.mDeliveredBy = deliveredBy;
+		event.mReceiveTime = System.nanoTime();
+		return event;
+	}
 
-		BroadcastMessage decodedMessage = sErrorMessage; // we don't want null messages - use a default error message on failure
-		try {
-			decodedMessage = BroadcastMessage.fromString(message);
-		} catch (Exception e) {
-			Log.d("MessageReceivedEvent", "Message error: " + e.getLocalizedMessage()); // TODO: deal with this
+	public void setOnConsumedListener(OnConsumedListener listener, int credit) {
+		mOnConsumedListener = listener;
+		mCredit = credit;
+	}
+
+	// the id of the device that sent the message originally, or null if it is only known by decoding the message (i.e.,
+	// the message was relayed by an older device, or came from the server) - sender frames are only trusted on messages
+	// that were relayed or came from the server, so that a client can't send messages as another device
+	public String getSenderId() {
+		if (!ProtocolConstants.SERVER_MESSAGE_ID.equals(mDeliveredBy) && !mRelayed) {
+			return mDeliveredBy; // for messages received at the server, the sender is the device that delivered them
+		}
+		return mSenderId;
+	}
+
+	// decodes the message only if the sender didn't tell us
+	public boolean isSystemMessage() {
+		return mSystemKnown ? mSystem : getMessage().isSystemMessage();
+	}
+
+	// the encoded message, exactly as it was sent - only the first getPayloadLength() bytes are valid, and the array
+	// must not be modified or kept after this event is recycled
+	public byte[] getPayload() {
+		return mPayload;
+	}
+
+	public int getPayloadLength() {
+		return mPayloadLength;
+	}
+
+	// the decoded message - decoding is deferred until a consumer actually needs the message
+	public BroadcastMessage getMessage() {
+		if (mMessage == null) {
+			BroadcastMessage decodedMessage = sErrorMessage; // we don't want null messages - use a default error on failure
+			try {
+				decodedMessage = MessageSerializer.fromBytes(mPayload, 0, mPayloadLength);
+			} catch (Exception e) {
+				Log.d("MessageReceivedEvent", "Message error: " + e.getLocalizedMessage()); // TODO: deal with this
+			}
+			String senderId = getSenderId();
+			if (senderId != null) {
+				decodedMessage.setFrom(senderId);
+			}
+			mMessage = decodedMessage;
+		}
+		return mMessage;
+	}
+
+	// return this event to the pool - it must not be used after calling this method
+	public void recycle() {
+		if (mOnConsumedListener != null) {
+			mOnConsumedListener.onConsumed(mCredit, mReceiveTime);
+			mOnConsumedListener = null;
+		}
+		mDeliveredBy = null;
+		mUrgent = false;
+		mRelayed = false;
+		mHopCount = 0;
+		mOriginSessionId = 0;
+		mOriginMessageId = 0;
+		mTraceId = 0;
+		mSenderId = null;
+		mSystemKnown = false;
+		mSystem = false;
+		mMessage = null;
+		mPayloadLength = 0;
+		if (mPayload.length > MAX_POOLED_PAYLOAD_SIZE) {
+			mPayload = new byte[0]; // don't hold on to large reassembled messages
 		}
-		if (!HotspotManagerService.SERVER_MESSAGE_ID.equals(deliveredBy)) {
-			decodedMessage.setFrom(deliveredBy); // for messages received at the server, we can set the from id here
+		synchronized (sPoolLock) {
+			if (sPoolSize < MAX_POOL_SIZE) {
+				mNext = sPool;
+				sPool = this;
+				sPoolSize += 1;
+			}
 		}
-		mMessage = decodedMessage;
 	}
 }
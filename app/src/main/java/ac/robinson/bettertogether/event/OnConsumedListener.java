@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.event;
+
+// received events are delivered on the main thread - connections use this to find out when an event has been handled,
+// so that they only grant the sender more flow control credit once the data has actually been used
+// receiveTime is when (System.nanoTime()) the event was received, so that connections can measure how long handling took
+public interface OnConsumedListener {
+	void onConsumed(int credit, long receiveTime);
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.event;
+
+import java.util.Arrays;
+
+// a single stream frame (open, data or cancel) - unlike messages, stream chunks are delivered as they arrive rather than
+// being reassembled first
+public class StreamFrameReceivedEvent {
+	public final String mDeliveredBy;
+	public final int mFrameType;
+	public final int mStreamId;
+	public final int mIndex;
+	public final byte[] mPayload;
+
+	private OnConsumedListener mOnConsumedListener; // told once the frame has been handled (see setConsumed())
+	private int mCredit;
+	private final long mReceiveTime = System.nanoTime(); // for connection metrics
+
+	public StreamFrameReceivedEvent(String deliveredBy, int frameType, int streamId, int index, byte[] source, int offset,
+									int length) {
+		mDeliveredBy = deliveredBy;
+		mFrameType = frameType;
+		mStreamId = streamId;
+		mIndex = index;
+		mPayload = Arrays.copyOfRange(source, offset, offset + length);
+	}
+
+	public void setOnConsumedListener(OnConsumedListener listener, int credit) {
+		mOnConsumedListener = listener;
+		mCredit = credit;
+	}
+
+	// must be called once the frame has been handled
+	public void setConsumed() {
+		if (mOnConsumedListener != null) {
+			mOnConsumedListener.onConsumed(mCredit, mReceiveTime);
+			mOnConsumedListener = null;
+		}
+	}
+}
@@ -41,6 +41,9 @@ public abstract class BaseHotspotActivity extends AppCompatActivity implements H
 
 	private static final String HOTSPOT_URL = "hotspot_url";
 
+	// returned by openStream on failure
+	protected static final int INVALID_STREAM_ID = HotspotManagerServiceCommunicator.INVALID_STREAM_ID;
+
 	private HotspotManagerServiceCommunicator mServiceCommunicator;
 
 	private String mHotspotUrl;
@@ -192,10 +195,74 @@ public abstract class BaseHotspotActivity extends AppCompatActivity implements H
 		// nothing to do here - overriding activities may need to finish() or update UI on some system messages
 	}
 
+	// call before joining a hotspot to stay connected over both Wifi and Bluetooth (for faster delivery and failover)
+	protected void setMultipathEnabled(boolean enabled) {
+		mServiceCommunicator.setMultipathEnabled(enabled);
+	}
+
+	// how often (milliseconds) to check that remote devices are still there - devices that miss several checks in a row
+	// are disconnected; 0 disables checks for that transport
+	protected void setHeartbeatIntervals(int wifiInterval, int bluetoothInterval) {
+		mServiceCommunicator.setHeartbeatIntervals(wifiInterval, bluetoothInterval);
+	}
+
+	// the metrics of each connection arrive as an EVENT_METRICS system message - if saveToFile is true, they are also
+	// saved in the app's storage (see HotspotManagerService.MSG_REQUEST_METRICS)
+	protected void requestMetrics(boolean saveToFile) {
+		mServiceCommunicator.requestMetrics(saveToFile);
+	}
+
+	// see HotspotManagerService.MSG_SET_TRACING and MSG_SAVE_TRACE
+	protected void setTracing(int sampleInterval) {
+		mServiceCommunicator.setTracing(sampleInterval);
+	}
+
+	protected void saveTrace() {
+		mServiceCommunicator.saveTrace();
+	}
+
 	protected void sendBroadcastMessage(BroadcastMessage message) {
 		mServiceCommunicator.sendBroadcastMessage(message);
 	}
 
+	protected void sendBroadcastMessage(BroadcastMessage message, boolean urgent) {
+		mServiceCommunicator.sendBroadcastMessage(message, urgent);
+	}
+
 	@Override
 	public abstract void onBroadcastMessageReceived(BroadcastMessage message);
+
+	protected int openStream(String streamType, long totalSize) {
+		return mServiceCommunicator.openStream(streamType, totalSize);
+	}
+
+	protected void sendStreamData(int streamId, byte[] data) {
+		mServiceCommunicator.sendStreamData(streamId, data);
+	}
+
+	protected void cancelStream(int streamId) {
+		mServiceCommunicator.cancelStream(streamId);
+	}
+
+	@Override
+	public void onStreamOpened(int streamId, String from, String streamType, long totalSize) {
+		// nothing to do here - overriding activities that use streams will need to handle these events
+	}
+
+	@Override
+	public void onStreamData(int streamId, byte[] data, long transferred, long totalSize) {
+	}
+
+	@Override
+	public void onStreamComplete(int streamId) {
+	}
+
+	@Override
+	public void onStreamCancelled(int streamId) {
+	}
+
+	@Override
+	public void onBackpressureChanged(boolean backpressure) {
+		// nothing to do here - overriding activities that send frequent or large messages should slow down when true
+	}
 }
@@ -22,16 +22,16 @@ import android.util.Log;
 
 import org.greenrobot.eventbus.EventBus;
 
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 
-import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
 import ac.robinson.bettertogether.event.ClientConnectionErrorEvent;
 import ac.robinson.bettertogether.event.ClientConnectionSuccessEvent;
 import ac.robinson.bettertogether.event.ClientMessageErrorEvent;
 import ac.robinson.bettertogether.event.EventType;
 
-class BluetoothClientConnection extends RemoteConnection {
+class BluetoothClientConnection extends RemoteConnection implements Runnable {
 
 	private static final String TAG = "BTClientConnection";
 
@@ -42,10 +42,11 @@ class BluetoothClientConnection extends RemoteConnection {
 
 	private BluetoothSocket mSocket;
 	private InputStream mInputStream;
-	private OutputStreamWriter mOutputStreamWriter;
+	private OutputStream mOutputStream;
 
 	BluetoothClientConnection(BluetoothDevice remoteDevice) {
 		setLogTag(TAG);
+		setMetricsId(EventType.Type.BLUETOOTH, ProtocolConstants.SERVER_MESSAGE_ID);
 		mRemoteDevice = remoteDevice;
 	}
 
@@ -74,37 +75,44 @@ class BluetoothClientConnection extends RemoteConnection {
 		Log.d(TAG, "Bluetooth client connected to " + mRemoteDevice.getName() + " - thread: " + this.toString());
 		EventBus.getDefault().post(new ClientConnectionSuccessEvent(EventType.Type.BLUETOOTH));
 
+		FrameReader frameReader = null;
 		try {
-			mOutputStreamWriter = new OutputStreamWriter(mSocket.getOutputStream(), BroadcastMessage.CHARSET);
+			mOutputStream = new BufferedOutputStream(mSocket.getOutputStream(), ProtocolConstants.MESSAGE_BUFFER_SIZE);
+			startWriter(mOutputStream);
 
-			byte[] buffer = new byte[HotspotManagerService.MESSAGE_BUFFER_SIZE];
 			int bytesRead;
-			StringBuilder stringBuilder = new StringBuilder();
+			frameReader = createFrameReader();
 
 			while (mRunning) {
-				bytesRead = mInputStream.read(buffer);
-				processBytes(HotspotManagerService.SERVER_MESSAGE_ID, buffer, bytesRead, stringBuilder);
+				bytesRead = frameReader.readFrom(mInputStream);
+				processBytes(ProtocolConstants.SERVER_MESSAGE_ID, bytesRead, frameReader);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			Log.e(TAG, "Bluetooth client error: " + e.getLocalizedMessage());
+			recordError();
 			EventBus.getDefault().post(new ClientMessageErrorEvent(EventType.Type.BLUETOOTH));
+		} finally {
+			finishReading(frameReader);
 		}
 	}
 
-	boolean sendMessage(String message) {
-		return sendMessage(mOutputStreamWriter, message);
-	}
-
-	void closeConnection() {
+	@Override
+	public void closeConnection() {
+		if (!markClosed()) {
+			return;
+		}
 		mRunning = false;
+		stopWriter();
 		closeConnection(mInputStream);
 		mInputStream = null;
-		closeConnection(mOutputStreamWriter);
-		mOutputStreamWriter = null;
+		closeConnection(mOutputStream);
+		mOutputStream = null;
 		closeConnection(mSocket);
 		mSocket = null;
-		mBluetoothConnector.close();
-		mBluetoothConnector = null;
+		if (mBluetoothConnector != null) {
+			mBluetoothConnector.close();
+			mBluetoothConnector = null;
+		}
 	}
 }
@@ -24,9 +24,8 @@ import android.util.Log;
 import org.greenrobot.eventbus.EventBus;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ac.robinson.bettertogether.BetterTogetherUtils;
 import ac.robinson.bettertogether.event.EventType;
@@ -34,7 +33,7 @@ import ac.robinson.bettertogether.event.ServerErrorEvent;
 import ac.robinson.bettertogether.event.ServerMessageErrorEvent;
 import androidx.annotation.Nullable;
 
-class BluetoothServer implements Runnable {
+class BluetoothServer implements Transport, Runnable {
 
 	private static final String TAG = "BluetoothServer";
 
@@ -42,10 +41,24 @@ class BluetoothServer implements Runnable {
 
 	private BluetoothAdapter mBluetoothAdapter;
 	private BluetoothServerSocket mServerSocket;
-	private HashMap<String, BluetoothServerConnection> mConnectedSockets = new HashMap<>();
+	// accessed from both the accept thread and the service (when sending)
+	private ConcurrentHashMap<String, BluetoothServerConnection> mConnectedSockets = new ConcurrentHashMap<>();
+	private volatile OutboundQueue.Policy mSlowClientPolicy = OutboundQueue.Policy.DISCONNECT;
+	private final ReplayBuffer mReplayBuffer; // recent messages, for clients that resume their session
 
-	BluetoothServer(BluetoothAdapter adapter) {
+	BluetoothServer(BluetoothAdapter adapter, ReplayBuffer replayBuffer) {
 		mBluetoothAdapter = adapter;
+		mReplayBuffer = replayBuffer;
+	}
+
+	@Override
+	public EventType.Type getType() {
+		return EventType.Type.BLUETOOTH;
+	}
+
+	@Override
+	public void start() {
+		new Thread(BluetoothServer.this).start();
 	}
 
 	@Override
@@ -60,8 +73,10 @@ class BluetoothServer implements Runnable {
 				while (mRunning) {
 					BluetoothSocket acceptedSocket = mServerSocket.accept();
 
-					String newConnectionId = BetterTogetherUtils.getRandomString(HotspotManagerService.MESSAGE_ID_SIZE);
+					String newConnectionId = BetterTogetherUtils.getRandomString(ProtocolConstants.MESSAGE_ID_SIZE);
 					BluetoothServerConnection connectedServer = new BluetoothServerConnection(newConnectionId, acceptedSocket);
+					connectedServer.setSlowConsumerPolicy(mSlowClientPolicy);
+					connectedServer.setReplayBuffer(mReplayBuffer);
 					new Thread(connectedServer).start();
 					mConnectedSockets.put(newConnectionId, connectedServer);
 				}
@@ -76,21 +91,58 @@ class BluetoothServer implements Runnable {
 		}
 	}
 
-	void sendMessageToAll(String message, @Nullable String ignoreClient) {
-		for (Iterator<Map.Entry<String, BluetoothServerConnection>> connectedSocketsIterator = mConnectedSockets.entrySet()
-				.iterator(); connectedSocketsIterator.hasNext(); ) {
-			Map.Entry<String, BluetoothServerConnection> connection = connectedSocketsIterator.next();
-			if (!connection.getKey().equals(ignoreClient)) { // send to all except the single ignored client
+	// messages are only queued here - each connection has its own writer, so a slow client doesn't delay the others
+	@Override
+	public void sendMessageToAll(OutboundMessage message, @Nullable String ignoreClient) {
+		for (Map.Entry<String, BluetoothServerConnection> connection : mConnectedSockets.entrySet()) {
+			// send to all except the single ignored client (on any of its links), and only on the chosen link(s) to each
+			if (!connection.getValue().getPeerId(connection.getKey()).equals(ignoreClient) &&
+					connection.getValue().isRouteFor(message)) {
 				if (!connection.getValue().sendMessage(message)) {
-					Log.d(TAG, "Error sending message to client - removing dead client socket");
-					connectedSocketsIterator.remove(); // remove dead connection (client failed)
-					EventBus.getDefault().post(new ServerMessageErrorEvent(EventType.Type.BLUETOOTH));
+					Log.d(TAG, "Client failed or too slow - removing client socket");
+					removeConnection(connection.getKey(), connection.getValue()); // (client failed)
 				}
 			}
 		}
 	}
 
-	void closeAllConnections() {
+	@Override
+	public int getMaxQueuedBytes() {
+		int maxQueuedBytes = 0;
+		for (BluetoothServerConnection connection : mConnectedSockets.values()) {
+			maxQueuedBytes = Math.max(maxQueuedBytes, connection.getQueuedBytes());
+		}
+		return maxQueuedBytes;
+	}
+
+	@Override
+	public void sendHeartbeats(long now, int interval) {
+		for (Map.Entry<String, BluetoothServerConnection> connection : mConnectedSockets.entrySet()) {
+			if (!connection.getValue().sendHeartbeat(now, interval)) {
+				removeConnection(connection.getKey(), connection.getValue());
+			}
+		}
+	}
+
+	// sending and heartbeats can both find the same dead connection (on different threads) - only the one that actually
+	// removes it closes it and reports the error
+	private void removeConnection(String id, BluetoothServerConnection connection) {
+		if (mConnectedSockets.remove(id, connection)) {
+			connection.closeConnection();
+			EventBus.getDefault().post(new ServerMessageErrorEvent(EventType.Type.BLUETOOTH));
+		}
+	}
+
+	@Override
+	public void setSlowClientPolicy(OutboundQueue.Policy policy) {
+		mSlowClientPolicy = policy;
+		for (BluetoothServerConnection connection : mConnectedSockets.values()) {
+			connection.setSlowConsumerPolicy(policy);
+		}
+	}
+
+	@Override
+	public void closeAllConnections() {
 		mRunning = false;
 		if (mServerSocket != null) {
 			try {
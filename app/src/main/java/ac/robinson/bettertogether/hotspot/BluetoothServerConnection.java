@@ -21,15 +21,15 @@ import android.util.Log;
 
 import org.greenrobot.eventbus.EventBus;
 
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 
-import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
 import ac.robinson.bettertogether.event.EventType;
 import ac.robinson.bettertogether.event.ServerConnectionSuccessEvent;
 import ac.robinson.bettertogether.event.ServerMessageErrorEvent;
 
-class BluetoothServerConnection extends RemoteConnection {
+class BluetoothServerConnection extends RemoteConnection implements Runnable {
 
 	private static final String TAG = "BTServerConnection";
 
@@ -38,9 +38,10 @@ class BluetoothServerConnection extends RemoteConnection {
 	private String mId;
 	private BluetoothSocket mSocket;
 	private InputStream mInputStream;
-	private OutputStreamWriter mOutputStreamWriter;
+	private OutputStream mOutputStream;
 
 	BluetoothServerConnection(String id, BluetoothSocket socket) {
+		setMetricsId(EventType.Type.BLUETOOTH, id);
 		mId = id;
 		mSocket = socket;
 	}
@@ -48,39 +49,43 @@ class BluetoothServerConnection extends RemoteConnection {
 	@Override
 	public void run() {
 		mRunning = true;
+		FrameReader frameReader = null;
 		try {
 			Log.d(TAG, "Bluetooth server connected to client");
 			EventBus.getDefault().post(new ServerConnectionSuccessEvent(EventType.Type.BLUETOOTH));
 
 			mInputStream = mSocket.getInputStream();
-			mOutputStreamWriter = new OutputStreamWriter(mSocket.getOutputStream(), BroadcastMessage.CHARSET);
+			mOutputStream = new BufferedOutputStream(mSocket.getOutputStream(), ProtocolConstants.MESSAGE_BUFFER_SIZE);
+			startWriter(mOutputStream);
 
-			int bufferSize = HotspotManagerService.MESSAGE_BUFFER_SIZE;
-			byte[] buffer = new byte[bufferSize];
 			int bytesRead;
-			StringBuilder stringBuilder = new StringBuilder();
+			frameReader = createFrameReader();
 
 			while (mRunning) {
-				bytesRead = mInputStream.read(buffer);
-				processBytes(mId, buffer, bytesRead, stringBuilder);
+				bytesRead = frameReader.readFrom(mInputStream);
+				processBytes(mId, bytesRead, frameReader);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			Log.e(TAG, "Bluetooth server connection error: " + e.getLocalizedMessage());
+			recordError();
 			EventBus.getDefault().post(new ServerMessageErrorEvent(EventType.Type.BLUETOOTH));
+		} finally {
+			finishReading(frameReader);
 		}
 	}
 
-	boolean sendMessage(String message) {
-		return sendMessage(mOutputStreamWriter, message);
-	}
-
-	void closeConnection() {
+	@Override
+	public void closeConnection() {
+		if (!markClosed()) {
+			return;
+		}
 		mRunning = false;
+		stopWriter();
 		closeConnection(mInputStream);
 		mInputStream = null;
-		closeConnection(mOutputStreamWriter);
-		mOutputStreamWriter = null;
+		closeConnection(mOutputStream);
+		mOutputStream = null;
 		closeConnection(mSocket);
 		mSocket = null;
 	}
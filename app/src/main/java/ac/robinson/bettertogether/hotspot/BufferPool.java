@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.nio.ByteBuffer;
+
+// a small bounded pool of equally-sized heap buffers, so that connections don't allocate new buffers when they start
+// note: a plain array stack rather than a concurrent queue so that acquire/release don't themselves create garbage
+final class BufferPool {
+
+	private final int mBufferSize;
+	private final ByteBuffer[] mBuffers;
+	private int mCount;
+
+	BufferPool(int bufferSize, int maxPooledBuffers) {
+		mBufferSize = bufferSize;
+		mBuffers = new ByteBuffer[maxPooledBuffers];
+	}
+
+	int getBufferSize() {
+		return mBufferSize;
+	}
+
+	synchronized ByteBuffer acquire() {
+		if (mCount > 0) {
+			mCount -= 1;
+			ByteBuffer buffer = mBuffers[mCount];
+			mBuffers[mCount] = null;
+			buffer.clear();
+			return buffer;
+		}
+		return ByteBuffer.allocate(mBufferSize);
+	}
+
+	// buffers of a different size (e.g., grown for an oversized frame) are simply left for garbage collection
+	synchronized void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.capacity() == mBufferSize && mCount < mBuffers.length) {
+			mBuffers[mCount] = buffer;
+			mCount += 1;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+// a link to one remote device, whatever the transport - this is all that HotspotManagerService (and each Transport)
+// needs in order to send to it; see RemoteConnection for the implementation that all transports share
+interface Connection {
+
+	// queues a message for sending - returns false if the connection has failed (or is too slow) and should be removed
+	boolean sendMessage(OutboundMessage message);
+
+	// whether a message being sent to every device should be sent on this link (see PeerSession)
+	boolean isRouteFor(OutboundMessage message);
+
+	// returns false if the other device has stopped responding and should be disconnected
+	boolean sendHeartbeat(long now, int interval);
+
+	int getQueuedBytes();
+
+	// the id that messages from the other device are delivered with
+	String getPeerId(String connectionId);
+
+	boolean hasPeerSession();
+
+	void setSlowConsumerPolicy(OutboundQueue.Policy policy);
+
+	// must be called before the connection starts
+	void setConnectionListener(ConnectionListener listener);
+
+	void closeConnection();
+}
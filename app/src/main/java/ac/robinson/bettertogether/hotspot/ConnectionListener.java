@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.greenrobot.eventbus.EventBus;
+
+import ac.robinson.bettertogether.event.ClientSessionEvent;
+import ac.robinson.bettertogether.event.MessageReceivedEvent;
+import ac.robinson.bettertogether.event.StreamFrameReceivedEvent;
+
+// receives what a connection reads from the other device - called on the connection's reading thread, so listeners must
+// hand events on rather than doing any real work; by default (EVENT_BUS), events go to HotspotManagerService's
+// subscribers, but other listeners (e.g., benchmarks using LoopbackTransport) don't need EventBus or a main thread
+interface ConnectionListener {
+
+	void onMessageReceived(MessageReceivedEvent event); // the listener must recycle the event once it has been handled
+
+	void onStreamFrameReceived(StreamFrameReceivedEvent event); // ...and call setConsumed()
+
+	void onSessionStarted(ClientSessionEvent event); // at a client that asked to resume its session
+
+	ConnectionListener EVENT_BUS = new ConnectionListener() {
+		@Override
+		public void onMessageReceived(MessageReceivedEvent event) {
+			EventBus.getDefault().post(event);
+		}
+
+		@Override
+		public void onStreamFrameReceived(StreamFrameReceivedEvent event) {
+			EventBus.getDefault().post(event);
+		}
+
+		@Override
+		public void onSessionStarted(ClientSessionEvent event) {
+			EventBus.getDefault().post(event);
+		}
+	};
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import ac.robinson.bettertogether.event.EventType;
+
+// counters and latency histograms for a single connection, so that slow or unreliable links can be diagnosed in the field
+// (see HotspotManagerService.MSG_REQUEST_METRICS) - every connection is registered here while it is open, and the final
+// metrics of recently closed connections are kept too, as the problem link has often gone by the time anyone looks
+// two latencies are measured: enqueue to write (from a message being queued for this connection until its last byte has
+// been written to the socket - i.e., time spent waiting for the batching window, flow control credit, a busy socket and
+// earlier messages) and receive to dispatch (from a received message's last frame arriving until the main thread has
+// finished handling it - i.e., time spent waiting behind other events, plus delivery to local clients and forwarding)
+final class ConnectionMetrics {
+
+	private static final int MAX_CLOSED_CONNECTIONS = 16;
+
+	private static final ArrayList<ConnectionMetrics> sOpenConnections = new ArrayList<>(); // guarded by itself
+	private static final ArrayList<String> sClosedConnections = new ArrayList<>(); // guarded by sOpenConnections
+
+	private final RemoteConnection mConnection;
+	private EventType.Type mTransport = EventType.Type.UNKNOWN;
+	private String mConnectionId;
+	private long mOpenTime; // milliseconds (wall clock, as these times are compared with logs from other devices)
+
+	private long mBytesIn;
+	private long mFramesIn;
+	private long mPartsIn; // frames that are parts of multi-part messages
+	private long mMessagesIn;
+	private long mBytesOut;
+	private long mFramesOut;
+	private long mMessagesOut;
+	private long mWriteStalls; // writes that had to wait for the socket (or the other device) to accept more data
+	private int mErrors; // read and write failures, protocol errors, heartbeat timeouts and slow consumer disconnects
+
+	private final LatencyHistogram mEnqueueToWrite = new LatencyHistogram();
+	private final LatencyHistogram mReceiveToDispatch = new LatencyHistogram();
+
+	ConnectionMetrics(RemoteConnection connection) {
+		mConnection = connection;
+	}
+
+	synchronized void setId(EventType.Type transport, String connectionId) {
+		mTransport = transport;
+		mConnectionId = connectionId;
+	}
+
+	// called when a connection's link is established (and its hello frame is sent)
+	static void register(ConnectionMetrics metrics) {
+		synchronized (sOpenConnections) {
+			if (!sOpenConnections.contains(metrics)) {
+				metrics.mOpenTime = System.currentTimeMillis();
+				sOpenConnections.add(metrics);
+			}
+		}
+	}
+
+	// called when a connection closes - returns its final metrics (null if it was never registered)
+	static String unregister(ConnectionMetrics metrics) {
+		synchronized (sOpenConnections) {
+			if (!sOpenConnections.remove(metrics)) {
+				return null;
+			}
+			String finalMetrics = metrics.toJson(System.currentTimeMillis(), false);
+			if (sClosedConnections.size() >= MAX_CLOSED_CONNECTIONS) {
+				sClosedConnections.remove(0);
+			}
+			sClosedConnections.add(finalMetrics);
+			return finalMetrics;
+		}
+	}
+
+	// one JSON object per line: open connections first, then recently closed ones (oldest first)
+	static String getAllMetrics() {
+		long now = System.currentTimeMillis();
+		StringBuilder metrics = new StringBuilder();
+		synchronized (sOpenConnections) {
+			for (ConnectionMetrics connectionMetrics : sOpenConnections) {
+				metrics.append(connectionMetrics.toJson(now, true)).append('\n');
+			}
+			for (String closedMetrics : sClosedConnections) {
+				metrics.append(closedMetrics).append('\n');
+			}
+		}
+		return metrics.toString();
+	}
+
+	synchronized void recordFrameReceived(int frameLength, boolean part) {
+		mBytesIn += frameLength;
+		mFramesIn += 1;
+		if (part) {
+			mPartsIn += 1;
+		}
+	}
+
+	synchronized void recordMessageReceived() {
+		mMessagesIn += 1;
+	}
+
+	// receiveTime is from System.nanoTime()
+	synchronized void recordMessageDispatched(long receiveTime) {
+		mReceiveToDispatch.record((System.nanoTime() - receiveTime) / 1000);
+	}
+
+	// enqueueTime is from System.nanoTime(); only sequenced messages (i.e., not control or stream frames) are counted as
+	// messages, but all frames and bytes are
+	synchronized void recordMessageWritten(OutboundMessage message, boolean compressionSupported, long enqueueTime) {
+		mBytesOut += message.getFrames(compressionSupported).length;
+		mFramesOut += message.getFrameCount(compressionSupported);
+		if (message.mSequenced) {
+			mMessagesOut += 1;
+		}
+		mEnqueueToWrite.record((System.nanoTime() - enqueueTime) / 1000);
+	}
+
+	synchronized void recordWriteStall() {
+		mWriteStalls += 1;
+	}
+
+	synchronized void recordError() {
+		mErrors += 1;
+	}
+
+	private synchronized String toJson(long now, boolean open) {
+		RemoteConnection connection = mConnection;
+		return String.format(Locale.US, "{\"time\":%d,\"transport\":\"%s\",\"connection\":%s,\"peer\":%s," +
+						"\"session\":\"%x\",\"open\":%b,\"duration\":%d,\"bytesIn\":%d,\"framesIn\":%d,\"partsIn\":%d," +
+						"\"messagesIn\":%d,\"messagesReassembled\":%d,\"partialMessagesDropped\":%d," +
+						"\"partialMessagesExpired\":%d,\"bytesOut\":%d,\"framesOut\":%d,\"messagesOut\":%d," +
+						"\"writeStalls\":%d,\"queuedMessages\":%d,\"queuedBytes\":%d,\"peakQueuedMessages\":%d," +
+						"\"droppedMessages\":%d,\"conflatedMessages\":%d,\"errors\":%d,\"rttUs\":%d," +
+						"\"rttVariationUs\":%d,\"enqueueToWriteUs\":%s,\"receiveToDispatchUs\":%s}", now, mTransport,
+				quote(mConnectionId), quote(connection.getPeerId(mConnectionId)), connection.getPeerSessionId(), open,
+				now - mOpenTime, mBytesIn, mFramesIn, mPartsIn, mMessagesIn, connection.getReassembledMessageCount(),
+				connection.getDroppedPartialMessageCount(), connection.getExpiredPartialMessageCount(), mBytesOut,
+				mFramesOut, mMessagesOut, mWriteStalls, connection.getQueuedMessageCount(), connection.getQueuedBytes(),
+				connection.getPeakQueuedMessageCount(), connection.getDroppedMessageCount(),
+				connection.getConflatedMessageCount(), mErrors, connection.getSmoothedRtt(), connection.getRttVariation(),
+				mEnqueueToWrite.toJson(), mReceiveToDispatch.toJson());
+	}
+
+	// connection ids are generated strings, so need no escaping beyond quotes and backslashes - null becomes null
+	private static String quote(String value) {
+		return value == null ? "null" : "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
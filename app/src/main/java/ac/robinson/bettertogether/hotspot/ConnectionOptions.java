@@ -43,6 +43,7 @@ public class ConnectionOptions {
 	public String mPluginPackage;
 	public boolean mUseWifi = true;
 	public boolean mUseBluetooth = true;
+	public boolean mUseMultipath = false; // keep both Wifi and Bluetooth connected (see HotspotManagerService.MSG_SET_MULTIPATH)
 
 	public String getHotspotUrl() {
 		// reverse the package string so it can be used as a url if scanned normally
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+// discards messages that have already been received from a device - used when there is more than one link to the same
+// device (e.g., Wifi and Bluetooth at once), and the sender duplicates messages across them
+// message ids increase by one for every message a device sends, so they act as a per-session sequence number; ids don't
+// need to arrive in order (or without gaps - not every message is sent to every device), but the receiver only remembers
+// the last WINDOW_SIZE ids, and anything older than that is assumed to be a duplicate
+// not thread safe
+final class DuplicateFilter {
+
+	static final int WINDOW_SIZE = 1024; // must be a multiple of 64
+
+	private final long[] mWindow = new long[WINDOW_SIZE / 64]; // one bit per id, indexed by (id % WINDOW_SIZE)
+	private boolean mStarted;
+	private int mHighestId;
+	private int mDuplicateCount;
+
+	// returns true if this id has been seen before (or is too old to tell); otherwise records it and returns false
+	boolean isDuplicate(int messageId) {
+		if (!mStarted) {
+			mStarted = true;
+			mHighestId = messageId;
+			setSeen(messageId);
+			return false;
+		}
+
+		int distance = messageId - mHighestId; // ids wrap around, so compare by difference
+		if (distance > 0) {
+			if (distance >= WINDOW_SIZE) {
+				for (int i = 0; i < mWindow.length; i++) {
+					mWindow[i] = 0;
+				}
+			} else {
+				for (int id = mHighestId + 1; id != messageId; id++) {
+					clearSeen(id); // forget ids that have now moved out of the window
+				}
+			}
+			mHighestId = messageId;
+			setSeen(messageId);
+			return false;
+		}
+
+		if (-distance >= WINDOW_SIZE || isSeen(messageId)) {
+			mDuplicateCount += 1;
+			return true;
+		}
+		setSeen(messageId);
+		return false;
+	}
+
+	// as isDuplicate, but without recording the id
+	boolean contains(int messageId) {
+		if (!mStarted) {
+			return false;
+		}
+		int distance = messageId - mHighestId;
+		return distance <= 0 && (-distance >= WINDOW_SIZE || isSeen(messageId));
+	}
+
+	int getDuplicateCount() {
+		return mDuplicateCount;
+	}
+
+	private boolean isSeen(int id) {
+		int bit = id & (WINDOW_SIZE - 1);
+		return (mWindow[bit >>> 6] & (1L << (bit & 63))) != 0;
+	}
+
+	private void setSeen(int id) {
+		int bit = id & (WINDOW_SIZE - 1);
+		mWindow[bit >>> 6] |= 1L << (bit & 63);
+	}
+
+	private void clearSeen(int id) {
+		int bit = id & (WINDOW_SIZE - 1);
+		mWindow[bit >>> 6] &= ~(1L << (bit & 63));
+	}
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// binary framing shared by all remote connections (Wifi and Bluetooth) - every frame is a header followed by raw bytes:
+// magic (2 bytes) | version (1) | type (1) | flags (1) | payload length (varint) | message id (4) | part index (varint) |
+// part count (varint) | payload (length bytes)
+// note: this class (and the other framing classes) must not depend on Android so that they can be used on a plain JVM
+// note: this framing replaced the original Base64 text messages delimited by '\f', and is not compatible with it - a
+// device running a version from before the binary framing is disconnected as soon as it sends anything (see
+// FrameHeader.parse); "earlier versions" below always means earlier versions of this binary protocol
+final class FrameCodec {
+
+	static final byte MAGIC_0 = (byte) 'B';
+	static final byte MAGIC_1 = (byte) 'T';
+	static final int VERSION = 1;
+
+	static final int TYPE_MESSAGE = 1; // a whole BroadcastMessage, or one part of a larger one
+	static final int TYPE_STREAM_OPEN = 2; // start of a stream transfer - message id is the stream id; see StreamCodec
+	static final int TYPE_STREAM_DATA = 3; // a chunk of a stream - part index is the chunk's sequence number
+	static final int TYPE_STREAM_CANCEL = 4; // the sender abandoned the stream (empty payload)
+	static final int TYPE_HELLO = 5; // sent by both sides when connecting - payload: capabilities (varint) | session id (8)
+	static final int TYPE_PING = 6; // payload: the sender's timestamp (8 bytes)
+	static final int TYPE_PONG = 7; // the reply to a ping - payload: the ping's timestamp (unchanged) | replier's time
+	static final int TYPE_CREDIT = 8; // flow control - payload: bytes the sender may send in addition (4 bytes)
+	static final int TYPE_SESSION = 9; // host to client, after the client's hello - see encodeSession
+	static final int TYPE_RELAY = 10; // precedes a forwarded message (same message id) - see encodeRelay
+	static final int TYPE_TRACE = 11; // precedes a traced message (same message id) - see encodeTrace
+	static final int TYPE_SENDER = 12; // precedes a forwarded message (same message id) - see encodeSender
+
+	// receivers ignore frame types they don't understand, and capabilities are only used once the other device has
+	// announced them, so devices on earlier versions of this protocol (which never send TYPE_HELLO) still work
+	static final int CAPABILITY_COMPRESSION = 0x01; // can receive FLAG_COMPRESSED messages (see PayloadCompressor)
+	static final int CAPABILITY_FLOW_CONTROL = 0x02; // sends TYPE_CREDIT frames, and waits for credit before sending
+	static final int CAPABILITY_RESUME = 0x04; // hosts send TYPE_SESSION; clients can resume sessions (see PeerSession)
+	static final int CAPABILITY_SENDER = 0x08; // can receive TYPE_SENDER frames; sends FLAG_SYSTEM on system messages
+	static final int LOCAL_CAPABILITIES = CAPABILITY_COMPRESSION | CAPABILITY_FLOW_CONTROL | CAPABILITY_RESUME |
+			CAPABILITY_SENDER;
+
+	static final int FLAG_URGENT = 0x01; // the sender asked for this message to skip batching - servers keep this when forwarding
+	static final int FLAG_COMPRESSED = 0x02; // the (reassembled) message payload is compressed - see PayloadCompressor
+	static final int FLAG_SYSTEM = 0x04; // a system message (BroadcastMessage.isSystemMessage) - see CAPABILITY_SENDER
+
+	static final int MAX_VARINT_SIZE = 5; // for non-negative 32-bit values
+	static final int MAX_HEADER_SIZE = 2 + 1 + 1 + 1 + MAX_VARINT_SIZE + 4 + MAX_VARINT_SIZE + MAX_VARINT_SIZE;
+	static final int MAX_PAYLOAD_SIZE = 64 * 1024; // sanity limit for a single frame - senders use much smaller parts
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private FrameCodec() {
+	}
+
+	// writes a frame header into the given buffer (which must have MAX_HEADER_SIZE bytes available at offset)
+	// returns the number of bytes written
+	static int writeHeader(byte[] buffer, int offset, int type, int flags, int payloadLength, int messageId, int partIndex,
+						   int partCount) {
+		int position = offset;
+		buffer[position++] = MAGIC_0;
+		buffer[position++] = MAGIC_1;
+		buffer[position++] = (byte) VERSION;
+		buffer[position++] = (byte) type;
+		buffer[position++] = (byte) flags;
+		position = writeVarint(buffer, position, payloadLength);
+		buffer[position++] = (byte) (messageId >>> 24);
+		buffer[position++] = (byte) (messageId >>> 16);
+		buffer[position++] = (byte) (messageId >>> 8);
+		buffer[position++] = (byte) messageId;
+		position = writeVarint(buffer, position, partIndex);
+		position = writeVarint(buffer, position, partCount);
+		return position - offset;
+	}
+
+	// a complete frame (header and payload) as a new array - used for frames that are encoded once and sent to many clients
+	static byte[] encodeFrame(int type, int messageId, int partIndex, int partCount, byte[] payload, int offset,
+							  int length) {
+		byte[] header = new byte[MAX_HEADER_SIZE];
+		int headerLength = writeHeader(header, 0, type, 0, length, messageId, partIndex, partCount);
+		byte[] frame = new byte[headerLength + length];
+		System.arraycopy(header, 0, frame, 0, headerLength);
+		System.arraycopy(payload, offset, frame, headerLength, length);
+		return frame;
+	}
+
+	// all of the frames of a message (split into parts of at most partSize bytes) as a single array
+	static byte[] encodeMessage(byte[] message, int flags, int messageId, int partSize) {
+		return encodeMessage(message, message.length, flags, messageId, partSize);
+	}
+
+	// as above, for the first length bytes of message
+	static byte[] encodeMessage(byte[] message, int length, int flags, int messageId, int partSize) {
+		int totalParts = getPartCount(length, partSize);
+		byte[] frames = new byte[length + totalParts * MAX_HEADER_SIZE];
+		int position = 0;
+		for (int partNumber = 0; partNumber < totalParts; partNumber += 1) {
+			int partStart = partNumber * partSize;
+			int partLength = Math.min(partSize, length - partStart);
+			position += writeHeader(frames, position, TYPE_MESSAGE, flags, partLength, messageId, partNumber, totalParts);
+			System.arraycopy(message, partStart, frames, position, partLength);
+			position += partLength;
+		}
+		return position == frames.length ? frames : Arrays.copyOf(frames, position);
+	}
+
+	static final class HelloInfo {
+		int mCapabilities;
+		long mSessionId; // identifies the remote device across all of its links; 0 = unknown (an earlier version)
+		long mResumeToken; // a client reconnecting to a session: the token its host issued; 0 = a new session
+		int mLastMessageId; // (when resuming) the last message the client received from the host
+		byte[] mReceivedWindow; // (when resuming) see PeerSession.getReceivedWindow; null if not sent
+		long mLinkToken; // a client adding a link to a session it already has: the token its host issued; 0 = none
+	}
+
+	// clients that are reconnecting add the token, last message id and received window of the session they want to
+	// resume (receivedWindow may be null); clients adding another link to a live session add its token as linkToken
+	// payload: capabilities (varint) | session id (8) | [resume token (8) | last message id (4) | [received window
+	// (DuplicateFilter.WINDOW_SIZE / 8) | [link token (8)]]] - earlier fields are zero when only later ones are needed
+	static byte[] encodeHello(int capabilities, long sessionId, long resumeToken, int lastMessageId,
+							  byte[] receivedWindow, long linkToken) {
+		byte[] payload = new byte[MAX_VARINT_SIZE + 8 + 8 + 4 + DuplicateFilter.WINDOW_SIZE / 8 + 8];
+		int length = writeVarint(payload, 0, capabilities);
+		length = writeLong(payload, length, sessionId);
+		if (resumeToken != 0 || linkToken != 0) {
+			length = writeLong(payload, length, resumeToken);
+			length = writeInt(payload, length, lastMessageId);
+			if (receivedWindow != null || linkToken != 0) {
+				if (receivedWindow != null) {
+					System.arraycopy(receivedWindow, 0, payload, length, DuplicateFilter.WINDOW_SIZE / 8);
+				}
+				length += DuplicateFilter.WINDOW_SIZE / 8;
+				if (linkToken != 0) {
+					length = writeLong(payload, length, linkToken);
+				}
+			}
+		}
+		return encodeFrame(TYPE_HELLO, 0, 0, 1, payload, 0, length);
+	}
+
+	// any bytes after the known fields are ignored, so that later versions can add to the hello payload
+	static HelloInfo decodeHello(byte[] payload, int offset, int length) throws FrameFormatException {
+		HelloInfo info = new HelloInfo();
+		int end = offset + length;
+		int position = offset;
+		for (int shift = 0; ; shift += 7) {
+			if (position >= end || shift >= 7 * MAX_VARINT_SIZE) {
+				throw new FrameFormatException("Invalid hello frame");
+			}
+			byte current = payload[position++];
+			info.mCapabilities |= (current & 0x7f) << shift;
+			if ((current & 0x80) == 0) {
+				break;
+			}
+		}
+		if (end - position >= 8) {
+			info.mSessionId = readLong(payload, position);
+			position += 8;
+		}
+		if (end - position >= 8 + 4) {
+			info.mResumeToken = readLong(payload, position);
+			info.mLastMessageId = readInt(payload, position + 8);
+			position += 8 + 4;
+		}
+		if (end - position >= DuplicateFilter.WINDOW_SIZE / 8) {
+			if (info.mResumeToken != 0) {
+				info.mReceivedWindow = Arrays.copyOfRange(payload, position,
+						position + DuplicateFilter.WINDOW_SIZE / 8);
+			}
+			position += DuplicateFilter.WINDOW_SIZE / 8;
+		}
+		if (end - position >= 8) {
+			info.mLinkToken = readLong(payload, position);
+		}
+		return info;
+	}
+
+	static final class SessionInfo {
+		long mResumeToken; // for the client to present if it needs to reconnect
+		boolean mResumed; // whether the session the client asked to resume was found (missed messages follow)
+		int mLastMessageId; // the most recent message id at the host - the client has everything it is owed up to here
+		String mPeerId; // the id the host gives the client's messages (i.e., their from id); null if not sent
+	}
+
+	// payload: resume token (8) | resumed (1) | last message id (4) | peer id (UTF-8; optional)
+	static byte[] encodeSession(long resumeToken, boolean resumed, int lastMessageId, String peerId) {
+		byte[] peerIdBytes = peerId != null ? peerId.getBytes(UTF_8) : new byte[0];
+		byte[] payload = new byte[8 + 1 + 4 + peerIdBytes.length];
+		int length = writeLong(payload, 0, resumeToken);
+		payload[length++] = (byte) (resumed ? 1 : 0);
+		length = writeInt(payload, length, lastMessageId);
+		System.arraycopy(peerIdBytes, 0, payload, length, peerIdBytes.length);
+		length += peerIdBytes.length;
+		return encodeFrame(TYPE_SESSION, 0, 0, 1, payload, 0, length);
+	}
+
+	static SessionInfo decodeSession(byte[] payload, int offset, int length) throws FrameFormatException {
+		if (length < 8 + 1 + 4) {
+			throw new FrameFormatException("Invalid session frame");
+		}
+		SessionInfo info = new SessionInfo();
+		info.mResumeToken = readLong(payload, offset);
+		info.mResumed = payload[offset + 8] != 0;
+		info.mLastMessageId = readInt(payload, offset + 9);
+		if (length > 8 + 1 + 4) {
+			info.mPeerId = new String(payload, offset + 13, length - 13, UTF_8);
+		}
+		return info;
+	}
+
+	static final class RelayInfo {
+		int mHopCount; // how many devices have forwarded the message so far (1 = forwarded once)
+		long mOriginSessionId; // the session id of the device that first sent the message...
+		int mOriginMessageId; // ...and the message id it used - together, these identify the message across the group
+	}
+
+	// relayed messages keep the identity they were first sent with, so that a device can recognise one that reaches it
+	// by more than one route (or comes back to it), and the number of hops so far, so that forwarding always ends
+	// payload: hop count (1) | origin session id (8) | origin message id (4)
+	static byte[] encodeRelay(int messageId, int hopCount, long originSessionId, int originMessageId) {
+		byte[] payload = new byte[1 + 8 + 4];
+		payload[0] = (byte) hopCount;
+		int length = writeLong(payload, 1, originSessionId);
+		length = writeInt(payload, length, originMessageId);
+		return encodeFrame(TYPE_RELAY, messageId, 0, 1, payload, 0, length);
+	}
+
+	static RelayInfo decodeRelay(byte[] payload, int offset, int length) throws FrameFormatException {
+		if (length < 1 + 8 + 4) {
+			throw new FrameFormatException("Invalid relay frame");
+		}
+		RelayInfo info = new RelayInfo();
+		info.mHopCount = payload[offset] & 0xff;
+		info.mOriginSessionId = readLong(payload, offset + 1);
+		info.mOriginMessageId = readInt(payload, offset + 9);
+		return info;
+	}
+
+	// forwarded messages are sent exactly as they arrived, rather than being decoded just to set their from id and then
+	// encoded again - instead, the id that receivers should set is sent in this frame (only to devices that announce
+	// CAPABILITY_SENDER - others are sent a copy of the message with the id set, as before)
+	// payload: the sender's peer id (UTF-8)
+	static byte[] encodeSender(int messageId, String senderId) {
+		byte[] payload = senderId.getBytes(UTF_8);
+		return encodeFrame(TYPE_SENDER, messageId, 0, 1, payload, 0, payload.length);
+	}
+
+	static String decodeSender(byte[] payload, int offset, int length) {
+		return new String(payload, offset, length, UTF_8);
+	}
+
+	// ping frames - the timestamp is only ever interpreted by the device that sent the ping
+	static byte[] encodeTimestamp(int type, long timestamp) {
+		byte[] payload = new byte[8];
+		writeLong(payload, 0, timestamp);
+		return encodeFrame(type, 0, 0, 1, payload, 0, payload.length);
+	}
+
+	static long decodeTimestamp(byte[] payload, int offset, int length) throws FrameFormatException {
+		if (length < 8) {
+			throw new FrameFormatException("Invalid timestamp frame");
+		}
+		return readLong(payload, offset);
+	}
+
+	// pong frames also carry the replying device's clock, so that the pinging device can estimate the offset between
+	// the two clocks (see RttEstimator.addClockSample) - earlier versions only read (and send) the first one
+	static byte[] encodePong(long pingTimestamp, long localTime) {
+		byte[] payload = new byte[8 + 8];
+		int length = writeLong(payload, 0, pingTimestamp);
+		length = writeLong(payload, length, localTime);
+		return encodeFrame(TYPE_PONG, 0, 0, 1, payload, 0, length);
+	}
+
+	// the replying device's time from a pong frame (0 if it is an earlier version, which doesn't send it)
+	static long decodePongTime(byte[] payload, int offset, int length) {
+		return length >= 8 + 8 ? readLong(payload, offset + 8) : 0;
+	}
+
+	// traces (see MessageTrace) are encoded as each message is written, so that they include the time it was written to
+	// that particular connection (the extra hop, which isn't added to the trace itself)
+	// payload: trace id (8) | hop count (1) | hops: type (1) | device (8) | time (8), in the sender's clock
+	static byte[] encodeTrace(int messageId, MessageTrace trace, int hop, long device, long time) {
+		int hopCount = Math.min(trace.getHopCount(), MessageTrace.MAX_HOPS - 1) + 1;
+		byte[] payload = new byte[8 + 1 + hopCount * (1 + 8 + 8)];
+		int length = writeLong(payload, 0, trace.mTraceId);
+		payload[length++] = (byte) hopCount;
+		for (int i = 0; i < hopCount - 1; i++) {
+			payload[length++] = (byte) trace.getHop(i);
+			length = writeLong(payload, length, trace.getDevice(i));
+			length = writeLong(payload, length, trace.getTime(i));
+		}
+		payload[length++] = (byte) hop;
+		length = writeLong(payload, length, device);
+		length = writeLong(payload, length, time);
+		return encodeFrame(TYPE_TRACE, messageId, 0, 1, payload, 0, length);
+	}
+
+	static MessageTrace decodeTrace(byte[] payload, int offset, int length) throws FrameFormatException {
+		if (length < 8 + 1) {
+			throw new FrameFormatException("Invalid trace frame");
+		}
+		MessageTrace trace = new MessageTrace(readLong(payload, offset));
+		int hopCount = payload[offset + 8] & 0xff;
+		if (length < 8 + 1 + hopCount * (1 + 8 + 8)) {
+			throw new FrameFormatException("Invalid trace frame");
+		}
+		int position = offset + 8 + 1;
+		for (int i = 0; i < hopCount; i++) {
+			trace.addHop(payload[position] & 0xff, readLong(payload, position + 1), readLong(payload, position + 9));
+			position += 1 + 8 + 8;
+		}
+		return trace;
+	}
+
+	// credit is counted in whole frames (headers included) of TYPE_MESSAGE and TYPE_STREAM_DATA - see RemoteConnection
+	static byte[] encodeCredit(int credit) {
+		byte[] payload = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			payload[i] = (byte) (credit >>> (24 - 8 * i));
+		}
+		return encodeFrame(TYPE_CREDIT, 0, 0, 1, payload, 0, payload.length);
+	}
+
+	static int decodeCredit(byte[] payload, int offset, int length) throws FrameFormatException {
+		if (length < 4) {
+			throw new FrameFormatException("Invalid credit frame");
+		}
+		int credit = 0;
+		for (int i = 0; i < 4; i++) {
+			credit = (credit << 8) | (payload[offset + i] & 0xff);
+		}
+		if (credit < 0) {
+			throw new FrameFormatException("Invalid credit (" + credit + " bytes)");
+		}
+		return credit;
+	}
+
+	static int writeInt(byte[] buffer, int position, int value) {
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (value >>> shift);
+		}
+		return position;
+	}
+
+	static int readInt(byte[] buffer, int position) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (buffer[position + i] & 0xff);
+		}
+		return value;
+	}
+
+	static int writeLong(byte[] buffer, int position, long value) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (value >>> shift);
+		}
+		return position;
+	}
+
+	static long readLong(byte[] buffer, int position) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (buffer[position + i] & 0xff);
+		}
+		return value;
+	}
+
+	// the total length (header and payload) of the frame starting at offset in an array of frames that we encoded
+	static int getFrameLength(byte[] frames, int offset) {
+		int position = offset + 5;
+		int payloadLength = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte current = frames[position++];
+			payloadLength |= (current & 0x7f) << shift;
+			if ((current & 0x80) == 0) {
+				break;
+			}
+		}
+		position += 4; // message id
+		for (int varint = 0; varint < 2; varint++) { // part index and part count
+			while ((frames[position++] & 0x80) != 0) {
+				// skip continuation bytes
+			}
+		}
+		return position - offset + payloadLength;
+	}
+
+	// unsigned LEB128 - returns the position after the last byte written
+	static int writeVarint(byte[] buffer, int position, int value) {
+		while ((value & ~0x7f) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	static int getPartCount(int payloadLength, int partSize) {
+		return payloadLength <= partSize ? 1 : (payloadLength + partSize - 1) / partSize;
+	}
+}
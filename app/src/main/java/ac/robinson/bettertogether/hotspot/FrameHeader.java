@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+// a parsed frame header - see FrameCodec for the layout; instances are reused, so copy any values that need to be kept
+final class FrameHeader {
+
+	int mVersion;
+	int mType;
+	int mFlags;
+	int mPayloadLength;
+	int mMessageId;
+	int mPartIndex;
+	int mPartCount;
+
+	int mHeaderLength; // the number of bytes the header occupies - the payload starts immediately afterwards
+
+	private int mPosition; // parsing state
+
+	// devices running a version from before the binary framing send Base64 text delimited by '\f', and cannot be
+	// understood (nor can they understand us) - this is a protocol break, so all we can do is say why they were dropped
+	private static final String TEXT_FRAMING_MESSAGE = "Incompatible protocol: the other device uses the old text " +
+			"framing - both devices must be updated";
+
+	// returns true if a complete header was parsed from the buffer, or false if more bytes are needed
+	boolean parse(byte[] buffer, int offset, int available) throws FrameFormatException {
+		if (available < 5) {
+			return false;
+		}
+		if (buffer[offset] != FrameCodec.MAGIC_0 || buffer[offset + 1] != FrameCodec.MAGIC_1) {
+			if (isTextFraming(buffer[offset]) && isTextFraming(buffer[offset + 1])) {
+				throw new FrameFormatException(TEXT_FRAMING_MESSAGE);
+			}
+			throw new FrameFormatException("Invalid frame magic");
+		}
+		mVersion = buffer[offset + 2] & 0xff;
+		if (mVersion != FrameCodec.VERSION) {
+			if (isTextFraming(buffer[offset + 2])) {
+				throw new FrameFormatException(TEXT_FRAMING_MESSAGE); // (Base64 text that happens to start with "BT")
+			}
+			throw new FrameFormatException("Unsupported frame version " + mVersion);
+		}
+		mType = buffer[offset + 3] & 0xff;
+		mFlags = buffer[offset + 4] & 0xff;
+
+		int end = offset + available;
+		mPosition = offset + 5;
+		mPayloadLength = readVarint(buffer, end);
+		if (mPayloadLength < 0) {
+			return false;
+		}
+		if (mPayloadLength > FrameCodec.MAX_PAYLOAD_SIZE) {
+			throw new FrameFormatException("Frame too large (" + mPayloadLength + " bytes)");
+		}
+		if (end - mPosition < 4) {
+			return false;
+		}
+		mMessageId = ((buffer[mPosition] & 0xff) << 24) | ((buffer[mPosition + 1] & 0xff) << 16) |
+				((buffer[mPosition + 2] & 0xff) << 8) | (buffer[mPosition + 3] & 0xff);
+		mPosition += 4;
+		mPartIndex = readVarint(buffer, end);
+		if (mPartIndex < 0) {
+			return false;
+		}
+		mPartCount = readVarint(buffer, end);
+		if (mPartCount < 0) {
+			return false;
+		}
+
+		mHeaderLength = mPosition - offset;
+		return true;
+	}
+
+	int getFrameLength() {
+		return mHeaderLength + mPayloadLength;
+	}
+
+	// whether the byte could be part of the old text framing (the Base64 alphabet, part counts, or the delimiter)
+	private static boolean isTextFraming(byte value) {
+		return (value >= 'A' && value <= 'Z') || (value >= 'a' && value <= 'z') || (value >= '0' && value <= '9') ||
+				value == '+' || value == '/' || value == '=' || value == '\f';
+	}
+
+	// returns -1 if the varint is incomplete
+	private int readVarint(byte[] buffer, int end) throws FrameFormatException {
+		int value = 0;
+		for (int shift = 0; shift < 7 * FrameCodec.MAX_VARINT_SIZE; shift += 7) {
+			if (mPosition >= end) {
+				return -1;
+			}
+			byte current = buffer[mPosition++];
+			value |= (current & 0x7f) << shift;
+			if ((current & 0x80) == 0) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new FrameFormatException("Invalid frame header value");
+	}
+}
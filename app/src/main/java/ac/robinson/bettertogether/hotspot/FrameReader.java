@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// reads from a connection's stream straight into a pooled buffer, and slices that buffer into frames using the length in
+// each header (i.e., no delimiter scanning) - headers are parsed in place, and payloads are left in the buffer until the
+// next call to nextFrame(), so the steady state creates no garbage
+// one reader per connection - not thread safe
+final class FrameReader {
+
+	private final BufferPool mBufferPool;
+	private final FrameHeader mHeader = new FrameHeader();
+	private ByteBuffer mBuffer; // position marks the end of the received data
+	private int mStart; // start of the first unconsumed frame
+	private boolean mHasFrame; // whether the frame at mStart has been returned by nextFrame()
+
+	FrameReader(BufferPool bufferPool) {
+		mBufferPool = bufferPool;
+		mBuffer = bufferPool.acquire();
+	}
+
+	// a single read from the stream - returns the number of bytes read, or -1 at the end of the stream
+	int readFrom(InputStream inputStream) throws IOException {
+		prepareForRead();
+		int bytesRead = inputStream.read(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), mBuffer.remaining());
+		if (bytesRead > 0) {
+			mBuffer.position(mBuffer.position() + bytesRead);
+		}
+		return bytesRead;
+	}
+
+	// a single read from a (non-blocking) channel via the given (direct) buffer, which can be shared between readers as
+	// it is only used during this call - returns the number of bytes read (possibly 0), or -1 at the end of the stream
+	int readFrom(ReadableByteChannel channel, ByteBuffer readBuffer) throws IOException {
+		prepareForRead();
+		readBuffer.clear();
+		readBuffer.limit(Math.min(readBuffer.capacity(), mBuffer.remaining()));
+		int bytesRead = channel.read(readBuffer);
+		if (bytesRead > 0) {
+			readBuffer.flip();
+			mBuffer.put(readBuffer);
+		}
+		return bytesRead;
+	}
+
+	// move any partial frame to the start of the buffer, growing it if a single frame is larger than the whole buffer
+	private void prepareForRead() {
+		int remaining = mBuffer.position() - mStart;
+		int required = mHeader.mHeaderLength > 0 ? mHeader.getFrameLength() : FrameCodec.MAX_HEADER_SIZE;
+		if (required > mBuffer.capacity()) {
+			ByteBuffer largerBuffer = ByteBuffer.allocate(required);
+			largerBuffer.put(mBuffer.array(), mBuffer.arrayOffset() + mStart, remaining);
+			mBufferPool.release(mBuffer);
+			mBuffer = largerBuffer;
+			mStart = 0;
+		} else if (mStart > 0) {
+			byte[] array = mBuffer.array();
+			System.arraycopy(array, mBuffer.arrayOffset() + mStart, array, mBuffer.arrayOffset(), remaining);
+			mBuffer.position(remaining);
+			mStart = 0;
+		}
+	}
+
+	// returns true if a complete frame is available - its header is then getHeader(); payload is at getPayloadOffset()
+	// the previous frame's contents are invalid after calling this method
+	boolean nextFrame() throws FrameFormatException {
+		if (mHasFrame) {
+			mStart += mHeader.getFrameLength(); // consume the previous frame
+			mHasFrame = false;
+		}
+		int end = mBuffer.position();
+		if (mStart == end) {
+			mStart = 0;
+			mBuffer.clear();
+			mHeader.mHeaderLength = 0;
+			return false;
+		}
+		if (mHeader.parse(mBuffer.array(), mBuffer.arrayOffset() + mStart, end - mStart)) {
+			mHasFrame = end - mStart >= mHeader.getFrameLength();
+			return mHasFrame; // if incomplete, the header is kept so that prepareForRead() can make enough space
+		}
+		mHeader.mHeaderLength = 0;
+		return false;
+	}
+
+	FrameHeader getHeader() {
+		return mHeader;
+	}
+
+	byte[] getBuffer() {
+		return mBuffer.array();
+	}
+
+	int getPayloadOffset() {
+		return mBuffer.arrayOffset() + mStart + mHeader.mHeaderLength;
+	}
+
+	void release() {
+		if (mBuffer != null) {
+			mBufferPool.release(mBuffer);
+			mBuffer = null;
+		}
+	}
+}
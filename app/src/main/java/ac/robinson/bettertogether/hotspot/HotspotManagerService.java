@@ -32,7 +32,6 @@ import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
@@ -44,11 +43,17 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import ac.robinson.bettertogether.BetterTogetherUtils;
 import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
@@ -56,10 +61,13 @@ import ac.robinson.bettertogether.api.messaging.PluginIntent;
 import ac.robinson.bettertogether.event.ClientConnectionErrorEvent;
 import ac.robinson.bettertogether.event.ClientConnectionSuccessEvent;
 import ac.robinson.bettertogether.event.ClientMessageErrorEvent;
+import ac.robinson.bettertogether.event.ClientSessionEvent;
+import ac.robinson.bettertogether.event.EventType;
 import ac.robinson.bettertogether.event.MessageReceivedEvent;
 import ac.robinson.bettertogether.event.ServerConnectionSuccessEvent;
 import ac.robinson.bettertogether.event.ServerErrorEvent;
 import ac.robinson.bettertogether.event.ServerMessageErrorEvent;
+import ac.robinson.bettertogether.event.StreamFrameReceivedEvent;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
@@ -73,16 +81,8 @@ public class HotspotManagerService extends Service {
 	private static final boolean CREATE_WIFI_HOTSPOT_SUPPORTED = Build.VERSION.SDK_INT < Build.VERSION_CODES.N;
 	private static final String HOTSPOT_STATE_FILTER = "android.net.wifi.WIFI_AP_STATE_CHANGED"; // private access in source
 
-	// for tracking server/client state (note: MESSAGE_ID_SIZE minimum of 8 is for Wifi password length requirements)
-	public static final int MESSAGE_ID_SIZE = 8; // number of digits to use for hotspot / server / message id - * minimum: 8 *
-	public static final String SERVER_MESSAGE_ID = "BTplhost"; // must be constant over all clients
+	// for tracking server/client state (see also ProtocolConstants)
 	public static final UUID BLUETOOTH_SERVER_UUID = UUID.fromString("07eb2627-3de9-4ae4-b6a9-cbb282a6363f"); // must be constant
-	public static final int MESSAGE_BUFFER_SIZE = 2048;
-	public static final int MESSAGE_PART_COUNT_SIZE = 2; // up to 10^n parts of MESSAGE_BUFFER_SIZE (when Base64-encoded)
-	public static final int MESSAGE_HEADER_SIZE = MESSAGE_ID_SIZE + (2 * MESSAGE_PART_COUNT_SIZE); // id; part count; part num
-	public static final int MESSAGE_PAYLOAD_SIZE = MESSAGE_BUFFER_SIZE - MESSAGE_HEADER_SIZE - 1; // 1 char for \n
-	public static final byte MESSAGE_DELIMITER_BYTE = (byte) '\f'; // have to use \f as \r and \n are part of base64
-	public static final String MESSAGE_DELIMITER_STRING = Character.toString((char) MESSAGE_DELIMITER_BYTE);
 
 	// for managing wifi/bluetooth connections
 	private WifiManager mWifiManager;
@@ -95,13 +95,15 @@ public class HotspotManagerService extends Service {
 	private ConnectionOptions mOriginalHotspotConfiguration = null;
 
 	// for managing connection states
-	private ConnectionOptions mConnectionOptions = null;
+	private volatile ConnectionOptions mConnectionOptions = null; // (also read on the dispatching thread)
 	private int mHotspotId = -1; // separate so we can unlink after destroying the hotspot
 	private WifiServer mWifiServer;
-	private WifiClientConnection mWifiClient = null;
+	private volatile WifiClientConnection mWifiClient = null;
 	private BluetoothServer mBluetoothServer;
-	private BluetoothClientConnection mBluetoothClient;
-	private boolean mHotspotMode;
+	// every server that is running (see startTransport)
+	private final CopyOnWriteArrayList<Transport> mTransports = new CopyOnWriteArrayList<>();
+	private volatile BluetoothClientConnection mBluetoothClient;
+	private volatile boolean mHotspotMode;
 	private boolean mIsConnected;
 
 	// for tracking errors
@@ -113,15 +115,103 @@ public class HotspotManagerService extends Service {
 	private static final float CONNECTION_DELAY_INCREMENT_MULTIPLIER = 1.3f; // multiply delay by this on every failure
 	private static final int MSG_WIFI_CONNECTION_ERROR = 1;
 	private static final int MSG_BLUETOOTH_CONNECTION_ERROR = 2;
+	private static final int MSG_RESUME_TIMEOUT = 3;
 	private int mWifiConnectionTimeout = WIFI_CONNECTION_TIMEOUT;
 	private int mBluetoothConnectionTimeout = BLUETOOTH_CONNECTION_TIMEOUT;
 
+	private boolean mMultipathEnabled = false;
+
+	// session resumption - a client that loses its connection reconnects and carries on (receiving the messages it missed
+	// from the host's replay buffer) rather than stopping its plugins, as long as it reconnects within RESUME_TIMEOUT and
+	// the host still has everything it missed; the buffer holds at least a few seconds of typical traffic
+	private static final int RESUME_TIMEOUT = 20000; // milliseconds (less than PeerSession.SESSION_RETENTION_TIME)
+	private static final int REPLAY_BUFFER_MESSAGES = 512;
+	private static final int REPLAY_BUFFER_BYTES = 512 * 1024;
+	private final ReplayBuffer mReplayBuffer = new ReplayBuffer(REPLAY_BUFFER_MESSAGES, REPLAY_BUFFER_BYTES);
+	private EventType.Type mResumingType; // the transport being used to resume; null = not resuming
+	private BluetoothDevice mBluetoothDevice; // the host we last connected to (so we can reconnect without discovery)
+
+	// relay mode - a client that accepts Bluetooth connections from other devices (advertising itself with the group's
+	// name, so that joining devices connect to whichever of the host or a relay they find first), and forwards messages
+	// between them and its own host; groups then form a tree, rather than every device connecting to the host, so they
+	// can grow beyond the host's connection limit (about 7 Bluetooth devices) and upload bandwidth
+	// note: relays only accept Bluetooth connections - Wifi clients are all connected to the host's hotspot anyway
+	private boolean mRelayEnabled = false;
+	private volatile boolean mRelayMode; // whether we are currently relaying (i.e., we are connected, and our server is running)
+
+	// heartbeats detect devices that have gone out of range without disconnecting (otherwise only noticed when a write
+	// eventually fails), and measure each link's round-trip time (also used to choose the fastest link in multipath mode)
+	// - Bluetooth links are slower, and more costly to keep busy, so are checked less often
+	static final int DEFAULT_WIFI_HEARTBEAT_INTERVAL = 1000; // milliseconds
+	static final int DEFAULT_BLUETOOTH_HEARTBEAT_INTERVAL = 2000;
+	private int mWifiHeartbeatInterval = DEFAULT_WIFI_HEARTBEAT_INTERVAL;
+	private int mBluetoothHeartbeatInterval = DEFAULT_BLUETOOTH_HEARTBEAT_INTERVAL;
+	private final Handler mHeartbeatHandler = new Handler();
+	private final Runnable mWifiHeartbeatRunnable = new Runnable() {
+		@Override
+		public void run() {
+			sendWifiHeartbeats();
+			mHeartbeatHandler.postDelayed(mWifiHeartbeatRunnable, mWifiHeartbeatInterval);
+		}
+	};
+	private final Runnable mBluetoothHeartbeatRunnable = new Runnable() {
+		@Override
+		public void run() {
+			sendBluetoothHeartbeats();
+			mHeartbeatHandler.postDelayed(mBluetoothHeartbeatRunnable, mBluetoothHeartbeatInterval);
+		}
+	};
+
+	// local clients are told when messages to remote devices are queueing up faster than they can be sent (e.g., because
+	// a device isn't returning flow control credit), so that they can slow down or skip messages until it clears
+	private static final int BACKPRESSURE_HIGH_WATERMARK = RemoteConnection.MAX_QUEUED_BYTES / 2; // queued bytes
+	private static final int BACKPRESSURE_LOW_WATERMARK = RemoteConnection.MAX_QUEUED_BYTES / 8;
+	private static final int BACKPRESSURE_CHECK_INTERVAL = 100; // milliseconds
+	private volatile boolean mBackpressure = false; // guarded by mSendLock (but read without it)
+	private final Handler mBackpressureHandler = new Handler();
+	private final Runnable mBackpressureRunnable = new Runnable() {
+		@Override
+		public void run() {
+			updateBackpressure();
+		}
+	};
+
+	// outgoing stream data is kept here and released to the connections' queues a little at a time as they drain - a
+	// large stream queued all at once would be far beyond the queues' limits (see RemoteConnection.MAX_QUEUED_BYTES),
+	// and so would disconnect clients or leave gaps in the stream, depending on the slow client policy
+	private static final int STREAM_QUEUE_LIMIT = RemoteConnection.MAX_QUEUED_BYTES / 4; // queued bytes
+	private static final int STREAM_PACING_INTERVAL = 20; // milliseconds
+	private final Handler mStreamPacingHandler = new Handler();
+	private final Runnable mStreamPacingRunnable = new Runnable() {
+		@Override
+		public void run() {
+			sendPendingStreamData();
+		}
+	};
+
+	// connection metrics (see ConnectionMetrics) are appended to this file in the app's own storage when requested - on
+	// external storage where possible, so that they can be copied from devices in the field without a debugger
+	private static final String METRICS_FILE_NAME = "connection-metrics.jsonl";
+	private static final int MAX_METRICS_FILE_SIZE = 1024 * 1024; // bytes - the file is started again beyond this
+
+	// messages received from remote devices are routed on a dedicated thread rather than the main thread (see
+	// MessageDispatcher) - sending to remote devices (see sendToAllRemoteClients) happens on both threads, so is
+	// serialised by mSendLock; everything else that the dispatching thread uses is either thread-safe or volatile
+	private MessageDispatcher mMessageDispatcher;
+	private final Object mSendLock = new Object();
+	private final Handler mMainThreadHandler = new Handler(); // e.g., for work that the dispatching thread hands back
+
 	// service messages and communication
 	private boolean mIsBound = false;
 	private final Messenger mMessenger;
-	private ArrayList<Messenger> mClients = new ArrayList<>();
-	private HandlerThread mMessageThread;
-	private Handler mMessageThreadHandler;
+	// local clients are also sent messages from the dispatching thread (see MessageDispatcher)
+	private final CopyOnWriteArrayList<Messenger> mClients = new CopyOnWriteArrayList<>();
+	private volatile OutboundQueue.Policy mSlowClientPolicy = OutboundQueue.Policy.DISCONNECT;
+
+	// streams in progress - outgoing streams are only accessed from the main thread; incoming streams are received on
+	// the dispatching thread (see onStreamFrameReceived), so are guarded by their own lock
+	private HashMap<Integer, StreamTransfer> mOutgoingStreams = new HashMap<>();
+	private final HashMap<Integer, StreamTransfer> mIncomingStreams = new HashMap<>();
 
 	public static final int MSG_REGISTER_CLIENT = 1; // service management
 	public static final int MSG_UNREGISTER_CLIENT = 2; // service management
@@ -143,6 +233,60 @@ public class HotspotManagerService extends Service {
 	public static final int EVENT_CONNECTION_INVALID_URL = 14;
 	public static final int EVENT_SETTINGS_PERMISSION_ERROR = 15;
 
+	// streams carry payloads too large for a single BroadcastMessage - the stream id is always in arg1
+	public static final int MSG_STREAM_OPEN = 16; // KEY_STREAM_TYPE, KEY_STREAM_SIZE
+	public static final int MSG_STREAM_DATA = 17; // KEY_STREAM_DATA (a chunk of any size)
+	public static final int MSG_STREAM_CANCEL = 18; // cancels an outgoing stream, or stops delivery of an incoming one
+
+	// what to do when a remote client can't keep up - data: "DROP", "DISCONNECT" (default) or "CONFLATE" (replace queued
+	// messages of the same type with newer ones - only suitable when plugins send complete state in every message)
+	public static final int MSG_SET_SLOW_CLIENT_POLICY = 23;
+
+	// how long (in milliseconds, as a string) to batch small outgoing messages for - "0" sends every message immediately
+	public static final int MSG_SET_BATCH_WINDOW = 24;
+
+	// when joining a hotspot, keep both the Wifi and Bluetooth connections rather than just the first to succeed - arg1:
+	// 1 = enabled, 0 = disabled (default); applies from the next MSG_JOIN_HOTSPOT
+	public static final int MSG_SET_MULTIPATH = 25;
+
+	// how often to check that remote devices are still responding, in milliseconds - arg1: Wifi, arg2: Bluetooth (0 =
+	// no heartbeats for that transport; < 0 = unchanged); defaults: DEFAULT_[WIFI|BLUETOOTH]_HEARTBEAT_INTERVAL
+	public static final int MSG_SET_HEARTBEAT_INTERVAL = 27;
+
+	// when joined to a hotspot, also accept connections from other devices and relay messages to and from them - arg1:
+	// 1 = enabled, 0 = disabled (default); takes effect immediately if already connected
+	public static final int MSG_SET_RELAY_MODE = 28;
+
+	// the metrics of every current connection, and of recently closed ones (see ConnectionMetrics), are sent to local
+	// clients as an EVENT_METRICS message - arg1: 1 = also append them to METRICS_FILE_NAME in the app's storage
+	public static final int MSG_REQUEST_METRICS = 29;
+	public static final int EVENT_METRICS = 30; // data: one JSON object per connection, one per line
+
+	// end-to-end message tracing (see TraceLog) - arg1: trace one in this many of the messages we send (1 = every
+	// message; 0 = off, the default); messages traced by other devices are always recorded
+	public static final int MSG_SET_TRACING = 31;
+
+	// saves the traces recorded so far as a Chrome trace file (for chrome://tracing or https://ui.perfetto.dev) in the
+	// app's storage - local clients are then sent an EVENT_TRACE_SAVED message
+	public static final int MSG_SAVE_TRACE = 32;
+	public static final int EVENT_TRACE_SAVED = 33; // data: the trace file's path (null if it could not be saved)
+
+	public static final int EVENT_STREAM_OPENED = 19; // KEY_STREAM_FROM, KEY_STREAM_TYPE, KEY_STREAM_SIZE
+	public static final int EVENT_STREAM_DATA = 20; // KEY_STREAM_DATA, KEY_STREAM_TRANSFERRED, KEY_STREAM_SIZE
+	public static final int EVENT_STREAM_COMPLETE = 21;
+	public static final int EVENT_STREAM_CANCELLED = 22;
+
+	// sent to local clients when remote delivery falls behind, and again once it has caught up - data: "true" or "false"
+	public static final int EVENT_BACKPRESSURE = 26;
+
+	public static final String KEY_STREAM_FROM = "stream_from";
+	public static final String KEY_STREAM_TYPE = "stream_type";
+	public static final String KEY_STREAM_SIZE = "stream_size";
+	public static final String KEY_STREAM_DATA = "stream_data";
+	public static final String KEY_STREAM_TRANSFERRED = "stream_transferred";
+	public static final String KEY_SEND_TIME = "send_time"; // MSG_BROADCAST from local clients: System.nanoTime()
+	public static final String KEY_TRACE_ID = "trace_id"; // MSG_BROADCAST to local clients: see TraceLog (if traced)
+
 	public static final String ROLE_SERVER = "server";
 	public static final String ROLE_CLIENT = "client";
 	public static final String SYSTEM_BROADCAST_EVENT_SHOW_QR_CODE = "show_qr";
@@ -202,11 +346,6 @@ public class HotspotManagerService extends Service {
 				}
 			}
 
-			// set up background thread for message sending - see: https://medium.com/@ali.muzaffar/dc8bf1540341
-			mMessageThread = new HandlerThread("BTMessageThread");
-			mMessageThread.start();
-			mMessageThreadHandler = new Handler(mMessageThread.getLooper());
-
 			// set up listeners for network/bluetooth state changes
 			IntentFilter intentFilter = new IntentFilter();
 			if (CREATE_WIFI_HOTSPOT_SUPPORTED) {
@@ -230,6 +369,31 @@ public class HotspotManagerService extends Service {
 				EventBus.getDefault().register(HotspotManagerService.this);
 			}
 
+			// received messages, stream frames and session events go to our dispatcher, in the order they arrived
+			mMessageDispatcher = new MessageDispatcher(new MessageDispatcher.Listener() {
+				@Override
+				public void onMessage(MessageReceivedEvent event) {
+					onMessageReceived(event);
+				}
+
+				@Override
+				public void onStreamFrame(StreamFrameReceivedEvent event) {
+					onStreamFrameReceived(event);
+				}
+
+				@Override
+				public void onSessionStarted(final ClientSessionEvent event) {
+					mMainThreadHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							onClientSession(event);
+						}
+					});
+				}
+			});
+			mMessageDispatcher.start();
+			RemoteConnection.setDefaultConnectionListener(mMessageDispatcher);
+
 			mIsBound = true;
 		}
 
@@ -243,9 +407,10 @@ public class HotspotManagerService extends Service {
 			EventBus.getDefault().unregister(HotspotManagerService.this);
 			LocalBroadcastManager.getInstance(HotspotManagerService.this).unregisterReceiver(mLocalBroadcastReceiver);
 			unregisterReceiver(mGlobalBroadcastReceiver);
-			mMessageThread.quit(); // (we don't need quitSafely() as messages don't need to be delivered)
 
 			destroyAllConnections();
+			RemoteConnection.setDefaultConnectionListener(ConnectionListener.EVENT_BUS);
+			mMessageDispatcher.close();
 
 			restoreOriginalWifiState();
 			restoreOriginalBluetoothState();
@@ -288,10 +453,15 @@ public class HotspotManagerService extends Service {
 	}
 
 	private void restoreOriginalBluetoothState() {
+		restoreOriginalBluetoothState(false);
+	}
+
+	// keepEnabled: Bluetooth is still in use (e.g., as our link to the host), so only the name is restored
+	private void restoreOriginalBluetoothState(boolean keepEnabled) {
 		// disable bluetooth if necessary
 		try {
 			mBluetoothAdapter.setName(mOriginalBluetoothName);
-			if (!mOriginalBluetoothStatus) {
+			if (!mOriginalBluetoothStatus && !keepEnabled) {
 				mBluetoothAdapter.disable();
 			}
 		} catch (SecurityException ignored) {
@@ -305,8 +475,9 @@ public class HotspotManagerService extends Service {
 	}
 
 	private void startBluetoothServer() {
-		mBluetoothServer = new BluetoothServer(mBluetoothAdapter);
-		new Thread(mBluetoothServer).start();
+		stopTransport(mBluetoothServer);
+		mBluetoothServer = new BluetoothServer(mBluetoothAdapter, mReplayBuffer);
+		startTransport(mBluetoothServer);
 	}
 
 	private void configureAndStartWifiHotspot(ConnectionOptions connectionOptions)
@@ -324,8 +495,24 @@ public class HotspotManagerService extends Service {
 	}
 
 	private void startWifiServer() {
-		mWifiServer = new WifiServer(ConnectionOptions.DEFAULT_HOTSPOT_IP_ADDRESS, ConnectionOptions.DEFAULT_HOTSPOT_PORT);
-		new Thread(mWifiServer).start();
+		stopTransport(mWifiServer);
+		mWifiServer = new WifiServer(ConnectionOptions.DEFAULT_HOTSPOT_IP_ADDRESS, ConnectionOptions.DEFAULT_HOTSPOT_PORT,
+				mReplayBuffer);
+		startTransport(mWifiServer);
+	}
+
+	// transports are only started and stopped on the service's thread (the list is also read on the dispatching thread)
+	private void startTransport(Transport transport) {
+		transport.setSlowClientPolicy(mSlowClientPolicy);
+		mTransports.add(transport);
+		transport.start();
+	}
+
+	private void stopTransport(@Nullable Transport transport) {
+		if (transport != null) {
+			transport.closeAllConnections();
+			mTransports.remove(transport);
+		}
 	}
 
 	// TODO: Wifi configuration seems to be ignored when turning off - does this matter?
@@ -356,6 +543,20 @@ public class HotspotManagerService extends Service {
 	private void destroyAllConnections() {
 		mConnectionErrorHandler.removeMessages(MSG_WIFI_CONNECTION_ERROR);
 		mConnectionErrorHandler.removeMessages(MSG_BLUETOOTH_CONNECTION_ERROR);
+		mConnectionErrorHandler.removeMessages(MSG_RESUME_TIMEOUT);
+		mResumingType = null;
+		mRelayMode = false;
+		mReplayBuffer.clear();
+		PeerSession.clearSessions();
+		RelayFilter.clear();
+		stopHeartbeats();
+		synchronized (mSendLock) {
+			mBackpressureHandler.removeCallbacks(mBackpressureRunnable);
+			if (mBackpressure) {
+				mBackpressure = false;
+				sendSystemMessageToAllLocalClients(EVENT_BACKPRESSURE, Boolean.toString(false));
+			}
+		}
 		mBluetoothAdapter.cancelDiscovery();
 		mHotspotMode = false;
 		mIsConnected = false;
@@ -364,19 +565,19 @@ public class HotspotManagerService extends Service {
 
 		if (CREATE_WIFI_HOTSPOT_SUPPORTED) {
 			// disconnect all servers/clients
-			if (mWifiServer != null) {
-				mWifiServer.closeAllConnections();
-				mWifiServer = null;
-			}
+			stopTransport(mWifiServer);
+			mWifiServer = null;
 		}
 		if (mWifiClient != null) {
 			mWifiClient.closeConnection();
 			mWifiClient = null;
 		}
-		if (mBluetoothServer != null) {
-			mBluetoothServer.closeAllConnections();
-			mBluetoothServer = null;
+		stopTransport(mBluetoothServer);
+		mBluetoothServer = null;
+		for (Transport transport : mTransports) {
+			transport.closeAllConnections(); // any others (e.g., a loopback transport)
 		}
+		mTransports.clear();
 		if (mBluetoothClient != null) {
 			mBluetoothClient.closeConnection();
 			mBluetoothClient = null;
@@ -384,6 +585,15 @@ public class HotspotManagerService extends Service {
 
 		restoreOriginalWifiHotspotState();
 
+		mOutgoingStreams.clear();
+		mStreamPacingHandler.removeCallbacks(mStreamPacingRunnable);
+		synchronized (mIncomingStreams) {
+			for (StreamTransfer stream : mIncomingStreams.values()) {
+				sendStreamEventToAllLocalClients(EVENT_STREAM_CANCELLED, stream.mStreamId, null);
+			}
+			mIncomingStreams.clear();
+		}
+
 		mConnectionOptions = null;
 	}
 
@@ -487,6 +697,7 @@ public class HotspotManagerService extends Service {
 		sendSystemMessageToAllLocalClients(EVENT_CONNECTION_STATUS_UPDATE, "Connecting using Wifi...");
 		Log.d(TAG, "Starting Wifi client connection");
 		mWifiClient = new WifiClientConnection(ip, port);
+		mWifiClient.setResumeRequested(mResumingType != null);
 		new Thread(mWifiClient).start();
 		setWifiErrorTimeout(); // reset/increase the timeout to give the connection time to succeed
 		Log.d(TAG, "Wifi client connection started");
@@ -501,7 +712,9 @@ public class HotspotManagerService extends Service {
 
 		sendSystemMessageToAllLocalClients(EVENT_CONNECTION_STATUS_UPDATE, "Connecting using Bluetooth...");
 		Log.d(TAG, "Starting Bluetooth client connection");
+		mBluetoothDevice = device;
 		mBluetoothClient = new BluetoothClientConnection(device);
+		mBluetoothClient.setResumeRequested(mResumingType != null);
 		new Thread(mBluetoothClient).start();
 		setBluetoothErrorTimeout(); // reset/increase the timeout to give the connection time to succeed
 		Log.d(TAG, "Bluetooth client connection started");
@@ -538,7 +751,7 @@ public class HotspotManagerService extends Service {
 								// nothing do do in hotspot mode - in fact, this shouldn't happen as most devices require Wifi
 								// to be off before starting a hotspot
 							} else {
-								if (!mIsConnected && mConnectionOptions != null) {
+								if (isConnectingClient(mWifiClient)) {
 									finishConnectingWifiHotspot(mConnectionOptions);
 								}
 							}
@@ -561,10 +774,10 @@ public class HotspotManagerService extends Service {
 
 						case BluetoothAdapter.STATE_ON:
 							Log.d(TAG, "Bluetooth enabled");
-							if (mHotspotMode) {
+							if (mHotspotMode || (mRelayMode && mBluetoothServer == null)) {
 								configureAndStartBluetoothHotspot(mConnectionOptions);
 							} else {
-								if (!mIsConnected && mConnectionOptions != null) {
+								if (isConnectingClient(mBluetoothClient)) {
 									Log.d(TAG, "Starting Bluetooth discovery (2)");
 									mBluetoothAdapter.cancelDiscovery();
 									mBluetoothAdapter.startDiscovery();
@@ -582,7 +795,7 @@ public class HotspotManagerService extends Service {
 					Log.d(TAG, "Wifi network state changed");
 					if (mHotspotMode) {
 						// nothing to do
-					} else if (!mIsConnected && mConnectionOptions != null) {
+					} else if (isConnectingClient(mWifiClient)) {
 						boolean isConnected = false;
 						String networkName1 = null;
 						NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
@@ -610,7 +823,7 @@ public class HotspotManagerService extends Service {
 					Log.d(TAG, "Bluetooth device found");
 					if (mHotspotMode) {
 						// nothing to do
-					} else if (!mIsConnected && mConnectionOptions != null) { // client mode
+					} else if (isConnectingClient(mBluetoothClient)) { // client mode
 						BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 						Log.d(TAG, "(Device name: " + device.getName() + " - searching for " + mConnectionOptions.mName + ")");
 						if (mConnectionOptions.mName.equals(device.getName()) && mBluetoothClient == null) {
@@ -626,6 +839,18 @@ public class HotspotManagerService extends Service {
 		}
 	};
 
+	// whether we (as a client) should still be trying to connect using the transport of the given link - normally only
+	// until the first connection succeeds, but in multipath mode until both transports are connected
+	private boolean isConnectingClient(@Nullable RemoteConnection link) {
+		return mConnectionOptions != null && (!mIsConnected || (mConnectionOptions.mUseMultipath && link == null));
+	}
+
+	// in multipath mode, whether the other link is still working, so a failed link can be replaced in the background
+	private boolean isMultipathLinkConnected(@Nullable RemoteConnection otherLink) {
+		return mConnectionOptions != null && mConnectionOptions.mUseMultipath && otherLink != null &&
+				otherLink.hasPeerSession();
+	}
+
 	private class ErrorHandler extends Handler {
 		@Override
 		public void handleMessage(Message msg) {
@@ -642,6 +867,15 @@ public class HotspotManagerService extends Service {
 					retryBluetoothConnection();
 					break;
 
+				case MSG_RESUME_TIMEOUT:
+					Log.d(TAG, "Couldn't resume session in time - restarting");
+					EventType.Type type = mResumingType;
+					mResumingType = null;
+					PeerSession.clearSessions();
+					stopRelay();
+					stopLocalPlugins(type);
+					break;
+
 				default:
 					break;
 			}
@@ -661,11 +895,12 @@ public class HotspotManagerService extends Service {
 	}
 
 	private void retryWifiConnection() {
-		sendSystemMessageToAllLocalClients(EVENT_CONNECTION_STATUS_UPDATE,
-				"Couldn't connect using Wifi – retrying " + "connection...");
 		Log.d(TAG, "Retrying remote Wifi connection");
-
-		mIsConnected = false;
+		mIsConnected = isMultipathLinkConnected(mBluetoothClient);
+		if (!mIsConnected) {
+			sendSystemMessageToAllLocalClients(EVENT_CONNECTION_STATUS_UPDATE,
+					"Couldn't connect using Wifi – retrying " + "connection...");
+		}
 		mConnectionErrorHandler.removeMessages(MSG_WIFI_CONNECTION_ERROR);
 
 		if (mWifiClient != null) {
@@ -686,11 +921,12 @@ public class HotspotManagerService extends Service {
 	}
 
 	private void retryBluetoothConnection() {
-		sendSystemMessageToAllLocalClients(EVENT_CONNECTION_STATUS_UPDATE,
-				"Couldn't connect using Bluetooth – retrying " + "connection...");
 		Log.d(TAG, "Retrying remote Bluetooth connection");
-
-		mIsConnected = false;
+		mIsConnected = isMultipathLinkConnected(mWifiClient);
+		if (!mIsConnected) {
+			sendSystemMessageToAllLocalClients(EVENT_CONNECTION_STATUS_UPDATE,
+					"Couldn't connect using Bluetooth – retrying " + "connection...");
+		}
 		mConnectionErrorHandler.removeMessages(MSG_BLUETOOTH_CONNECTION_ERROR);
 
 		if (mBluetoothClient != null) {
@@ -724,6 +960,9 @@ public class HotspotManagerService extends Service {
 			switch (msg.what) {
 				case MSG_REGISTER_CLIENT:
 					mService.mClients.add(msg.replyTo);
+					if (mService.mBackpressure) {
+						mService.sendSystemMessageToAllLocalClients(EVENT_BACKPRESSURE, Boolean.toString(true));
+					}
 					break;
 
 				case MSG_UNREGISTER_CLIENT:
@@ -763,6 +1002,7 @@ public class HotspotManagerService extends Service {
 					if (!TextUtils.isEmpty(joinHotspotUrl)) {
 						mService.mConnectionOptions = ConnectionOptions.fromHotspotUrl(joinHotspotUrl);
 						if (mService.mConnectionOptions != null) {
+							mService.mConnectionOptions.mUseMultipath = mService.mMultipathEnabled;
 							mService.sendSystemMessageToAllLocalClients(EVENT_CONNECTION_STATUS_UPDATE, "Searching...");
 							mService.connectBluetoothHotspot(mService.mConnectionOptions);
 							mService.connectWifiHotspot(mService.mConnectionOptions);
@@ -809,13 +1049,79 @@ public class HotspotManagerService extends Service {
 
 					// note: internal messages are dealt with by the service locally (but still forwarded to remote clients)
 					if (message != null) {
+						long traceId = TraceLog.startTrace(data.getLong(KEY_SEND_TIME), System.nanoTime());
 						if (message.isSystemMessage()) {
 							mService.handleSystemBroadcastMessage(message);
 						}
-						mService.sendBroadcastMessageToAllRemoteClients(message);
+						// arg1 == 1 means urgent
+						mService.sendBroadcastMessageToAllRemoteClients(message, msg.arg1 == 1, traceId);
+					}
+					break;
+
+				case MSG_SET_SLOW_CLIENT_POLICY:
+					try {
+						mService.setSlowClientPolicy(
+								OutboundQueue.Policy.valueOf(msg.getData().getString(PluginIntent.KEY_SERVICE_MESSAGE)));
+					} catch (Exception e) { // IllegalArgumentException or NullPointerException
+						Log.d(TAG, "Ignoring invalid slow client policy");
 					}
 					break;
 
+				case MSG_SET_BATCH_WINDOW:
+					try {
+						RemoteConnection.setBatchWindow(
+								Integer.parseInt(msg.getData().getString(PluginIntent.KEY_SERVICE_MESSAGE)));
+					} catch (Exception e) { // NumberFormatException or NullPointerException
+						Log.d(TAG, "Ignoring invalid batch window");
+					}
+					break;
+
+				case MSG_SET_MULTIPATH:
+					mService.mMultipathEnabled = msg.arg1 == 1;
+					break;
+
+				case MSG_SET_HEARTBEAT_INTERVAL:
+					mService.setHeartbeatIntervals(msg.arg1, msg.arg2);
+					break;
+
+				case MSG_SET_RELAY_MODE:
+					mService.mRelayEnabled = msg.arg1 == 1;
+					if (mService.mRelayEnabled) {
+						mService.startRelay();
+					} else {
+						mService.stopRelay();
+					}
+					break;
+
+				case MSG_REQUEST_METRICS:
+					String metrics = ConnectionMetrics.getAllMetrics();
+					if (msg.arg1 == 1) {
+						mService.saveMetrics(metrics);
+					}
+					mService.sendSystemMessageToAllLocalClients(EVENT_METRICS, metrics);
+					break;
+
+				case MSG_SET_TRACING:
+					TraceLog.setSampleInterval(msg.arg1);
+					break;
+
+				case MSG_SAVE_TRACE:
+					mService.saveTrace();
+					break;
+
+				case MSG_STREAM_OPEN:
+					Bundle openData = msg.getData();
+					mService.openStream(msg.arg1, openData.getString(KEY_STREAM_TYPE), openData.getLong(KEY_STREAM_SIZE));
+					break;
+
+				case MSG_STREAM_DATA:
+					mService.sendStreamData(msg.arg1, msg.getData().getByteArray(KEY_STREAM_DATA));
+					break;
+
+				case MSG_STREAM_CANCEL:
+					mService.cancelStream(msg.arg1);
+					break;
+
 				default:
 					super.handleMessage(msg);
 			}
@@ -841,7 +1147,9 @@ public class HotspotManagerService extends Service {
 						if (message.isSystemMessage()) {
 							handleSystemBroadcastMessage(message);
 						}
-						sendBroadcastMessageToAllRemoteClients(message);
+						// (the plugin API has no urgent flag, and we don't know when plugins sent their messages)
+						long traceId = TraceLog.startTrace(0, System.nanoTime());
+						sendBroadcastMessageToAllRemoteClients(message, false, traceId);
 					}
 					break;
 
@@ -856,39 +1164,41 @@ public class HotspotManagerService extends Service {
 	};
 
 	// sends a broadcast message (e.g., something from remote clients) to all local clients
-	private void sendBroadcastMessageToAllLocalClients(BroadcastMessage msg) {
-		for (int i = mClients.size() - 1; i >= 0; i--) {
+	private void sendBroadcastMessageToAllLocalClients(BroadcastMessage msg, long traceId) {
+		ConnectionOptions connectionOptions = mConnectionOptions; // (this may be called on the dispatching thread)
+		for (Messenger client : mClients) {
 			try {
 				// local directly connected activities (i.e., ours)
-				Messenger client = mClients.get(i);
 				Message message = Message.obtain(null, MSG_BROADCAST);
 				message.replyTo = mMessenger;
-				Bundle bundle = new Bundle(1);
+				Bundle bundle = new Bundle(2);
 				bundle.putSerializable(PluginIntent.KEY_BROADCAST_MESSAGE, msg);
+				if (traceId != 0) {
+					bundle.putLong(KEY_TRACE_ID, traceId);
+				}
 				message.setData(bundle);
 				client.send(message);
 
 				// local unconnected activities (i.e., plugins)
-				Log.d(TAG, "Sending broadcast message to all local clients with package " + mConnectionOptions.mPluginPackage +
+				Log.d(TAG, "Sending broadcast message to all local clients with package " + connectionOptions.mPluginPackage +
 						" - type: " + msg.getType() + ", message: " + msg.getMessage());
 				Intent broadcastIntent = new Intent(PluginIntent.ACTION_MESSAGE_RECEIVED);
-				broadcastIntent.setClassName(mConnectionOptions.mPluginPackage, PluginIntent.MESSAGE_RECEIVER);
+				broadcastIntent.setClassName(connectionOptions.mPluginPackage, PluginIntent.MESSAGE_RECEIVER);
 				// TODO: source is only necessary for internal plugins - remove later?
 				broadcastIntent.putExtra(PluginIntent.EXTRA_SOURCE, HotspotManagerService.this.getPackageName());
 				broadcastIntent.putExtra(PluginIntent.KEY_BROADCAST_MESSAGE, msg);
 				sendBroadcast(broadcastIntent);
 			} catch (RemoteException e) {
 				e.printStackTrace();
-				mClients.remove(i); // client is dead - ok to remove here as we're reversing through the list
+				mClients.remove(client); // client is dead - ok to remove here, as we are iterating over a snapshot
 			}
 		}
 	}
 
 	// sends a system message (e.g., HotspotManagerService events) to all local clients
 	private void sendSystemMessageToAllLocalClients(int type, String data) {
-		for (int i = mClients.size() - 1; i >= 0; i--) {
+		for (Messenger client : mClients) {
 			try {
-				Messenger client = mClients.get(i);
 				Message message = Message.obtain(null, type);
 				message.replyTo = mMessenger;
 				if (data != null) {
@@ -899,57 +1209,298 @@ public class HotspotManagerService extends Service {
 				client.send(message);
 			} catch (RemoteException e) {
 				e.printStackTrace();
-				mClients.remove(i); // client is dead - ok to remove here as we're reversing through the list
+				mClients.remove(client); // client is dead - ok to remove here, as we are iterating over a snapshot
 			}
 		}
 	}
 
-	// sends a message to every connected remote device
-	private void sendBroadcastMessageToAllRemoteClients(BroadcastMessage message) {
+	// sends a message to every connected remote device - urgent messages (and all system messages) skip the batching window
+	// traceId is from TraceLog.startTrace (0 = not traced)
+	private void sendBroadcastMessageToAllRemoteClients(BroadcastMessage message, boolean urgent, long traceId) {
 		try {
 			if (mHotspotMode) { // we are in server mode
-				message.setFrom(SERVER_MESSAGE_ID);
+				message.setFrom(ProtocolConstants.SERVER_MESSAGE_ID);
+			} else if (mRelayMode) {
+				message.setFrom(getLocalPeerId()); // our own clients can't be told who we are by the host
 			}
-			sendBroadcastMessageToAllRemoteClients(BroadcastMessage.toString(message), null);
+			sendToAllRemoteClients(OutboundMessage.message(MessageSerializer.toBytes(message), getConflationKey(message),
+					urgent || message.isSystemMessage(), message.isSystemMessage(), TraceLog.enqueue(traceId)), null);
 		} catch (IOException e) {
 			Log.d(TAG, "Broadcast message sending error: " + e.getLocalizedMessage());
 		}
 	}
 
-	// send a message to all connected remote devices, optionally ignoring the client that sent the message
-	// note - we use a handler thread so that our messages don't cause network events on the main thread
-	private void sendBroadcastMessageToAllRemoteClients(final String message, @Nullable final String ignoreClient) {
-		if (mWifiServer != null) {
-			mMessageThreadHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					mWifiServer.sendMessageToAll(message, ignoreClient);
-				}
-			});
+	// when the conflate policy is in use, a queued message is replaced by a newer one of the same type from the same sender
+	// (system messages are never conflated)
+	@Nullable
+	private static String getConflationKey(BroadcastMessage message) {
+		return message.isSystemMessage() ? null : message.getFrom() + ":" + message.getType();
+	}
+
+	// send a message to all connected remote devices, optionally ignoring the client that sent the message (messages are
+	// also kept for a while in case a client needs to resume its session) - relays ignore ProtocolConstants.SERVER_MESSAGE_ID to send a
+	// message from their host only to their own clients
+	// note: this only queues the message - every connection has its own writer thread, so there are no network operations
+	// on the calling (main or dispatching) thread, and one slow client can't delay delivery to others
+	private void sendToAllRemoteClients(OutboundMessage message, @Nullable String ignoreClient) {
+		boolean toHost = !ProtocolConstants.SERVER_MESSAGE_ID.equals(ignoreClient);
+		synchronized (mSendLock) {
+			if ((mHotspotMode || mRelayMode) && message.mSequenced) {
+				// first, so that a client resuming now can't miss it - see RemoteConnection
+				mReplayBuffer.add(message, ignoreClient);
+			}
+			for (Transport transport : mTransports) {
+				transport.sendMessageToAll(message, ignoreClient);
+			}
+			WifiClientConnection wifiClient = mWifiClient;
+			if (toHost && wifiClient != null && wifiClient.isRouteFor(message)) {
+				wifiClient.sendMessage(message);
+			}
+			BluetoothClientConnection bluetoothClient = mBluetoothClient;
+			if (toHost && bluetoothClient != null && bluetoothClient.isRouteFor(message)) {
+				bluetoothClient.sendMessage(message);
+			}
+			if (!mBackpressure) {
+				updateBackpressure(); // once backpressure is on, updates are scheduled until it clears
+			}
 		}
-		if (mWifiClient != null) {
-			mMessageThreadHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					mWifiClient.sendMessage(message);
-				}
-			});
+	}
+
+	private int getMaxQueuedBytes() {
+		int maxQueuedBytes = 0;
+		for (Transport transport : mTransports) {
+			maxQueuedBytes = Math.max(maxQueuedBytes, transport.getMaxQueuedBytes());
 		}
-		if (mBluetoothServer != null) {
-			mMessageThreadHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					mBluetoothServer.sendMessageToAll(message, ignoreClient);
+		WifiClientConnection wifiClient = mWifiClient;
+		if (wifiClient != null) {
+			maxQueuedBytes = Math.max(maxQueuedBytes, wifiClient.getQueuedBytes());
+		}
+		BluetoothClientConnection bluetoothClient = mBluetoothClient;
+		if (bluetoothClient != null) {
+			maxQueuedBytes = Math.max(maxQueuedBytes, bluetoothClient.getQueuedBytes());
+		}
+		return maxQueuedBytes;
+	}
+
+	// hysteresis between the two watermarks avoids sending a flood of on/off events when queues hover around one level
+	private void updateBackpressure() {
+		synchronized (mSendLock) {
+			int maxQueuedBytes = getMaxQueuedBytes();
+			boolean backpressure = mBackpressure ? maxQueuedBytes > BACKPRESSURE_LOW_WATERMARK :
+					maxQueuedBytes >= BACKPRESSURE_HIGH_WATERMARK;
+			if (backpressure != mBackpressure) {
+				mBackpressure = backpressure;
+				Log.d(TAG, "Backpressure " + (backpressure ? "on" : "off") + " (" + maxQueuedBytes + " bytes queued)");
+				sendSystemMessageToAllLocalClients(EVENT_BACKPRESSURE, Boolean.toString(backpressure));
+			}
+			mBackpressureHandler.removeCallbacks(mBackpressureRunnable);
+			if (backpressure) {
+				mBackpressureHandler.postDelayed(mBackpressureRunnable, BACKPRESSURE_CHECK_INTERVAL);
+			}
+		}
+	}
+
+	private void saveMetrics(String metrics) {
+		File metricsFile = new File(getDiagnosticsDirectory(), METRICS_FILE_NAME);
+		saveToFile(metricsFile, metrics, metricsFile.length() < MAX_METRICS_FILE_SIZE, 0);
+	}
+
+	// the trace is a snapshot of the traces recorded so far (which are kept), in a new file each time
+	private void saveTrace() {
+		saveToFile(new File(getDiagnosticsDirectory(), "trace-" + System.currentTimeMillis() + ".json"),
+				TraceLog.toChromeTrace(), false, EVENT_TRACE_SAVED);
+	}
+
+	private File getDiagnosticsDirectory() {
+		File directory = getExternalFilesDir(null);
+		if (directory == null) {
+			directory = getFilesDir(); // external storage isn't available
+		}
+		return directory;
+	}
+
+	// written on a separate thread, as there is no need to hold up the main thread for file access - if savedEvent is
+	// not 0, local clients are sent a system message of that type once the file has been written (data: its path, or
+	// null if it could not be written)
+	private void saveToFile(final File file, final String data, final boolean append, final int savedEvent) {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				boolean saved = false;
+				Writer writer = null;
+				try {
+					writer = new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8");
+					writer.write(data);
+					saved = true;
+				} catch (IOException e) {
+					Log.d(TAG, "Unable to save " + file.getName() + ": " + e.getLocalizedMessage());
+				} finally {
+					if (writer != null) {
+						try {
+							writer.close();
+						} catch (IOException e) {
+							saved = false;
+						}
+					}
 				}
-			});
+				if (savedEvent != 0) {
+					final String path = saved ? file.getAbsolutePath() : null;
+					mMainThreadHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							sendSystemMessageToAllLocalClients(savedEvent, path);
+						}
+					});
+				}
+			}
+		}, "FileWriter").start();
+	}
+
+	// after each round of heartbeats, the preferred link to every device with more than one link is chosen again (this
+	// must not happen while sendToAllRemoteClients is sending a message - see PeerSession.updatePreferredLinks)
+	// a client whose server stops responding is closed, which makes its read loop fail and report the error as usual
+	private void sendWifiHeartbeats() {
+		long now = System.nanoTime() / 1000000;
+		for (Transport transport : mTransports) {
+			if (transport.getType() != EventType.Type.BLUETOOTH) {
+				transport.sendHeartbeats(now, mWifiHeartbeatInterval); // other transports use the Wifi interval
+			}
 		}
-		if (mBluetoothClient != null) {
-			mMessageThreadHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					mBluetoothClient.sendMessage(message);
+		if (mWifiClient != null && !mWifiClient.sendHeartbeat(now, mWifiHeartbeatInterval)) {
+			mWifiClient.closeConnection();
+		}
+		synchronized (mSendLock) {
+			PeerSession.updatePreferredLinks();
+		}
+	}
+
+	private void sendBluetoothHeartbeats() {
+		long now = System.nanoTime() / 1000000;
+		for (Transport transport : mTransports) {
+			if (transport.getType() == EventType.Type.BLUETOOTH) {
+				transport.sendHeartbeats(now, mBluetoothHeartbeatInterval);
+			}
+		}
+		if (mBluetoothClient != null && !mBluetoothClient.sendHeartbeat(now, mBluetoothHeartbeatInterval)) {
+			mBluetoothClient.closeConnection();
+		}
+		synchronized (mSendLock) {
+			PeerSession.updatePreferredLinks();
+		}
+	}
+
+	private void startHeartbeats() {
+		stopHeartbeats();
+		if (mWifiHeartbeatInterval > 0) {
+			mHeartbeatHandler.postDelayed(mWifiHeartbeatRunnable, mWifiHeartbeatInterval);
+		}
+		if (mBluetoothHeartbeatInterval > 0) {
+			mHeartbeatHandler.postDelayed(mBluetoothHeartbeatRunnable, mBluetoothHeartbeatInterval);
+		}
+	}
+
+	private void stopHeartbeats() {
+		mHeartbeatHandler.removeCallbacks(mWifiHeartbeatRunnable);
+		mHeartbeatHandler.removeCallbacks(mBluetoothHeartbeatRunnable);
+	}
+
+	private void setHeartbeatIntervals(int wifiInterval, int bluetoothInterval) {
+		if (wifiInterval >= 0) {
+			mWifiHeartbeatInterval = wifiInterval;
+		}
+		if (bluetoothInterval >= 0) {
+			mBluetoothHeartbeatInterval = bluetoothInterval;
+		}
+		if (mHotspotMode || mIsConnected) {
+			startHeartbeats(); // restart with the new intervals
+		}
+	}
+
+	private void setSlowClientPolicy(OutboundQueue.Policy policy) {
+		mSlowClientPolicy = policy;
+		for (Transport transport : mTransports) {
+			transport.setSlowClientPolicy(policy);
+		}
+	}
+
+	// start sending a stream from one of our local clients - ids are chosen by the client (see the communicator)
+	private void openStream(int streamId, String streamType, long totalSize) {
+		if (totalSize < 0 || mOutgoingStreams.containsKey(streamId)) {
+			Log.d(TAG, "Ignoring invalid stream open request " + streamId);
+			return;
+		}
+		// the server sets the from id for clients' streams (other than relays - see sendBroadcastMessageToAllRemoteClients)
+		String from = mHotspotMode ? ProtocolConstants.SERVER_MESSAGE_ID : mRelayMode ? getLocalPeerId() : "";
+		mOutgoingStreams.put(streamId, new StreamTransfer(streamId, from, streamType, totalSize));
+		sendToAllRemoteClients(
+				OutboundMessage.frames(StreamCodec.encodeOpen(streamId, totalSize, from, streamType), true), null);
+	}
+
+	private void sendStreamData(int streamId, byte[] data) {
+		StreamTransfer stream = mOutgoingStreams.get(streamId);
+		if (stream == null || data == null) {
+			Log.d(TAG, "Ignoring data for unknown stream " + streamId);
+			return;
+		}
+		if (stream.mTransferred + data.length > stream.mTotalSize) {
+			Log.d(TAG, "Stream " + streamId + " data exceeds declared size - cancelling");
+			cancelStream(streamId);
+			return;
+		}
+		stream.mPendingFrames.add(
+				StreamCodec.encodeData(streamId, stream.mNextIndex, data, ProtocolConstants.MESSAGE_PART_SIZE));
+		stream.mNextIndex += FrameCodec.getPartCount(data.length, ProtocolConstants.MESSAGE_PART_SIZE);
+		stream.mTransferred += data.length;
+		sendPendingStreamData();
+	}
+
+	// queues as much pending stream data as the connections have room for (see STREAM_QUEUE_LIMIT), and checks again
+	// shortly if any is left - streams are paced to the slowest connection, as every client is sent the same frames
+	private void sendPendingStreamData() {
+		mStreamPacingHandler.removeCallbacks(mStreamPacingRunnable);
+		boolean pending = false;
+		for (Iterator<StreamTransfer> iterator = mOutgoingStreams.values().iterator(); iterator.hasNext(); ) {
+			StreamTransfer stream = iterator.next();
+			while (!stream.mPendingFrames.isEmpty() && getMaxQueuedBytes() < STREAM_QUEUE_LIMIT) {
+				sendToAllRemoteClients(OutboundMessage.frames(stream.mPendingFrames.poll(), false), null);
+			}
+			if (!stream.mPendingFrames.isEmpty()) {
+				pending = true;
+			} else if (stream.isComplete()) {
+				iterator.remove();
+			}
+		}
+		if (pending) {
+			mStreamPacingHandler.postDelayed(mStreamPacingRunnable, STREAM_PACING_INTERVAL);
+		}
+	}
+
+	private void cancelStream(int streamId) {
+		if (mOutgoingStreams.remove(streamId) != null) {
+			sendToAllRemoteClients(OutboundMessage.frames(StreamCodec.encodeCancel(streamId), true), null);
+		} else if (removeIncomingStream(streamId)) {
+			// a local receiver is no longer interested - we still forward the stream to other remote clients (if we are
+			// the server), but stop delivering it locally
+			Log.d(TAG, "Incoming stream " + streamId + " cancelled locally");
+		}
+	}
+
+	// sends a stream event to our own activities - note: streams are not delivered to (external) plugins, as there is no
+	// stream equivalent of ACTION_MESSAGE_RECEIVED in the plugin API
+	private void sendStreamEventToAllLocalClients(int type, int streamId, @Nullable Bundle data) {
+		for (Messenger client : mClients) {
+			try {
+				Message message = Message.obtain(null, type);
+				message.replyTo = mMessenger;
+				message.arg1 = streamId;
+				if (data != null) {
+					message.setData(data);
 				}
-			});
+				client.send(message);
+			} catch (RemoteException e) {
+				e.printStackTrace();
+				mClients.remove(client); // client is dead - ok to remove here, as we are iterating over a snapshot
+			}
 		}
 	}
 
@@ -1009,6 +1560,7 @@ public class HotspotManagerService extends Service {
 
 		// new remote client successfully connected
 		sendSystemMessageToAllLocalClients(EVENT_DEVICE_CONNECTED, event.mType.toString());
+		startHeartbeats();
 	}
 
 	@Subscribe(threadMode = ThreadMode.MAIN)
@@ -1027,9 +1579,19 @@ public class HotspotManagerService extends Service {
 
 		// successfully connected to remote server
 		mIsConnected = true;
+		sendSystemMessageToAllLocalClients(EVENT_DEVICE_CONNECTED, event.mType.toString());
+		startRelay();
+
+		// in multipath mode, keep both connections (the other one may still be connecting)
+		if (mConnectionOptions != null && mConnectionOptions.mUseMultipath) {
+			mConnectionErrorHandler.removeMessages(
+					event.mType == EventType.Type.WIFI ? MSG_WIFI_CONNECTION_ERROR : MSG_BLUETOOTH_CONNECTION_ERROR);
+			startHeartbeats();
+			return;
+		}
 		mConnectionErrorHandler.removeMessages(MSG_WIFI_CONNECTION_ERROR);
 		mConnectionErrorHandler.removeMessages(MSG_BLUETOOTH_CONNECTION_ERROR);
-		sendSystemMessageToAllLocalClients(EVENT_DEVICE_CONNECTED, event.mType.toString());
+		startHeartbeats();
 
 		// restore the default properties of the other connection method
 		switch (event.mType) {
@@ -1038,7 +1600,9 @@ public class HotspotManagerService extends Service {
 					mBluetoothClient.closeConnection();
 					mBluetoothClient = null;
 				}
-				restoreOriginalBluetoothState();
+				if (!mRelayMode) {
+					restoreOriginalBluetoothState();
+				}
 				break;
 			case BLUETOOTH:
 				if (mWifiClient != null) {
@@ -1083,33 +1647,33 @@ public class HotspotManagerService extends Service {
 		// client message error - a client's connection to the remote server failed
 		switch (event.mType) {
 			case WIFI:
+				if (isMultipathLinkConnected(mBluetoothClient)) {
+					Log.d(TAG, "Wifi client failed - continuing via Bluetooth and reconnecting Wifi in the background");
+					retryWifiConnection();
+					break;
+				}
+				if (resumeConnection(event.mType)) {
+					break;
+				}
 				Log.d(TAG, "Wifi client failed - restarting");
 				retryWifiConnection();
-
-				sendSystemMessageToAllLocalClients(EVENT_LOCAL_CLIENT_ERROR, event.mType.toString());
-
-				// stop local unconnected activities (i.e., plugins)
-				Log.d(TAG, "Sending stop command to all local plugins");
-				Intent wifiStopIntent = new Intent(PluginIntent.ACTION_STOP_PLUGIN);
-				wifiStopIntent.setClassName(mConnectionOptions.mPluginPackage, PluginIntent.MESSAGE_RECEIVER);
-				// TODO: source is only necessary for internal plugins - remove later?
-				wifiStopIntent.putExtra(PluginIntent.EXTRA_SOURCE, HotspotManagerService.this.getPackageName());
-				sendBroadcast(wifiStopIntent);
+				stopRelay();
+				stopLocalPlugins(event.mType);
 				break;
 
 			case BLUETOOTH:
+				if (isMultipathLinkConnected(mWifiClient)) {
+					Log.d(TAG, "Bluetooth client failed - continuing via Wifi and reconnecting Bluetooth in the background");
+					retryBluetoothConnection();
+					break;
+				}
+				if (resumeConnection(event.mType)) {
+					break;
+				}
 				Log.d(TAG, "Bluetooth client failed - restarting");
 				retryBluetoothConnection();
-
-				sendSystemMessageToAllLocalClients(EVENT_LOCAL_CLIENT_ERROR, event.mType.toString());
-
-				// stop local unconnected activities (i.e., plugins)
-				Log.d(TAG, "Sending stop command to all local plugins");
-				Intent bluetoothStopIntent = new Intent(PluginIntent.ACTION_STOP_PLUGIN);
-				bluetoothStopIntent.setClassName(mConnectionOptions.mPluginPackage, PluginIntent.MESSAGE_RECEIVER);
-				// TODO: source is only necessary for internal plugins - remove later?
-				bluetoothStopIntent.putExtra(PluginIntent.EXTRA_SOURCE, HotspotManagerService.this.getPackageName());
-				sendBroadcast(bluetoothStopIntent);
+				stopRelay();
+				stopLocalPlugins(event.mType);
 				break;
 
 			case UNKNOWN:
@@ -1130,25 +1694,248 @@ public class HotspotManagerService extends Service {
 		}
 	}
 
-	@Subscribe(threadMode = ThreadMode.MAIN)
-	public void onMessage(MessageReceivedEvent event) {
+	// reconnect to the host and resume our session, so that local plugins can carry on as if nothing had happened - returns
+	// false if there is no session to resume (the connection must then be restarted as usual)
+	private boolean resumeConnection(EventType.Type type) {
+		if (PeerSession.getResumableSession() == null) {
+			return false;
+		}
+		if (mResumingType == null) {
+			Log.d(TAG, type + " client failed - resuming session");
+			mConnectionErrorHandler.sendEmptyMessageDelayed(MSG_RESUME_TIMEOUT, RESUME_TIMEOUT);
+		}
+		mResumingType = type;
+		sendSystemMessageToAllLocalClients(EVENT_CONNECTION_STATUS_UPDATE, "Connection lost – reconnecting...");
+		if (type == EventType.Type.BLUETOOTH && mBluetoothDevice != null) {
+			mIsConnected = false;
+			mConnectionErrorHandler.removeMessages(MSG_BLUETOOTH_CONNECTION_ERROR);
+			connectBluetoothClient(mBluetoothDevice); // no need to search for a device we already know
+		} else if (type == EventType.Type.BLUETOOTH) {
+			retryBluetoothConnection();
+		} else {
+			retryWifiConnection();
+		}
+		return true;
+	}
+
+	// called when the connection to the host has been lost for good
+	private void stopLocalPlugins(EventType.Type type) {
+		sendSystemMessageToAllLocalClients(EVENT_LOCAL_CLIENT_ERROR, type.toString());
+
+		// stop local unconnected activities (i.e., plugins)
+		Log.d(TAG, "Sending stop command to all local plugins");
+		Intent stopIntent = new Intent(PluginIntent.ACTION_STOP_PLUGIN);
+		stopIntent.setClassName(mConnectionOptions.mPluginPackage, PluginIntent.MESSAGE_RECEIVER);
+		// TODO: source is only necessary for internal plugins - remove later?
+		stopIntent.putExtra(PluginIntent.EXTRA_SOURCE, HotspotManagerService.this.getPackageName());
+		sendBroadcast(stopIntent);
+	}
+
+	// the host's reply when we reconnect after resumeConnection (handed to the main thread by the dispatcher)
+	private void onClientSession(ClientSessionEvent event) {
+		Log.d(TAG, "Client session (event) - resumed: " + event.mResumed);
+		if (mResumingType == null) {
+			return; // already given up
+		}
+		EventType.Type type = mResumingType;
+		mResumingType = null;
+		mConnectionErrorHandler.removeMessages(MSG_RESUME_TIMEOUT);
+		if (!event.mResumed) {
+			PeerSession.clearSessions(); // the host has moved on without us - the session must start again
+			stopRelay();
+			stopLocalPlugins(type);
+		}
+	}
+
+	// called on the dispatching thread (see MessageDispatcher), not the main thread - only system messages (which
+	// change the service's state) are handed on to the main thread; local clients' Handlers are on the main thread too,
+	// so a system message still takes effect before they receive any of the messages that followed it
+	private void onMessageReceived(MessageReceivedEvent event) {
 		Log.d(TAG, "Message received (event)");
+		TraceLog.addHop(event.mTraceId, MessageTrace.HOP_DISPATCH);
 
 		// internal system messages are dealt with by the service locally (e.g., not sent to plugins, but sent to remote clients)
-		if (event.mMessage.isSystemMessage()) {
-			handleSystemBroadcastMessage(event.mMessage);
+		// - other messages are only decoded if there is a local client to deliver them to (see MessageReceivedEvent)
+		boolean system = event.isSystemMessage();
+		if (system) {
+			final BroadcastMessage message = event.getMessage();
+			mMainThreadHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					handleSystemBroadcastMessage(message);
+				}
+			});
+		} else if (!mClients.isEmpty()) {
+			sendBroadcastMessageToAllLocalClients(event.getMessage(), event.mTraceId); // forward to local clients
+		}
+		TraceLog.addHop(event.mTraceId, MessageTrace.HOP_DELIVERED);
+
+		// if we're the server (e.g., not delivered by the server) then forward to all remote clients, too - relays also
+		// forward messages from their host to their own clients
+		if (!ProtocolConstants.SERVER_MESSAGE_ID.equals(event.mDeliveredBy) || mRelayMode) {
+			forwardMessage(event, system);
+		}
+
+		event.recycle(); // the event is pooled - it must not be used after this point
+	}
+
+	// forwarded messages are sent exactly as they were received, with their from id in a sender frame rather than
+	// inside the message (see OutboundMessage.forwardedMessage) - once a message has been relayed (or if we are a
+	// relay) it keeps the identity it was first sent with, so that it can't be delivered twice, or forwarded forever
+	private void forwardMessage(MessageReceivedEvent event, boolean system) {
+		int hopCount = event.mHopCount + 1;
+		if (hopCount > RelayFilter.MAX_HOP_COUNT) {
+			Log.d(TAG, "Message has been relayed too many times - not forwarding");
+			return;
+		}
+		if (!(event.mRelayed || mRelayMode) || event.mOriginSessionId == 0) {
+			hopCount = 0; // no relay frame
+		}
+		// (the conflation key needs the decoded message, so it is only created when it will be used)
+		String conflationKey = mSlowClientPolicy == OutboundQueue.Policy.CONFLATE ?
+				getConflationKey(event.getMessage()) : null;
+		sendToAllRemoteClients(OutboundMessage.forwardedMessage(event.getPayload(), event.getPayloadLength(),
+				conflationKey, event.mUrgent || system, system, hopCount, event.mOriginSessionId,
+				event.mOriginMessageId, event.getSenderId(), TraceLog.enqueue(event.mTraceId)), event.mDeliveredBy);
+	}
+
+	// start accepting connections from other devices, if relay mode is enabled and we are connected to a host
+	private void startRelay() {
+		if (!mRelayEnabled || mHotspotMode || !mIsConnected || mRelayMode || mConnectionOptions == null) {
+			return;
+		}
+		Log.d(TAG, "Starting relay");
+		mRelayMode = true;
+		if (mBluetoothAdapter.getState() == BluetoothAdapter.STATE_ON) {
+			configureAndStartBluetoothHotspot(mConnectionOptions);
 		} else {
-			sendBroadcastMessageToAllLocalClients(event.mMessage); // forward to local clients
+			mBluetoothAdapter.enable(); // finish configuration in receiver
 		}
+	}
 
-		// if we're the server (e.g., not delivered by the server) then forward to all remote clients, too
-		if (!SERVER_MESSAGE_ID.equals(event.mDeliveredBy)) {
-			try {
-				// forward to all clients if not from server - these messages already have their from attribute set
-				sendBroadcastMessageToAllRemoteClients(BroadcastMessage.toString(event.mMessage), event.mDeliveredBy);
-			} catch (IOException e) {
-				Log.d(TAG, "Broadcast message forwarding error: " + e.getLocalizedMessage());
-			}
+	// our own clients are disconnected - they will resume their sessions with (or reconnect to) another device
+	private void stopRelay() {
+		if (!mRelayMode) {
+			return;
+		}
+		Log.d(TAG, "Stopping relay");
+		mRelayMode = false;
+		stopTransport(mBluetoothServer);
+		mBluetoothServer = null;
+		// we were advertising as the group (see configureAndStartBluetoothHotspot) - stop other devices trying to join
+		// us (visibility can't be turned off, but without the group's name we won't be found - see BluetoothUtils);
+		// Bluetooth is left on, as it may still be (or be reconnecting as) our link to the host - see onDestroy
+		restoreOriginalBluetoothState(true);
+	}
+
+	// as a client, our from id is chosen by the host (it is empty until we have been told it)
+	private String getLocalPeerId() {
+		String peerId = mWifiClient != null ? mWifiClient.getAssignedPeerId() : null;
+		if (peerId == null && mBluetoothClient != null) {
+			peerId = mBluetoothClient.getAssignedPeerId();
+		}
+		return peerId != null ? peerId : "";
+	}
+
+	// called on the dispatching thread, in order with messages (see MessageDispatcher)
+	private void onStreamFrameReceived(StreamFrameReceivedEvent event) {
+		synchronized (mIncomingStreams) {
+			handleStreamFrame(event);
+		}
+		event.setConsumed(); // returns the frame's flow control credit to the connection it arrived on
+	}
+
+	private boolean removeIncomingStream(int streamId) {
+		synchronized (mIncomingStreams) {
+			return mIncomingStreams.remove(streamId) != null;
+		}
+	}
+
+	private void handleStreamFrame(StreamFrameReceivedEvent event) {
+		boolean fromServer = ProtocolConstants.SERVER_MESSAGE_ID.equals(event.mDeliveredBy);
+		switch (event.mFrameType) {
+			case FrameCodec.TYPE_STREAM_OPEN:
+				StreamCodec.StreamInfo info;
+				try {
+					info = StreamCodec.decodeOpen(event.mPayload, 0, event.mPayload.length);
+				} catch (FrameFormatException e) {
+					Log.d(TAG, "Stream open error: " + e.getLocalizedMessage());
+					return;
+				}
+				if (mIncomingStreams.containsKey(event.mStreamId)) {
+					return; // a duplicate (e.g., sent on more than one link while a new link was being set up)
+				}
+				// as for messages, the server sets from ids (unless a relay has already done so)
+				String from = fromServer || !TextUtils.isEmpty(info.mFrom) ? info.mFrom : event.mDeliveredBy;
+				if (!fromServer || mRelayMode) {
+					// forward to all other clients with the from id filled in
+					sendToAllRemoteClients(OutboundMessage.frames(
+							StreamCodec.encodeOpen(event.mStreamId, info.mTotalSize, from, info.mStreamType), true),
+							event.mDeliveredBy);
+				}
+				StreamTransfer stream = new StreamTransfer(event.mStreamId, from, info.mStreamType, info.mTotalSize);
+				mIncomingStreams.put(event.mStreamId, stream);
+
+				Bundle openData = new Bundle(3);
+				openData.putString(KEY_STREAM_FROM, from);
+				openData.putString(KEY_STREAM_TYPE, info.mStreamType);
+				openData.putLong(KEY_STREAM_SIZE, info.mTotalSize);
+				sendStreamEventToAllLocalClients(EVENT_STREAM_OPENED, event.mStreamId, openData);
+				if (stream.isComplete()) { // empty streams
+					mIncomingStreams.remove(event.mStreamId);
+					sendStreamEventToAllLocalClients(EVENT_STREAM_COMPLETE, event.mStreamId, null);
+				}
+				break;
+
+			case FrameCodec.TYPE_STREAM_DATA:
+				StreamTransfer dataStream = mIncomingStreams.get(event.mStreamId);
+				if (dataStream != null && event.mIndex < dataStream.mNextIndex) {
+					return; // a duplicate - see above
+				}
+				forwardStreamFrame(event, fromServer);
+				if (dataStream == null) {
+					return; // cancelled, or we joined after the stream started
+				}
+				if (event.mIndex != dataStream.mNextIndex ||
+						dataStream.mTransferred + event.mPayload.length > dataStream.mTotalSize) {
+					Log.d(TAG, "Stream " + event.mStreamId + " data missing or invalid - cancelling");
+					mIncomingStreams.remove(event.mStreamId);
+					sendStreamEventToAllLocalClients(EVENT_STREAM_CANCELLED, event.mStreamId, null);
+					return;
+				}
+				dataStream.mNextIndex += 1;
+				dataStream.mTransferred += event.mPayload.length;
+
+				Bundle chunkData = new Bundle(3);
+				chunkData.putByteArray(KEY_STREAM_DATA, event.mPayload);
+				chunkData.putLong(KEY_STREAM_TRANSFERRED, dataStream.mTransferred);
+				chunkData.putLong(KEY_STREAM_SIZE, dataStream.mTotalSize);
+				sendStreamEventToAllLocalClients(EVENT_STREAM_DATA, event.mStreamId, chunkData);
+				if (dataStream.isComplete()) {
+					mIncomingStreams.remove(event.mStreamId);
+					sendStreamEventToAllLocalClients(EVENT_STREAM_COMPLETE, event.mStreamId, null);
+				}
+				break;
+
+			case FrameCodec.TYPE_STREAM_CANCEL:
+				forwardStreamFrame(event, fromServer);
+				if (mIncomingStreams.remove(event.mStreamId) != null) {
+					sendStreamEventToAllLocalClients(EVENT_STREAM_CANCELLED, event.mStreamId, null);
+				}
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	// if we're the server, stream frames from clients are passed on to all other clients unchanged (relays also pass on
+	// stream frames from their host to their own clients)
+	private void forwardStreamFrame(StreamFrameReceivedEvent event, boolean fromServer) {
+		if (!fromServer || mRelayMode) {
+			sendToAllRemoteClients(OutboundMessage.frames(FrameCodec.encodeFrame(event.mFrameType, event.mStreamId,
+					event.mIndex, 0, event.mPayload, 0, event.mPayload.length),
+					event.mFrameType != FrameCodec.TYPE_STREAM_DATA), event.mDeliveredBy);
 		}
 	}
 }
@@ -28,7 +28,9 @@ import android.os.Messenger;
 import android.os.RemoteException;
 
 import java.lang.ref.WeakReference;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
 import ac.robinson.bettertogether.api.messaging.PluginIntent;
@@ -43,10 +45,31 @@ class HotspotManagerServiceCommunicator {
 
 	private ArrayList<Message> mQueuedMessages = new ArrayList<>();
 
+	// stream ids must be unique across the whole group (servers forward them unchanged), so they are chosen randomly
+	private static final SecureRandom sStreamIdGenerator = new SecureRandom();
+	static final int INVALID_STREAM_ID = 0; // returned by openStream on failure - never chosen as an id
+
+	// stream data is passed to the service in a Bundle, and Binder transactions are limited to about 1MB (shared by
+	// the whole process), so larger chunks are split into parts of at most this size (which receivers get separately)
+	static final int MAX_STREAM_CHUNK_SIZE = 64 * 1024;
+
 	interface HotspotServiceCallback {
 		void onBroadcastMessageReceived(BroadcastMessage message);
 
 		void onSystemMessageReceived(int type, String data);
+
+		void onStreamOpened(int streamId, String from, String streamType, long totalSize);
+
+		// called for each chunk as it arrives, so the receiver never needs to buffer the whole stream
+		void onStreamData(int streamId, byte[] data, long transferred, long totalSize);
+
+		void onStreamComplete(int streamId);
+
+		void onStreamCancelled(int streamId);
+
+		// true when messages to remote devices are being sent more slowly than they are being produced - senders should
+		// slow down (or skip messages that will soon be out of date) until this is called again with false
+		void onBackpressureChanged(boolean backpressure);
 	}
 
 	HotspotManagerServiceCommunicator(HotspotServiceCallback callback) {
@@ -71,11 +94,42 @@ class HotspotManagerServiceCommunicator {
 
 			switch (msg.what) {
 				case HotspotManagerService.MSG_BROADCAST:
-					BroadcastMessage message = (BroadcastMessage) msg.getData()
+					Bundle messageData = msg.getData();
+					BroadcastMessage message = (BroadcastMessage) messageData
 							.getSerializable(PluginIntent.KEY_BROADCAST_MESSAGE);
+					// (activities are in the service's process, so they can add to its traces directly)
+					TraceLog.addHop(messageData.getLong(HotspotManagerService.KEY_TRACE_ID),
+							MessageTrace.HOP_CLIENT_RECEIVE);
 					mCommunicator.mCallback.onBroadcastMessageReceived(message);
 					break;
 
+				case HotspotManagerService.EVENT_STREAM_OPENED:
+					Bundle openData = msg.getData();
+					mCommunicator.mCallback.onStreamOpened(msg.arg1, openData.getString(HotspotManagerService.KEY_STREAM_FROM),
+							openData.getString(HotspotManagerService.KEY_STREAM_TYPE),
+							openData.getLong(HotspotManagerService.KEY_STREAM_SIZE));
+					break;
+
+				case HotspotManagerService.EVENT_STREAM_DATA:
+					Bundle chunkData = msg.getData();
+					mCommunicator.mCallback.onStreamData(msg.arg1, chunkData.getByteArray(HotspotManagerService.KEY_STREAM_DATA),
+							chunkData.getLong(HotspotManagerService.KEY_STREAM_TRANSFERRED),
+							chunkData.getLong(HotspotManagerService.KEY_STREAM_SIZE));
+					break;
+
+				case HotspotManagerService.EVENT_STREAM_COMPLETE:
+					mCommunicator.mCallback.onStreamComplete(msg.arg1);
+					break;
+
+				case HotspotManagerService.EVENT_STREAM_CANCELLED:
+					mCommunicator.mCallback.onStreamCancelled(msg.arg1);
+					break;
+
+				case HotspotManagerService.EVENT_BACKPRESSURE:
+					mCommunicator.mCallback.onBackpressureChanged(
+							Boolean.parseBoolean(msg.getData().getString(PluginIntent.KEY_SERVICE_MESSAGE)));
+					break;
+
 				default:
 					mCommunicator.mCallback.onSystemMessageReceived(msg.what,
 							msg.getData().getString(PluginIntent.KEY_SERVICE_MESSAGE));
@@ -106,11 +160,19 @@ class HotspotManagerServiceCommunicator {
 
 	// broadcast messages are to remote clients
 	boolean sendBroadcastMessage(BroadcastMessage data) {
+		return sendBroadcastMessage(data, false);
+	}
+
+	// urgent messages are sent immediately, rather than being batched with other small messages (system messages are
+	// always urgent)
+	boolean sendBroadcastMessage(BroadcastMessage data, boolean urgent) {
 		try {
 			Message message = Message.obtain(null, HotspotManagerService.MSG_BROADCAST);
 			message.replyTo = mMessenger;
-			Bundle bundle = new Bundle(1);
+			message.arg1 = urgent ? 1 : 0;
+			Bundle bundle = new Bundle(2);
 			bundle.putSerializable(PluginIntent.KEY_BROADCAST_MESSAGE, data);
+			bundle.putLong(HotspotManagerService.KEY_SEND_TIME, System.nanoTime()); // for message traces
 			message.setData(bundle);
 			if (mService != null) {
 				mService.send(message);
@@ -144,6 +206,97 @@ class HotspotManagerServiceCommunicator {
 		}
 	}
 
+	// streams send data that is too large for a single broadcast message - open a stream with the total size, then send
+	// the data in chunks of any size (see MAX_STREAM_CHUNK_SIZE) - the service paces sending to remote devices, so the
+	// whole stream can be passed at once; returns the stream's id (used for subsequent calls), or INVALID_STREAM_ID on
+	// failure
+	int openStream(String streamType, long totalSize) {
+		int streamId;
+		do {
+			streamId = sStreamIdGenerator.nextInt();
+		} while (streamId == INVALID_STREAM_ID);
+		Message message = Message.obtain(null, HotspotManagerService.MSG_STREAM_OPEN, streamId, 0);
+		Bundle bundle = new Bundle(2);
+		bundle.putString(HotspotManagerService.KEY_STREAM_TYPE, streamType);
+		bundle.putLong(HotspotManagerService.KEY_STREAM_SIZE, totalSize);
+		message.setData(bundle);
+		return sendServiceMessage(message) ? streamId : INVALID_STREAM_ID;
+	}
+
+	boolean sendStreamData(int streamId, byte[] data) {
+		if (data.length <= MAX_STREAM_CHUNK_SIZE) {
+			return sendStreamChunk(streamId, data);
+		}
+		for (int offset = 0; offset < data.length; offset += MAX_STREAM_CHUNK_SIZE) {
+			if (!sendStreamChunk(streamId, Arrays.copyOfRange(data, offset,
+					Math.min(offset + MAX_STREAM_CHUNK_SIZE, data.length)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean sendStreamChunk(int streamId, byte[] data) {
+		Message message = Message.obtain(null, HotspotManagerService.MSG_STREAM_DATA, streamId, 0);
+		Bundle bundle = new Bundle(1);
+		bundle.putByteArray(HotspotManagerService.KEY_STREAM_DATA, data);
+		message.setData(bundle);
+		return sendServiceMessage(message);
+	}
+
+	// works for both outgoing streams (cancelled for all receivers) and incoming ones (no further local delivery)
+	boolean cancelStream(int streamId) {
+		return sendServiceMessage(Message.obtain(null, HotspotManagerService.MSG_STREAM_CANCEL, streamId, 0));
+	}
+
+	// keep both the Wifi and Bluetooth connections when joining a hotspot - takes effect from the next join
+	boolean setMultipathEnabled(boolean enabled) {
+		return sendServiceMessage(Message.obtain(null, HotspotManagerService.MSG_SET_MULTIPATH, enabled ? 1 : 0, 0));
+	}
+
+	// how often (milliseconds) to check that remote devices are still connected - 0 disables checks for that transport
+	boolean setHeartbeatIntervals(int wifiInterval, int bluetoothInterval) {
+		return sendServiceMessage(Message.obtain(null, HotspotManagerService.MSG_SET_HEARTBEAT_INTERVAL, wifiInterval,
+				bluetoothInterval));
+	}
+
+	// once joined to a hotspot, accept connections from other devices and relay messages to and from them, so that the
+	// group can grow beyond the number of devices the host can connect to itself
+	boolean setRelayEnabled(boolean enabled) {
+		return sendServiceMessage(Message.obtain(null, HotspotManagerService.MSG_SET_RELAY_MODE, enabled ? 1 : 0, 0));
+	}
+
+	// the service replies with an EVENT_METRICS system message (see HotspotManagerService.MSG_REQUEST_METRICS) - if
+	// saveToFile is true, the metrics are also saved in the app's storage
+	boolean requestMetrics(boolean saveToFile) {
+		return sendServiceMessage(Message.obtain(null, HotspotManagerService.MSG_REQUEST_METRICS, saveToFile ? 1 : 0, 0));
+	}
+
+	// trace one in every sampleInterval messages that we send (0 = stop) - see HotspotManagerService.MSG_SET_TRACING
+	boolean setTracing(int sampleInterval) {
+		return sendServiceMessage(Message.obtain(null, HotspotManagerService.MSG_SET_TRACING, sampleInterval, 0));
+	}
+
+	// the service replies with an EVENT_TRACE_SAVED system message, with the trace file's path
+	boolean saveTrace() {
+		return sendServiceMessage(Message.obtain(null, HotspotManagerService.MSG_SAVE_TRACE));
+	}
+
+	private boolean sendServiceMessage(Message message) {
+		try {
+			message.replyTo = mMessenger;
+			if (mService != null) {
+				mService.send(message);
+			} else {
+				mQueuedMessages.add(message);
+			}
+			return true;
+		} catch (RemoteException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
 	// connect to the service
 	void bindService(Context context) {
 		context.startService(new Intent(context, HotspotManagerService.class));
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.util.Locale;
+
+// a latency histogram in the style of HdrHistogram: values are counted in buckets whose width grows with the value, so
+// every recorded value (from 1 microsecond to many hours) is kept to within about 3%, in a fixed amount of memory, and
+// percentiles can be read at any time - unlike a mean, these show the occasional long stalls that make a link feel laggy
+// values are in microseconds; note: instances are not thread-safe
+final class LatencyHistogram {
+
+	// each power of two is split into 2^SUB_BUCKET_BITS equal buckets; values below 2^SUB_BUCKET_BITS are exact
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_MAGNITUDE = 36; // values are capped at 2^36 microseconds (about 19 hours)
+	private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+
+	private final long[] mCounts = new long[SUB_BUCKET_COUNT + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT];
+	private long mCount;
+	private long mTotal;
+	private long mMax;
+
+	void record(long value) {
+		if (value < 0) {
+			return; // clock went backwards - ignore
+		}
+		value = Math.min(value, MAX_VALUE);
+		mCounts[getIndex(value)] += 1;
+		mCount += 1;
+		mTotal += value;
+		mMax = Math.max(mMax, value);
+	}
+
+	private static int getIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return SUB_BUCKET_COUNT * (shift + 1) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+	}
+
+	// the largest value that is counted in the given bucket
+	private static long getHighestValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long lowestValue = (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+		return lowestValue + (1L << shift) - 1;
+	}
+
+	// the value that the given percentage of recorded values are less than or equal to (to within the bucket size)
+	long getValueAtPercentile(double percentile) {
+		if (mCount == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+		long total = 0;
+		for (int i = 0; i < mCounts.length; i++) {
+			total += mCounts[i];
+			if (total >= target) {
+				return Math.min(getHighestValue(i), mMax);
+			}
+		}
+		return mMax;
+	}
+
+	long getCount() {
+		return mCount;
+	}
+
+	long getMax() {
+		return mMax;
+	}
+
+	long getMean() {
+		return mCount == 0 ? 0 : mTotal / mCount;
+	}
+
+	// {"count":...,"mean":...,"p50":...,"p90":...,"p99":...,"p999":...,"max":...}
+	String toJson() {
+		return String.format(Locale.US, "{\"count\":%d,\"mean\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"p999\":%d," +
+						"\"max\":%d}", mCount, getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+				getValueAtPercentile(99), getValueAtPercentile(99.9), mMax);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import ac.robinson.bettertogether.event.EventType;
+
+// one end of an in-process link (see LoopbackTransport) - reads from a pipe that the writer thread at the other end writes
+// to, so everything above the transport (framing, queueing, flow control, sessions) runs exactly as it does over a socket
+class LoopbackConnection extends RemoteConnection implements Runnable {
+
+	private static final String TAG = "LoopbackConnection";
+
+	private volatile boolean mRunning = false;
+
+	private final String mId;
+	private final PipedInputStream mInputStream;
+	private final PipedOutputStream mOutputStream;
+	private final LoopbackTransport mTransport; // null at the client end
+
+	LoopbackConnection(String id, PipedInputStream inputStream, PipedOutputStream outputStream,
+					   LoopbackTransport transport) {
+		setLogTag(TAG);
+		setMetricsId(EventType.Type.LOOPBACK, id);
+		mId = id;
+		mInputStream = inputStream;
+		mOutputStream = outputStream;
+		mTransport = transport;
+	}
+
+	String getId() {
+		return mId;
+	}
+
+	@Override
+	public void run() {
+		mRunning = true;
+		FrameReader frameReader = null;
+		try {
+			startWriter(mOutputStream);
+			frameReader = createFrameReader();
+			while (mRunning) {
+				processBytes(mId, frameReader.readFrom(mInputStream), frameReader);
+			}
+		} catch (IOException e) {
+			if (mRunning) {
+				Log.d(TAG, "Loopback connection error: " + e.getLocalizedMessage());
+				recordError();
+			}
+			closeConnection(); // so that the other end's read fails too
+		} finally {
+			finishReading(frameReader);
+			if (mTransport != null) {
+				mTransport.removeConnection(this);
+			}
+		}
+	}
+
+	@Override
+	public void closeConnection() {
+		mRunning = false;
+		stopWriter();
+		closeConnection(mInputStream);
+		closeConnection(mOutputStream);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ac.robinson.bettertogether.BetterTogetherUtils;
+import ac.robinson.bettertogether.event.EventType;
+import androidx.annotation.Nullable;
+
+// an in-process transport with no radios or sockets: each call to connect() creates a simulated client, linked to this
+// "server" by a pair of pipes - used to test and benchmark the messaging layers (on a device or a plain JVM) without
+// needing a group of real devices; every link has its own session ids at both ends, as all of the simulated devices share
+// this process's session registry; no connection events are posted, so nothing here depends on EventBus or the service
+class LoopbackTransport implements Transport {
+
+	private static final String TAG = "LoopbackTransport";
+
+	private static final int PIPE_SIZE = 64 * 1024; // bytes buffered in each direction before the writer blocks
+
+	private final ConcurrentHashMap<String, LoopbackConnection> mConnections = new ConcurrentHashMap<>();
+	private final ReplayBuffer mReplayBuffer;
+	private final ConnectionListener mListener; // for what the server end of every link receives
+	private volatile OutboundQueue.Policy mSlowClientPolicy = OutboundQueue.Policy.DISCONNECT;
+	private volatile boolean mRunning = false;
+
+	LoopbackTransport(ReplayBuffer replayBuffer, ConnectionListener listener) {
+		mReplayBuffer = replayBuffer;
+		mListener = listener;
+	}
+
+	@Override
+	public EventType.Type getType() {
+		return EventType.Type.LOOPBACK;
+	}
+
+	@Override
+	public void start() {
+		mRunning = true; // nothing to accept - clients are created by connect()
+	}
+
+	// creates a new simulated client (which appears to be a separate device) and returns its end of the link, already
+	// started - what it receives goes to clientListener; messages it receives from us have the usual SERVER_MESSAGE_ID
+	Connection connect(ConnectionListener clientListener) throws IOException {
+		if (!mRunning) {
+			throw new IOException("Loopback transport is not running");
+		}
+		PipedInputStream serverInput = new PipedInputStream(PIPE_SIZE);
+		PipedInputStream clientInput = new PipedInputStream(PIPE_SIZE);
+		String connectionId = BetterTogetherUtils.getRandomString(ProtocolConstants.MESSAGE_ID_SIZE);
+
+		LoopbackConnection serverConnection = new LoopbackConnection(connectionId, serverInput,
+				new PipedOutputStream(clientInput), LoopbackTransport.this);
+		serverConnection.setLocalSessionId(RemoteConnection.createSessionId()); // (see PeerSession - one per link)
+		serverConnection.setSlowConsumerPolicy(mSlowClientPolicy);
+		serverConnection.setReplayBuffer(mReplayBuffer);
+		serverConnection.setConnectionListener(mListener);
+
+		LoopbackConnection clientConnection = new LoopbackConnection(ProtocolConstants.SERVER_MESSAGE_ID,
+				clientInput, new PipedOutputStream(serverInput), null);
+		clientConnection.setLocalSessionId(RemoteConnection.createSessionId());
+		clientConnection.setConnectionListener(clientListener);
+
+		mConnections.put(connectionId, serverConnection);
+		new Thread(serverConnection, TAG + "Server").start();
+		new Thread(clientConnection, TAG + "Client").start();
+		return clientConnection;
+	}
+
+	// called by the server end of a link when it ends for any reason
+	void removeConnection(LoopbackConnection connection) {
+		mConnections.remove(connection.getId());
+	}
+
+	int getConnectionCount() {
+		return mConnections.size();
+	}
+
+	@Override
+	public void sendMessageToAll(OutboundMessage message, @Nullable String ignoreClient) {
+		for (Iterator<LoopbackConnection> connectionsIterator = mConnections.values().iterator();
+				connectionsIterator.hasNext(); ) {
+			LoopbackConnection connection = connectionsIterator.next();
+			if (!connection.getPeerId(connection.getId()).equals(ignoreClient) && connection.isRouteFor(message)) {
+				if (!connection.sendMessage(message)) {
+					Log.d(TAG, "Client failed or too slow - removing client");
+					connectionsIterator.remove();
+					connection.closeConnection();
+				}
+			}
+		}
+	}
+
+	@Override
+	public int getMaxQueuedBytes() {
+		int maxQueuedBytes = 0;
+		for (LoopbackConnection connection : mConnections.values()) {
+			maxQueuedBytes = Math.max(maxQueuedBytes, connection.getQueuedBytes());
+		}
+		return maxQueuedBytes;
+	}
+
+	@Override
+	public void sendHeartbeats(long now, int interval) {
+		for (Iterator<LoopbackConnection> connectionsIterator = mConnections.values().iterator();
+				connectionsIterator.hasNext(); ) {
+			LoopbackConnection connection = connectionsIterator.next();
+			if (!connection.sendHeartbeat(now, interval)) {
+				connectionsIterator.remove();
+				connection.closeConnection();
+			}
+		}
+	}
+
+	@Override
+	public void setSlowClientPolicy(OutboundQueue.Policy policy) {
+		mSlowClientPolicy = policy;
+		for (LoopbackConnection connection : mConnections.values()) {
+			connection.setSlowConsumerPolicy(policy);
+		}
+	}
+
+	@Override
+	public void closeAllConnections() {
+		mRunning = false;
+		for (LoopbackConnection connection : mConnections.values()) {
+			connection.closeConnection(); // the client ends see the end of their streams, and close too
+		}
+		mConnections.clear();
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ac.robinson.bettertogether.event.ClientSessionEvent;
+import ac.robinson.bettertogether.event.MessageReceivedEvent;
+import ac.robinson.bettertogether.event.StreamFrameReceivedEvent;
+
+// hands received messages from every connection's reading thread to a single dispatching thread, so that routing them
+// (forwarding to other devices, and delivery to local clients, which happens via their own Handlers anyway) never
+// waits for, or holds up, the main thread - at a busy host, bursts of messages would otherwise delay both UI frames and
+// relaying
+// stream frames and session events go through the same queue, so every event is handled in the order it arrived (e.g.,
+// a stream is always opened before a later message that refers to it is forwarded); listeners that need to change
+// main thread state should post that work to the main thread in the same order (see HotspotManagerService)
+// the queue is a bounded lock-free ring buffer (after Vyukov's bounded MPMC queue, with a single consumer); when it is
+// full, reading threads wait for space, which holds up their sockets rather than growing a backlog here (flow control
+// means this is rare - see RemoteConnection.FLOW_CONTROL_WINDOW)
+final class MessageDispatcher implements ConnectionListener {
+
+	private static final String TAG = "MessageDispatcher";
+
+	// all called on the dispatching thread, in the order that events arrived - if a listener throws an exception, the
+	// event is discarded (see dispatch), so listeners must recycle (or consume) events only as the last thing they do
+	interface Listener {
+		void onMessage(MessageReceivedEvent event); // the listener must recycle the event
+
+		void onStreamFrame(StreamFrameReceivedEvent event); // ...and call setConsumed()
+
+		void onSessionStarted(ClientSessionEvent event);
+	}
+
+	static final int QUEUE_CAPACITY = 256; // must be a power of two
+	private static final long FULL_WAIT_TIME = 50000; // nanoseconds - how long reading threads wait before trying again
+
+	// MessageReceivedEvent, StreamFrameReceivedEvent or ClientSessionEvent
+	private final AtomicReferenceArray<Object> mEvents = new AtomicReferenceArray<>(QUEUE_CAPACITY);
+	private final AtomicLongArray mSequences = new AtomicLongArray(QUEUE_CAPACITY); // see offer and poll
+	private final AtomicLong mTail = new AtomicLong(); // the next position to be claimed by a producer
+	private long mHead; // dispatching thread only - the next position to be taken
+
+	private final Listener mListener;
+	private final Thread mThread;
+	private volatile boolean mWaiting; // the dispatching thread is (about to be) parked until a message arrives
+	private volatile boolean mClosed;
+	private final AtomicLong mFullCount = new AtomicLong(); // how many times a reading thread had to wait for space
+
+	MessageDispatcher(Listener listener) {
+		mListener = listener;
+		for (int i = 0; i < QUEUE_CAPACITY; i++) {
+			mSequences.set(i, i); // position i is free for the producer that claims it
+		}
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, TAG);
+	}
+
+	void start() {
+		mThread.start();
+	}
+
+	// events that are still queued are discarded without being dispatched (returning their flow control credit)
+	void close() {
+		mClosed = true;
+		LockSupport.unpark(mThread);
+	}
+
+	@Override
+	public void onMessageReceived(MessageReceivedEvent event) {
+		enqueue(event);
+	}
+
+	@Override
+	public void onStreamFrameReceived(StreamFrameReceivedEvent event) {
+		enqueue(event);
+	}
+
+	@Override
+	public void onSessionStarted(ClientSessionEvent event) {
+		enqueue(event);
+	}
+
+	private void enqueue(Object event) {
+		boolean waited = false;
+		while (mClosed || !offer(event)) {
+			if (mClosed) {
+				discard(event);
+				return;
+			}
+			if (!waited) {
+				waited = true;
+				mFullCount.incrementAndGet();
+			}
+			LockSupport.parkNanos(FULL_WAIT_TIME);
+		}
+		if (mWaiting) {
+			LockSupport.unpark(mThread);
+		}
+	}
+
+	// each position's sequence number says whose turn it is: equal to the position when a producer may fill it; one
+	// more than the position once it has been filled; and the position plus the capacity once the consumer has emptied
+	// it
+	private boolean offer(Object event) {
+		while (true) {
+			long position = mTail.get();
+			int index = (int) (position & (QUEUE_CAPACITY - 1));
+			long difference = mSequences.get(index) - position;
+			if (difference == 0) {
+				if (mTail.compareAndSet(position, position + 1)) {
+					mEvents.set(index, event);
+					mSequences.set(index, position + 1); // (a full barrier, so the mWaiting check can't be reordered)
+					return true;
+				}
+			} else if (difference < 0) {
+				return false; // full - the consumer hasn't emptied this position yet
+			}
+			// otherwise another producer claimed this position first - try the next one
+		}
+	}
+
+	private Object poll() {
+		int index = (int) (mHead & (QUEUE_CAPACITY - 1));
+		if (mSequences.get(index) != mHead + 1) {
+			return null; // empty (or a producer has claimed the position, but not filled it yet)
+		}
+		Object event = mEvents.get(index);
+		mEvents.set(index, null);
+		mSequences.lazySet(index, mHead + QUEUE_CAPACITY);
+		mHead += 1;
+		return event;
+	}
+
+	private void dispatch() {
+		while (!mClosed) {
+			Object event = poll();
+			if (event != null) {
+				dispatch(event);
+				continue;
+			}
+			mWaiting = true;
+			event = poll(); // (check again, as a producer may have added a message before it saw mWaiting)
+			if (event == null && !mClosed) {
+				LockSupport.park(this);
+			}
+			mWaiting = false;
+			if (event != null) {
+				dispatch(event);
+			}
+		}
+
+		Object event;
+		while ((event = poll()) != null) {
+			discard(event);
+		}
+		Log.d(TAG, "Dispatcher stopped; reading threads waited for a full queue " + mFullCount.get() + " times");
+	}
+
+	// an exception must not end the only dispatching thread, or every reading thread would wait for space in the queue
+	// forever (and no flow control credit would be returned), so a failed event is logged and discarded instead
+	private void dispatch(Object event) {
+		try {
+			if (event instanceof MessageReceivedEvent) {
+				mListener.onMessage((MessageReceivedEvent) event);
+			} else if (event instanceof StreamFrameReceivedEvent) {
+				mListener.onStreamFrame((StreamFrameReceivedEvent) event);
+			} else {
+				mListener.onSessionStarted((ClientSessionEvent) event);
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			Log.e(TAG, "Error dispatching " + event.getClass().getSimpleName() + " (discarded): " +
+					e.getLocalizedMessage());
+			discard(event);
+		}
+	}
+
+	private static void discard(Object event) {
+		if (event instanceof MessageReceivedEvent) {
+			((MessageReceivedEvent) event).recycle();
+		} else if (event instanceof StreamFrameReceivedEvent) {
+			((StreamFrameReceivedEvent) event).setConsumed();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+// recombines multi-part messages for a single connection - each connection has its own table, so there is no sharing
+// between threads, and everything a connection had buffered is discarded when it closes
+// parts must arrive in order (they always do on a single stream socket); a gap means the partial message is dropped
+// parts of different messages may be interleaved, as senders write high priority messages between the parts of bulk ones
+// not thread safe - only used from the connection's read thread (the counters may be read from any thread)
+final class MessageReassembler {
+
+	static final int MAX_PARTIAL_MESSAGES = 8; // concurrent incomplete messages per connection
+	static final int MAX_BUFFERED_BYTES = 4 * 1024 * 1024; // total size of incomplete messages per connection
+	static final int MAX_MESSAGE_SIZE = 2 * 1024 * 1024; // larger transfers should use streams instead
+	static final long PARTIAL_MESSAGE_TIMEOUT = 30000; // milliseconds since a message last received a part
+
+	static final class PartialMessage {
+		int mMessageId;
+		byte[] mData;
+		int mLength;
+		int mPartCount;
+		int mNextPartIndex;
+		long mLastUpdated;
+	}
+
+	private final HashMap<Integer, PartialMessage> mPartialMessages = new HashMap<>();
+	private int mBufferedBytes;
+
+	private volatile int mCompletedCount;
+	private volatile int mDroppedCount; // gaps, oversized messages and evictions to stay within limits
+	private volatile int mExpiredCount; // incomplete messages that timed out
+
+	// adds a part; returns the completed message if this was its final part, or null otherwise
+	// the returned message's data is owned by the caller (the reassembler no longer references it)
+	PartialMessage addPart(FrameHeader header, byte[] buffer, int payloadOffset, long now) {
+		expireMessages(now);
+		PartialMessage message = mPartialMessages.get(header.mMessageId);
+		if (message == null) {
+			if (header.mPartIndex != 0) {
+				mDroppedCount += 1; // we missed the start of this message (or it has already been dropped)
+				return null;
+			}
+			long expectedSize = (long) header.mPartCount * header.mPayloadLength; // all but the last part are full size
+			if (expectedSize > MAX_MESSAGE_SIZE) {
+				mDroppedCount += 1;
+				return null;
+			}
+			makeSpace((int) expectedSize);
+
+			message = new PartialMessage();
+			message.mMessageId = header.mMessageId;
+			message.mData = new byte[(int) expectedSize];
+			message.mPartCount = header.mPartCount;
+			mPartialMessages.put(header.mMessageId, message);
+			mBufferedBytes += message.mData.length;
+
+		} else if (header.mPartIndex != message.mNextPartIndex || header.mPartCount != message.mPartCount) {
+			remove(message);
+			mDroppedCount += 1;
+			return null;
+		}
+
+		if (message.mLength + header.mPayloadLength > message.mData.length) {
+			// only possible if a sender uses uneven part sizes - grow rather than reject, but within the same limits
+			int newSize = Math.max(message.mData.length * 2, message.mLength + header.mPayloadLength);
+			if (newSize > MAX_MESSAGE_SIZE) {
+				remove(message);
+				mDroppedCount += 1;
+				return null;
+			}
+			mBufferedBytes += newSize - message.mData.length;
+			message.mData = Arrays.copyOf(message.mData, newSize);
+		}
+
+		System.arraycopy(buffer, payloadOffset, message.mData, message.mLength, header.mPayloadLength);
+		message.mLength += header.mPayloadLength;
+		message.mNextPartIndex += 1;
+		message.mLastUpdated = now;
+
+		if (message.mNextPartIndex >= message.mPartCount) {
+			remove(message);
+			mCompletedCount += 1;
+			return message;
+		}
+		return null;
+	}
+
+	// evict the least recently updated messages until there is room for a new message of the given size
+	private void makeSpace(int size) {
+		while (!mPartialMessages.isEmpty() &&
+				(mPartialMessages.size() >= MAX_PARTIAL_MESSAGES || mBufferedBytes + size > MAX_BUFFERED_BYTES)) {
+			PartialMessage oldest = null;
+			for (PartialMessage message : mPartialMessages.values()) {
+				if (oldest == null || message.mLastUpdated < oldest.mLastUpdated) {
+					oldest = message;
+				}
+			}
+			remove(oldest);
+			mDroppedCount += 1;
+		}
+	}
+
+	private void expireMessages(long now) {
+		Iterator<PartialMessage> iterator = mPartialMessages.values().iterator();
+		while (iterator.hasNext()) {
+			PartialMessage message = iterator.next();
+			if (now - message.mLastUpdated > PARTIAL_MESSAGE_TIMEOUT) {
+				iterator.remove();
+				mBufferedBytes -= message.mData.length;
+				mExpiredCount += 1;
+			}
+		}
+	}
+
+	private void remove(PartialMessage message) {
+		mPartialMessages.remove(message.mMessageId);
+		mBufferedBytes -= message.mData.length;
+	}
+
+	// discard everything (e.g., when the connection closes) - incomplete messages are counted as dropped
+	void clear() {
+		mDroppedCount += mPartialMessages.size();
+		mPartialMessages.clear();
+		mBufferedBytes = 0;
+	}
+
+	int getCompletedCount() {
+		return mCompletedCount;
+	}
+
+	int getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	int getExpiredCount() {
+		return mExpiredCount;
+	}
+}
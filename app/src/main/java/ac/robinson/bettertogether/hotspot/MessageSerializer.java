@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+
+// converts BroadcastMessages to and from the raw bytes sent in frames (unlike BroadcastMessage.toString, there is no
+// Base64 step, as the framing is binary-safe)
+public class MessageSerializer {
+
+	public static byte[] toBytes(BroadcastMessage message) throws IOException {
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream(256);
+		ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
+		objectStream.writeObject(message);
+		objectStream.close();
+		return byteStream.toByteArray();
+	}
+
+	public static BroadcastMessage fromBytes(byte[] data, int offset, int length) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+		try {
+			return (BroadcastMessage) objectStream.readObject();
+		} finally {
+			objectStream.close();
+		}
+	}
+}
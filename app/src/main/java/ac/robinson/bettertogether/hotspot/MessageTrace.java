@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.util.Arrays;
+
+// the timeline of a single traced message (see TraceLog) - a list of hops, each recorded with the time it happened and
+// the device it happened on; times are always in this device's monotonic clock (System.nanoTime(), which is the same for
+// every process on a device), so hops from other devices are converted when they arrive (see toLocalClock)
+// traces travel with their messages in TYPE_TRACE frames (see FrameCodec.encodeTrace), so the device that receives a
+// message has every hop up to that point, and adds its own
+// note: instances are not thread-safe - see TraceLog
+final class MessageTrace {
+
+	static final int HOP_CLIENT_SEND = 1; // a local client (i.e., our own activity) sent the message
+	static final int HOP_SERVICE_RECEIVE = 2; // the service's main thread received it (after Binder and the main looper)
+	static final int HOP_ENQUEUE = 3; // serialised, encoded and queued for every connection
+	static final int HOP_WRITE = 4; // written to a connection (there is one of these for each connection)
+	static final int HOP_READ = 5; // the message's last frame was read from a connection
+	static final int HOP_DISPATCH = 6; // the service's main thread started to handle the received message
+	static final int HOP_DELIVERED = 7; // sent on to local clients (and plugins)
+	static final int HOP_CLIENT_RECEIVE = 8; // a local client's main thread received the message
+
+	static final int MAX_HOPS = 255; // (the hop count is a single byte in TYPE_TRACE frames) - later hops are ignored
+
+	final long mTraceId;
+	private int mHopCount;
+	private int[] mHops = new int[8];
+	private long[] mDevices = new long[8]; // the session id of the device each hop happened on
+	private long[] mTimes = new long[8];
+	private boolean mClockEstimated; // an earlier device's clock offset wasn't known, so had to be estimated
+
+	MessageTrace(long traceId) {
+		mTraceId = traceId;
+	}
+
+	void addHop(int hop, long device, long time) {
+		if (mHopCount >= MAX_HOPS) {
+			return;
+		}
+		if (mHopCount == mHops.length) {
+			mHops = Arrays.copyOf(mHops, mHopCount * 2);
+			mDevices = Arrays.copyOf(mDevices, mHopCount * 2);
+			mTimes = Arrays.copyOf(mTimes, mHopCount * 2);
+		}
+		mHops[mHopCount] = hop;
+		mDevices[mHopCount] = device;
+		mTimes[mHopCount] = time;
+		mHopCount += 1;
+	}
+
+	int getHopCount() {
+		return mHopCount;
+	}
+
+	int getHop(int index) {
+		return mHops[index];
+	}
+
+	long getDevice(int index) {
+		return mDevices[index];
+	}
+
+	long getTime(int index) {
+		return mTimes[index];
+	}
+
+	// clockOffset is the other device's clock minus ours (see RttEstimator.getClockOffset)
+	void toLocalClock(long clockOffset, boolean estimated) {
+		for (int i = 0; i < mHopCount; i++) {
+			mTimes[i] -= clockOffset;
+		}
+		mClockEstimated |= estimated;
+	}
+
+	boolean isClockEstimated() {
+		return mClockEstimated;
+	}
+
+	// the time of the most recent hop of the given type (0 if there isn't one)
+	long getLastTime(int hop) {
+		for (int i = mHopCount - 1; i >= 0; i--) {
+			if (mHops[i] == hop) {
+				return mTimes[i];
+			}
+		}
+		return 0;
+	}
+
+	// the hop that the given one follows on from - e.g., a write follows the enqueue before it, rather than the write to
+	// the previous connection; -1 if there isn't one (e.g., the trace started on a device that we have no record of)
+	int getPreviousHopIndex(int index) {
+		int hop = mHops[index];
+		for (int i = index - 1; i >= 0; i--) {
+			if (follows(hop, mHops[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean follows(int hop, int previousHop) {
+		switch (hop) {
+			case HOP_SERVICE_RECEIVE:
+				return previousHop == HOP_CLIENT_SEND;
+			case HOP_ENQUEUE:
+				// (forwarded messages follow local delivery, or dispatch at hosts without local clients)
+				return previousHop == HOP_SERVICE_RECEIVE || previousHop == HOP_DELIVERED || previousHop == HOP_DISPATCH;
+			case HOP_WRITE:
+				return previousHop == HOP_ENQUEUE;
+			case HOP_READ:
+				return previousHop == HOP_WRITE;
+			case HOP_DISPATCH:
+				return previousHop == HOP_READ;
+			case HOP_DELIVERED:
+				return previousHop == HOP_DISPATCH;
+			case HOP_CLIENT_RECEIVE:
+				return previousHop == HOP_DELIVERED;
+			default:
+				return false;
+		}
+	}
+
+	static String getHopName(int hop) {
+		switch (hop) {
+			case HOP_CLIENT_SEND:
+				return "client send";
+			case HOP_SERVICE_RECEIVE:
+				return "service receive";
+			case HOP_ENQUEUE:
+				return "enqueue";
+			case HOP_WRITE:
+				return "socket write";
+			case HOP_READ:
+				return "socket read";
+			case HOP_DISPATCH:
+				return "dispatch";
+			case HOP_DELIVERED:
+				return "delivered";
+			case HOP_CLIENT_RECEIVE:
+				return "client receive";
+			default:
+				return "unknown (" + hop + ")";
+		}
+	}
+
+	MessageTrace copy() {
+		MessageTrace copy = new MessageTrace(mTraceId);
+		copy.mHopCount = mHopCount;
+		copy.mHops = Arrays.copyOf(mHops, mHops.length);
+		copy.mDevices = Arrays.copyOf(mDevices, mDevices.length);
+		copy.mTimes = Arrays.copyOf(mTimes, mTimes.length);
+		copy.mClockEstimated = mClockEstimated;
+		return copy;
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+
+// something waiting to be written to connections - encoded into complete frames once, when created, then the same
+// (immutable) bytes are written to every client, so the cost of a broadcast doesn't grow with the size of the group
+final class OutboundMessage {
+
+	// message ids only need to be unique among the in-progress messages on a link (each connection reassembles its own
+	// messages), but they also increase by one per message, so receivers can use them to discard duplicates when a message
+	// is sent over more than one link; the random start just makes ids from a previous session unlikely to be mistaken
+	// for current ones
+	private static final AtomicInteger sMessageIdCounter = new AtomicInteger(new SecureRandom().nextInt());
+
+	// compression happens once per message (like encoding), on whichever thread first needs the compressed frames, and
+	// the result is shared by every connection - so rather than one compressor per connection (which would compress
+	// the same message again for each of them), each thread gets its own, and messages can be compressed in parallel
+	private static final ThreadLocal<PayloadCompressor> sCompressor = new ThreadLocal<PayloadCompressor>() {
+		@Override
+		protected PayloadCompressor initialValue() {
+			return new PayloadCompressor();
+		}
+	};
+	private static final AtomicLong sUncompressedBytes = new AtomicLong(); // totals across all threads' compressors
+	private static final AtomicLong sCompressedBytes = new AtomicLong();
+	private static final AtomicLong sCompressionTime = new AtomicLong(); // nanoseconds
+
+	// high priority messages are written before bulk ones, and in between the frames of bulk messages that are already
+	// being written, so that (e.g.) a small control message never waits behind a large transfer to the same device
+	// control frames are also exempt from flow control (see OutboundQueue), so that credit updates can always be sent
+	static final int PRIORITY_CONTROL = 0; // connection and stream control frames (hello, ping, credit, stream open, etc.)
+	static final int PRIORITY_HIGH = 1; // single-frame messages
+	static final int PRIORITY_BULK = 2; // multi-part messages and stream data
+	static final int PRIORITY_COUNT = 3;
+
+	final byte[] mFrames; // never modified after construction
+	final String mConflationKey; // queued messages with the same key may be replaced by newer ones; null = never
+	final boolean mUrgent; // flush immediately (along with anything batched before it) rather than waiting
+	final boolean mSequenced; // the message id is a sequence number, so duplicates can be detected (see PeerSession)
+	final int mMessageId; // (sequenced messages only)
+	final int mPriority;
+	final MessageTrace mTrace; // a copy of the trace so far (never modified); null if not traced - see encodeTraceFrame
+	final String mSenderId; // forwarded messages: the from id, sent in a TYPE_SENDER frame; null = none
+	private final int mFlags;
+	private final int mHeaderFrameLength; // relay and sender frames come first, and aren't flow controlled
+	private final int mFrameCount;
+	private final ByteBuffer mBuffer;
+
+	// larger messages are also sent with a compressed payload to connections that support it - this version is created
+	// (once) when the first of those connections sends the message, on its writing thread, so nothing is compressed
+	// unless it will be sent compressed, and compression never happens on the thread that creates the message
+	private final boolean mCompressible;
+	private volatile boolean mCompressionDone; // (written while holding this message's lock - see getCompressedFrames)
+	private byte[] mCompressedFrames; // the same message with a compressed payload; null if it didn't get any smaller
+	private int mCompressedFrameCount;
+	private ByteBuffer mCompressedBuffer;
+
+	private OutboundMessage mLegacyMessage; // created when first needed - see getLegacyMessage
+
+	private OutboundMessage(byte[] frames, boolean compressible, String conflationKey, boolean urgent,
+							boolean sequenced, int messageId, int priority, int flags, int headerFrameLength,
+							String senderId, MessageTrace trace) {
+		mFrames = frames;
+		mCompressible = compressible;
+		mConflationKey = conflationKey;
+		mUrgent = urgent;
+		mSequenced = sequenced;
+		mMessageId = messageId;
+		mPriority = priority;
+		mFlags = flags;
+		mHeaderFrameLength = headerFrameLength;
+		mSenderId = senderId;
+		mTrace = trace;
+		mFrameCount = countFrames(frames);
+		mBuffer = ByteBuffer.wrap(frames).asReadOnlyBuffer();
+	}
+
+	// a serialised message, split into as many TYPE_MESSAGE frames as needed - larger messages can also be sent with a
+	// compressed payload, to connections that support it (the message id is the same for both versions)
+	static OutboundMessage message(byte[] message, String conflationKey, boolean urgent) {
+		return message(message, conflationKey, urgent, false, null);
+	}
+
+	// as above, for a system message (marked with FLAG_SYSTEM, so receivers can tell without decoding it) and/or a
+	// traced message (see TraceLog.enqueue) - trace may be null
+	static OutboundMessage message(byte[] message, String conflationKey, boolean urgent, boolean system,
+								   MessageTrace trace) {
+		return forwardedMessage(message, message.length, conflationKey, urgent, system, 0, 0, 0, null, trace);
+	}
+
+	// as above, for the first length bytes of a message that is being forwarded on behalf of another device, exactly as
+	// it arrived - the message frames are preceded by a TYPE_RELAY frame with the message's original identity if
+	// hopCount is more than 0 (see FrameCodec.encodeRelay), and a TYPE_SENDER frame with its from id if senderId isn't
+	// null
+	static OutboundMessage forwardedMessage(byte[] message, int length, String conflationKey, boolean urgent,
+											boolean system, int hopCount, long originSessionId, int originMessageId,
+											String senderId, MessageTrace trace) {
+		int flags = (urgent ? FrameCodec.FLAG_URGENT : 0) | (system ? FrameCodec.FLAG_SYSTEM : 0);
+		int messageId = sMessageIdCounter.incrementAndGet();
+		byte[] headerFrames = hopCount > 0 ? FrameCodec.encodeRelay(messageId, hopCount, originSessionId,
+				originMessageId) : new byte[0];
+		if (senderId != null) {
+			headerFrames = concat(headerFrames, FrameCodec.encodeSender(messageId, senderId));
+		}
+		return encode(headerFrames, message, length, flags, messageId, conflationKey, urgent, senderId, trace);
+	}
+
+	private static OutboundMessage encode(byte[] headerFrames, byte[] message, int length, int flags, int messageId,
+										  String conflationKey, boolean urgent, String senderId, MessageTrace trace) {
+		return new OutboundMessage(concat(headerFrames, FrameCodec.encodeMessage(message, length, flags, messageId,
+				ProtocolConstants.MESSAGE_PART_SIZE)), length >= PayloadCompressor.COMPRESSION_THRESHOLD,
+				conflationKey, urgent, true, messageId,
+				length > ProtocolConstants.MESSAGE_PART_SIZE ? PRIORITY_BULK : PRIORITY_HIGH, flags,
+				headerFrames.length, senderId, trace);
+	}
+
+	// devices without CAPABILITY_SENDER ignore TYPE_SENDER frames, so forwarded messages are sent to them as before:
+	// with the from id set inside the message - this copy (same message id and relay frame, but no sender frame) is
+	// only decoded and encoded again the first time such a device needs it; returns this message if that fails
+	synchronized OutboundMessage getLegacyMessage() {
+		if (mSenderId == null) {
+			return this;
+		}
+		if (mLegacyMessage == null) {
+			mLegacyMessage = this;
+			try {
+				ByteArrayOutputStream relayFrames = new ByteArrayOutputStream();
+				byte[] payload = getPayload(relayFrames);
+				BroadcastMessage message = MessageSerializer.fromBytes(payload, 0, payload.length);
+				message.setFrom(mSenderId);
+				byte[] messageBytes = MessageSerializer.toBytes(message);
+				mLegacyMessage = encode(relayFrames.toByteArray(), messageBytes, messageBytes.length, mFlags,
+						mMessageId, mConflationKey, mUrgent, null, mTrace);
+			} catch (Exception e) {
+				Log.d("OutboundMessage", "Unable to re-encode forwarded message: " + e.getLocalizedMessage());
+			}
+		}
+		return mLegacyMessage;
+	}
+
+	// the message's (uncompressed) payload, from its TYPE_MESSAGE frames - TYPE_RELAY frames are copied to relayFrames
+	// if it isn't null
+	private byte[] getPayload(ByteArrayOutputStream relayFrames) throws FrameFormatException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(mFrames.length);
+		FrameHeader header = new FrameHeader();
+		for (int position = 0; position < mFrames.length; position += header.getFrameLength()) {
+			header.parse(mFrames, position, mFrames.length - position);
+			if (header.mType == FrameCodec.TYPE_RELAY && relayFrames != null) {
+				relayFrames.write(mFrames, position, header.getFrameLength());
+			} else if (header.mType == FrameCodec.TYPE_MESSAGE) {
+				payload.write(mFrames, position + header.mHeaderLength, header.mPayloadLength);
+			}
+		}
+		return payload.toByteArray();
+	}
+
+	// null if the message isn't compressed (see mCompressible) - compresses it on first use
+	private byte[] getCompressedFrames() {
+		if (!mCompressible) {
+			return null;
+		}
+		if (!mCompressionDone) {
+			synchronized (this) {
+				if (!mCompressionDone) {
+					compress();
+					mCompressionDone = true; // (publishes the compressed frames to threads that don't take the lock)
+				}
+			}
+		}
+		return mCompressedFrames;
+	}
+
+	private void compress() {
+		byte[] compressed;
+		try {
+			byte[] payload = getPayload(null);
+			long startTime = System.nanoTime();
+			compressed = sCompressor.get().compress(payload);
+			sCompressionTime.addAndGet(System.nanoTime() - startTime);
+			if (compressed != null) {
+				sUncompressedBytes.addAndGet(payload.length);
+				sCompressedBytes.addAndGet(compressed.length);
+			}
+		} catch (FrameFormatException e) {
+			return; // (not possible - we encoded the frames ourselves)
+		}
+		if (compressed != null) {
+			// header frames (relay, sender) are the same for both versions
+			mCompressedFrames = concat(Arrays.copyOf(mFrames, mHeaderFrameLength), FrameCodec.encodeMessage(compressed,
+					mFlags | FrameCodec.FLAG_COMPRESSED, mMessageId, ProtocolConstants.MESSAGE_PART_SIZE));
+			mCompressedFrameCount = countFrames(mCompressedFrames);
+			mCompressedBuffer = ByteBuffer.wrap(mCompressedFrames).asReadOnlyBuffer();
+		}
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		if (first.length == 0) {
+			return second;
+		}
+		byte[] combined = new byte[first.length + second.length];
+		System.arraycopy(first, 0, combined, 0, first.length);
+		System.arraycopy(second, 0, combined, first.length, second.length);
+		return combined;
+	}
+
+	private static int countFrames(byte[] frames) {
+		int count = 0;
+		for (int position = 0; position < frames.length; position += FrameCodec.getFrameLength(frames, position)) {
+			count += 1;
+		}
+		return count;
+	}
+
+	// frames that have already been encoded - urgent frames (e.g., stream open) are control frames; others (e.g., stream
+	// chunks) are bulk
+	static OutboundMessage frames(byte[] frames, boolean urgent) {
+		return new OutboundMessage(frames, false, null, urgent, false, 0, urgent ? PRIORITY_CONTROL : PRIORITY_BULK, 0,
+				0, null, null);
+	}
+
+	// the id of the most recently created message - every later message has a higher id (in sequence order)
+	static int getLastMessageId() {
+		return sMessageIdCounter.get();
+	}
+
+	// whether sending this message uses flow control credit (the receiver counts TYPE_MESSAGE and TYPE_STREAM_DATA frames)
+	boolean isFlowControlled() {
+		return mPriority != PRIORITY_CONTROL;
+	}
+
+	// the number of bytes that use flow control credit when this message is sent
+	int getFlowControlledLength(boolean compressionSupported) {
+		return getFrames(compressionSupported).length - mHeaderFrameLength;
+	}
+
+	byte[] getFrames(boolean compressionSupported) {
+		byte[] compressedFrames = compressionSupported ? getCompressedFrames() : null;
+		return compressedFrames != null ? compressedFrames : mFrames;
+	}
+
+	int getFrameCount(boolean compressionSupported) {
+		return compressionSupported && getCompressedFrames() != null ? mCompressedFrameCount : mFrameCount;
+	}
+
+	// every connection gets its own view of the shared bytes (with independent position and limit) to write from
+	ByteBuffer getBuffer(boolean compressionSupported) {
+		return (compressionSupported && getCompressedFrames() != null ? mCompressedBuffer : mBuffer).duplicate();
+	}
+
+	static String getCompressionStatistics() {
+		long uncompressedBytes = sUncompressedBytes.get();
+		return "compression ratio: " + (uncompressedBytes == 0 ? 1 : (float) sCompressedBytes.get() /
+				uncompressedBytes) + ", time: " + sCompressionTime.get() / 1000000 + "ms";
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+// a bounded queue of messages waiting to be written to one connection - senders never block, so a slow client can only
+// delay its own messages; what happens when a client falls too far behind depends on the policy
+// there is a separate lane for each message priority (see OutboundMessage) - messages are always taken from the highest
+// priority lane that isn't empty, and are in order within each lane; the limits apply to all lanes together (but
+// control frames are always queued - see offer)
+// once flow control is enabled, messages other than control frames are only taken while the receiver has given us credit
+// - the queue then fills up (and the policy applies) when the receiver can't keep up, rather than the socket's buffers
+final class OutboundQueue {
+
+	enum Policy {
+		DROP, // discard new messages until there is space again
+		DISCONNECT, // treat the client as failed
+		CONFLATE // replace older queued messages with newer ones that have the same conflation key; otherwise drop
+	}
+
+	static final int RESULT_QUEUED = 0;
+	static final int RESULT_CONFLATED = 1;
+	static final int RESULT_DROPPED = 2;
+	static final int RESULT_DISCONNECT = 3; // the client is too slow and should be disconnected
+	static final int RESULT_CLOSED = 4;
+
+	// each lane is a ring buffer, so that conflation can replace messages in place
+	private static final class Lane {
+		final OutboundMessage[] mMessages;
+		final long[] mEnqueueTimes; // System.nanoTime() when each message was queued (see getTakenEnqueueTime)
+		int mHead;
+		int mCount;
+
+		Lane(int maxMessages) {
+			mMessages = new OutboundMessage[maxMessages];
+			mEnqueueTimes = new long[maxMessages];
+		}
+	}
+
+	private final Lane[] mLanes = new Lane[OutboundMessage.PRIORITY_COUNT];
+	private final int mMaxMessages;
+	private final int mMaxBytes;
+	private int mCount; // across all lanes
+	private int mPeakCount;
+	private int mQueuedBytes;
+	private boolean mClosed;
+	private Policy mPolicy;
+
+	private boolean mFlowControlEnabled;
+	private long mCredit; // bytes we may send before the receiver returns more; may go negative (see useCredit)
+
+	private int mDroppedCount;
+	private int mConflatedCount;
+
+	private long mTakenEnqueueTime; // consumer thread only (see getTakenEnqueueTime)
+
+	OutboundQueue(int maxMessages, int maxBytes, Policy policy, int initialCredit) {
+		for (int priority = 0; priority < mLanes.length; priority++) {
+			mLanes[priority] = new Lane(maxMessages);
+		}
+		mMaxMessages = maxMessages;
+		mMaxBytes = maxBytes;
+		mPolicy = policy;
+		mCredit = initialCredit;
+	}
+
+	synchronized void setPolicy(Policy policy) {
+		mPolicy = policy;
+	}
+
+	synchronized int offer(OutboundMessage message) {
+		if (mClosed) {
+			return RESULT_CLOSED;
+		}
+
+		// (only within the new message's own lane - a message replacing one in a lower priority lane would wait behind
+		// bulk data, and one in a higher lane would jump ahead of it)
+		if (mPolicy == Policy.CONFLATE && message.mConflationKey != null) {
+			Lane lane = mLanes[message.mPriority];
+			for (int i = 0; i < lane.mCount; i++) {
+				int index = (lane.mHead + i) % lane.mMessages.length;
+				OutboundMessage queued = lane.mMessages[index];
+				if (message.mConflationKey.equals(queued.mConflationKey)) {
+					mQueuedBytes += message.mFrames.length - queued.mFrames.length;
+					lane.mMessages[index] = message; // keeps its original place in the queue
+					mConflatedCount += 1;
+					return RESULT_CONFLATED;
+				}
+			}
+		}
+
+		// control frames (credit, pongs, etc.) are small, and losing one can stall the connection for good, so the
+		// limits and the policy don't apply to them - their lane is only full if the client has stopped reading at all
+		if (message.mPriority == OutboundMessage.PRIORITY_CONTROL) {
+			if (mLanes[OutboundMessage.PRIORITY_CONTROL].mCount >= mMaxMessages) {
+				return RESULT_DISCONNECT;
+			}
+		} else if (mCount >= mMaxMessages || (mCount > 0 && mQueuedBytes + message.mFrames.length > mMaxBytes)) {
+			// (a single message larger than the byte limit is still accepted when the queue is empty)
+			if (mPolicy == Policy.DISCONNECT) {
+				return RESULT_DISCONNECT;
+			}
+			mDroppedCount += 1;
+			return RESULT_DROPPED;
+		}
+
+		Lane lane = mLanes[message.mPriority];
+		int index = (lane.mHead + lane.mCount) % lane.mMessages.length;
+		lane.mMessages[index] = message;
+		lane.mEnqueueTimes[index] = System.nanoTime();
+		lane.mCount += 1;
+		mCount += 1;
+		mPeakCount = Math.max(mPeakCount, mCount);
+		mQueuedBytes += message.mFrames.length;
+		notifyAll();
+		return RESULT_QUEUED;
+	}
+
+	// blocks until a message is available - returns null once the queue has been closed
+	synchronized OutboundMessage take() throws InterruptedException {
+		while (!hasAvailable() && !mClosed) {
+			wait();
+		}
+		if (mClosed) {
+			return null;
+		}
+		return remove();
+	}
+
+	// the next message from the highest priority lane that isn't empty (and isn't waiting for credit)
+	private OutboundMessage remove() {
+		for (int priority = 0; priority < mLanes.length; priority++) {
+			if (isAvailable(priority)) {
+				return remove(mLanes[priority]);
+			}
+		}
+		return null;
+	}
+
+	private boolean isAvailable(int priority) {
+		return mLanes[priority].mCount > 0 &&
+				(priority == OutboundMessage.PRIORITY_CONTROL || !mFlowControlEnabled || mCredit > 0);
+	}
+
+	private boolean hasAvailable() {
+		for (int priority = 0; priority < mLanes.length; priority++) {
+			if (isAvailable(priority)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private OutboundMessage remove(Lane lane) {
+		OutboundMessage message = lane.mMessages[lane.mHead];
+		mTakenEnqueueTime = lane.mEnqueueTimes[lane.mHead];
+		lane.mMessages[lane.mHead] = null;
+		lane.mHead = (lane.mHead + 1) % lane.mMessages.length;
+		lane.mCount -= 1;
+		mCount -= 1;
+		mQueuedBytes -= message.mFrames.length;
+		return message;
+	}
+
+	// as take(), but gives up after the given time - returns null on timeout or once closed (check isClosed())
+	synchronized OutboundMessage take(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() / 1000000 + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (!hasAvailable() && !mClosed && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.nanoTime() / 1000000;
+		}
+		if (mClosed) {
+			return null;
+		}
+		return remove();
+	}
+
+	// returns null if there is nothing queued that can be sent (or the queue has been closed)
+	synchronized OutboundMessage poll() {
+		if (mCount == 0 || mClosed) {
+			return null;
+		}
+		return remove();
+	}
+
+	// the next control or high priority message, or null if there are none - used to interleave these messages with the
+	// frames of a bulk message that is already being written
+	synchronized OutboundMessage pollHighPriority() {
+		if (mClosed) {
+			return null;
+		}
+		for (int priority = 0; priority < OutboundMessage.PRIORITY_BULK; priority++) {
+			if (isAvailable(priority)) {
+				return remove(mLanes[priority]);
+			}
+		}
+		return null;
+	}
+
+	// called once the receiver has said that it supports flow control - until then, credit is counted but not enforced
+	synchronized void enableFlowControl() {
+		mFlowControlEnabled = true;
+		notifyAll();
+	}
+
+	// a message is sent whenever there is any credit left, so a large message can overdraw - the receiver returns credit
+	// for each part as it arrives, so this never stalls a transfer, and later messages wait until the balance recovers
+	synchronized void useCredit(int bytes) {
+		mCredit -= bytes;
+	}
+
+	synchronized void addCredit(int bytes) {
+		mCredit += bytes;
+		notifyAll();
+	}
+
+	synchronized void close() {
+		mClosed = true;
+		for (Lane lane : mLanes) {
+			for (int i = 0; i < lane.mMessages.length; i++) {
+				lane.mMessages[i] = null;
+			}
+			lane.mHead = 0;
+			lane.mCount = 0;
+		}
+		mCount = 0;
+		mQueuedBytes = 0;
+		notifyAll();
+	}
+
+	synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	synchronized int getQueuedBytes() {
+		return mQueuedBytes;
+	}
+
+	synchronized int size() {
+		return mCount;
+	}
+
+	// when (System.nanoTime()) the message most recently taken from the queue was queued - conflated messages keep the
+	// time of the message that they replaced; only valid on the thread that takes messages, straight after doing so
+	long getTakenEnqueueTime() {
+		return mTakenEnqueueTime;
+	}
+
+	// the most messages that have been queued at once
+	synchronized int getPeakSize() {
+		return mPeakCount;
+	}
+
+	synchronized int getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	synchronized int getConflatedCount() {
+		return mConflatedCount;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// DEFLATE compression of message payloads (frames with FLAG_COMPRESSED) - the Deflater and Inflater are created once and
+// reset between messages, as creating them (and their native buffers) for every message is expensive
+// compressed payload: original length (varint) | raw DEFLATE data (using DICTIONARY as the preset dictionary)
+// note: instances are not thread-safe
+final class PayloadCompressor {
+
+	static final int COMPRESSION_THRESHOLD = 512; // smaller messages rarely shrink enough to be worth the CPU time
+	private static final int MAX_RETAINED_SCRATCH_SIZE = 64 * 1024; // larger buffers are released once used
+
+	// strings that commonly appear in serialised messages (class descriptors, JSON keys, the start of Base64 JPEG data) -
+	// this helps even small messages compress well; it is part of the protocol, so changing it requires a new capability
+	private static final byte[] DICTIONARY = ("java.lang.String;Ljava/lang/String;" +
+			"ac.robinson.bettertogether.api.messaging.BroadcastMessage" +
+			"{\"id\":\"\",\"type\":\"video\",\"type\":\"playlist\",\"title\":\"\",\"channel\":\"\",\"thumbnail\":\"" +
+			"/9j/4AAQSkZJRgABAQAAAQABAAD/2wBDAAgGBgcGBQgHBwcJCQgKDBQNDAsLDBkSEw8UHRofHh0aHBwgJC4nICIsIxwcKDcpLDA" +
+			"\"},{\"id\":\"").getBytes(Charset.forName("UTF-8"));
+
+	private Deflater mDeflater;
+	private Inflater mInflater;
+	private byte[] mScratch;
+
+	private long mUncompressedBytes;
+	private long mCompressedBytes;
+	private long mCompressionTime; // nanoseconds
+	private long mDecompressionTime;
+
+	// returns the compressed payload, or null if compressing didn't make the data any smaller
+	byte[] compress(byte[] data) {
+		return compress(data, data.length);
+	}
+
+	// as above, for the first length bytes of data
+	byte[] compress(byte[] data, int length) {
+		long startTime = System.nanoTime();
+		if (mDeflater == null) {
+			mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		mDeflater.reset();
+		mDeflater.setDictionary(DICTIONARY);
+		mDeflater.setInput(data, 0, length);
+		mDeflater.finish();
+
+		int maxLength = length - 1; // anything larger isn't worth sending
+		if (mScratch == null || mScratch.length < maxLength) {
+			mScratch = new byte[Math.max(maxLength, ProtocolConstants.MESSAGE_BUFFER_SIZE)];
+		}
+		int position = FrameCodec.writeVarint(mScratch, 0, length);
+		while (!mDeflater.finished() && position < maxLength) {
+			position += mDeflater.deflate(mScratch, position, maxLength - position);
+		}
+
+		byte[] compressed = null;
+		if (mDeflater.finished()) {
+			compressed = new byte[position];
+			System.arraycopy(mScratch, 0, compressed, 0, position);
+			mUncompressedBytes += length;
+			mCompressedBytes += position;
+		}
+		if (mScratch.length > MAX_RETAINED_SCRATCH_SIZE) {
+			mScratch = null; // (compressors are long-lived, so don't keep one large message's buffer)
+		}
+		mCompressionTime += System.nanoTime() - startTime;
+		return compressed;
+	}
+
+	byte[] decompress(byte[] payload, int offset, int length) throws FrameFormatException {
+		long startTime = System.nanoTime();
+		int end = offset + length;
+		int originalLength = 0;
+		int position = offset;
+		for (int shift = 0; ; shift += 7) {
+			if (position >= end || shift >= 7 * FrameCodec.MAX_VARINT_SIZE) {
+				throw new FrameFormatException("Invalid compressed payload");
+			}
+			byte current = payload[position++];
+			originalLength |= (current & 0x7f) << shift;
+			if ((current & 0x80) == 0) {
+				break;
+			}
+		}
+		if (originalLength < 0 || originalLength > MessageReassembler.MAX_MESSAGE_SIZE) {
+			throw new FrameFormatException("Invalid compressed payload size (" + originalLength + " bytes)");
+		}
+
+		if (mInflater == null) {
+			mInflater = new Inflater(true);
+		}
+		mInflater.reset();
+		mInflater.setDictionary(DICTIONARY); // raw streams have no header to ask for it, so it is always set up front
+		mInflater.setInput(payload, position, end - position);
+		byte[] data = new byte[originalLength];
+		try {
+			int inflated = 0;
+			while (inflated < originalLength) {
+				int count = mInflater.inflate(data, inflated, originalLength - inflated);
+				if (count == 0 && (mInflater.finished() || mInflater.needsInput())) {
+					break;
+				}
+				inflated += count;
+			}
+			if (inflated != originalLength) {
+				throw new FrameFormatException("Truncated compressed payload");
+			}
+		} catch (DataFormatException e) {
+			throw new FrameFormatException("Invalid compressed payload: " + e.getLocalizedMessage());
+		}
+		mDecompressionTime += System.nanoTime() - startTime;
+		return data;
+	}
+
+	// releases native resources - the compressor can still be used afterwards (they are recreated when needed)
+	void end() {
+		if (mDeflater != null) {
+			mDeflater.end();
+			mDeflater = null;
+		}
+		if (mInflater != null) {
+			mInflater.end();
+			mInflater = null;
+		}
+		mScratch = null;
+	}
+
+	// compressed size as a proportion of the original size, for messages that were compressed (1 = no compression yet)
+	float getCompressionRatio() {
+		return mUncompressedBytes == 0 ? 1 : (float) mCompressedBytes / mUncompressedBytes;
+	}
+
+	long getCompressionTimeMillis() {
+		return mCompressionTime / 1000000;
+	}
+
+	long getDecompressionTimeMillis() {
+		return mDecompressionTime / 1000000;
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+// all of the links (i.e., connections over different transports) to a single remote device, identified by the session
+// id that it sends in its hello frame - a device that connects over both Wifi and Bluetooth has one session with two links
+// urgent messages are sent on every link (the receiver discards duplicates), so they arrive at the speed of the faster
+// one; everything else goes only on the preferred link (the one with the lowest round-trip time), so that it stays in
+// order - if a link fails, the other one takes over immediately rather than the connection having to be set up again
+// sessions that have a resume token (issued by the host - see FrameCodec.TYPE_SESSION) are kept for a while after their
+// last link closes, so that a device that reconnects can carry on where it left off: the host sends the messages that
+// the client missed (see ReplayBuffer), and the client tells the host which messages it received
+final class PeerSession {
+
+	// switch the preferred link only if another is clearly faster, so that similar links don't cause constant swapping
+	private static final float PREFERRED_LINK_HYSTERESIS = 0.8f;
+
+	static final int SESSION_RETENTION_TIME = 30000; // milliseconds
+
+	private static final HashMap<Long, PeerSession> sSessions = new HashMap<>(); // guarded by itself
+	private static final SecureRandom sTokenGenerator = new SecureRandom();
+
+	final long mSessionId;
+	final String mPeerId; // the id of the first link to join - used for all links, so the device has a consistent id
+
+	private final ArrayList<RemoteConnection> mLinks = new ArrayList<>(2); // guarded by this
+	private volatile RemoteConnection mPreferredLink;
+	private final DuplicateFilter mDuplicateFilter = new DuplicateFilter(); // guarded by this
+
+	private volatile long mResumeToken; // 0 = not resumable
+	private volatile boolean mTokenIssued; // whether we issued the token (i.e., we are the host - or a relay - here)
+	private long mDetachedTime = -1; // guarded by this - when the last link closed; -1 = not detached
+	private boolean mHasLastMessageId; // guarded by this
+	private int mLastMessageId; // the most recent message (in sequence order) received from the device
+	private int mFirstOwedMessageId; // guarded by this - at the client: earlier messages were sent before we joined
+
+	private PeerSession(long sessionId, String peerId) {
+		mSessionId = sessionId;
+		mPeerId = peerId;
+	}
+
+	// called from a link's read thread when its hello frame arrives - the session id in a hello is just a claim, so
+	// when verifyToken is set (i.e., for links that the other device connected to us) an existing session is only
+	// joined if the hello also contains the token we issued for it (to resume, or to add a link); returns null
+	// otherwise, and the link then works on its own, without a session (as with devices that don't send a session id)
+	static PeerSession join(long sessionId, String connectionId, RemoteConnection link, long token,
+							boolean verifyToken) {
+		PeerSession session;
+		synchronized (sSessions) {
+			session = sSessions.get(sessionId);
+			if (session != null && session.isExpired(now())) {
+				session = null; // too late to resume - start again
+			}
+			if (session != null && verifyToken && !session.isOwnedBy(token)) {
+				return null;
+			}
+			if (session == null) {
+				session = new PeerSession(sessionId, connectionId);
+				sSessions.put(sessionId, session);
+			}
+			synchronized (session) { // (while holding sSessions, so that the session can't be removed in the meantime)
+				session.mLinks.add(link);
+				if (session.mPreferredLink == null) {
+					session.mPreferredLink = link;
+				}
+				session.mDetachedTime = -1;
+			}
+		}
+		return session;
+	}
+
+	// called (at the host) when a device resumes its session over a new link - its previous links are ones that it has
+	// given up on, even if we haven't noticed yet, so they are dropped from the session (heartbeats will close them)
+	synchronized void resume(RemoteConnection link) {
+		mLinks.clear();
+		mLinks.add(link);
+		mPreferredLink = link;
+	}
+
+	// called when a link closes - if it was the preferred link, another takes over straight away
+	void leave(RemoteConnection link) {
+		synchronized (this) {
+			mLinks.remove(link);
+			if (mPreferredLink == link) {
+				mPreferredLink = mLinks.isEmpty() ? null : mLinks.get(0);
+			}
+			if (!mLinks.isEmpty()) {
+				return;
+			}
+			if (mResumeToken != 0) {
+				mDetachedTime = now(); // kept in case the device reconnects (see purgeExpiredSessions)
+				return;
+			}
+		}
+		synchronized (sSessions) {
+			if (sSessions.get(mSessionId) == this) {
+				sSessions.remove(mSessionId);
+			}
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private synchronized boolean isOwnedBy(long token) {
+		return mTokenIssued && token != 0 && token == mResumeToken;
+	}
+
+	private synchronized boolean isExpired(long now) {
+		return mDetachedTime >= 0 && now - mDetachedTime > SESSION_RETENTION_TIME;
+	}
+
+	// at the host: the token the device must present to resume this session
+	synchronized long getOrCreateResumeToken() {
+		while (mResumeToken == 0) { // 0 means not resumable
+			mResumeToken = sTokenGenerator.nextLong();
+		}
+		mTokenIssued = true;
+		return mResumeToken;
+	}
+
+	long getResumeToken() {
+		return mResumeToken;
+	}
+
+	// at the client: the token from the host's TYPE_SESSION frame, along with the host's most recent message id at the
+	// time it was sent - if the session was resumed, the messages we missed up to that point follow (and must not be
+	// counted as received until they arrive); otherwise they are lost, and we are owed only the messages after it
+	synchronized void setResumeToken(long resumeToken, int lastMessageId, boolean resumed) {
+		mResumeToken = resumeToken;
+		if (!resumed) {
+			mFirstOwedMessageId = lastMessageId + 1;
+			if (!mHasLastMessageId || lastMessageId - mLastMessageId > 0) {
+				mLastMessageId = lastMessageId;
+				mHasLastMessageId = true;
+			}
+		}
+	}
+
+	synchronized int getLastMessageId() {
+		return mLastMessageId;
+	}
+
+	// at the client: which of the DuplicateFilter.WINDOW_SIZE message ids up to getLastMessageId() we have received (or
+	// weren't owed) - bit i is for id (getLastMessageId() - i); messages don't arrive in id order (e.g., a multi-part
+	// message is overtaken by later single-part ones), so the last id alone doesn't tell the host what we missed
+	synchronized byte[] getReceivedWindow() {
+		byte[] window = new byte[DuplicateFilter.WINDOW_SIZE / 8];
+		for (int i = 0; i < DuplicateFilter.WINDOW_SIZE; i++) {
+			int messageId = mLastMessageId - i;
+			if (messageId - mFirstOwedMessageId < 0 || mDuplicateFilter.contains(messageId)) {
+				window[i >>> 3] |= 1 << (i & 7);
+			}
+		}
+		return window;
+	}
+
+	// at the client: the session (i.e., with our host) that can be resumed if we reconnect, or null if there isn't one
+	// (relays have sessions with their own clients too, but they issued those tokens themselves)
+	static PeerSession getResumableSession() {
+		long now = now();
+		synchronized (sSessions) {
+			for (PeerSession session : sSessions.values()) {
+				if (session.mResumeToken != 0 && !session.mTokenIssued && !session.isExpired(now)) {
+					return session;
+				}
+			}
+		}
+		return null;
+	}
+
+	// called when the device leaves (or we stop) the group - no session can be resumed after this
+	static void clearSessions() {
+		synchronized (sSessions) {
+			for (Iterator<PeerSession> iterator = sSessions.values().iterator(); iterator.hasNext(); ) {
+				PeerSession session = iterator.next();
+				synchronized (session) {
+					session.mResumeToken = 0;
+					if (session.mDetachedTime >= 0) {
+						iterator.remove();
+					}
+				}
+			}
+		}
+	}
+
+	private static void purgeExpiredSessions() {
+		long now = now();
+		synchronized (sSessions) {
+			for (Iterator<PeerSession> iterator = sSessions.values().iterator(); iterator.hasNext(); ) {
+				if (iterator.next().isExpired(now)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	synchronized int getLinkCount() {
+		return mLinks.size();
+	}
+
+	// called from every link's read thread when a complete message arrives
+	synchronized boolean isDuplicate(int messageId) {
+		if (mDuplicateFilter.isDuplicate(messageId)) {
+			return true;
+		}
+		if (!mHasLastMessageId || messageId - mLastMessageId > 0) {
+			mLastMessageId = messageId;
+			mHasLastMessageId = true;
+		}
+		return false;
+	}
+
+	synchronized int getDuplicateCount() {
+		return mDuplicateFilter.getDuplicateCount();
+	}
+
+	boolean isPreferredLink(RemoteConnection link) {
+		return mPreferredLink == link;
+	}
+
+	// the preferred link is only changed here (other than on failure), and this must be called from the same thread that
+	// sends messages, so that the choice can't change part way through sending a message to each link
+	static void updatePreferredLinks() {
+		purgeExpiredSessions();
+		ArrayList<PeerSession> sessions;
+		synchronized (sSessions) {
+			sessions = new ArrayList<>(sSessions.values());
+		}
+		for (PeerSession session : sessions) {
+			session.updatePreferredLink();
+		}
+	}
+
+	private synchronized void updatePreferredLink() {
+		RemoteConnection preferredLink = mPreferredLink;
+		long preferredRtt = preferredLink != null ? preferredLink.getSmoothedRtt() : -1;
+		for (RemoteConnection link : mLinks) {
+			long rtt = link.getSmoothedRtt();
+			if (rtt >= 0 && (preferredRtt < 0 || rtt < preferredRtt * PREFERRED_LINK_HYSTERESIS)) {
+				preferredLink = link;
+				preferredRtt = rtt;
+			}
+		}
+		mPreferredLink = preferredLink;
+	}
+}
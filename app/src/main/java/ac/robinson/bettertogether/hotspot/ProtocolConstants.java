@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+// values that every device in a group must agree on - kept apart from HotspotManagerService so that the messaging classes
+// that use them don't depend on the service (and so can run on a plain JVM - see the benchmarks module)
+public class ProtocolConstants {
+
+	// note: MESSAGE_ID_SIZE minimum of 8 is for Wifi password length requirements
+	public static final int MESSAGE_ID_SIZE = 8; // number of digits to use for hotspot / server / message id - * minimum: 8 *
+	public static final String SERVER_MESSAGE_ID = "BTplhost"; // must be constant over all clients
+	public static final int MESSAGE_BUFFER_SIZE = 8192; // socket read/write buffer size
+	public static final int MESSAGE_PART_SIZE = 4096; // max payload per frame - larger messages are sent in parts
+}
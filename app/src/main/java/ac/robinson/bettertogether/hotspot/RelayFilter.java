@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.util.HashMap;
+
+// in relay mode (see HotspotManagerService), messages are forwarded through a tree of devices rather than only via the
+// host, so a device could receive the same message by more than one route (e.g., while a device moves from one relay to
+// another), or have its own message come back to it - messages keep the identity they were first sent with (see
+// FrameCodec.encodeRelay), and every message is checked against those already received from the same origin
+// hop counts limit how far a message can travel, so that forwarding always ends even if the tree becomes a loop
+final class RelayFilter {
+
+	static final int MAX_HOP_COUNT = 6; // messages that have been forwarded this many times are not forwarded again
+
+	private static final int MAX_ORIGINS = 256; // (more than any group will have; just to limit memory use)
+
+	private static final HashMap<Long, DuplicateFilter> sFilters = new HashMap<>(); // guarded by itself
+
+	private RelayFilter() {
+	}
+
+	// called from every link's read thread when a complete message arrives
+	static boolean isDuplicate(long originSessionId, int originMessageId) {
+		synchronized (sFilters) {
+			DuplicateFilter filter = sFilters.get(originSessionId);
+			if (filter == null) {
+				if (sFilters.size() >= MAX_ORIGINS) {
+					sFilters.clear();
+				}
+				filter = new DuplicateFilter();
+				sFilters.put(originSessionId, filter);
+			}
+			return filter.isDuplicate(originMessageId);
+		}
+	}
+
+	static void clear() {
+		synchronized (sFilters) {
+			sFilters.clear();
+		}
+	}
+}
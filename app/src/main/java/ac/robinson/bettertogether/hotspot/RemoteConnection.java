@@ -18,115 +18,804 @@ package ac.robinson.bettertogether.hotspot;
 
 import android.util.Log;
 
-import org.greenrobot.eventbus.EventBus;
-
 import java.io.Closeable;
-import java.io.OutputStreamWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import ac.robinson.bettertogether.BetterTogetherUtils;
-import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
-import ac.robinson.bettertogether.event.ClientMessageErrorEvent;
+import ac.robinson.bettertogether.event.ClientSessionEvent;
 import ac.robinson.bettertogether.event.EventType;
 import ac.robinson.bettertogether.event.MessageReceivedEvent;
+import ac.robinson.bettertogether.event.OnConsumedListener;
+import ac.robinson.bettertogether.event.StreamFrameReceivedEvent;
+
+// everything about a link to another device that doesn't depend on the transport: framing, queueing and writing,
+// reassembly, flow control, heartbeats and sessions - subclasses just connect, then read into processBytes() and give
+// startWriter() their output stream; what is received goes to the connection's listener
+abstract class RemoteConnection implements Connection {
 
-abstract class RemoteConnection implements Runnable {
+	// identifies this device to the other end of every link, so that it can tell when two links lead to the same device
+	private static final long sLocalSessionId = createSessionId();
+
+	// receive buffers are shared between all connections (each connection holds one buffer while it is running)
+	private static final BufferPool sReceiveBufferPool = new BufferPool(ProtocolConstants.MESSAGE_BUFFER_SIZE, 8);
 
-	// all remote connections (Wifi and Bluetooth) extend this class, sharing the same list of message parts
-	private static HashMap<String, String> sMessageParts = new HashMap<>();
 	private String TAG;
+	private static volatile ConnectionListener sDefaultListener = ConnectionListener.EVENT_BUS;
+	private volatile ConnectionListener mListener = sDefaultListener;
+	private long mLocalSessionId = sLocalSessionId;
+	private boolean mPeerSessionsEnabled = true;
+	private final MessageReassembler mReassembler = new MessageReassembler();
+	private final ConnectionMetrics mMetrics = new ConnectionMetrics(this);
+
+	// limits for messages waiting to be written - beyond these, the connection is treated as a slow consumer
+	static final int MAX_QUEUED_MESSAGES = 128;
+	static final int MAX_QUEUED_BYTES = 512 * 1024;
+	private final OutboundQueue mOutboundQueue = new OutboundQueue(MAX_QUEUED_MESSAGES, MAX_QUEUED_BYTES,
+			OutboundQueue.Policy.DISCONNECT, FLOW_CONTROL_WINDOW);
+	private volatile boolean mWriteFailed;
+	private final AtomicBoolean mClosed = new AtomicBoolean(); // see markClosed
+
+	// flow control: each side may have at most this many bytes of messages (and stream data) unconsumed by the other - the
+	// receiver returns credit once each received message has been handled on the main thread (or immediately, for frames
+	// that don't produce an event), so a slow receiver holds up its senders' queues rather than building its own backlog
+	static final int FLOW_CONTROL_WINDOW = 64 * 1024;
+	private static final int CREDIT_UPDATE_THRESHOLD = FLOW_CONTROL_WINDOW / 4; // return credit in batches of this size
+	private final Object mCreditLock = new Object();
+	private long mUnreturnedCredit; // guarded by mCreditLock - consumed by us, but not yet returned to the sender
+	private final OnConsumedListener mOnConsumedListener = new OnConsumedListener() {
+		@Override
+		public void onConsumed(int credit, long receiveTime) {
+			mMetrics.recordMessageDispatched(receiveTime);
+			returnCredit(credit);
+		}
+	};
+
+	// what the other device announced in its TYPE_HELLO frame (0 until then, or if it is an earlier version that never
+	// sends one) - set by the reading thread; read when writing
+	private volatile int mRemoteCapabilities;
+	private final PayloadCompressor mDecompressor = new PayloadCompressor(); // reading thread only
+
+	private volatile PeerSession mPeerSession; // null until the other device's hello frame arrives (or if it never does)
+	private final RttEstimator mRttEstimator = new RttEstimator();
+
+	// heartbeats (see HotspotManagerService) - the other device is treated as dead once nothing at all (not even a pong)
+	// has been received from it for this many heartbeat intervals, plus the usual round-trip time of the link
+	static final int MAX_MISSED_HEARTBEATS = 3;
+	private volatile boolean mHelloReceived; // earlier versions never send a hello, and don't reply to pings
+	private volatile long mLastReceiveTime; // milliseconds
+
+	// session resumption (see PeerSession) - hosts have a replay buffer of recent messages to send to clients that resume;
+	// clients that are reconnecting after losing their connection ask to resume
+	private volatile ReplayBuffer mReplayBuffer;
+	private volatile boolean mResumeRequested;
+	private volatile String mAssignedPeerId; // at a client: the id that the host gives our messages
+
+	// relay frames that have arrived ahead of their messages, by message id - reading thread only
+	private static final int MAX_PENDING_RELAYS = 64;
+	private final HashMap<Integer, FrameCodec.RelayInfo> mPendingRelays = new HashMap<>();
+
+	// trace frames that have arrived ahead of their messages, by message id (see TraceLog) - reading thread only
+	private static final int MAX_PENDING_TRACES = 16;
+	private final HashMap<Integer, MessageTrace> mPendingTraces = new HashMap<>();
+
+	// sender frames that have arrived ahead of their messages, by message id - reading thread only
+	private final HashMap<Integer, String> mPendingSenders = new HashMap<>();
+
+	static final int DEFAULT_BATCH_WINDOW = 3; // milliseconds
+	static final int BATCH_FLUSH_THRESHOLD = ProtocolConstants.MESSAGE_BUFFER_SIZE; // flush early beyond this many bytes
+	private static final long WRITE_STALL_THRESHOLD = 20000000; // nanoseconds - writes that block for longer are stalls
+	private static volatile int sBatchWindow = DEFAULT_BATCH_WINDOW;
 
 	void setLogTag(String logTag) {
 		TAG = logTag;
 	}
 
-	boolean sendMessage(OutputStreamWriter streamWriter, String message) {
-		try {
-			if (streamWriter != null) {
-				String formatString = "%0" + HotspotManagerService.MESSAGE_PART_COUNT_SIZE + "d";
-				if (message.length() < HotspotManagerService.MESSAGE_PAYLOAD_SIZE) {
-					streamWriter.write(BetterTogetherUtils.getRandomString(HotspotManagerService.MESSAGE_ID_SIZE) +
-							String.format(Locale.US, formatString, 1) + String.format(Locale.US, formatString, 0) + message +
-							HotspotManagerService.MESSAGE_DELIMITER_STRING);
-					streamWriter.flush();
-					return true;
-				} else {
-					List<String> messageParts = BroadcastMessage.splitEqually(message,
-							HotspotManagerService.MESSAGE_PAYLOAD_SIZE);
-					int totalParts = messageParts.size();
-					int partSizeLimit = (int) Math.pow(10, HotspotManagerService.MESSAGE_PART_COUNT_SIZE) - 1;
-					if (totalParts < partSizeLimit) {
-						String totalPartsString = String.format(Locale.US, formatString, totalParts);
-						String messageId = BetterTogetherUtils.getRandomString(HotspotManagerService.MESSAGE_ID_SIZE);
-						int partNumber = 0;
-						for (String part : messageParts) {
-							streamWriter.write(
-									messageId + totalPartsString + String.format(Locale.US, formatString, partNumber) + part +
-											HotspotManagerService.MESSAGE_DELIMITER_STRING);
-							partNumber += 1;
-						}
-						streamWriter.flush();
-						return true;
-					} else {
-						Log.e(TAG, "Error sending message: too large (" + totalParts + " parts; limit: " + partSizeLimit + ")");
-					}
+	// identifies this connection in its metrics (see ConnectionMetrics)
+	void setMetricsId(EventType.Type transport, String connectionId) {
+		mMetrics.setId(transport, connectionId);
+	}
+
+	// read and write failures are counted in the connection's metrics - subclasses call this when their read loop fails
+	void recordError() {
+		mMetrics.recordError();
+	}
+
+	// the session id that connections send (unless changed by setLocalSessionId) - identifies this device in traces
+	static long getLocalSessionId() {
+		return sLocalSessionId;
+	}
+
+	// must be called before the connection starts - for in-process connections (see LoopbackTransport), where each end
+	// needs to appear to be a separate device
+	void setLocalSessionId(long sessionId) {
+		mLocalSessionId = sessionId;
+	}
+
+	// must be called before the connection starts - for simulated clients (see the benchmarks module's LoadGenerator),
+	// which all connect to the same host from one process, and so would otherwise share (and be deduplicated by) a single
+	// session for the host; without a session, there is no duplicate detection, link preference or resumption
+	void setPeerSessionsEnabled(boolean enabled) {
+		mPeerSessionsEnabled = enabled;
+	}
+
+	// the listener for connections created from now on, unless they are given their own (see setConnectionListener) -
+	// e.g., HotspotManagerService's MessageDispatcher
+	static void setDefaultConnectionListener(ConnectionListener listener) {
+		sDefaultListener = listener;
+	}
+
+	@Override
+	public void setConnectionListener(ConnectionListener listener) {
+		mListener = listener;
+	}
+
+	// messages are queued and written by a separate writer thread for each connection, so that sending to one slow
+	// client never delays any others - returns false if the connection has failed (or is too slow, depending on the
+	// queue's policy) and should be removed
+	@Override
+	public boolean sendMessage(OutboundMessage message) {
+		if (mWriteFailed) {
+			return false;
+		}
+		switch (mOutboundQueue.offer(message)) {
+			case OutboundQueue.RESULT_DISCONNECT:
+				Log.d(TAG, "Outbound queue full - disconnecting slow connection");
+				mMetrics.recordError();
+				return false;
+			case OutboundQueue.RESULT_DROPPED:
+				Log.d(TAG, "Outbound queue full - message dropped (" + mOutboundQueue.getDroppedCount() + " in total)");
+				return true;
+			case OutboundQueue.RESULT_QUEUED:
+				onMessageQueued(message);
+				return true;
+			default:
+				return true;
+		}
+	}
+
+	// for connections that don't use a writer thread (i.e., non-blocking channels), which need to be told to write
+	void onMessageQueued(OutboundMessage message) {
+	}
+
+	// as above, for messages that were waiting for flow control credit
+	void onCreditReceived() {
+	}
+
+	@Override
+	public int getQueuedBytes() {
+		return mOutboundQueue.getQueuedBytes();
+	}
+
+	// small messages are batched for up to this long (milliseconds) so that they can share a single write (and, for
+	// Bluetooth, a single RFCOMM packet) - 0 flushes every message immediately; urgent messages are never delayed
+	static void setBatchWindow(int batchWindow) {
+		sBatchWindow = Math.max(0, batchWindow);
+	}
+
+	static int getBatchWindow() {
+		return sBatchWindow;
+	}
+
+	// queued first so that the other device can start using our capabilities as soon as possible - this is also when the
+	// connection starts to appear in metrics (until finishReading)
+	void sendHello() {
+		ConnectionMetrics.register(mMetrics);
+		long resumeToken = 0;
+		int lastMessageId = 0;
+		byte[] receivedWindow = null;
+		long linkToken = 0;
+		// (only on links we connected - the token must never be sent to our own clients)
+		PeerSession session = mPeerSessionsEnabled && mReplayBuffer == null ? PeerSession.getResumableSession() : null;
+		if (session != null && mResumeRequested) {
+			resumeToken = session.getResumeToken();
+			synchronized (session) {
+				lastMessageId = session.getLastMessageId();
+				receivedWindow = session.getReceivedWindow();
+			}
+		} else if (session != null && session.getLinkCount() > 0) {
+			linkToken = session.getResumeToken(); // another link to our host - proves the session is ours
+		}
+		sendMessage(OutboundMessage.frames(FrameCodec.encodeHello(FrameCodec.LOCAL_CAPABILITIES, mLocalSessionId,
+				resumeToken, lastMessageId, receivedWindow, linkToken), true));
+	}
+
+	// must be called before the connection starts (i.e., before the hello frame is sent)
+	void setReplayBuffer(ReplayBuffer replayBuffer) {
+		mReplayBuffer = replayBuffer;
+	}
+
+	void setResumeRequested(boolean resumeRequested) {
+		mResumeRequested = resumeRequested;
+	}
+
+	// at a client: the from id of our own messages, as seen by everyone else (null until the host has told us)
+	String getAssignedPeerId() {
+		return mAssignedPeerId;
+	}
+
+	// at the host, once a client's hello frame arrives - if the client is resuming a session then it is sent the messages
+	// it missed; either way it is given the token to resume with if it needs to reconnect in future
+	// messages that are sent to everyone while this happens are both queued on this link and replayed (the client discards
+	// the duplicates), as they are added to the replay buffer before they are sent (see HotspotManagerService)
+	private void startSession(FrameCodec.HelloInfo hello) {
+		PeerSession session = mPeerSession;
+		List<OutboundMessage> missedMessages = null;
+		if (hello.mResumeToken != 0 && hello.mResumeToken == session.getResumeToken()) {
+			session.resume(this);
+			missedMessages = mReplayBuffer.getMissedMessages(hello.mLastMessageId, hello.mReceivedWindow,
+					session.mPeerId);
+		}
+		boolean resumed = missedMessages != null;
+		sendMessage(OutboundMessage.frames(FrameCodec.encodeSession(session.getOrCreateResumeToken(), resumed,
+				OutboundMessage.getLastMessageId(), session.mPeerId), true));
+		if (resumed) {
+			Log.d(TAG, "Resuming session - resending " + missedMessages.size() + " messages");
+			for (OutboundMessage message : missedMessages) {
+				if (!sendMessage(message)) {
+					break; // too many to queue (depending on the slow client policy) - heartbeats will close the link
 				}
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			Log.e(TAG, "Error sending message: " + e.getLocalizedMessage());
-			EventBus.getDefault().post(new ClientMessageErrorEvent(EventType.Type.UNKNOWN));
 		}
-		return false;
 	}
 
-	void processBytes(String connectionId, byte[] buffer, int bytesRead, StringBuilder stringBuilder) {
-		if (bytesRead != -1) {
-			int bufferStart = 0;
-			for (int i = 0; i < bytesRead; i += 1) {
-				if (buffer[i] == HotspotManagerService.MESSAGE_DELIMITER_BYTE) {
-					stringBuilder.append(new String(buffer, bufferStart, i - bufferStart, BroadcastMessage.CHARSET));
-					receiveMessage(connectionId, stringBuilder.toString());
-					bufferStart = i + 1;
-					stringBuilder.setLength(0);
+	static long createSessionId() {
+		long sessionId = 0;
+		SecureRandom random = new SecureRandom();
+		while (sessionId == 0) { // 0 means no session
+			sessionId = random.nextLong();
+		}
+		return sessionId;
+	}
+
+	// whether a message being sent to every device should be sent on this link - if there is more than one link to the
+	// same device then only urgent messages are duplicated across them; everything else uses the preferred (fastest) link
+	@Override
+	public boolean isRouteFor(OutboundMessage message) {
+		PeerSession session = mPeerSession;
+		return session == null || session.isPreferredLink(this) || (message.mUrgent && message.mSequenced);
+	}
+
+	// called every heartbeat interval (milliseconds) on the main thread - sends a ping (the pong also measures the link's
+	// round-trip time), and returns false if the other device has stopped responding and should be disconnected
+	@Override
+	public boolean sendHeartbeat(long now, int interval) {
+		if (!mHelloReceived) {
+			return true; // not yet connected, or an earlier version
+		}
+		long silence = now - mLastReceiveTime;
+		long timeout = (long) interval * MAX_MISSED_HEARTBEATS + Math.max(0, mRttEstimator.getTimeout() / 1000);
+		if (silence > timeout) {
+			Log.d(TAG, "No response for " + silence + "ms - treating remote device as disconnected");
+			mMetrics.recordError();
+			return false;
+		}
+		sendMessage(OutboundMessage.frames(FrameCodec.encodeTimestamp(FrameCodec.TYPE_PING, System.nanoTime()), true));
+		return true;
+	}
+
+	// microseconds; -1 if not yet measured
+	long getSmoothedRtt() {
+		return mRttEstimator.getSmoothedRtt();
+	}
+
+	// microseconds - the mean deviation of round-trip times (i.e., jitter)
+	long getRttVariation() {
+		return mRttEstimator.getRttVariation();
+	}
+
+	// 0 if the other device hasn't identified itself
+	long getPeerSessionId() {
+		PeerSession session = mPeerSession;
+		return session != null ? session.mSessionId : 0;
+	}
+
+	// whether the other device has identified itself (earlier versions never do)
+	@Override
+	public boolean hasPeerSession() {
+		return mPeerSession != null;
+	}
+
+	// messages from a device with more than one link are delivered with the same id whichever link they arrive on
+	@Override
+	public String getPeerId(String connectionId) {
+		PeerSession session = mPeerSession;
+		return session != null ? session.mPeerId : connectionId;
+	}
+
+	boolean isCompressionSupported() {
+		return (mRemoteCapabilities & FrameCodec.CAPABILITY_COMPRESSION) != 0;
+	}
+
+	// whether the remote device reads the from id of forwarded messages from a TYPE_SENDER frame (see FLAG_SYSTEM, too)
+	private boolean isSenderSupported() {
+		return (mRemoteCapabilities & FrameCodec.CAPABILITY_SENDER) != 0;
+	}
+
+	private boolean isFlowControlSupported() {
+		return (mRemoteCapabilities & FrameCodec.CAPABILITY_FLOW_CONTROL) != 0;
+	}
+
+	// the next queued message, or null if there is nothing to send (for connections without a writer thread, which must
+	// then write message.getBuffer(isCompressionSupported()) - credit is used here, on the same thread - and call
+	// onMessageWritten once it has been written)
+	OutboundMessage pollMessage() {
+		return useCredit(mOutboundQueue.poll());
+	}
+
+	// the next queued control or high priority message, or null if there are none (as above)
+	OutboundMessage pollHighPriorityMessage() {
+		return useCredit(mOutboundQueue.pollHighPriority());
+	}
+
+	// when the message most recently polled was queued (see OutboundQueue.getTakenEnqueueTime) - polling thread only
+	long getPolledEnqueueTime() {
+		return mOutboundQueue.getTakenEnqueueTime();
+	}
+
+	// called on the writing thread once all of a message's frames have been written
+	void onMessageWritten(OutboundMessage message, long enqueueTime) {
+		mMetrics.recordMessageWritten(message, isCompressionSupported(), enqueueTime);
+	}
+
+	void onWriteStalled() {
+		mMetrics.recordWriteStall();
+	}
+
+	// the TYPE_TRACE frame to write just before a traced message (null if the message isn't traced) - called on the
+	// writing thread when the message is about to be written, so the trace includes the time spent queued for this link
+	byte[] encodeTraceFrame(OutboundMessage message) {
+		if (message.mTrace == null) {
+			return null;
+		}
+		long now = System.nanoTime();
+		TraceLog.addHop(message.mTrace.mTraceId, MessageTrace.HOP_WRITE, mLocalSessionId, now);
+		return FrameCodec.encodeTrace(message.mMessageId, message.mTrace, MessageTrace.HOP_WRITE, mLocalSessionId, now);
+	}
+
+	// (all messages are taken from the queue via this method, so it also swaps forwarded messages for a version that
+	// devices without CAPABILITY_SENDER can read - see OutboundMessage.getLegacyMessage)
+	private OutboundMessage useCredit(OutboundMessage message) {
+		if (message != null && message.mSenderId != null && !isSenderSupported()) {
+			message = message.getLegacyMessage();
+		}
+		if (message != null && message.isFlowControlled()) {
+			mOutboundQueue.useCredit(message.getFlowControlledLength(isCompressionSupported()));
+		}
+		return message;
+	}
+
+	// called (on any thread) with the size of frames we have received and finished with - credit is returned in batches
+	private void returnCredit(int credit) {
+		long returnedCredit;
+		synchronized (mCreditLock) {
+			mUnreturnedCredit += credit;
+			if (mUnreturnedCredit < CREDIT_UPDATE_THRESHOLD || !isFlowControlSupported()) {
+				return;
+			}
+			returnedCredit = mUnreturnedCredit;
+			mUnreturnedCredit = 0;
+		}
+		if (!sendMessage(OutboundMessage.frames(FrameCodec.encodeCredit((int) returnedCredit), true))) {
+			synchronized (mCreditLock) {
+				mUnreturnedCredit += returnedCredit; // (returned with the next batch instead)
+			}
+		}
+	}
+
+	@Override
+	public void setSlowConsumerPolicy(OutboundQueue.Policy policy) {
+		mOutboundQueue.setPolicy(policy);
+	}
+
+	// called by subclasses once their output stream is ready; any messages queued before then are sent first
+	void startWriter(final OutputStream outputStream) {
+		sendHello();
+		Thread writerThread = new Thread(new Runnable() {
+			private int mUnflushedBytes;
+			private long mFlushDeadline;
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						OutboundMessage message;
+						if (mUnflushedBytes == 0) {
+							message = useCredit(mOutboundQueue.take());
+						} else {
+							long remaining = mFlushDeadline - System.nanoTime() / 1000000;
+							message = remaining > 0 ? useCredit(mOutboundQueue.take(remaining)) : null;
+						}
+
+						try {
+							if (message == null) {
+								if (mOutboundQueue.isClosed()) {
+									break;
+								}
+								flush(); // batching deadline reached
+								continue;
+							}
+
+							// already encoded - the same bytes go to every connection (with the same capabilities)
+							long enqueueTime = getPolledEnqueueTime();
+							writeTraceFrame(message);
+							byte[] frames = message.getFrames(isCompressionSupported());
+							if (message.mPriority != OutboundMessage.PRIORITY_BULK) {
+								write(frames, 0, frames.length, message.mUrgent);
+								onMessageWritten(message, enqueueTime);
+								continue;
+							}
+
+							// bulk messages are written a frame at a time, with any high priority messages that are
+							// queued in the meantime written in between, rather than after the whole message
+							int position = 0;
+							while (position < frames.length) {
+								int frameLength = FrameCodec.getFrameLength(frames, position);
+								write(frames, position, frameLength, false);
+								position += frameLength;
+
+								OutboundMessage priorityMessage;
+								while ((priorityMessage = pollHighPriorityMessage()) != null) {
+									long priorityEnqueueTime = getPolledEnqueueTime();
+									writeTraceFrame(priorityMessage);
+									byte[] priorityFrames = priorityMessage.getFrames(isCompressionSupported());
+									write(priorityFrames, 0, priorityFrames.length, priorityMessage.mUrgent);
+									onMessageWritten(priorityMessage, priorityEnqueueTime);
+								}
+							}
+							onMessageWritten(message, enqueueTime);
+						} catch (IOException e) {
+							e.printStackTrace();
+							Log.e(TAG, "Error sending message: " + e.getLocalizedMessage());
+							mMetrics.recordError();
+							// closing makes the read loop fail too, and it reports the (correctly typed) error event
+							mWriteFailed = true;
+							closeConnection();
+							break;
+						}
+					}
+				} catch (InterruptedException ignored) {
+				}
+			}
+
+			private void writeTraceFrame(OutboundMessage message) throws IOException {
+				byte[] traceFrame = encodeTraceFrame(message);
+				if (traceFrame != null) {
+					write(traceFrame, 0, traceFrame.length, false);
 				}
 			}
-			if (bufferStart < bytesRead) {
-				stringBuilder.append(new String(buffer, bufferStart, bytesRead - bufferStart, BroadcastMessage.CHARSET));
+
+			private void write(byte[] frames, int offset, int length, boolean urgent) throws IOException {
+				long startTime = System.nanoTime();
+				outputStream.write(frames, offset, length); // blocks if the stream's buffer needs writing and the socket's is full
+				if (System.nanoTime() - startTime > WRITE_STALL_THRESHOLD) {
+					onWriteStalled();
+				}
+				long now = System.nanoTime() / 1000000;
+				if (mUnflushedBytes == 0) {
+					mFlushDeadline = now + sBatchWindow;
+				}
+				mUnflushedBytes += length;
+				if (urgent || sBatchWindow == 0 || mUnflushedBytes >= BATCH_FLUSH_THRESHOLD || now >= mFlushDeadline) {
+					flush();
+				}
+			}
+
+			private void flush() throws IOException {
+				long startTime = System.nanoTime();
+				outputStream.flush();
+				if (System.nanoTime() - startTime > WRITE_STALL_THRESHOLD) {
+					onWriteStalled();
+				}
+				mUnflushedBytes = 0;
+			}
+		}, TAG + "Writer");
+		writerThread.start();
+	}
+
+	// discards anything still queued and ends the writer thread
+	void stopWriter() {
+		mOutboundQueue.close();
+	}
+
+	@Override
+	public abstract void closeConnection();
+
+	// closeConnection() may be called by the writer thread (when a write fails) and the service at the same time - this
+	// returns true for the first call only, so that the connection is closed (and its failure reported) just once
+	boolean markClosed() {
+		return mClosed.compareAndSet(false, true);
+	}
+
+	// frames are length-prefixed, so the reader slices them in place rather than scanning for delimiters
+	// the end of the stream means the other device has disconnected - this is an error just like a failed read (previously
+	// read loops kept spinning at this point)
+	void processBytes(String connectionId, int bytesRead, FrameReader frameReader) throws IOException {
+		if (bytesRead == -1) {
+			throw new EOFException("Connection closed by remote device");
+		}
+		if (bytesRead > 0) {
+			mLastReceiveTime = System.nanoTime() / 1000000; // any data shows that the other device is still there
+			while (frameReader.nextFrame()) {
+				FrameHeader header = frameReader.getHeader();
+				mMetrics.recordFrameReceived(header.getFrameLength(),
+						header.mType == FrameCodec.TYPE_MESSAGE && header.mPartCount > 1);
+				switch (header.mType) {
+					case FrameCodec.TYPE_MESSAGE:
+						receiveMessage(connectionId, header, frameReader.getBuffer(), frameReader.getPayloadOffset());
+						break;
+
+					case FrameCodec.TYPE_HELLO:
+						FrameCodec.HelloInfo hello = FrameCodec.decodeHello(frameReader.getBuffer(),
+								frameReader.getPayloadOffset(), header.mPayloadLength);
+						mRemoteCapabilities = hello.mCapabilities;
+						mHelloReceived = true;
+						if (isFlowControlSupported()) {
+							mOutboundQueue.enableFlowControl();
+						}
+						if (hello.mSessionId != 0 && mPeerSession == null && mPeerSessionsEnabled) {
+							// (connections we accepted must prove that an existing session is theirs - see join)
+							mPeerSession = PeerSession.join(hello.mSessionId, connectionId, this,
+									hello.mResumeToken != 0 ? hello.mResumeToken : hello.mLinkToken,
+									mReplayBuffer != null);
+						}
+						Log.d(TAG, "Remote device capabilities: " + mRemoteCapabilities + "; links to this device: " +
+								(mPeerSession != null ? mPeerSession.getLinkCount() : 1));
+						if (mReplayBuffer != null && mPeerSession != null &&
+								(mRemoteCapabilities & FrameCodec.CAPABILITY_RESUME) != 0) {
+							startSession(hello);
+						}
+						break;
+
+					case FrameCodec.TYPE_SESSION:
+						FrameCodec.SessionInfo sessionInfo = FrameCodec.decodeSession(frameReader.getBuffer(),
+								frameReader.getPayloadOffset(), header.mPayloadLength);
+						PeerSession hostSession = mPeerSession;
+						if (hostSession != null) {
+							hostSession.setResumeToken(sessionInfo.mResumeToken, sessionInfo.mLastMessageId,
+									sessionInfo.mResumed);
+						}
+						if (sessionInfo.mPeerId != null) {
+							mAssignedPeerId = sessionInfo.mPeerId;
+						}
+						if (mResumeRequested) {
+							mResumeRequested = false;
+							Log.d(TAG, "Session " + (sessionInfo.mResumed ? "resumed" : "could not be resumed"));
+							mListener.onSessionStarted(new ClientSessionEvent(sessionInfo.mResumed));
+						}
+						break;
+
+					case FrameCodec.TYPE_PING:
+						sendMessage(OutboundMessage.frames(FrameCodec.encodePong(FrameCodec.decodeTimestamp(
+								frameReader.getBuffer(), frameReader.getPayloadOffset(), header.mPayloadLength),
+								System.nanoTime()), true));
+						break;
+
+					case FrameCodec.TYPE_PONG:
+						long pingTime = FrameCodec.decodeTimestamp(frameReader.getBuffer(), frameReader.getPayloadOffset(),
+								header.mPayloadLength);
+						long pongTime = System.nanoTime();
+						mRttEstimator.addSample((pongTime - pingTime) / 1000);
+						long remoteTime = FrameCodec.decodePongTime(frameReader.getBuffer(),
+								frameReader.getPayloadOffset(), header.mPayloadLength);
+						if (remoteTime != 0) { // (earlier versions don't send their time)
+							mRttEstimator.addClockSample((pongTime - pingTime) / 1000,
+									remoteTime - (pingTime + (pongTime - pingTime) / 2));
+						}
+						break;
+
+					case FrameCodec.TYPE_CREDIT:
+						mOutboundQueue.addCredit(FrameCodec.decodeCredit(frameReader.getBuffer(),
+								frameReader.getPayloadOffset(), header.mPayloadLength));
+						onCreditReceived();
+						break;
+
+					case FrameCodec.TYPE_RELAY:
+						if (mPendingRelays.size() >= MAX_PENDING_RELAYS) {
+							mPendingRelays.clear(); // the messages they belong to must have been dropped
+						}
+						mPendingRelays.put(header.mMessageId, FrameCodec.decodeRelay(frameReader.getBuffer(),
+								frameReader.getPayloadOffset(), header.mPayloadLength));
+						break;
+
+					case FrameCodec.TYPE_TRACE:
+						if (mPendingTraces.size() >= MAX_PENDING_TRACES) {
+							mPendingTraces.clear(); // (as for relays)
+						}
+						mPendingTraces.put(header.mMessageId, FrameCodec.decodeTrace(frameReader.getBuffer(),
+								frameReader.getPayloadOffset(), header.mPayloadLength));
+						break;
+
+					case FrameCodec.TYPE_SENDER:
+						if (mPendingSenders.size() >= MAX_PENDING_RELAYS) {
+							mPendingSenders.clear(); // (as for relays)
+						}
+						mPendingSenders.put(header.mMessageId, FrameCodec.decodeSender(frameReader.getBuffer(),
+								frameReader.getPayloadOffset(), header.mPayloadLength));
+						break;
+
+					case FrameCodec.TYPE_STREAM_OPEN:
+					case FrameCodec.TYPE_STREAM_DATA:
+					case FrameCodec.TYPE_STREAM_CANCEL:
+						StreamFrameReceivedEvent streamEvent = new StreamFrameReceivedEvent(getPeerId(connectionId),
+								header.mType, header.mMessageId, header.mPartIndex, frameReader.getBuffer(),
+								frameReader.getPayloadOffset(), header.mPayloadLength);
+						if (header.mType == FrameCodec.TYPE_STREAM_DATA) {
+							streamEvent.setOnConsumedListener(mOnConsumedListener, header.getFrameLength());
+						}
+						mListener.onStreamFrameReceived(streamEvent);
+						break;
+
+					default:
+						Log.d(TAG, "Ignoring frame of unknown type " + header.mType);
+						break;
+				}
 			}
 		}
 	}
 
-	// messages are split into parts if they are larger than the buffer - here we recombine
-	private void receiveMessage(String connectionId, String message) {
-		int partCountSize = HotspotManagerService.MESSAGE_ID_SIZE + HotspotManagerService.MESSAGE_PART_COUNT_SIZE;
-		if (message.length() > HotspotManagerService.MESSAGE_HEADER_SIZE) {
-			try {
-				String messageId = message.substring(0, HotspotManagerService.MESSAGE_ID_SIZE);
-				int partCount = Integer.parseInt(message.substring(HotspotManagerService.MESSAGE_ID_SIZE, partCountSize), 10);
-				int partNum = Integer.parseInt(message.substring(partCountSize, HotspotManagerService.MESSAGE_HEADER_SIZE), 10);
-				String messageText = message.substring(HotspotManagerService.MESSAGE_HEADER_SIZE);
+	FrameReader createFrameReader() {
+		return new FrameReader(sReceiveBufferPool);
+	}
+
+	// called when a connection's read loop exits - returns its buffer and discards any incomplete messages
+	void finishReading(FrameReader frameReader) {
+		if (frameReader != null) {
+			frameReader.release();
+		}
+		mReassembler.clear();
+		mPendingRelays.clear();
+		mPendingTraces.clear();
+		mPendingSenders.clear();
+		Log.d(TAG, "Messages reassembled: " + mReassembler.getCompletedCount() + "; partial messages dropped: " +
+				mReassembler.getDroppedCount() + ", expired: " + mReassembler.getExpiredCount());
+		Log.d(TAG, "Decompression time: " + mDecompressor.getDecompressionTimeMillis() + "ms; outbound " +
+				OutboundMessage.getCompressionStatistics());
+		mDecompressor.end();
+		Log.d(TAG, "Round-trip time: " + mRttEstimator.getSmoothedRtt() + "us, variation: " +
+				mRttEstimator.getRttVariation() + "us (" + mRttEstimator.getSampleCount() + " samples)");
+
+		String finalMetrics = ConnectionMetrics.unregister(mMetrics);
+		if (finalMetrics != null) {
+			Log.d(TAG, "Connection metrics: " + finalMetrics);
+		}
+
+		PeerSession session = mPeerSession;
+		if (session != null) {
+			Log.d(TAG, "Duplicate messages discarded: " + session.getDuplicateCount());
+			session.leave(this);
+		}
+	}
+
+	int getDroppedPartialMessageCount() {
+		return mReassembler.getDroppedCount();
+	}
+
+	int getExpiredPartialMessageCount() {
+		return mReassembler.getExpiredCount();
+	}
+
+	int getReassembledMessageCount() {
+		return mReassembler.getCompletedCount();
+	}
+
+	int getQueuedMessageCount() {
+		return mOutboundQueue.size();
+	}
+
+	int getPeakQueuedMessageCount() {
+		return mOutboundQueue.getPeakSize();
+	}
+
+	int getDroppedMessageCount() {
+		return mOutboundQueue.getDroppedCount();
+	}
+
+	int getConflatedMessageCount() {
+		return mOutboundQueue.getConflatedCount();
+	}
 
-				if (partCount == 1) {
-					EventBus.getDefault().post(new MessageReceivedEvent(connectionId, messageText));
+	// messages are split into parts if they are larger than MESSAGE_PART_SIZE - here we recombine
+	// compressed messages are decompressed only once they are complete (the whole message is compressed, not its parts)
+	// the credit for the frame that completes a message is returned when the message is consumed; for any other frame
+	// (earlier parts, duplicates) it is returned straight away
+	private void receiveMessage(String connectionId, FrameHeader header, byte[] buffer, int payloadOffset) throws
+			FrameFormatException {
+		boolean compressed = (header.mFlags & FrameCodec.FLAG_COMPRESSED) != 0;
+		PeerSession session = mPeerSession;
+		String deliveredBy = getPeerId(connectionId);
+		MessageReceivedEvent event = null;
+		if (header.mPartCount <= 1) {
+			if ((session != null && session.isDuplicate(header.mMessageId)) || isRelayDuplicate(session, header)) {
+				returnCredit(header.getFrameLength());
+				return; // already received on another link (or by another route)
+			}
+			if (compressed) {
+				byte[] message = mDecompressor.decompress(buffer, payloadOffset, header.mPayloadLength);
+				event = MessageReceivedEvent.obtainWithPayload(deliveredBy, message, message.length);
+			} else {
+				event = MessageReceivedEvent.obtain(deliveredBy, buffer, payloadOffset, header.mPayloadLength);
+			}
+		} else {
+			MessageReassembler.PartialMessage completeMessage = mReassembler.addPart(header, buffer, payloadOffset,
+					System.nanoTime() / 1000000);
+			if (completeMessage != null) {
+				if ((session != null && session.isDuplicate(header.mMessageId)) || isRelayDuplicate(session, header)) {
+					returnCredit(header.getFrameLength());
+					return;
+				}
+				if (compressed) {
+					byte[] message = mDecompressor.decompress(completeMessage.mData, 0, completeMessage.mLength);
+					event = MessageReceivedEvent.obtainWithPayload(deliveredBy, message, message.length);
 				} else {
-					// we trust that messages arrive in the correct order (e.g., no actual checking on partNum)
-					String currentMessage = sMessageParts.get(messageId);
-					currentMessage = (currentMessage == null ? "" : currentMessage) + messageText;
-					if (partNum < partCount - 1) { // count is zero-based
-						sMessageParts.put(messageId, currentMessage);
-					} else {
-						EventBus.getDefault().post(new MessageReceivedEvent(connectionId, currentMessage));
-					}
+					event = MessageReceivedEvent.obtainWithPayload(deliveredBy, completeMessage.mData,
+							completeMessage.mLength);
 				}
-			} catch (NumberFormatException e) {
-				Log.e(TAG, "Error receiving message: invalid part count - ignoring");
 			}
+		}
+		if (event != null) {
+			event.mUrgent = (header.mFlags & FrameCodec.FLAG_URGENT) != 0; // so that servers forward it immediately
+			event.mSenderId = mPendingSenders.remove(header.mMessageId);
+			if (isSenderSupported()) {
+				event.mSystemKnown = true; // (only devices that send sender frames set FLAG_SYSTEM)
+				event.mSystem = (header.mFlags & FrameCodec.FLAG_SYSTEM) != 0;
+			}
+			FrameCodec.RelayInfo relay = mPendingRelays.remove(header.mMessageId);
+			if (relay != null) {
+				event.mRelayed = true;
+				event.mHopCount = relay.mHopCount;
+				event.mOriginSessionId = relay.mOriginSessionId;
+				event.mOriginMessageId = relay.mOriginMessageId;
+			} else if (session != null) {
+				event.mOriginSessionId = session.mSessionId; // sent to us directly
+				event.mOriginMessageId = header.mMessageId;
+			}
+			MessageTrace trace = mPendingTraces.remove(header.mMessageId);
+			if (trace != null) {
+				event.mTraceId = addReceivedTrace(trace);
+			}
+			event.setOnConsumedListener(mOnConsumedListener, header.getFrameLength());
+			mMetrics.recordMessageReceived();
+			mListener.onMessageReceived(event);
+		} else {
+			returnCredit(header.getFrameLength());
+		}
+	}
+
+	// converts a received trace to our clock and records it, along with the time its message arrived - until a pong has
+	// told us the other device's clock, the offset is estimated from the write time and the round-trip time (which is
+	// -1 until the first pong, and is treated as 0 until then, so early traces include the network time in the offset)
+	private long addReceivedTrace(MessageTrace trace) {
+		long now = System.nanoTime();
+		if (mRttEstimator.hasClockOffset()) {
+			trace.toLocalClock(mRttEstimator.getClockOffset(), false);
 		} else {
-			Log.e(TAG, "Error receiving message: message body not found");
+			long writeTime = trace.getLastTime(MessageTrace.HOP_WRITE);
+			trace.toLocalClock(writeTime - (now - Math.max(0, mRttEstimator.getSmoothedRtt()) * 1000 / 2), true);
+		}
+		trace.addHop(MessageTrace.HOP_READ, mLocalSessionId, now);
+		TraceLog.addReceivedTrace(trace);
+		return trace.mTraceId;
+	}
+
+	// whether a complete message has already reached us by another route (or is one of our own that has come back) -
+	// messages that were sent to us directly are identified by the sender's session, so that a copy relayed later is
+	// recognised too
+	private boolean isRelayDuplicate(PeerSession session, FrameHeader header) {
+		FrameCodec.RelayInfo relay = mPendingRelays.get(header.mMessageId);
+		if (relay != null) {
+			if (relay.mOriginSessionId == mLocalSessionId ||
+					RelayFilter.isDuplicate(relay.mOriginSessionId, relay.mOriginMessageId)) {
+				mPendingRelays.remove(header.mMessageId);
+				return true;
+			}
+			return false;
 		}
+		return session != null && RelayFilter.isDuplicate(session.mSessionId, header.mMessageId);
 	}
 
 	void closeConnection(Closeable connection) {
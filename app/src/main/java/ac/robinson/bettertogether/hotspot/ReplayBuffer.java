@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// the host's most recent messages to its clients, so that a client that briefly loses its connection can be sent what it
+// missed when it resumes its session (see PeerSession), rather than having to start again
+// every client is sent the same (immutable, already encoded) messages, so one buffer is shared by all of them - the only
+// difference is that clients are never sent their own messages back, so the sender of each message is kept with it
+// message ids are compared as sequence numbers (i.e., allowing for wrapping), as they are by the DuplicateFilter - they
+// are assigned when messages are created, which can be on more than one thread, so messages aren't always added in id
+// order, but they are kept in id order here
+final class ReplayBuffer {
+
+	private final OutboundMessage[] mMessages;
+	private final String[] mSenders;
+	private final int mMaxBytes;
+	private int mHead;
+	private int mCount;
+	private int mBytes;
+
+	private boolean mHasEvicted;
+	private int mLastEvictedId; // clients that have received this message (or later) can still resume
+
+	ReplayBuffer(int maxMessages, int maxBytes) {
+		mMessages = new OutboundMessage[maxMessages];
+		mSenders = new String[maxMessages];
+		mMaxBytes = maxBytes;
+	}
+
+	// called (on the main or dispatching thread) for every sequenced message sent to clients - sender is the client
+	// that the message came from (and so wasn't sent to), or null
+	synchronized void add(OutboundMessage message, String sender) {
+		if (getInsertPosition(message.mMessageId) < 0) {
+			return; // the same message sent on more than one link
+		}
+		while (mCount > 0 && (mCount == mMessages.length || mBytes + message.mFrames.length > mMaxBytes)) {
+			evictOldest();
+		}
+		int position = getInsertPosition(message.mMessageId);
+		for (int i = mCount; i > position; i--) { // (almost always none - messages are nearly always added in order)
+			int index = (mHead + i) % mMessages.length;
+			int previousIndex = (mHead + i - 1) % mMessages.length;
+			mMessages[index] = mMessages[previousIndex];
+			mSenders[index] = mSenders[previousIndex];
+		}
+		int index = (mHead + position) % mMessages.length;
+		mMessages[index] = message;
+		mSenders[index] = sender;
+		mCount += 1;
+		mBytes += message.mFrames.length;
+	}
+
+	// where (counting from the oldest) a message with this id belongs, or -1 if it is already here
+	private int getInsertPosition(int messageId) {
+		int position = mCount;
+		while (position > 0) {
+			int distance = messageId - mMessages[(mHead + position - 1) % mMessages.length].mMessageId;
+			if (distance == 0) {
+				return -1;
+			} else if (distance > 0) {
+				break;
+			}
+			position -= 1;
+		}
+		return position;
+	}
+
+	private void evictOldest() {
+		mHasEvicted = true;
+		mLastEvictedId = mMessages[mHead].mMessageId;
+		mBytes -= mMessages[mHead].mFrames.length;
+		mMessages[mHead] = null;
+		mSenders[mHead] = null;
+		mHead = (mHead + 1) % mMessages.length;
+		mCount -= 1;
+	}
+
+	// the messages that a client missed, in order, excluding any that it sent: those after the last message it
+	// received, and any before it that aren't marked as received in its receivedWindow (see
+	// PeerSession.getReceivedWindow; may be null) - returns null if some of the messages after lastMessageId have
+	// already been discarded (so the session can't be resumed); note: messages missing from the window that have been
+	// discarded can't be resent, but as we no longer know whether they were sent to this client, it still resumes
+	synchronized List<OutboundMessage> getMissedMessages(int lastMessageId, byte[] receivedWindow, String client) {
+		if (mHasEvicted && lastMessageId - mLastEvictedId < 0) {
+			return null;
+		}
+		ArrayList<OutboundMessage> messages = new ArrayList<>();
+		for (int i = 0; i < mCount; i++) {
+			int index = (mHead + i) % mMessages.length;
+			int age = lastMessageId - mMessages[index].mMessageId; // how far before the last received message this is
+			boolean missed = age < 0 || (receivedWindow != null && age < receivedWindow.length * 8 &&
+					(receivedWindow[age >>> 3] & (1 << (age & 7))) == 0);
+			if (missed && (client == null || !client.equals(mSenders[index]))) {
+				messages.add(mMessages[index]);
+			}
+		}
+		return messages;
+	}
+
+	synchronized void clear() {
+		for (int i = 0; i < mMessages.length; i++) {
+			mMessages[i] = null;
+			mSenders[i] = null;
+		}
+		mHead = 0;
+		mCount = 0;
+		mBytes = 0;
+		mHasEvicted = false;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+// smoothed round-trip time for a single link, from ping/pong samples (in the same way as TCP - see RFC 6298)
+// times are in microseconds, as milliseconds are too coarse for local Wifi links
+// also estimates the offset between the two devices' clocks (in the same way as NTP), for message traces - see TraceLog
+final class RttEstimator {
+
+	// the clock offset is taken from the sample with the lowest round-trip time among the most recent few, as queueing
+	// delays make the others less accurate (and the two clocks drift apart slowly, so old samples become less accurate)
+	private static final int CLOCK_SAMPLE_WINDOW = 8;
+	private final long[] mClockSampleRtts = new long[CLOCK_SAMPLE_WINDOW];
+	private final long[] mClockSampleOffsets = new long[CLOCK_SAMPLE_WINDOW]; // nanoseconds
+	private int mClockSampleCount;
+
+	private long mSmoothedRtt = -1; // -1 = no samples yet
+	private long mRttVariation;
+	private int mSampleCount;
+
+	synchronized void addSample(long rtt) {
+		if (rtt < 0) {
+			return; // clock went backwards, or a corrupted timestamp - ignore
+		}
+		if (mSmoothedRtt < 0) {
+			mSmoothedRtt = rtt;
+			mRttVariation = rtt / 2;
+		} else {
+			mRttVariation += (Math.abs(mSmoothedRtt - rtt) - mRttVariation) / 4;
+			mSmoothedRtt += (rtt - mSmoothedRtt) / 8;
+		}
+		mSampleCount += 1;
+	}
+
+	synchronized long getSmoothedRtt() {
+		return mSmoothedRtt;
+	}
+
+	synchronized long getRttVariation() {
+		return mRttVariation;
+	}
+
+	// how long to wait for a reply before it is late (RFC 6298's retransmission timeout, without the 1 second minimum,
+	// which is far too long for local links); -1 if there are no samples yet
+	synchronized long getTimeout() {
+		return mSmoothedRtt < 0 ? -1 : mSmoothedRtt + 4 * mRttVariation;
+	}
+
+	synchronized int getSampleCount() {
+		return mSampleCount;
+	}
+
+	// offset is the other device's clock minus ours (nanoseconds), assuming the reply took half the round-trip time
+	synchronized void addClockSample(long rtt, long offset) {
+		if (rtt < 0) {
+			return;
+		}
+		int index = mClockSampleCount % CLOCK_SAMPLE_WINDOW;
+		mClockSampleRtts[index] = rtt;
+		mClockSampleOffsets[index] = offset;
+		mClockSampleCount += 1;
+	}
+
+	synchronized boolean hasClockOffset() {
+		return mClockSampleCount > 0;
+	}
+
+	// the other device's clock minus ours, in nanoseconds (0 if there are no samples yet)
+	synchronized long getClockOffset() {
+		int best = -1;
+		for (int i = 0; i < Math.min(mClockSampleCount, CLOCK_SAMPLE_WINDOW); i++) {
+			if (best < 0 || mClockSampleRtts[i] < mClockSampleRtts[best]) {
+				best = i;
+			}
+		}
+		return best < 0 ? 0 : mClockSampleOffsets[best];
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+// payloads of the stream frame types - streams carry data that is too large to send as a single BroadcastMessage, so
+// it is sent in chunks (each is one or more TYPE_STREAM_DATA frames) and delivered to receivers as it arrives
+// stream open payload: total size (8 bytes) | sender id length (varint) | sender id (UTF-8) | stream type (UTF-8)
+final class StreamCodec {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	static final class StreamInfo {
+		long mTotalSize;
+		String mFrom; // empty when sent by a client - the server fills this in when forwarding (as for BroadcastMessage)
+		String mStreamType; // a label chosen by the sender (e.g., a MIME type) to help receivers interpret the data
+	}
+
+	private StreamCodec() {
+	}
+
+	static byte[] encodeOpen(int streamId, long totalSize, String from, String streamType) {
+		byte[] fromBytes = (from != null ? from : "").getBytes(UTF_8);
+		byte[] typeBytes = (streamType != null ? streamType : "").getBytes(UTF_8);
+		byte[] payload = new byte[8 + FrameCodec.MAX_VARINT_SIZE + fromBytes.length + typeBytes.length];
+		int position = 0;
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			payload[position++] = (byte) (totalSize >>> shift);
+		}
+		position = FrameCodec.writeVarint(payload, position, fromBytes.length);
+		System.arraycopy(fromBytes, 0, payload, position, fromBytes.length);
+		position += fromBytes.length;
+		System.arraycopy(typeBytes, 0, payload, position, typeBytes.length);
+		position += typeBytes.length;
+		return FrameCodec.encodeFrame(FrameCodec.TYPE_STREAM_OPEN, streamId, 0, 1, payload, 0, position);
+	}
+
+	static StreamInfo decodeOpen(byte[] payload, int offset, int length) throws FrameFormatException {
+		if (length < 9) {
+			throw new FrameFormatException("Invalid stream header");
+		}
+		StreamInfo info = new StreamInfo();
+		int end = offset + length;
+		int position = offset;
+		for (int i = 0; i < 8; i++) {
+			info.mTotalSize = (info.mTotalSize << 8) | (payload[position++] & 0xff);
+		}
+		int fromLength = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (position >= end || shift >= 7 * FrameCodec.MAX_VARINT_SIZE) {
+				throw new FrameFormatException("Invalid stream header");
+			}
+			byte current = payload[position++];
+			fromLength |= (current & 0x7f) << shift;
+			if ((current & 0x80) == 0) {
+				break;
+			}
+		}
+		if (info.mTotalSize < 0 || fromLength < 0 || fromLength > end - position) {
+			throw new FrameFormatException("Invalid stream header");
+		}
+		info.mFrom = new String(payload, position, fromLength, UTF_8);
+		position += fromLength;
+		info.mStreamType = new String(payload, position, end - position, UTF_8);
+		return info;
+	}
+
+	// splits a chunk of stream data into frames of at most partSize bytes, numbered from firstIndex
+	static byte[] encodeData(int streamId, int firstIndex, byte[] data, int partSize) {
+		int frameCount = FrameCodec.getPartCount(data.length, partSize);
+		ByteArrayOutputStream frames = new ByteArrayOutputStream(data.length + frameCount * FrameCodec.MAX_HEADER_SIZE);
+		byte[] header = new byte[FrameCodec.MAX_HEADER_SIZE];
+		for (int frame = 0; frame < frameCount; frame++) {
+			int start = frame * partSize;
+			int length = Math.min(partSize, data.length - start);
+			int headerLength = FrameCodec.writeHeader(header, 0, FrameCodec.TYPE_STREAM_DATA, 0, length, streamId,
+					firstIndex + frame, 0);
+			frames.write(header, 0, headerLength);
+			frames.write(data, start, length);
+		}
+		return frames.toByteArray();
+	}
+
+	static byte[] encodeCancel(int streamId) {
+		return FrameCodec.encodeFrame(FrameCodec.TYPE_STREAM_CANCEL, streamId, 0, 1, new byte[0], 0, 0);
+	}
+}
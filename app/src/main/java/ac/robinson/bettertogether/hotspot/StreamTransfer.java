@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.util.ArrayDeque;
+
+// the progress of a single stream being sent or received by the service
+final class StreamTransfer {
+	final int mStreamId;
+	final String mFrom;
+	final String mStreamType;
+	final long mTotalSize;
+	long mTransferred;
+	int mNextIndex; // the sequence number of the next data frame - receivers cancel the stream if there is a gap
+	final ArrayDeque<byte[]> mPendingFrames = new ArrayDeque<>(); // outgoing only - encoded data not yet queued to send
+
+	StreamTransfer(int streamId, String from, String streamType, long totalSize) {
+		mStreamId = streamId;
+		mFrom = from;
+		mStreamType = streamType;
+		mTotalSize = totalSize;
+	}
+
+	boolean isComplete() {
+		return mTransferred >= mTotalSize;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+// end-to-end message tracing - when enabled (see HotspotManagerService.MSG_SET_TRACING), a sample of the messages this
+// device sends are given a trace id, and every device that handles them records the time of each hop along the way
+// (see MessageTrace) - received traces include the hops from every earlier device, converted to our clock, so the trace
+// file of the device that receives a message (see toChromeTrace) shows the whole journey: Binder, the main looper,
+// queueing, the network and delivery, on both (or all) devices
+final class TraceLog {
+
+	private static final int MAX_TRACES = 256; // the most recent traces are kept - older ones are discarded
+
+	private static final LinkedHashMap<Long, MessageTrace> sTraces = new LinkedHashMap<Long, MessageTrace>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, MessageTrace> eldest) {
+			return size() > MAX_TRACES;
+		}
+	}; // guarded by itself
+	private static final Random sTraceIdGenerator = new Random();
+	private static int sSampleInterval; // guarded by sTraces - trace one in this many messages; 0 = tracing is off
+	private static int sUntracedCount; // guarded by sTraces
+
+	private TraceLog() {
+	}
+
+	// 1 traces every message we send; 0 disables tracing (traces from other devices are still recorded)
+	static void setSampleInterval(int sampleInterval) {
+		synchronized (sTraces) {
+			sSampleInterval = Math.max(0, sampleInterval);
+			sUntracedCount = 0;
+		}
+	}
+
+	// called when a local client sends a message - returns the new trace's id, or 0 if this message isn't to be traced
+	// clientSendTime is when the client sent it (0 if unknown - e.g., from a plugin); both times are System.nanoTime()
+	static long startTrace(long clientSendTime, long serviceReceiveTime) {
+		synchronized (sTraces) {
+			if (sSampleInterval <= 0 || ++sUntracedCount < sSampleInterval) {
+				return 0;
+			}
+			sUntracedCount = 0;
+			long traceId = 0;
+			while (traceId == 0 || sTraces.containsKey(traceId)) { // 0 means not traced
+				traceId = sTraceIdGenerator.nextLong();
+			}
+			MessageTrace trace = new MessageTrace(traceId);
+			long device = RemoteConnection.getLocalSessionId();
+			if (clientSendTime != 0) {
+				trace.addHop(MessageTrace.HOP_CLIENT_SEND, device, clientSendTime);
+			}
+			trace.addHop(MessageTrace.HOP_SERVICE_RECEIVE, device, serviceReceiveTime);
+			sTraces.put(traceId, trace);
+			return traceId;
+		}
+	}
+
+	// a hop on this device, now - ignored if traceId is 0, or the trace has been discarded
+	static void addHop(long traceId, int hop) {
+		addHop(traceId, hop, RemoteConnection.getLocalSessionId(), System.nanoTime());
+	}
+
+	static void addHop(long traceId, int hop, long device, long time) {
+		if (traceId == 0) {
+			return;
+		}
+		synchronized (sTraces) {
+			MessageTrace trace = sTraces.get(traceId);
+			if (trace != null) {
+				trace.addHop(hop, device, time);
+			}
+		}
+	}
+
+	// called (on a connection's read thread) when a traced message arrives - the trace must already be in our clock
+	static void addReceivedTrace(MessageTrace trace) {
+		synchronized (sTraces) {
+			sTraces.put(trace.mTraceId, trace); // replaces any earlier copy (e.g., a message that has come back to us)
+		}
+	}
+
+	// adds an enqueue hop, and returns a copy of the trace to send with the message (null if there is no such trace)
+	static MessageTrace enqueue(long traceId) {
+		if (traceId == 0) {
+			return null;
+		}
+		synchronized (sTraces) {
+			MessageTrace trace = sTraces.get(traceId);
+			if (trace == null) {
+				return null;
+			}
+			trace.addHop(MessageTrace.HOP_ENQUEUE, RemoteConnection.getLocalSessionId(), System.nanoTime());
+			return trace.copy();
+		}
+	}
+
+	// all recorded traces in Chrome's trace event format (for chrome://tracing or https://ui.perfetto.dev) - each device
+	// is a process, and each stage of a message's journey (e.g., "socket write -> socket read") is an async span, shown
+	// on the device where that stage ended; times are in microseconds from the earliest hop
+	static String toChromeTrace() {
+		StringBuilder trace = new StringBuilder("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+		long localDevice = RemoteConnection.getLocalSessionId();
+		HashMap<Long, Integer> processIds = new HashMap<>();
+		processIds.put(localDevice, 1);
+		appendProcessName(trace, 1, "This device (" + Long.toHexString(localDevice) + ")");
+
+		synchronized (sTraces) {
+			long baseTime = Long.MAX_VALUE;
+			for (MessageTrace messageTrace : sTraces.values()) {
+				for (int i = 0; i < messageTrace.getHopCount(); i++) {
+					baseTime = Math.min(baseTime, messageTrace.getTime(i));
+				}
+			}
+
+			for (MessageTrace messageTrace : sTraces.values()) {
+				String traceId = Long.toHexString(messageTrace.mTraceId);
+				for (int i = 0; i < messageTrace.getHopCount(); i++) {
+					int previous = messageTrace.getPreviousHopIndex(i);
+					if (previous < 0) {
+						continue;
+					}
+					long device = messageTrace.getDevice(i);
+					Integer processId = processIds.get(device);
+					if (processId == null) {
+						processId = processIds.size() + 1;
+						processIds.put(device, processId);
+						appendProcessName(trace, processId, "Device " + Long.toHexString(device));
+					}
+					String name = MessageTrace.getHopName(messageTrace.getHop(previous)) + " -> " +
+							MessageTrace.getHopName(messageTrace.getHop(i));
+					long startTime = messageTrace.getTime(previous) - baseTime;
+					long endTime = Math.max(startTime, messageTrace.getTime(i) - baseTime); // (clock estimate errors)
+					trace.append(String.format(Locale.US, "{\"name\":\"%s\",\"cat\":\"message\",\"ph\":\"b\"," +
+									"\"id\":\"0x%s\",\"pid\":%d,\"tid\":1,\"ts\":%.3f,\"args\":{\"trace\":\"%s\"," +
+									"\"clockEstimated\":%b}},", name, traceId, processId, startTime / 1000.0, traceId,
+							messageTrace.isClockEstimated()));
+					trace.append(String.format(Locale.US, "{\"name\":\"%s\",\"cat\":\"message\",\"ph\":\"e\"," +
+									"\"id\":\"0x%s\",\"pid\":%d,\"tid\":1,\"ts\":%.3f},", name, traceId, processId,
+							endTime / 1000.0));
+				}
+			}
+		}
+		trace.setLength(trace.length() - 1); // the last comma (there is always at least one process name)
+		return trace.append("]}").toString();
+	}
+
+	private static void appendProcessName(StringBuilder trace, int processId, String name) {
+		trace.append(String.format(Locale.US, "{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":%d," +
+				"\"args\":{\"name\":\"%s\"}},", processId, name));
+	}
+
+	static void clear() {
+		synchronized (sTraces) {
+			sTraces.clear();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import ac.robinson.bettertogether.event.EventType;
+import androidx.annotation.Nullable;
+
+// the accepting (i.e., host or relay) side of a transport - HotspotManagerService drives every running transport in the
+// same way, so new transports can be added without changing how messages are sent or connections are checked
+// implementations: WifiServer, BluetoothServer, and LoopbackTransport (in-process, for testing and benchmarks)
+interface Transport {
+
+	// Bluetooth links are checked less often than others (see HotspotManagerService's heartbeat intervals)
+	EventType.Type getType();
+
+	// starts accepting connections (in the background)
+	void start();
+
+	// sends to every client except ignoreClient (on any of its links) - must not block
+	void sendMessageToAll(OutboundMessage message, @Nullable String ignoreClient);
+
+	// the largest amount of data waiting to be sent to any one client
+	int getMaxQueuedBytes();
+
+	// clients that have stopped responding are removed in the same way as those that fail when sending
+	void sendHeartbeats(long now, int interval);
+
+	// what to do when a client can't keep up with the messages being sent to it - applies to current and future clients
+	void setSlowClientPolicy(OutboundQueue.Policy policy);
+
+	void closeAllConnections();
+}
@@ -21,18 +21,18 @@ import android.util.Log;
 
 import org.greenrobot.eventbus.EventBus;
 
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 
-import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
 import ac.robinson.bettertogether.event.ClientConnectionErrorEvent;
 import ac.robinson.bettertogether.event.ClientConnectionSuccessEvent;
 import ac.robinson.bettertogether.event.ClientMessageErrorEvent;
 import ac.robinson.bettertogether.event.EventType;
 
-class WifiClientConnection extends RemoteConnection {
+class WifiClientConnection extends RemoteConnection implements Runnable {
 
 	private static final String TAG = "WifiClientConnection";
 
@@ -43,10 +43,11 @@ class WifiClientConnection extends RemoteConnection {
 
 	private Socket mSocket;
 	private InputStream mInputStream;
-	private OutputStreamWriter mOutputStreamWriter;
+	private OutputStream mOutputStream;
 
 	WifiClientConnection(String host, int port) {
 		setLogTag(TAG);
+		setMetricsId(EventType.Type.WIFI, ProtocolConstants.SERVER_MESSAGE_ID);
 		mHost = host;
 		mPort = port;
 	}
@@ -83,34 +84,39 @@ class WifiClientConnection extends RemoteConnection {
 		Log.d(TAG, "Wifi client connected to " + mHost + " on port " + mPort + " - thread: " + this.toString());
 		EventBus.getDefault().post(new ClientConnectionSuccessEvent(EventType.Type.WIFI));
 
+		FrameReader frameReader = null;
 		try {
-			mOutputStreamWriter = new OutputStreamWriter(mSocket.getOutputStream(), BroadcastMessage.CHARSET);
+			mOutputStream = new BufferedOutputStream(mSocket.getOutputStream(), ProtocolConstants.MESSAGE_BUFFER_SIZE);
+			startWriter(mOutputStream);
 
-			byte[] buffer = new byte[HotspotManagerService.MESSAGE_BUFFER_SIZE];
 			int bytesRead;
-			StringBuilder stringBuilder = new StringBuilder();
+			frameReader = createFrameReader();
 
 			while (mRunning) {
-				bytesRead = mInputStream.read(buffer);
-				processBytes(HotspotManagerService.SERVER_MESSAGE_ID, buffer, bytesRead, stringBuilder);
+				bytesRead = frameReader.readFrom(mInputStream);
+				processBytes(ProtocolConstants.SERVER_MESSAGE_ID, bytesRead, frameReader);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			Log.e(TAG, "Wifi client error: " + e.getLocalizedMessage());
+			recordError();
 			EventBus.getDefault().post(new ClientMessageErrorEvent(EventType.Type.WIFI));
+		} finally {
+			finishReading(frameReader);
 		}
 	}
 
-	boolean sendMessage(String message) {
-		return sendMessage(mOutputStreamWriter, message);
-	}
-
-	void closeConnection() {
+	@Override
+	public void closeConnection() {
+		if (!markClosed()) {
+			return;
+		}
 		mRunning = false;
+		stopWriter();
 		closeConnection(mInputStream);
 		mInputStream = null;
-		closeConnection(mOutputStreamWriter);
-		mOutputStreamWriter = null;
+		closeConnection(mOutputStream);
+		mOutputStream = null;
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
 			closeConnection(mSocket);
 		} else {
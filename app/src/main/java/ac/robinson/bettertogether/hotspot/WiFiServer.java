@@ -22,96 +22,327 @@ import org.greenrobot.eventbus.EventBus;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
-
-import javax.net.ServerSocketFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import ac.robinson.bettertogether.BetterTogetherUtils;
 import ac.robinson.bettertogether.event.EventType;
+import ac.robinson.bettertogether.event.ServerConnectionSuccessEvent;
 import ac.robinson.bettertogether.event.ServerErrorEvent;
 import ac.robinson.bettertogether.event.ServerMessageErrorEvent;
 import androidx.annotation.Nullable;
 
-class WifiServer implements Runnable {
+// a non-blocking Wifi server - a single event loop thread handles accepting, reading and writing for every client, rather
+// than two threads per client (which doesn't scale on low-end host devices once groups reach 15-20 devices)
+class WifiServer implements Transport, Runnable {
 
 	private static final String TAG = "WifiServer";
 
-	private boolean mRunning = false;
+	private volatile boolean mRunning = false;
 
 	private String mAddress;
 	private int mPort;
 
-	private ServerSocket mServerSocket;
-	private HashMap<String, WifiServerConnection> mConnectedSockets = new HashMap<>();
+	private Selector mSelector;
+	private ServerSocketChannel mServerChannel;
+
+	// accessed from both the event loop and the service (when sending)
+	private ConcurrentHashMap<String, WifiServerConnection> mConnectedSockets = new ConcurrentHashMap<>();
+	private volatile OutboundQueue.Policy mSlowClientPolicy = OutboundQueue.Policy.DISCONNECT;
+	private final ReplayBuffer mReplayBuffer; // recent messages, for clients that resume their session
+
+	// connections with newly queued messages - only the event loop may change a connection's interest in writing
+	private final ConcurrentLinkedQueue<WifiServerConnection> mFlushRequests = new ConcurrentLinkedQueue<>();
+
+	// connections with messages waiting for the batching window to end - event loop thread only
+	private final ArrayList<WifiServerConnection> mBatchedConnections = new ArrayList<>();
+
+	// all reads happen on the event loop, one at a time, so they can share a single direct buffer
+	private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(ProtocolConstants.MESSAGE_BUFFER_SIZE);
 
-	WifiServer(String address, int port) {
+	WifiServer(String address, int port, ReplayBuffer replayBuffer) {
 		mAddress = address;
 		mPort = port;
+		mReplayBuffer = replayBuffer;
+	}
+
+	@Override
+	public EventType.Type getType() {
+		return EventType.Type.WIFI;
+	}
+
+	@Override
+	public void start() {
+		mRunning = true; // (set here, not in run, so that closing the server before it has started stops it starting)
+		new Thread(WifiServer.this).start();
 	}
 
 	@Override
 	public void run() {
-		mRunning = true;
 		try {
 			Log.d(TAG, "Starting Wifi server on port " + mPort);
 			Thread.sleep(1000); // wait for hotspot to be initialised
+			if (!mRunning) {
+				return; // closed while we were waiting
+			}
 
-			// TODO: use SSLServerSocket at some point in the future? (would require version handling...)
-			mServerSocket = ServerSocketFactory.getDefault().createServerSocket(mPort, 0, InetAddress.getByName(mAddress));
+			// TODO: use SSL at some point in the future? (would require version handling...)
+			mSelector = Selector.open();
+			mServerChannel = ServerSocketChannel.open();
+			mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(mAddress), mPort));
+			mServerChannel.configureBlocking(false);
+			mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
 
-			try {
-				while (mRunning) {
-					Socket acceptedSocket = mServerSocket.accept();
+			while (mRunning) {
+				long selectTimeout = getBatchTimeout();
+				if (selectTimeout < 0) {
+					mSelector.select();
+				} else if (selectTimeout == 0) {
+					mSelector.selectNow();
+				} else {
+					mSelector.select(selectTimeout);
+				}
 
-					String newConnectionId = BetterTogetherUtils.getRandomString(HotspotManagerService.MESSAGE_ID_SIZE);
-					WifiServerConnection connectedServer = new WifiServerConnection(newConnectionId, acceptedSocket);
-					new Thread(connectedServer).start();
-					mConnectedSockets.put(newConnectionId, connectedServer);
+				long now = System.nanoTime() / 1000000;
+				int batchWindow = RemoteConnection.getBatchWindow();
+				WifiServerConnection flushConnection;
+				while ((flushConnection = mFlushRequests.poll()) != null) {
+					SelectionKey key = flushConnection.getSelectionKey();
+					if (!key.isValid()) {
+						flushConnection.finish(); // closed by another thread (e.g., removed as a slow client)
+						mBatchedConnections.remove(flushConnection);
+					} else if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+						continue; // already waiting for the socket to become writable - the flush will happen then
+					} else if (flushConnection.takeUrgentFlushRequest() || batchWindow == 0 ||
+							flushConnection.getQueuedBytes() >= RemoteConnection.BATCH_FLUSH_THRESHOLD) {
+						flushConnection(flushConnection);
+					} else if (flushConnection.mFlushDeadline == 0) {
+						flushConnection.mFlushDeadline = now + batchWindow; // batch with anything sent before then
+						mBatchedConnections.add(flushConnection);
+					}
+				}
+				for (int i = mBatchedConnections.size() - 1; i >= 0; i--) {
+					WifiServerConnection batchedConnection = mBatchedConnections.get(i);
+					if (batchedConnection.mFlushDeadline <= now) {
+						if (batchedConnection.getSelectionKey().isValid()) {
+							flushConnection(batchedConnection); // (also removes it from the list of batched connections)
+						} else {
+							mBatchedConnections.remove(i);
+						}
+					}
+				}
+
+				Iterator<SelectionKey> selectedKeys = mSelector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						acceptConnection();
+						continue;
+					}
+
+					WifiServerConnection connection = (WifiServerConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read(mReadBuffer);
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException e) {
+						Log.e(TAG, "Wifi server connection error: " + e.getLocalizedMessage());
+						connection.recordError();
+						removeConnection(connection);
+					}
 				}
-			} catch (IOException e) {
-				Log.e(TAG, "Wifi server client error: " + e.getLocalizedMessage());
-				EventBus.getDefault().post(new ServerErrorEvent(EventType.Type.WIFI));
 			}
 
 		} catch (IOException e) {
-			Log.e(TAG, "Wifi server error: " + e.getLocalizedMessage());
-			EventBus.getDefault().post(new ServerErrorEvent(EventType.Type.WIFI));
+			if (mRunning) {
+				Log.e(TAG, "Wifi server error: " + e.getLocalizedMessage());
+				EventBus.getDefault().post(new ServerErrorEvent(EventType.Type.WIFI));
+			}
 		} catch (InterruptedException e) {
 			Log.e(TAG, "Wifi server sleep error: " + e.getLocalizedMessage());
 			EventBus.getDefault().post(new ServerErrorEvent(EventType.Type.WIFI));
+		} finally {
+			for (WifiServerConnection connection : mConnectedSockets.values()) {
+				connection.closeConnection();
+				connection.finish();
+			}
+			mConnectedSockets.clear();
+			closeQuietly();
+		}
+	}
+
+	private void acceptConnection() throws IOException {
+		SocketChannel acceptedChannel = mServerChannel.accept();
+		if (acceptedChannel == null) {
+			return;
+		}
+		acceptedChannel.configureBlocking(false);
+		acceptedChannel.socket().setTcpNoDelay(true);
+
+		String newConnectionId = BetterTogetherUtils.getRandomString(ProtocolConstants.MESSAGE_ID_SIZE);
+		WifiServerConnection connection = new WifiServerConnection(newConnectionId, acceptedChannel, WifiServer.this);
+		connection.setSlowConsumerPolicy(mSlowClientPolicy);
+		connection.setReplayBuffer(mReplayBuffer);
+		connection.setSelectionKey(acceptedChannel.register(mSelector, SelectionKey.OP_READ, connection));
+		mConnectedSockets.put(newConnectionId, connection);
+		connection.sendHello();
+
+		Log.d(TAG, "Wifi server connected to client");
+		EventBus.getDefault().post(new ServerConnectionSuccessEvent(EventType.Type.WIFI));
+	}
+
+	// how long the event loop can wait before the next batched flush is due: -1 = no flushes pending
+	private long getBatchTimeout() {
+		if (mBatchedConnections.isEmpty()) {
+			return -1;
+		}
+		long earliestDeadline = Long.MAX_VALUE;
+		for (WifiServerConnection connection : mBatchedConnections) {
+			earliestDeadline = Math.min(earliestDeadline, connection.mFlushDeadline);
+		}
+		return Math.max(0, earliestDeadline - System.nanoTime() / 1000000);
+	}
+
+	// event loop thread only
+	private void flushConnection(WifiServerConnection connection) {
+		if (connection.mFlushDeadline != 0) {
+			connection.mFlushDeadline = 0;
+			mBatchedConnections.remove(connection);
+		}
+		try {
+			connection.flush();
+		} catch (IOException e) {
+			Log.e(TAG, "Wifi server write error: " + e.getLocalizedMessage());
+			connection.recordError();
+			removeConnection(connection);
 		}
 	}
 
-	void sendMessageToAll(String message, @Nullable String ignoreClient) {
-		for (Iterator<Map.Entry<String, WifiServerConnection>> connectedSocketsIterator =
-			 mConnectedSockets.entrySet().iterator();
-			 connectedSocketsIterator.hasNext(); ) {
-			Map.Entry<String, WifiServerConnection> connection = connectedSocketsIterator.next();
-			if (!connection.getKey().equals(ignoreClient)) { // send to all except the single ignored client
+	// event loop thread only - a connection can fail more than once (e.g., a read error and then a write error, or
+	// after another thread has removed it), but is only reported once
+	private void removeConnection(WifiServerConnection connection) {
+		boolean removed = mConnectedSockets.remove(connection.getId(), connection);
+		connection.closeConnection();
+		connection.finish();
+		if (removed) {
+			EventBus.getDefault().post(new ServerMessageErrorEvent(EventType.Type.WIFI));
+		}
+	}
+
+	// called from any thread - the failure is reported by whichever thread removes the connection first; the event loop
+	// then finishes it
+	private void removeConnectionLater(WifiServerConnection connection) {
+		if (mConnectedSockets.remove(connection.getId(), connection)) {
+			connection.closeConnection();
+			requestFlush(connection); // so that the event loop notices and cleans up
+			EventBus.getDefault().post(new ServerMessageErrorEvent(EventType.Type.WIFI));
+		}
+	}
+
+	// called from any thread when a connection has new messages to write (see WifiServerConnection.onMessageQueued)
+	void requestFlush(WifiServerConnection connection) {
+		mFlushRequests.add(connection);
+		Selector selector = mSelector;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	// messages are only queued here - the event loop writes them, so a slow client doesn't delay the others
+	@Override
+	public void sendMessageToAll(OutboundMessage message, @Nullable String ignoreClient) {
+		for (Map.Entry<String, WifiServerConnection> connection : mConnectedSockets.entrySet()) {
+			// send to all except the single ignored client (on any of its links), and only on the chosen link(s) to each
+			if (!connection.getValue().getPeerId(connection.getKey()).equals(ignoreClient) &&
+					connection.getValue().isRouteFor(message)) {
 				if (!connection.getValue().sendMessage(message)) {
-					Log.d(TAG, "Error sending message to client - removing dead client socket");
-					connectedSocketsIterator.remove(); // remove dead connection (client failed)
-					EventBus.getDefault().post(new ServerMessageErrorEvent(EventType.Type.WIFI));
+					Log.d(TAG, "Client failed or too slow - removing client socket");
+					removeConnectionLater(connection.getValue()); // remove dead connection (client failed)
 				}
 			}
 		}
 	}
 
-	void closeAllConnections() {
+	@Override
+	public int getMaxQueuedBytes() {
+		int maxQueuedBytes = 0;
+		for (WifiServerConnection connection : mConnectedSockets.values()) {
+			maxQueuedBytes = Math.max(maxQueuedBytes, connection.getQueuedBytes());
+		}
+		return maxQueuedBytes;
+	}
+
+	int getConnectionCount() {
+		return mConnectedSockets.size();
+	}
+
+	// messages from current clients that were abandoned part way through (dropped to make space, or expired)
+	int getFailedPartialMessageCount() {
+		int failedCount = 0;
+		for (WifiServerConnection connection : mConnectedSockets.values()) {
+			failedCount += connection.getDroppedPartialMessageCount() + connection.getExpiredPartialMessageCount();
+		}
+		return failedCount;
+	}
+
+	@Override
+	public void sendHeartbeats(long now, int interval) {
+		for (WifiServerConnection connection : mConnectedSockets.values()) {
+			if (!connection.sendHeartbeat(now, interval)) {
+				removeConnectionLater(connection);
+			}
+		}
+	}
+
+	@Override
+	public void setSlowClientPolicy(OutboundQueue.Policy policy) {
+		mSlowClientPolicy = policy;
+		for (WifiServerConnection connection : mConnectedSockets.values()) {
+			connection.setSlowConsumerPolicy(policy);
+		}
+	}
+
+	@Override
+	public void closeAllConnections() {
 		mRunning = false;
-		if (mServerSocket != null) {
+		Selector selector = mSelector;
+		if (selector != null) {
+			selector.wakeup(); // the event loop closes everything when it exits
+		} else {
+			closeQuietly(); // not started yet
+		}
+	}
+
+	private void closeQuietly() {
+		if (mServerChannel != null) {
 			try {
-				mServerSocket.close();
-				mServerSocket = null;
+				mServerChannel.close();
 			} catch (Exception ignored) {
 			}
+			mServerChannel = null;
 		}
-		for (Map.Entry<String, WifiServerConnection> connection : mConnectedSockets.entrySet()) {
-			connection.getValue().closeConnection();
+		if (mSelector != null) {
+			try {
+				mSelector.close();
+			} catch (Exception ignored) {
+			}
+			mSelector = null;
 		}
 	}
 }
@@ -16,82 +16,211 @@
 
 package ac.robinson.bettertogether.hotspot;
 
-import android.os.Build;
-import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 
-import org.greenrobot.eventbus.EventBus;
-
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
-
-import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
 import ac.robinson.bettertogether.event.EventType;
-import ac.robinson.bettertogether.event.ServerConnectionSuccessEvent;
-import ac.robinson.bettertogether.event.ServerMessageErrorEvent;
 
+// a single client of the Wifi server - unlike the other connections this has no threads of its own: all reads and writes
+// happen on the WifiServer's event loop, and other threads only queue messages (see RemoteConnection.sendMessage)
 class WifiServerConnection extends RemoteConnection {
 
 	private static final String TAG = "WifiServerConnection";
 
-	private boolean mRunning = false;
+	private static final int MAX_GATHERED_BUFFERS = 64; // buffers (i.e., encoded messages) per write call
+
+	private final String mId;
+	private final SocketChannel mChannel;
+	private final WifiServer mServer;
+	private SelectionKey mKey;
+
+	private final FrameReader mFrameReader = createFrameReader();
 
-	private String mId;
-	private Socket mSocket;
-	private InputStream mInputStream;
-	private OutputStreamWriter mOutputStreamWriter;
+	// buffers that have been taken from the outbound queue but not yet (fully) written - event loop thread only
+	private final ArrayList<PendingWrite> mPendingBuffers = new ArrayList<>();
+	private ByteBuffer[] mWriteBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
 
-	WifiServerConnection(String id, Socket socket) {
+	private volatile boolean mUrgentFlushRequested;
+	long mFlushDeadline; // when the current batch of messages must be written (0 = no batch) - event loop thread only
+	private boolean mFinished; // event loop thread only
+
+	// the last buffer of each message also carries the message, so that its metrics can be recorded once it is written
+	private static final class PendingWrite {
+		final ByteBuffer mBuffer;
+		final OutboundMessage mMessage; // null for all but the final frame of a bulk message
+		final long mEnqueueTime;
+		final boolean mHighPriority; // a control or high priority message (or its trace frame) - see flush
+
+		PendingWrite(ByteBuffer buffer, OutboundMessage message, long enqueueTime, boolean highPriority) {
+			mBuffer = buffer;
+			mMessage = message;
+			mEnqueueTime = enqueueTime;
+			mHighPriority = highPriority;
+		}
+	}
+
+	WifiServerConnection(String id, SocketChannel channel, WifiServer server) {
+		setLogTag(TAG);
+		setMetricsId(EventType.Type.WIFI, id);
 		mId = id;
-		mSocket = socket;
+		mChannel = channel;
+		mServer = server;
 	}
 
-	@Override
-	public void run() {
-		mRunning = true;
-		try {
-			Log.d(TAG, "Wifi server connected to client");
-			EventBus.getDefault().post(new ServerConnectionSuccessEvent(EventType.Type.WIFI));
-
-			mInputStream = mSocket.getInputStream();
-			mOutputStreamWriter = new OutputStreamWriter(mSocket.getOutputStream(), BroadcastMessage.CHARSET);
-
-			int bufferSize = HotspotManagerService.MESSAGE_BUFFER_SIZE;
-			byte[] buffer = new byte[bufferSize];
-			int bytesRead;
-			StringBuilder stringBuilder = new StringBuilder();
-
-			while (mRunning) {
-				bytesRead = mInputStream.read(buffer);
-				processBytes(mId, buffer, bytesRead, stringBuilder);
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			Log.e(TAG, "Wifi server connection error: " + e.getLocalizedMessage());
-			EventBus.getDefault().post(new ServerMessageErrorEvent(EventType.Type.WIFI));
-		}
+	String getId() {
+		return mId;
 	}
 
-	boolean sendMessage(String message) {
-		return sendMessage(mOutputStreamWriter, message);
+	void setSelectionKey(SelectionKey key) {
+		mKey = key;
 	}
 
-	void closeConnection() {
-		mRunning = false;
-		closeConnection(mInputStream);
-		mInputStream = null;
-		closeConnection(mOutputStreamWriter);
-		mOutputStreamWriter = null;
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-			closeConnection(mSocket);
-		} else {
-			if (mSocket != null) {
-				try {
-					mSocket.close();
-				} catch (Exception ignored) {
+	SelectionKey getSelectionKey() {
+		return mKey;
+	}
+
+	// event loop thread only - a single read, then dispatch any complete frames (if more data is waiting, the channel is
+	// selected again, so one busy client can't starve the others)
+	void read(ByteBuffer readBuffer) throws IOException {
+		int bytesRead = mFrameReader.readFrom(mChannel, readBuffer);
+		processBytes(mId, bytesRead, mFrameReader);
+	}
+
+	// traced messages are preceded by a TYPE_TRACE frame (see RemoteConnection.encodeTraceFrame) - the write hop's time
+	// is when the message is gathered for writing, which is at most one socket write before it is actually sent
+	private boolean addTraceFrame(int index, OutboundMessage message, long enqueueTime) {
+		byte[] traceFrame = encodeTraceFrame(message);
+		if (traceFrame == null) {
+			return false;
+		}
+		mPendingBuffers.add(index, new PendingWrite(ByteBuffer.wrap(traceFrame), null, enqueueTime,
+				message.mPriority != OutboundMessage.PRIORITY_BULK));
+		return true;
+	}
+
+	// event loop thread only - writes as much queued data as the socket will accept, gathering multiple messages into each
+	// write; if the socket's buffer fills up, we wait for the channel to become writable again before continuing
+	// bulk messages are added as one buffer per frame, so that high priority messages can be written ahead of any of their
+	// frames that are still waiting (but never in the middle of a frame that has been partly written, or ahead of high
+	// priority messages that are still waiting after a stalled write, which would reorder them)
+	void flush() throws IOException {
+		while (true) {
+			OutboundMessage message;
+			int priorityIndex = getPriorityInsertIndex();
+			while ((message = pollHighPriorityMessage()) != null) {
+				long enqueueTime = getPolledEnqueueTime();
+				if (addTraceFrame(priorityIndex, message, enqueueTime)) {
+					priorityIndex += 1;
+				}
+				mPendingBuffers.add(priorityIndex, new PendingWrite(message.getBuffer(isCompressionSupported()), message,
+						enqueueTime, true));
+				priorityIndex += 1;
+			}
+			while (mPendingBuffers.size() < MAX_GATHERED_BUFFERS && (message = pollMessage()) != null) {
+				// already encoded - shared by every connection (with the same capabilities)
+				ByteBuffer buffer = message.getBuffer(isCompressionSupported());
+				long enqueueTime = getPolledEnqueueTime();
+				addTraceFrame(mPendingBuffers.size(), message, enqueueTime);
+				if (message.mPriority != OutboundMessage.PRIORITY_BULK) {
+					mPendingBuffers.add(new PendingWrite(buffer, message, enqueueTime, true));
+					continue;
+				}
+				byte[] frames = message.getFrames(isCompressionSupported());
+				int position = 0;
+				while (position < frames.length) {
+					int frameLength = FrameCodec.getFrameLength(frames, position);
+					buffer.limit(position + frameLength).position(position);
+					position += frameLength;
+					// each slice starts at position 0 (see above)
+					mPendingBuffers.add(new PendingWrite(buffer.slice(), position == frames.length ? message : null,
+							enqueueTime, false));
+				}
+			}
+			if (mPendingBuffers.isEmpty()) {
+				break;
+			}
+
+			int bufferCount = Math.min(mPendingBuffers.size(), MAX_GATHERED_BUFFERS);
+			for (int i = 0; i < bufferCount; i++) {
+				mWriteBuffers[i] = mPendingBuffers.get(i).mBuffer;
+			}
+			mChannel.write(mWriteBuffers, 0, bufferCount);
+
+			int written = 0;
+			while (written < bufferCount && !mWriteBuffers[written].hasRemaining()) {
+				written += 1;
+			}
+			for (int i = 0; i < bufferCount; i++) {
+				mWriteBuffers[i] = null;
+			}
+			for (int i = 0; i < written; i++) {
+				PendingWrite pendingWrite = mPendingBuffers.get(i);
+				if (pendingWrite.mMessage != null) {
+					onMessageWritten(pendingWrite.mMessage, pendingWrite.mEnqueueTime);
 				}
 			}
+			mPendingBuffers.subList(0, written).clear();
+			if (written < bufferCount) {
+				onWriteStalled();
+				mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); // socket is full - wait until writable
+				return;
+			}
 		}
-		mSocket = null;
+		mKey.interestOps(SelectionKey.OP_READ);
+	}
+
+	// where newly polled high priority messages go: ahead of the first waiting bulk frame (but after a partly written
+	// frame) - bulk messages are written one frame at a time, so receivers can handle frames of other messages between
+	// their parts, and nothing urgent has to wait for them
+	private int getPriorityInsertIndex() {
+		int size = mPendingBuffers.size();
+		int start = size > 0 && mPendingBuffers.get(0).mBuffer.position() > 0 ? 1 : 0;
+		for (int i = start; i < size; i++) {
+			if (!mPendingBuffers.get(i).mHighPriority) {
+				return i;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	void onMessageQueued(OutboundMessage message) {
+		if (message.mUrgent) {
+			mUrgentFlushRequested = true;
+		}
+		mServer.requestFlush(this);
+	}
+
+	@Override
+	void onCreditReceived() {
+		mUrgentFlushRequested = true; // these messages have already waited
+		mServer.requestFlush(this);
+	}
+
+	boolean takeUrgentFlushRequest() {
+		boolean urgent = mUrgentFlushRequested;
+		mUrgentFlushRequested = false;
+		return urgent;
+	}
+
+	// called from the event loop when the connection ends for any reason - possibly more than once (e.g., a read error
+	// followed by a write error, or flush requests that were queued before the connection closed), so only the first
+	// call has any effect
+	void finish() {
+		if (mFinished) {
+			return;
+		}
+		mFinished = true;
+		finishReading(mFrameReader);
+		mPendingBuffers.clear();
+	}
+
+	@Override
+	public void closeConnection() {
+		stopWriter();
+		closeConnection(mChannel); // also cancels the selection key
 	}
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ac.robinson.bettertogether.event.ClientSessionEvent;
+import ac.robinson.bettertogether.event.MessageReceivedEvent;
+import ac.robinson.bettertogether.event.StreamFrameReceivedEvent;
+
+// the per-message work that a connection does on the host: encoding and queueing a message to send (sendMessage), and
+// parsing, reassembling and dispatching one that has been received (processBytes, which calls receiveMessage) - no
+// sockets are involved, so these are the CPU costs alone
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionBenchmark {
+
+	@Param({ "64", "1024", "16384", "262144" })
+	int mPayloadSize;
+
+	// how many frames a received message is split into (more for large messages, as frames can't be larger than
+	// MAX_PAYLOAD_SIZE) - sent messages always use MESSAGE_PART_SIZE, as in the app
+	@Param({ "1", "4", "16" })
+	int mPartCount;
+
+	private static final String CONNECTION_ID = "benchmk1";
+
+	private BenchmarkConnection mConnection;
+	private FrameReader mFrameReader;
+	private byte[] mPayload;
+	private ByteArrayInputStream mReceivedFrames;
+	private int mReceivedCount; // so that receiving can't be optimised away
+
+	// a connection that is never connected - sent messages stay queued until the benchmark takes them
+	private static final class BenchmarkConnection extends RemoteConnection {
+		BenchmarkConnection() {
+			setLogTag("BenchmarkConnection");
+		}
+
+		@Override
+		public void closeConnection() {
+			stopWriter();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mPayload = createPayload(mPayloadSize);
+		mConnection = new BenchmarkConnection();
+		mConnection.setConnectionListener(new ConnectionListener() {
+			@Override
+			public void onMessageReceived(MessageReceivedEvent event) {
+				mReceivedCount += 1;
+				event.recycle(); // returns the message's flow control credit, as the service does once it is handled
+			}
+
+			@Override
+			public void onStreamFrameReceived(StreamFrameReceivedEvent event) {
+				event.setConsumed();
+			}
+
+			@Override
+			public void onSessionStarted(ClientSessionEvent event) {
+			}
+		});
+		mFrameReader = mConnection.createFrameReader();
+
+		int partSize = Math.min((mPayloadSize + mPartCount - 1) / mPartCount, FrameCodec.MAX_PAYLOAD_SIZE);
+		mReceivedFrames = new ByteArrayInputStream(FrameCodec.encodeMessage(mPayload, 0, 1, partSize));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mConnection.finishReading(mFrameReader);
+		mConnection.closeConnection();
+	}
+
+	// text-like content (as most messages are JSON or Base64), so that compression behaves as it does in practice
+	static byte[] createPayload(int size) {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/{}\":,";
+		Random random = new Random(size);
+		byte[] payload = new byte[size];
+		for (int i = 0; i < size; i++) {
+			payload[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+		}
+		return payload;
+	}
+
+	@Benchmark
+	public OutboundMessage sendMessage() {
+		OutboundMessage message = OutboundMessage.message(mPayload, null, false);
+		mConnection.sendMessage(message);
+		drainQueue();
+		return message;
+	}
+
+	@Benchmark
+	public int processBytes() throws IOException {
+		mReceivedFrames.reset();
+		while (mReceivedFrames.available() > 0) {
+			mConnection.processBytes(CONNECTION_ID, mFrameReader.readFrom(mReceivedFrames), mFrameReader);
+		}
+		drainQueue(); // any credit updates
+		return mReceivedCount;
+	}
+
+	private void drainQueue() {
+		while (mConnection.pollMessage() != null) {
+			// nothing to do - the connection has no writer
+		}
+	}
+}
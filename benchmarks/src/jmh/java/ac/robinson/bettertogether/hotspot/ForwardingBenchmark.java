@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+import ac.robinson.bettertogether.event.MessageReceivedEvent;
+
+// what a server does with each message it forwards - decoding the message to set its from id, then encoding it again
+// (which older devices still need - see OutboundMessage.getLegacyMessage), compared with forwarding the received bytes
+// with the from id in a sender frame (OutboundMessage.forwardedMessage)
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForwardingBenchmark {
+
+	private static final String SENDER_ID = "client";
+
+	@Param({ "64", "1024", "16384", "262144" })
+	int mPayloadSize;
+
+	private byte[] mMessageBytes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mMessageBytes = MessageSerializer.toBytes(new BroadcastMessage(1,
+				new String(ConnectionBenchmark.createPayload(mPayloadSize), "UTF-8")));
+	}
+
+	@Benchmark
+	public OutboundMessage reencode() throws IOException {
+		MessageReceivedEvent event = MessageReceivedEvent.obtain(SENDER_ID, mMessageBytes, 0, mMessageBytes.length);
+		OutboundMessage message = OutboundMessage.message(MessageSerializer.toBytes(event.getMessage()), null, false);
+		event.recycle();
+		return message;
+	}
+
+	@Benchmark
+	public OutboundMessage passThrough() {
+		MessageReceivedEvent event = MessageReceivedEvent.obtain(SENDER_ID, mMessageBytes, 0, mMessageBytes.length);
+		OutboundMessage message = OutboundMessage.forwardedMessage(event.getPayload(), event.getPayloadLength(), null,
+				false, false, 0, 0, 0, event.getSenderId(), null);
+		event.recycle();
+		return message;
+	}
+}
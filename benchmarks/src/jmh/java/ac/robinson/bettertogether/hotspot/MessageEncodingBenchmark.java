@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+
+// converting BroadcastMessages to and from what is sent - the API's Base64 text form (toString/fromString, and
+// splitEqually, which the text framing used to split it into parts) alongside the binary form that the frame codec sends
+// (MessageSerializer), which skips the Base64 step
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageEncodingBenchmark {
+
+	@Param({ "64", "1024", "16384", "262144" })
+	int mPayloadSize;
+
+	// for splitEqually only
+	@Param({ "1", "4", "16" })
+	int mPartCount;
+
+	private BroadcastMessage mMessage;
+	private String mMessageString;
+	private byte[] mMessageBytes;
+	private int mPartSize;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mMessage = new BroadcastMessage(1, new String(ConnectionBenchmark.createPayload(mPayloadSize), "UTF-8"));
+		mMessageString = BroadcastMessage.toString(mMessage);
+		mMessageBytes = MessageSerializer.toBytes(mMessage);
+		mPartSize = (mMessageString.length() + mPartCount - 1) / mPartCount;
+	}
+
+	@Benchmark
+	public String toText() throws IOException {
+		return BroadcastMessage.toString(mMessage);
+	}
+
+	@Benchmark
+	public BroadcastMessage fromText() throws IOException, ClassNotFoundException {
+		return BroadcastMessage.fromString(mMessageString);
+	}
+
+	@Benchmark
+	public List<String> splitEqually() {
+		return BroadcastMessage.splitEqually(mMessageString, mPartSize);
+	}
+
+	@Benchmark
+	public byte[] toBytes() throws IOException {
+		return MessageSerializer.toBytes(mMessage);
+	}
+
+	@Benchmark
+	public BroadcastMessage fromBytes() throws IOException, ClassNotFoundException {
+		return MessageSerializer.fromBytes(mMessageBytes, 0, mMessageBytes.length);
+	}
+}
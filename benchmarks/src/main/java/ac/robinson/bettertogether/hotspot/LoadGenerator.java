@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+import ac.robinson.bettertogether.event.ClientSessionEvent;
+import ac.robinson.bettertogether.event.MessageReceivedEvent;
+import ac.robinson.bettertogether.event.StreamFrameReceivedEvent;
+
+// a headless load test for the host: starts the real WifiServer on the loopback interface, connects simulated clients to
+// it (see SimulatedClient), and has each of them send a mix of messages, which the host forwards to every other client in
+// the same way as HotspotManagerService - run with, e.g.: ./gradlew :benchmarks:loadTest --args='--clients 20'
+// note: the clients run in the same process as the host, so they share its CPU - compare results between runs (or
+// versions) rather than treating them as what a host phone would achieve
+public final class LoadGenerator {
+
+	static final char FIELD_SEPARATOR = '|'; // message text: kind | creation time (nanoseconds) | padding
+
+	static final int KIND_PING = 0; // small urgent messages (e.g., touch events and other controls)
+	static final int KIND_JSON = 1; // bursts of medium-sized JSON messages (e.g., playlist updates)
+	static final int KIND_MULTIPART = 2; // messages larger than MESSAGE_PART_SIZE, which are sent in parts
+	private static final String[] KIND_NAMES = { "ping", "json", "multipart" };
+
+	private static final String ADDRESS = "127.0.0.1";
+	private static final int HEARTBEAT_INTERVAL = 1000; // milliseconds - the service's default for Wifi
+	private static final int SERVER_START_TIMEOUT = 5000; // WifiServer waits a second before it starts listening
+	private static final int DRAIN_TIME = 3000; // once sending stops, how long to wait for messages still in transit
+	private static final String CLIENT_THREAD_PREFIX = "SimulatedClient"; // threads that aren't counted as the host's
+
+	private static final String TRACE_FILE_NAME = "trace.json"; // (in the working directory)
+
+	private static final String USAGE = "options: --clients <count> (default: 20), --duration <seconds> (30), " +
+			"--rate <sends per second, per client> (10), --mix <ping>:<json>:<multipart> (relative weights; 70:25:5), " +
+			"--burst <JSON messages per burst> (10), --multipart-size <bytes> (32768), --port <port> (" +
+			ConnectionOptions.DEFAULT_HOTSPOT_PORT + "), --policy <slow client policy: drop, disconnect or conflate> " +
+			"(disconnect, as in the app), --trace <trace one in this many messages> (0 = off; if enabled, the traces " +
+			"are saved in " + TRACE_FILE_NAME + ")";
+
+	private int mClientCount = 20;
+	private int mDuration = 30;
+	private int mRate = 10;
+	private int[] mMix = { 70, 25, 5 };
+	private int mBurstSize = 10;
+	private int mMultipartSize = 32 * 1024;
+	private int mPort = ConnectionOptions.DEFAULT_HOTSPOT_PORT;
+	private OutboundQueue.Policy mPolicy = OutboundQueue.Policy.DISCONNECT;
+	private int mTraceInterval = 0;
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator loadGenerator = new LoadGenerator();
+		try {
+			loadGenerator.parseArguments(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getLocalizedMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		try {
+			loadGenerator.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0); // the server's event loop and the clients' threads are not daemons
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+			}
+			String value = args[i + 1];
+			try {
+				switch (args[i]) {
+					case "--clients":
+						mClientCount = Integer.parseInt(value);
+						break;
+					case "--duration":
+						mDuration = Integer.parseInt(value);
+						break;
+					case "--rate":
+						mRate = Integer.parseInt(value);
+						break;
+					case "--mix":
+						String[] weights = value.split(":");
+						if (weights.length != KIND_NAMES.length) {
+							throw new IllegalArgumentException("Invalid mix " + value);
+						}
+						for (int kind = 0; kind < weights.length; kind++) {
+							mMix[kind] = Integer.parseInt(weights[kind]);
+						}
+						break;
+					case "--burst":
+						mBurstSize = Integer.parseInt(value);
+						break;
+					case "--multipart-size":
+						mMultipartSize = Integer.parseInt(value);
+						break;
+					case "--port":
+						mPort = Integer.parseInt(value);
+						break;
+					case "--policy":
+						try {
+							mPolicy = OutboundQueue.Policy.valueOf(value.toUpperCase(Locale.US));
+						} catch (IllegalArgumentException e) {
+							throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value);
+						}
+						break;
+					case "--trace":
+						mTraceInterval = Integer.parseInt(value);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value);
+			}
+		}
+		if (mClientCount < 2 || mDuration < 1 || mRate < 1 || mBurstSize < 1 || mMix[0] + mMix[1] + mMix[2] <= 0) {
+			throw new IllegalArgumentException("At least two clients, and positive durations, rates and weights are needed");
+		}
+	}
+
+	private void run() throws Exception {
+		// no subscribers for the server's connection events - don't log every one
+		EventBus.builder().logNoSubscriberMessages(false).sendNoSubscriberEvent(false).installDefaultEventBus();
+		Set<Thread> baselineThreads = new HashSet<>(Thread.getAllStackTraces().keySet());
+
+		WifiServer server = new WifiServer(ADDRESS, mPort, new ReplayBuffer(512, 512 * 1024));
+		server.setSlowClientPolicy(mPolicy);
+		TraceLog.setSampleInterval(mTraceInterval); // (every client and the host share one process, and one clock)
+		Host host = new Host(server);
+		server.start();
+
+		ArrayList<SimulatedClient> clients = new ArrayList<>();
+		ArrayList<Statistics> statistics = new ArrayList<>();
+		for (int i = 0; i < mClientCount; i++) {
+			Statistics clientStatistics = new Statistics();
+			SimulatedClient client = new SimulatedClient(i, clientStatistics);
+			connect(client);
+			clients.add(client);
+			statistics.add(clientStatistics);
+		}
+		System.out.println("Connected " + mClientCount + " clients to " + ADDRESS + ":" + mPort);
+
+		// each client sends on its own schedule, spread evenly over the first period
+		ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+				Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new NamedThreadFactory(CLIENT_THREAD_PREFIX +
+						"Sender"));
+		long period = TimeUnit.SECONDS.toNanos(1) / mRate;
+		for (int i = 0; i < mClientCount; i++) {
+			final SimulatedClient client = clients.get(i);
+			final Statistics clientStatistics = statistics.get(i);
+			final Random random = new Random(i);
+			senders.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					sendMessages(client, clientStatistics, random);
+				}
+			}, period * i / mClientCount, period, TimeUnit.NANOSECONDS);
+			senders.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					if (!client.sendHeartbeat(System.nanoTime() / 1000000, HEARTBEAT_INTERVAL)) {
+						client.closeConnection();
+					}
+				}
+			}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		int peakHostThreads = 0;
+		long previousDelivered = 0;
+		for (int second = 1; second <= mDuration; second++) {
+			Thread.sleep(1000);
+			long delivered = 0;
+			for (Statistics clientStatistics : statistics) {
+				delivered += clientStatistics.getDeliveredCount();
+			}
+			int hostThreads = countHostThreads(baselineThreads);
+			peakHostThreads = Math.max(peakHostThreads, hostThreads);
+			System.out.println(String.format(Locale.US, "%3ds: %d messages delivered/s; host queue: %d bytes; " +
+					"host threads: %d", second, delivered - previousDelivered, server.getMaxQueuedBytes(), hostThreads));
+			previousDelivered = delivered;
+		}
+
+		senders.shutdownNow();
+		Thread.sleep(DRAIN_TIME);
+		int hostReassemblyFailures = server.getFailedPartialMessageCount();
+		int connectedClients = server.getConnectionCount();
+		int hostThreads = countHostThreads(baselineThreads);
+
+		int failedClients = 0;
+		for (SimulatedClient client : clients) {
+			if (client.hasFailed()) {
+				failedClients += 1;
+			}
+			client.closeConnection();
+		}
+		server.closeAllConnections();
+		host.shutdown();
+		Thread.sleep(500); // for the clients' final statistics
+
+		Statistics total = new Statistics();
+		for (Statistics clientStatistics : statistics) {
+			total.add(clientStatistics);
+		}
+		report(total, failedClients, connectedClients, hostReassemblyFailures, hostThreads, peakHostThreads);
+		if (mTraceInterval > 0) {
+			saveTrace();
+		}
+	}
+
+	private void saveTrace() throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(TRACE_FILE_NAME), "UTF-8");
+		try {
+			writer.write(TraceLog.toChromeTrace());
+		} finally {
+			writer.close();
+		}
+		System.out.println("Traces saved in " + TRACE_FILE_NAME);
+	}
+
+	private void connect(SimulatedClient client) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() / 1000000 + SERVER_START_TIMEOUT;
+		while (true) {
+			try {
+				client.connect(ADDRESS, mPort);
+				return;
+			} catch (IOException e) {
+				if (System.nanoTime() / 1000000 > deadline) {
+					throw e;
+				}
+				Thread.sleep(100); // the server isn't listening yet
+			}
+		}
+	}
+
+	// one scheduled send - a single message, or a burst of JSON messages
+	private void sendMessages(SimulatedClient client, Statistics statistics, Random random) {
+		int choice = random.nextInt(mMix[0] + mMix[1] + mMix[2]);
+		int kind = choice < mMix[0] ? KIND_PING : choice < mMix[0] + mMix[1] ? KIND_JSON : KIND_MULTIPART;
+		int count = kind == KIND_JSON ? mBurstSize : 1;
+		try {
+			for (int i = 0; i < count; i++) {
+				byte[] message = MessageSerializer.toBytes(createMessage(kind, random));
+				MessageTrace trace = TraceLog.enqueue(TraceLog.startTrace(0, System.nanoTime()));
+				if (!client.sendMessage(OutboundMessage.message(message, null, kind == KIND_PING, false, trace))) {
+					return; // failed, or too slow (reported when the run ends)
+				}
+				statistics.recordSend(kind);
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to encode message: " + e.getLocalizedMessage());
+		}
+	}
+
+	private BroadcastMessage createMessage(int kind, Random random) {
+		StringBuilder text = new StringBuilder(kind == KIND_MULTIPART ? mMultipartSize : 512);
+		text.append(kind).append(FIELD_SEPARATOR).append(System.nanoTime()).append(FIELD_SEPARATOR);
+		switch (kind) {
+			case KIND_PING:
+				text.append(random.nextInt(1000)).append(',').append(random.nextInt(1000));
+				break;
+			case KIND_JSON:
+				text.append("{\"id\":\"").append(Long.toHexString(random.nextLong())).append("\",\"items\":[");
+				for (int i = 0; i < 5; i++) {
+					text.append(i > 0 ? "," : "").append("{\"title\":\"Item ").append(random.nextInt()).append(
+							"\",\"position\":").append(random.nextInt(10000)).append('}');
+				}
+				text.append("]}");
+				break;
+			default:
+				while (text.length() < mMultipartSize) {
+					text.append((char) ('A' + random.nextInt(26))); // (doesn't compress away to a single part)
+				}
+				break;
+		}
+		return new BroadcastMessage(1, text.toString());
+	}
+
+	private static int countHostThreads(Set<Thread> baselineThreads) {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (!baselineThreads.contains(thread) && !thread.getName().startsWith(CLIENT_THREAD_PREFIX)) {
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	private void report(Statistics total, int failedClients, int connectedClients, int hostReassemblyFailures,
+						int hostThreads, int peakHostThreads) {
+		long sent = total.getSentCount();
+		long expected = 0;
+		for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+			expected += total.mSent[kind] * (mClientCount - 1); // every other client receives each message
+		}
+		long delivered = total.getDeliveredCount();
+
+		System.out.println();
+		System.out.println(String.format(Locale.US, "Clients: %d (%d failed; %d still connected at the end); " +
+						"duration: %ds; rate: %d/s per client; mix: %d:%d:%d; burst: %d; multipart size: %d bytes; policy: %s",
+				mClientCount, failedClients, connectedClients, mDuration, mRate, mMix[0], mMix[1], mMix[2], mBurstSize,
+				mMultipartSize, mPolicy.name().toLowerCase(Locale.US)));
+		System.out.println(String.format(Locale.US, "Sent: %d messages (%.1f/s); delivered: %d of %d (%d missing); " +
+						"throughput: %.1f messages/s, %.2f MB/s", sent, sent / (double) mDuration, delivered, expected,
+				expected - delivered, delivered / (double) mDuration, total.mDeliveredBytes / (double) mDuration / 1000000));
+		System.out.println("End-to-end latency (ms):   count      p50      p99     p999      max");
+		Samples all = new Samples();
+		for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+			printLatencies(KIND_NAMES[kind], total.mLatencies[kind]);
+			all.add(total.mLatencies[kind]);
+		}
+		printLatencies("all", all);
+		System.out.println("Reassembly failures: host " + hostReassemblyFailures + ", clients " +
+				total.mReassemblyFailures);
+		System.out.println("Host threads: " + hostThreads + " (peak " + peakHostThreads + ")");
+	}
+
+	private static void printLatencies(String name, Samples samples) {
+		long[] sorted = samples.toSortedArray();
+		System.out.println(String.format(Locale.US, "  %-22s %7d %8.2f %8.2f %8.2f %8.2f", name, sorted.length,
+				percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1)));
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1);
+		return sorted[index] / 1000000.0; // nanoseconds to milliseconds
+	}
+
+	// what HotspotManagerService does with each message from a client (see its onMessageReceived and forwardMessage) -
+	// messages are routed on a MessageDispatcher, as in the service, and heartbeats are sent from a single thread that
+	// stands in for the service's main thread
+	public static final class Host {
+		private final WifiServer mServer;
+		private final ScheduledExecutorService mMainThread = Executors.newSingleThreadScheduledExecutor(
+				new NamedThreadFactory("HostMain"));
+		private final MessageDispatcher mDispatcher;
+
+		Host(WifiServer server) {
+			mServer = server;
+			mDispatcher = new MessageDispatcher(new MessageDispatcher.Listener() {
+				@Override
+				public void onMessage(MessageReceivedEvent event) {
+					forwardMessage(event);
+				}
+
+				@Override
+				public void onStreamFrame(StreamFrameReceivedEvent event) {
+					event.setConsumed(); // not used in these tests
+				}
+
+				@Override
+				public void onSessionStarted(ClientSessionEvent event) {
+				}
+			});
+			mDispatcher.start();
+			RemoteConnection.setDefaultConnectionListener(mDispatcher); // (the simulated clients have their own)
+			mMainThread.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					mServer.sendHeartbeats(System.nanoTime() / 1000000, HEARTBEAT_INTERVAL);
+				}
+			}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		// forwarded without decoding, as the service does (see HotspotManagerService.forwardMessage)
+		private void forwardMessage(MessageReceivedEvent event) {
+			TraceLog.addHop(event.mTraceId, MessageTrace.HOP_DISPATCH);
+			mServer.sendMessageToAll(OutboundMessage.forwardedMessage(event.getPayload(), event.getPayloadLength(),
+					null, event.mUrgent, event.mSystem, 0, 0, 0, event.getSenderId(), TraceLog.enqueue(event.mTraceId)),
+					event.mDeliveredBy);
+			event.recycle();
+		}
+
+		void shutdown() {
+			mMainThread.shutdownNow();
+			RemoteConnection.setDefaultConnectionListener(ConnectionListener.EVENT_BUS);
+			mDispatcher.close();
+		}
+	}
+
+	// one for each client (updated by its sending and receiving threads), so that clients don't contend with each other
+	static final class Statistics {
+		private final long[] mSent = new long[KIND_NAMES.length];
+		private final Samples[] mLatencies = new Samples[KIND_NAMES.length];
+		private long mDeliveredBytes;
+		private long mReassemblyFailures;
+
+		Statistics() {
+			for (int kind = 0; kind < mLatencies.length; kind++) {
+				mLatencies[kind] = new Samples();
+			}
+		}
+
+		synchronized void recordSend(int kind) {
+			mSent[kind] += 1;
+		}
+
+		synchronized void recordDelivery(int kind, long latency, int length) {
+			mLatencies[kind].add(latency);
+			mDeliveredBytes += length;
+		}
+
+		synchronized void recordReassemblyFailures(int count) {
+			mReassemblyFailures += count;
+		}
+
+		synchronized long getSentCount() {
+			long sent = 0;
+			for (long kindSent : mSent) {
+				sent += kindSent;
+			}
+			return sent;
+		}
+
+		synchronized long getDeliveredCount() {
+			long delivered = 0;
+			for (Samples samples : mLatencies) {
+				delivered += samples.mCount;
+			}
+			return delivered;
+		}
+
+		synchronized void add(Statistics other) {
+			synchronized (other) {
+				for (int kind = 0; kind < mSent.length; kind++) {
+					mSent[kind] += other.mSent[kind];
+					mLatencies[kind].add(other.mLatencies[kind]);
+				}
+				mDeliveredBytes += other.mDeliveredBytes;
+				mReassemblyFailures += other.mReassemblyFailures;
+			}
+		}
+	}
+
+	// every latency is kept (rather than a histogram), so percentiles are exact - a few million samples at most
+	private static final class Samples {
+		private long[] mValues = new long[1024];
+		private int mCount;
+
+		void add(long value) {
+			if (mCount == mValues.length) {
+				mValues = Arrays.copyOf(mValues, mValues.length * 2);
+			}
+			mValues[mCount++] = value;
+		}
+
+		void add(Samples other) {
+			for (int i = 0; i < other.mCount; i++) {
+				add(other.mValues[i]);
+			}
+		}
+
+		long[] toSortedArray() {
+			long[] sorted = Arrays.copyOf(mValues, mCount);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	private static final class NamedThreadFactory implements ThreadFactory {
+		private final String mName;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			mName = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+		}
+	}
+}
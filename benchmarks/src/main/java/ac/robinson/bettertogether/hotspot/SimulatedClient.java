@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+import ac.robinson.bettertogether.event.ClientSessionEvent;
+import ac.robinson.bettertogether.event.EventType;
+import ac.robinson.bettertogether.event.MessageReceivedEvent;
+import ac.robinson.bettertogether.event.StreamFrameReceivedEvent;
+
+// one simulated device for LoadGenerator - a real client connection (hello, flow control, batching, reassembly, etc.)
+// over a plain socket, so to the server it is no different from a phone; each message's text starts with its kind and
+// the time it was created (see LoadGenerator.createMessage), so end-to-end latency can be measured when it arrives
+final class SimulatedClient extends RemoteConnection implements Runnable {
+
+	private static final String TAG = "SimulatedClient";
+	private static final int CONNECT_TIMEOUT = 5000; // milliseconds
+
+	private final int mIndex;
+	private final LoadGenerator.Statistics mStatistics;
+	private volatile Socket mSocket;
+	private volatile boolean mRunning = false;
+	private volatile boolean mFailed = false;
+
+	SimulatedClient(int index, LoadGenerator.Statistics statistics) {
+		setLogTag(TAG);
+		mIndex = index;
+		mStatistics = statistics;
+
+		// all of the clients are in one process - see setLocalSessionId and setPeerSessionsEnabled
+		setLocalSessionId(createSessionId());
+		setPeerSessionsEnabled(false);
+		setMetricsId(EventType.Type.WIFI, ProtocolConstants.SERVER_MESSAGE_ID);
+		setConnectionListener(new ConnectionListener() {
+			@Override
+			public void onMessageReceived(MessageReceivedEvent event) {
+				long receivedTime = System.nanoTime();
+				TraceLog.addHop(event.mTraceId, MessageTrace.HOP_DISPATCH);
+				BroadcastMessage message = event.getMessage();
+				String text = message.getMessage();
+				int kindEnd = text != null ? text.indexOf(LoadGenerator.FIELD_SEPARATOR) : -1;
+				int timeEnd = kindEnd >= 0 ? text.indexOf(LoadGenerator.FIELD_SEPARATOR, kindEnd + 1) : -1;
+				if (timeEnd > 0) {
+					int kind = Integer.parseInt(text.substring(0, kindEnd));
+					long sentTime = Long.parseLong(text.substring(kindEnd + 1, timeEnd));
+					mStatistics.recordDelivery(kind, receivedTime - sentTime, text.length());
+				}
+				event.recycle(); // returns the message's flow control credit
+			}
+
+			@Override
+			public void onStreamFrameReceived(StreamFrameReceivedEvent event) {
+				event.setConsumed();
+			}
+
+			@Override
+			public void onSessionStarted(ClientSessionEvent event) {
+			}
+		});
+	}
+
+	// may be retried if it fails (e.g., while the server is starting)
+	void connect(String address, int port) throws IOException {
+		Socket socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+		mSocket = socket;
+		new Thread(SimulatedClient.this, TAG + "-" + mIndex).start();
+	}
+
+	@Override
+	public void run() {
+		mRunning = true;
+		FrameReader frameReader = null;
+		try {
+			InputStream inputStream = mSocket.getInputStream();
+			startWriter(new BufferedOutputStream(mSocket.getOutputStream(), ProtocolConstants.MESSAGE_BUFFER_SIZE));
+			frameReader = createFrameReader();
+			while (mRunning) {
+				processBytes(ProtocolConstants.SERVER_MESSAGE_ID, frameReader.readFrom(inputStream), frameReader);
+			}
+		} catch (IOException e) {
+			if (mRunning) {
+				mFailed = true;
+				System.err.println("Client " + mIndex + " disconnected: " + e.getLocalizedMessage());
+			}
+		} finally {
+			mStatistics.recordReassemblyFailures(getDroppedPartialMessageCount() + getExpiredPartialMessageCount());
+			finishReading(frameReader);
+		}
+	}
+
+	boolean hasFailed() {
+		return mFailed;
+	}
+
+	@Override
+	public void closeConnection() {
+		mRunning = false;
+		stopWriter();
+		closeConnection(mSocket);
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package android.util;
+
+import java.nio.charset.Charset;
+
+// a JVM stand-in for the Android class, for the benchmarks module only - the Better Together API uses it to convert
+// BroadcastMessages to and from strings; DEFAULT output is wrapped at 76 characters, as on Android
+public final class Base64 {
+
+	public static final int DEFAULT = 0;
+	public static final int NO_PADDING = 1;
+	public static final int NO_WRAP = 2;
+	public static final int CRLF = 4;
+	public static final int URL_SAFE = 8;
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final byte[] LINE_SEPARATOR = new byte[]{ '\n' };
+
+	public static String encodeToString(byte[] input, int flags) {
+		return new String(encode(input, flags), US_ASCII);
+	}
+
+	public static byte[] encode(byte[] input, int flags) {
+		java.util.Base64.Encoder encoder;
+		if ((flags & URL_SAFE) != 0) {
+			encoder = java.util.Base64.getUrlEncoder();
+		} else if ((flags & NO_WRAP) != 0) {
+			encoder = java.util.Base64.getEncoder();
+		} else {
+			encoder = java.util.Base64.getMimeEncoder(76, LINE_SEPARATOR);
+		}
+		if ((flags & NO_PADDING) != 0) {
+			encoder = encoder.withoutPadding();
+		}
+		return encoder.encode(input);
+	}
+
+	public static byte[] decode(String str, int flags) {
+		return decode(str.getBytes(US_ASCII), flags);
+	}
+
+	public static byte[] decode(byte[] input, int flags) {
+		return ((flags & URL_SAFE) != 0 ? java.util.Base64.getUrlDecoder() : java.util.Base64.getMimeDecoder())
+				.decode(input);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+	private final DuplicateFilter mFilter = new DuplicateFilter();
+
+	@Test
+	public void repeatedIdsAreDuplicates() {
+		assertFalse(mFilter.isDuplicate(10));
+		assertFalse(mFilter.isDuplicate(11));
+		assertTrue(mFilter.isDuplicate(10));
+		assertTrue(mFilter.isDuplicate(11));
+		assertEquals(2, mFilter.getDuplicateCount());
+	}
+
+	@Test
+	public void idsMayArriveOutOfOrder() {
+		assertFalse(mFilter.isDuplicate(100));
+		assertFalse(mFilter.isDuplicate(98));
+		assertFalse(mFilter.isDuplicate(99));
+		assertFalse(mFilter.isDuplicate(101));
+		assertTrue(mFilter.isDuplicate(98));
+	}
+
+	@Test
+	public void idsOlderThanTheWindowAreDuplicates() {
+		assertFalse(mFilter.isDuplicate(DuplicateFilter.WINDOW_SIZE));
+		assertFalse(mFilter.isDuplicate(1)); // just inside the window
+		assertTrue(mFilter.isDuplicate(0));
+	}
+
+	@Test
+	public void idsLeavingTheWindowAreForgotten() {
+		assertFalse(mFilter.isDuplicate(0));
+		assertFalse(mFilter.isDuplicate(5));
+		assertFalse(mFilter.isDuplicate(1000));
+		assertFalse(mFilter.isDuplicate(DuplicateFilter.WINDOW_SIZE + 2)); // 0 has now left the window
+		assertTrue(mFilter.isDuplicate(0)); // (too old to tell)
+		assertTrue(mFilter.isDuplicate(5)); // still inside it
+		assertFalse(mFilter.isDuplicate(DuplicateFilter.WINDOW_SIZE)); // shares 0's bit, which must have been cleared
+		assertFalse(mFilter.isDuplicate(3 * DuplicateFilter.WINDOW_SIZE)); // a jump past the whole window
+		assertFalse(mFilter.isDuplicate(2 * DuplicateFilter.WINDOW_SIZE + 5));
+	}
+
+	@Test
+	public void idsWrapAround() {
+		assertFalse(mFilter.isDuplicate(Integer.MAX_VALUE - 1));
+		assertFalse(mFilter.isDuplicate(Integer.MIN_VALUE + 1));
+		assertFalse(mFilter.isDuplicate(Integer.MAX_VALUE));
+		assertFalse(mFilter.isDuplicate(Integer.MIN_VALUE));
+		assertTrue(mFilter.isDuplicate(Integer.MAX_VALUE));
+		assertTrue(mFilter.isDuplicate(Integer.MIN_VALUE + 1));
+	}
+
+	@Test
+	public void containsDoesNotRecord() {
+		assertFalse(mFilter.contains(5));
+		assertFalse(mFilter.isDuplicate(5));
+		assertTrue(mFilter.contains(5));
+		assertFalse(mFilter.contains(4));
+		assertFalse(mFilter.contains(6));
+		assertFalse(mFilter.isDuplicate(4));
+		assertTrue(mFilter.contains(5 - DuplicateFilter.WINDOW_SIZE)); // (too old to tell - treated as received)
+	}
+}
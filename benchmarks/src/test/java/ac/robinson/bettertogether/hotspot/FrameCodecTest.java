@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameCodecTest {
+
+	private static byte[] createPayload(int size) {
+		byte[] payload = new byte[size];
+		new Random(size).nextBytes(payload);
+		return payload;
+	}
+
+	private static FrameHeader parse(byte[] frame) throws FrameFormatException {
+		FrameHeader header = new FrameHeader();
+		assertTrue(header.parse(frame, 0, frame.length));
+		return header;
+	}
+
+	@Test
+	public void messageRoundTrip() throws FrameFormatException {
+		byte[] message = createPayload(2500);
+		byte[] frames = FrameCodec.encodeMessage(message, FrameCodec.FLAG_URGENT, 1234, 1024);
+
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		FrameHeader header = new FrameHeader();
+		int position = 0;
+		int partIndex = 0;
+		while (position < frames.length) {
+			assertTrue(header.parse(frames, position, frames.length - position));
+			assertEquals(FrameCodec.TYPE_MESSAGE, header.mType);
+			assertEquals(FrameCodec.FLAG_URGENT, header.mFlags);
+			assertEquals(1234, header.mMessageId);
+			assertEquals(partIndex, header.mPartIndex);
+			assertEquals(3, header.mPartCount);
+			assertEquals(FrameCodec.getFrameLength(frames, position), header.getFrameLength());
+			reassembled.write(frames, position + header.mHeaderLength, header.mPayloadLength);
+			position += header.getFrameLength();
+			partIndex += 1;
+		}
+		assertEquals(3, partIndex);
+		assertArrayEquals(message, reassembled.toByteArray());
+	}
+
+	@Test
+	public void emptyMessageIsOneFrame() throws FrameFormatException {
+		byte[] frames = FrameCodec.encodeMessage(new byte[0], 0, 1, 1024);
+		FrameHeader header = parse(frames);
+		assertEquals(0, header.mPayloadLength);
+		assertEquals(1, header.mPartCount);
+		assertEquals(frames.length, header.getFrameLength());
+	}
+
+	@Test
+	public void largeVarintsRoundTrip() throws FrameFormatException {
+		byte[] buffer = new byte[FrameCodec.MAX_HEADER_SIZE];
+		int length = FrameCodec.writeHeader(buffer, 0, FrameCodec.TYPE_STREAM_DATA, 0, FrameCodec.MAX_PAYLOAD_SIZE, -1,
+				Integer.MAX_VALUE, Integer.MAX_VALUE);
+		assertTrue(length <= FrameCodec.MAX_HEADER_SIZE);
+
+		FrameHeader header = new FrameHeader();
+		assertTrue(header.parse(buffer, 0, length));
+		assertEquals(FrameCodec.MAX_PAYLOAD_SIZE, header.mPayloadLength);
+		assertEquals(-1, header.mMessageId);
+		assertEquals(Integer.MAX_VALUE, header.mPartIndex);
+		assertEquals(Integer.MAX_VALUE, header.mPartCount);
+	}
+
+	@Test
+	public void incompleteHeaderNeedsMoreBytes() throws FrameFormatException {
+		byte[] frame = FrameCodec.encodeFrame(FrameCodec.TYPE_MESSAGE, 99, 300, 400, new byte[200], 0, 200);
+		FrameHeader header = parse(frame);
+		for (int available = 0; available < header.mHeaderLength; available++) {
+			assertFalse(new FrameHeader().parse(frame, 0, available));
+		}
+	}
+
+	@Test
+	public void invalidMagicIsRejected() {
+		byte[] frame = FrameCodec.encodeCredit(1000);
+		frame[0] = (byte) 0xfe;
+		assertInvalid(frame, "Invalid frame magic");
+	}
+
+	@Test
+	public void oldTextFramingIsReported() {
+		// the original protocol: Base64 text, with each message followed by '\f'
+		assertInvalid("rO0ABXNyADhhYy5yb2JpbnNvbi5iZXR0ZXJ0b2dldGhlcg==\f".getBytes(), "Incompatible protocol");
+		assertInvalid("BTcm9iaW5zb24=\f".getBytes(), "Incompatible protocol"); // (starts with the magic)
+	}
+
+	@Test
+	public void unsupportedVersionIsRejected() {
+		byte[] frame = FrameCodec.encodeCredit(1000);
+		frame[2] = (byte) (FrameCodec.VERSION + 1);
+		assertInvalid(frame, "Unsupported frame version");
+	}
+
+	@Test
+	public void oversizedPayloadIsRejected() {
+		byte[] buffer = new byte[FrameCodec.MAX_HEADER_SIZE];
+		int payloadLength = FrameCodec.MAX_PAYLOAD_SIZE + 1;
+		int length = FrameCodec.writeHeader(buffer, 0, FrameCodec.TYPE_MESSAGE, 0, payloadLength, 1, 0, 1);
+		assertInvalid(Arrays.copyOf(buffer, length), "Frame too large");
+	}
+
+	@Test
+	public void overlongVarintIsRejected() {
+		byte[] frame = { FrameCodec.MAGIC_0, FrameCodec.MAGIC_1, FrameCodec.VERSION, FrameCodec.TYPE_MESSAGE, 0,
+				(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x01 };
+		assertInvalid(frame, "Invalid frame header value");
+	}
+
+	private static void assertInvalid(byte[] frame, String expectedMessage) {
+		try {
+			new FrameHeader().parse(frame, 0, frame.length);
+			fail("Expected FrameFormatException");
+		} catch (FrameFormatException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(expectedMessage));
+		}
+	}
+
+	@Test
+	public void helloRoundTrip() throws FrameFormatException {
+		byte[] receivedWindow = new byte[DuplicateFilter.WINDOW_SIZE / 8];
+		receivedWindow[5] = 0x21;
+		byte[] frame = FrameCodec.encodeHello(FrameCodec.LOCAL_CAPABILITIES, 0x1122334455667788L, 42, 1000,
+				receivedWindow, 0);
+		FrameHeader header = parse(frame);
+		FrameCodec.HelloInfo hello = FrameCodec.decodeHello(frame, header.mHeaderLength, header.mPayloadLength);
+		assertEquals(FrameCodec.LOCAL_CAPABILITIES, hello.mCapabilities);
+		assertEquals(0x1122334455667788L, hello.mSessionId);
+		assertEquals(42, hello.mResumeToken);
+		assertEquals(1000, hello.mLastMessageId);
+		assertArrayEquals(receivedWindow, hello.mReceivedWindow);
+		assertEquals(0, hello.mLinkToken);
+	}
+
+	@Test
+	public void helloWithOnlyLinkToken() throws FrameFormatException {
+		byte[] frame = FrameCodec.encodeHello(FrameCodec.LOCAL_CAPABILITIES, 7, 0, 0, null, 99);
+		FrameHeader header = parse(frame);
+		FrameCodec.HelloInfo hello = FrameCodec.decodeHello(frame, header.mHeaderLength, header.mPayloadLength);
+		assertEquals(7, hello.mSessionId);
+		assertEquals(0, hello.mResumeToken);
+		assertNull(hello.mReceivedWindow);
+		assertEquals(99, hello.mLinkToken);
+	}
+
+	@Test
+	public void minimalHelloFromEarlierVersion() throws FrameFormatException {
+		byte[] payload = { FrameCodec.CAPABILITY_COMPRESSION };
+		FrameCodec.HelloInfo hello = FrameCodec.decodeHello(payload, 0, payload.length);
+		assertEquals(FrameCodec.CAPABILITY_COMPRESSION, hello.mCapabilities);
+		assertEquals(0, hello.mSessionId);
+		assertEquals(0, hello.mResumeToken);
+	}
+
+	@Test(expected = FrameFormatException.class)
+	public void emptyHelloIsRejected() throws FrameFormatException {
+		FrameCodec.decodeHello(new byte[0], 0, 0);
+	}
+
+	@Test
+	public void sessionRoundTrip() throws FrameFormatException {
+		byte[] frame = FrameCodec.encodeSession(-5, true, 77, "peer-\u00e9");
+		FrameHeader header = parse(frame);
+		FrameCodec.SessionInfo session = FrameCodec.decodeSession(frame, header.mHeaderLength, header.mPayloadLength);
+		assertEquals(-5, session.mResumeToken);
+		assertTrue(session.mResumed);
+		assertEquals(77, session.mLastMessageId);
+		assertEquals("peer-\u00e9", session.mPeerId);
+
+		frame = FrameCodec.encodeSession(1, false, 0, null);
+		header = parse(frame);
+		session = FrameCodec.decodeSession(frame, header.mHeaderLength, header.mPayloadLength);
+		assertFalse(session.mResumed);
+		assertNull(session.mPeerId);
+	}
+
+	@Test(expected = FrameFormatException.class)
+	public void truncatedSessionIsRejected() throws FrameFormatException {
+		FrameCodec.decodeSession(new byte[8], 0, 8);
+	}
+
+	@Test
+	public void relayRoundTrip() throws FrameFormatException {
+		byte[] frame = FrameCodec.encodeRelay(12, 3, Long.MIN_VALUE, -12);
+		FrameHeader header = parse(frame);
+		assertEquals(FrameCodec.TYPE_RELAY, header.mType);
+		assertEquals(12, header.mMessageId);
+		FrameCodec.RelayInfo relay = FrameCodec.decodeRelay(frame, header.mHeaderLength, header.mPayloadLength);
+		assertEquals(3, relay.mHopCount);
+		assertEquals(Long.MIN_VALUE, relay.mOriginSessionId);
+		assertEquals(-12, relay.mOriginMessageId);
+	}
+
+	@Test
+	public void creditAndPongRoundTrip() throws FrameFormatException {
+		byte[] frame = FrameCodec.encodeCredit(Integer.MAX_VALUE);
+		FrameHeader header = parse(frame);
+		assertEquals(Integer.MAX_VALUE, FrameCodec.decodeCredit(frame, header.mHeaderLength, header.mPayloadLength));
+
+		frame = FrameCodec.encodePong(123456789L, 987654321L);
+		header = parse(frame);
+		assertEquals(123456789L, FrameCodec.decodeTimestamp(frame, header.mHeaderLength, header.mPayloadLength));
+		assertEquals(987654321L, FrameCodec.decodePongTime(frame, header.mHeaderLength, header.mPayloadLength));
+
+		frame = FrameCodec.encodeTimestamp(FrameCodec.TYPE_PONG, 5); // (an earlier version's pong)
+		header = parse(frame);
+		assertEquals(0, FrameCodec.decodePongTime(frame, header.mHeaderLength, header.mPayloadLength));
+	}
+
+	@Test(expected = FrameFormatException.class)
+	public void negativeCreditIsRejected() throws FrameFormatException {
+		byte[] payload = { (byte) 0x80, 0, 0, 0 };
+		FrameCodec.decodeCredit(payload, 0, payload.length);
+	}
+
+	// frames that arrive a byte at a time must still be sliced correctly, including one larger than the read buffer
+	@Test
+	public void readerSlicesFramesAcrossReads() throws Exception {
+		byte[] small = createPayload(10);
+		byte[] large = createPayload(FrameCodec.MAX_PAYLOAD_SIZE);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(FrameCodec.encodeMessage(small, 0, 1, 1024));
+		stream.write(FrameCodec.encodeFrame(FrameCodec.TYPE_MESSAGE, 2, 0, 1, large, 0, large.length));
+		stream.write(FrameCodec.encodeCredit(5));
+
+		ByteArrayInputStream input = new ByteArrayInputStream(stream.toByteArray()) {
+			@Override
+			public synchronized int read(byte[] buffer, int offset, int length) {
+				return super.read(buffer, offset, Math.min(length, 7));
+			}
+		};
+		FrameReader reader = new FrameReader(new BufferPool(1024, 1));
+		int frameCount = 0;
+		while (reader.readFrom(input) > 0) {
+			while (reader.nextFrame()) {
+				FrameHeader header = reader.getHeader();
+				byte[] payload = Arrays.copyOfRange(reader.getBuffer(), reader.getPayloadOffset(),
+						reader.getPayloadOffset() + header.mPayloadLength);
+				switch (frameCount) {
+					case 0:
+						assertArrayEquals(small, payload);
+						break;
+					case 1:
+						assertArrayEquals(large, payload);
+						break;
+					default:
+						assertEquals(FrameCodec.TYPE_CREDIT, header.mType);
+						assertEquals(5, FrameCodec.decodeCredit(payload, 0, payload.length));
+						break;
+				}
+				frameCount += 1;
+			}
+		}
+		assertEquals(3, frameCount);
+		reader.release();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class MessageReassemblerTest {
+
+	private static final int PART_SIZE = 1024;
+
+	private final MessageReassembler mReassembler = new MessageReassembler();
+
+	// adds a full size part whose bytes are all (messageId + partIndex)
+	private MessageReassembler.PartialMessage addPart(int messageId, int partIndex, int partCount, long now) {
+		byte[] payload = new byte[PART_SIZE];
+		Arrays.fill(payload, (byte) (messageId + partIndex));
+		return addPart(messageId, partIndex, partCount, payload, now);
+	}
+
+	private MessageReassembler.PartialMessage addPart(int messageId, int partIndex, int partCount, byte[] payload,
+													  long now) {
+		FrameHeader header = new FrameHeader();
+		header.mType = FrameCodec.TYPE_MESSAGE;
+		header.mMessageId = messageId;
+		header.mPartIndex = partIndex;
+		header.mPartCount = partCount;
+		header.mPayloadLength = payload.length;
+		return mReassembler.addPart(header, payload, 0, now);
+	}
+
+	@Test
+	public void reassemblesInterleavedMessages() {
+		assertNull(addPart(1, 0, 3, 0));
+		assertNull(addPart(2, 0, 2, 0));
+		assertNull(addPart(1, 1, 3, 0));
+		MessageReassembler.PartialMessage second = addPart(2, 1, 2, 0);
+		MessageReassembler.PartialMessage first = addPart(1, 2, 3, 0);
+
+		assertNotNull(first);
+		assertEquals(3 * PART_SIZE, first.mLength);
+		for (int part = 0; part < 3; part++) {
+			assertEquals((byte) (1 + part), first.mData[part * PART_SIZE]);
+			assertEquals((byte) (1 + part), first.mData[(part + 1) * PART_SIZE - 1]);
+		}
+		assertNotNull(second);
+		assertEquals(2 * PART_SIZE, second.mLength);
+		assertEquals(2, mReassembler.getCompletedCount());
+		assertEquals(0, mReassembler.getDroppedCount());
+	}
+
+	@Test
+	public void singlePartMessageCompletesImmediately() {
+		MessageReassembler.PartialMessage message = addPart(5, 0, 1, new byte[] { 1, 2, 3 }, 0);
+		assertNotNull(message);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, Arrays.copyOf(message.mData, message.mLength));
+	}
+
+	@Test
+	public void gapDropsMessage() {
+		assertNull(addPart(1, 0, 3, 0));
+		assertNull(addPart(1, 2, 3, 0)); // part 1 is missing
+		assertEquals(1, mReassembler.getDroppedCount());
+		assertNull(addPart(1, 1, 3, 0)); // too late - the message has gone
+		assertEquals(2, mReassembler.getDroppedCount());
+		assertEquals(0, mReassembler.getCompletedCount());
+	}
+
+	@Test
+	public void missingStartIsDropped() {
+		assertNull(addPart(1, 1, 2, 0));
+		assertEquals(1, mReassembler.getDroppedCount());
+	}
+
+	@Test
+	public void changedPartCountDropsMessage() {
+		assertNull(addPart(1, 0, 3, 0));
+		assertNull(addPart(1, 1, 4, 0));
+		assertEquals(1, mReassembler.getDroppedCount());
+	}
+
+	@Test
+	public void oversizedMessageIsDropped() {
+		assertNull(addPart(1, 0, MessageReassembler.MAX_MESSAGE_SIZE / PART_SIZE + 1, 0));
+		assertEquals(1, mReassembler.getDroppedCount());
+	}
+
+	@Test
+	public void unevenPartsGrowTheMessage() {
+		assertNull(addPart(1, 0, 2, new byte[10], 0));
+		MessageReassembler.PartialMessage message = addPart(1, 1, 2, new byte[100], 0);
+		assertNotNull(message);
+		assertEquals(110, message.mLength);
+	}
+
+	@Test
+	public void evictsLeastRecentlyUpdatedWhenTooManyMessages() {
+		for (int id = 0; id < MessageReassembler.MAX_PARTIAL_MESSAGES; id++) {
+			assertNull(addPart(id, 0, 3, id));
+		}
+		assertNull(addPart(0, 1, 3, 100)); // message 0 is now the most recently updated, so 1 is the oldest
+		assertNull(addPart(100, 0, 3, 101));
+		assertEquals(1, mReassembler.getDroppedCount());
+
+		assertNull(addPart(1, 1, 3, 102)); // evicted
+		assertEquals(2, mReassembler.getDroppedCount());
+		assertNotNull(addPart(0, 2, 3, 103));
+		assertNull(addPart(2, 1, 3, 104)); // the others are unaffected
+		assertNotNull(addPart(2, 2, 3, 105));
+	}
+
+	@Test
+	public void evictsWhenBufferedBytesWouldExceedLimit() {
+		int partCount = MessageReassembler.MAX_MESSAGE_SIZE / PART_SIZE;
+		assertNull(addPart(1, 0, partCount, 0));
+		assertNull(addPart(2, 0, partCount, 1)); // the limit is now reached
+		assertEquals(0, mReassembler.getDroppedCount());
+
+		assertNull(addPart(3, 0, 2, 2));
+		assertEquals(1, mReassembler.getDroppedCount());
+		assertNull(addPart(1, 1, partCount, 3)); // the oldest was evicted
+		assertEquals(2, mReassembler.getDroppedCount());
+		assertNull(addPart(2, 1, partCount, 4)); // the other is still there
+		assertNotNull(addPart(3, 1, 2, 5));
+	}
+
+	@Test
+	public void expiresStalledMessages() {
+		assertNull(addPart(1, 0, 2, 0));
+		assertNull(addPart(2, 0, 2, MessageReassembler.PARTIAL_MESSAGE_TIMEOUT));
+		assertEquals(0, mReassembler.getExpiredCount()); // (not until the timeout has passed)
+
+		assertNull(addPart(3, 0, 2, MessageReassembler.PARTIAL_MESSAGE_TIMEOUT + 1));
+		assertEquals(1, mReassembler.getExpiredCount());
+		assertNull(addPart(1, 1, 2, MessageReassembler.PARTIAL_MESSAGE_TIMEOUT + 1));
+		assertEquals(1, mReassembler.getDroppedCount());
+		assertNotNull(addPart(2, 1, 2, MessageReassembler.PARTIAL_MESSAGE_TIMEOUT + 1));
+	}
+
+	@Test
+	public void clearCountsIncompleteMessagesAsDropped() {
+		assertNull(addPart(1, 0, 2, 0));
+		assertNull(addPart(2, 0, 2, 0));
+		mReassembler.clear();
+		assertEquals(2, mReassembler.getDroppedCount());
+		assertNull(addPart(1, 1, 2, 0));
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class OutboundQueueTest {
+
+	private static final int LARGE = 1024 * 1024;
+
+	private static OutboundMessage high(String conflationKey) {
+		return OutboundMessage.message(new byte[100], conflationKey, false);
+	}
+
+	private static OutboundMessage bulk(String conflationKey) {
+		return OutboundMessage.message(new byte[ProtocolConstants.MESSAGE_PART_SIZE + 1], conflationKey, false);
+	}
+
+	private static OutboundMessage control() {
+		return OutboundMessage.frames(FrameCodec.encodeCredit(1), true);
+	}
+
+	@Test
+	public void higherPrioritiesAreTakenFirst() {
+		OutboundQueue queue = new OutboundQueue(10, LARGE, OutboundQueue.Policy.DROP, LARGE);
+		OutboundMessage bulk = bulk(null);
+		OutboundMessage high = high(null);
+		OutboundMessage control = control();
+		assertEquals(OutboundMessage.PRIORITY_BULK, bulk.mPriority);
+		assertEquals(OutboundMessage.PRIORITY_HIGH, high.mPriority);
+		assertEquals(OutboundMessage.PRIORITY_CONTROL, control.mPriority);
+
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(bulk));
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(high));
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(control));
+		assertSame(control, queue.pollHighPriority());
+		assertSame(high, queue.pollHighPriority());
+		assertNull(queue.pollHighPriority()); // (bulk messages are only taken by poll)
+		assertSame(bulk, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void eachLaneIsFirstInFirstOut() {
+		OutboundQueue queue = new OutboundQueue(10, LARGE, OutboundQueue.Policy.DROP, LARGE);
+		OutboundMessage[] messages = { high(null), high(null), high(null) };
+		for (OutboundMessage message : messages) {
+			queue.offer(message);
+		}
+		for (OutboundMessage message : messages) {
+			assertSame(message, queue.poll());
+		}
+	}
+
+	@Test
+	public void messageLimitWithDropPolicy() {
+		OutboundQueue queue = new OutboundQueue(2, LARGE, OutboundQueue.Policy.DROP, LARGE);
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(high(null)));
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(bulk(null)));
+		assertEquals(OutboundQueue.RESULT_DROPPED, queue.offer(high(null)));
+		assertEquals(2, queue.size());
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(2, queue.getPeakSize());
+	}
+
+	@Test
+	public void messageLimitWithDisconnectPolicy() {
+		OutboundQueue queue = new OutboundQueue(1, LARGE, OutboundQueue.Policy.DISCONNECT, LARGE);
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(high(null)));
+		assertEquals(OutboundQueue.RESULT_DISCONNECT, queue.offer(high(null)));
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void byteLimit() {
+		OutboundMessage large = bulk(null);
+		OutboundQueue queue = new OutboundQueue(10, large.mFrames.length - 1, OutboundQueue.Policy.DROP, LARGE);
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(large)); // too large, but the queue is empty
+		assertEquals(large.mFrames.length, queue.getQueuedBytes());
+		assertEquals(OutboundQueue.RESULT_DROPPED, queue.offer(high(null)));
+
+		queue.poll();
+		assertEquals(0, queue.getQueuedBytes());
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(high(null)));
+	}
+
+	@Test
+	public void controlFramesBypassLimits() {
+		OutboundQueue queue = new OutboundQueue(2, LARGE, OutboundQueue.Policy.DROP, LARGE);
+		queue.offer(high(null));
+		queue.offer(high(null));
+		assertEquals(OutboundQueue.RESULT_DROPPED, queue.offer(high(null)));
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(control()));
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(control()));
+		// a full control lane means the client isn't reading at all, whatever the policy
+		assertEquals(OutboundQueue.RESULT_DISCONNECT, queue.offer(control()));
+	}
+
+	@Test
+	public void conflationReplacesInPlace() {
+		OutboundQueue queue = new OutboundQueue(10, LARGE, OutboundQueue.Policy.CONFLATE, LARGE);
+		OutboundMessage first = high("position");
+		OutboundMessage other = high(null);
+		OutboundMessage replacement = high("position");
+		queue.offer(first);
+		queue.offer(other);
+		assertEquals(OutboundQueue.RESULT_CONFLATED, queue.offer(replacement));
+		assertEquals(2, queue.size());
+		assertEquals(1, queue.getConflatedCount());
+		assertSame(replacement, queue.poll()); // (in the original message's place)
+		assertSame(other, queue.poll());
+	}
+
+	@Test
+	public void conflationOnlyWithinTheSameLane() {
+		OutboundQueue queue = new OutboundQueue(10, LARGE, OutboundQueue.Policy.CONFLATE, LARGE);
+		OutboundMessage bulk = bulk("state");
+		OutboundMessage high = high("state");
+		queue.offer(bulk);
+		assertEquals(OutboundQueue.RESULT_QUEUED, queue.offer(high));
+		assertEquals(0, queue.getConflatedCount());
+		assertSame(high, queue.poll());
+		assertSame(bulk, queue.poll());
+	}
+
+	@Test
+	public void conflationPolicyDropsWithoutAMatch() {
+		OutboundQueue queue = new OutboundQueue(1, LARGE, OutboundQueue.Policy.CONFLATE, LARGE);
+		queue.offer(high("a"));
+		assertEquals(OutboundQueue.RESULT_DROPPED, queue.offer(high("b")));
+		assertEquals(OutboundQueue.RESULT_CONFLATED, queue.offer(high("a")));
+		assertEquals(OutboundQueue.RESULT_DROPPED, queue.offer(high(null)));
+	}
+
+	@Test
+	public void flowControlHoldsBackDataButNotControlFrames() {
+		OutboundQueue queue = new OutboundQueue(10, LARGE, OutboundQueue.Policy.DROP, 100);
+		OutboundMessage data = high(null);
+		OutboundMessage control = control();
+		queue.offer(data);
+		queue.useCredit(100); // (counted, but not enforced until enabled)
+		queue.enableFlowControl();
+		assertNull(queue.poll());
+
+		queue.offer(control);
+		assertSame(control, queue.poll());
+		assertNull(queue.poll());
+
+		queue.addCredit(1);
+		assertSame(data, queue.poll());
+	}
+
+	@Test
+	public void closedQueueRejectsMessages() throws InterruptedException {
+		OutboundQueue queue = new OutboundQueue(10, LARGE, OutboundQueue.Policy.DROP, LARGE);
+		queue.offer(high(null));
+		queue.close();
+		assertEquals(0, queue.size());
+		assertEquals(OutboundQueue.RESULT_CLOSED, queue.offer(high(null)));
+		assertNull(queue.poll());
+		assertNull(queue.take());
+	}
+}
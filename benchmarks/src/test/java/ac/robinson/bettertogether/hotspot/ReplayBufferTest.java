@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReplayBufferTest {
+
+	// consecutive message ids, in creation order
+	private static OutboundMessage[] createMessages(int count) {
+		OutboundMessage[] messages = new OutboundMessage[count];
+		for (int i = 0; i < count; i++) {
+			messages[i] = OutboundMessage.message(new byte[100], null, false);
+		}
+		return messages;
+	}
+
+	private static byte[] receivedWindow(int... ages) {
+		byte[] window = new byte[DuplicateFilter.WINDOW_SIZE / 8];
+		for (int age : ages) {
+			window[age >>> 3] |= 1 << (age & 7);
+		}
+		return window;
+	}
+
+	@Test
+	public void messagesAddedOutOfOrderAreReplayedInOrder() {
+		OutboundMessage[] messages = createMessages(4);
+		ReplayBuffer buffer = new ReplayBuffer(10, 1024 * 1024);
+		buffer.add(messages[2], null);
+		buffer.add(messages[0], null);
+		buffer.add(messages[3], null);
+		buffer.add(messages[1], null);
+		assertEquals(Arrays.asList(messages), buffer.getMissedMessages(messages[0].mMessageId - 1, null, null));
+	}
+
+	@Test
+	public void duplicatesAreIgnored() {
+		OutboundMessage[] messages = createMessages(2);
+		ReplayBuffer buffer = new ReplayBuffer(10, 1024 * 1024);
+		buffer.add(messages[0], null);
+		buffer.add(messages[1], null);
+		buffer.add(messages[0], null); // (sent on a second link)
+		assertEquals(Arrays.asList(messages), buffer.getMissedMessages(messages[0].mMessageId - 1, null, null));
+	}
+
+	@Test
+	public void replaysOnlyMessagesAfterTheLastReceived() {
+		OutboundMessage[] messages = createMessages(3);
+		ReplayBuffer buffer = new ReplayBuffer(10, 1024 * 1024);
+		for (OutboundMessage message : messages) {
+			buffer.add(message, null);
+		}
+		assertEquals(Arrays.asList(messages[2]), buffer.getMissedMessages(messages[1].mMessageId, null, null));
+		assertEquals(0, buffer.getMissedMessages(messages[2].mMessageId, null, null).size());
+	}
+
+	@Test
+	public void receivedWindowFillsGaps() {
+		OutboundMessage[] messages = createMessages(4);
+		ReplayBuffer buffer = new ReplayBuffer(10, 1024 * 1024);
+		for (OutboundMessage message : messages) {
+			buffer.add(message, null);
+		}
+		// the client received messages 0 and 2 (ages 2 and 0) but not 1; message 3 came after its last
+		List<OutboundMessage> missed = buffer.getMissedMessages(messages[2].mMessageId, receivedWindow(0, 2), null);
+		assertEquals(Arrays.asList(messages[1], messages[3]), missed);
+	}
+
+	@Test
+	public void clientsAreNotSentTheirOwnMessages() {
+		OutboundMessage[] messages = createMessages(3);
+		ReplayBuffer buffer = new ReplayBuffer(10, 1024 * 1024);
+		buffer.add(messages[0], null);
+		buffer.add(messages[1], "client");
+		buffer.add(messages[2], "other");
+		int lastMessageId = messages[0].mMessageId - 1;
+		assertEquals(Arrays.asList(messages[0], messages[2]), buffer.getMissedMessages(lastMessageId, null, "client"));
+		assertEquals(Arrays.asList(messages), buffer.getMissedMessages(lastMessageId, null, null));
+	}
+
+	@Test
+	public void cannotResumeOnceMissedMessagesAreEvicted() {
+		OutboundMessage[] messages = createMessages(3);
+		ReplayBuffer buffer = new ReplayBuffer(2, 1024 * 1024);
+		for (OutboundMessage message : messages) {
+			buffer.add(message, null);
+		}
+		assertNull(buffer.getMissedMessages(messages[0].mMessageId - 1, null, null));
+		assertEquals(Arrays.asList(messages[1], messages[2]),
+				buffer.getMissedMessages(messages[0].mMessageId, null, null));
+	}
+
+	@Test
+	public void byteLimitEvictsOldest() {
+		OutboundMessage[] messages = createMessages(3);
+		ReplayBuffer buffer = new ReplayBuffer(10, 2 * messages[0].mFrames.length);
+		for (OutboundMessage message : messages) {
+			buffer.add(message, null);
+		}
+		assertNull(buffer.getMissedMessages(messages[0].mMessageId - 1, null, null));
+		assertEquals(Arrays.asList(messages[1], messages[2]),
+				buffer.getMissedMessages(messages[0].mMessageId, null, null));
+	}
+
+	@Test
+	public void clearForgetsEverything() {
+		OutboundMessage[] messages = createMessages(3);
+		ReplayBuffer buffer = new ReplayBuffer(2, 1024 * 1024);
+		for (OutboundMessage message : messages) {
+			buffer.add(message, null);
+		}
+		buffer.clear();
+		assertEquals(0, buffer.getMissedMessages(messages[0].mMessageId - 1, null, null).size());
+	}
+}
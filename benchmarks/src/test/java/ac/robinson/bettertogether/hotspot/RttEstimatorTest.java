@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.hotspot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RttEstimatorTest {
+
+	private final RttEstimator mEstimator = new RttEstimator();
+
+	@Test
+	public void noSamples() {
+		assertEquals(-1, mEstimator.getSmoothedRtt());
+		assertEquals(-1, mEstimator.getTimeout());
+		assertFalse(mEstimator.hasClockOffset());
+		assertEquals(0, mEstimator.getClockOffset());
+	}
+
+	@Test
+	public void samplesAreSmoothedAsInRfc6298() {
+		mEstimator.addSample(1000);
+		assertEquals(1000, mEstimator.getSmoothedRtt());
+		assertEquals(500, mEstimator.getRttVariation());
+		assertEquals(3000, mEstimator.getTimeout());
+
+		mEstimator.addSample(2000);
+		assertEquals(1125, mEstimator.getSmoothedRtt());
+		assertEquals(625, mEstimator.getRttVariation());
+		assertEquals(1125 + 4 * 625, mEstimator.getTimeout());
+		assertEquals(2, mEstimator.getSampleCount());
+	}
+
+	@Test
+	public void negativeSamplesAreIgnored() {
+		mEstimator.addSample(-1);
+		mEstimator.addClockSample(-1, 5);
+		assertEquals(0, mEstimator.getSampleCount());
+		assertEquals(-1, mEstimator.getSmoothedRtt());
+		assertFalse(mEstimator.hasClockOffset());
+	}
+
+	@Test
+	public void clockOffsetComesFromTheFastestRecentSample() {
+		mEstimator.addClockSample(500, 10);
+		mEstimator.addClockSample(100, 20);
+		mEstimator.addClockSample(300, 30);
+		assertTrue(mEstimator.hasClockOffset());
+		assertEquals(20, mEstimator.getClockOffset());
+
+		for (int i = 0; i < 8; i++) { // replaces every earlier sample, including the fastest
+			mEstimator.addClockSample(200 + i, 40 + i);
+		}
+		assertEquals(40, mEstimator.getClockOffset());
+	}
+}
@@ -17,6 +17,8 @@
 package ac.robinson.bettertogether.plugin.base.video.activity;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.ImageButton;
@@ -25,6 +27,7 @@ import android.widget.SeekBar;
 import ac.robinson.bettertogether.api.BasePluginActivity;
 import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
 import ac.robinson.bettertogether.plugin.base.video.R;
+import ac.robinson.bettertogether.plugin.base.video.youtube.ClockSync;
 import ac.robinson.bettertogether.plugin.base.video.youtube.MessageType;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.ActionBar;
@@ -36,6 +39,16 @@ public class ControlsActivity extends BasePluginActivity {
 
 	private ImageButton mPlayPauseButton;
 	private SeekBar mSeekBar;
+	private boolean mIsSeeking;
+
+	// the player only sends occasional (timestamped) state updates - in between, we extrapolate the position locally
+	private static final int PROGRESS_UPDATE_INTERVAL = 250; // milliseconds
+	private final ClockSync mClockSync = new ClockSync();
+	private final Handler mHandler = new Handler();
+	private int mReportedPosition; // milliseconds
+	private String mReportedTimestamp; // the player's clock when it sent mReportedPosition (null for older players)
+	private long mReportReceivedAt;
+	private boolean mHasTimestampedState;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -65,10 +78,12 @@ public class ControlsActivity extends BasePluginActivity {
 
 			@Override
 			public void onStartTrackingTouch(SeekBar seekBar) {
+				mIsSeeking = true;
 			}
 
 			@Override
 			public void onStopTrackingTouch(SeekBar seekBar) {
+				mIsSeeking = false;
 			}
 		});
 	}
@@ -79,6 +94,41 @@ public class ControlsActivity extends BasePluginActivity {
 
 		BroadcastMessage playbackDuration = new BroadcastMessage(MessageType.COMMAND_GET_STATE, null);
 		sendMessage(playbackDuration);
+		mHandler.post(mClockSyncRunnable);
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mHandler.removeCallbacks(mClockSyncRunnable);
+		mHandler.removeCallbacks(mProgressRunnable);
+	}
+
+	private final Runnable mClockSyncRunnable = new Runnable() {
+		@Override
+		public void run() {
+			sendMessage(mClockSync.createRequest(SystemClock.elapsedRealtime()));
+			mHandler.postDelayed(mClockSyncRunnable,
+					mClockSync.isSynchronised() ? ClockSync.RESYNC_INTERVAL : ClockSync.SYNC_BURST_INTERVAL);
+		}
+	};
+
+	private final Runnable mProgressRunnable = new Runnable() {
+		@Override
+		public void run() {
+			updateProgress();
+			if (mIsPlaying) {
+				mHandler.postDelayed(mProgressRunnable, PROGRESS_UPDATE_INTERVAL);
+			}
+		}
+	};
+
+	private void updateProgress() {
+		if (!mIsSeeking) {
+			long position = mClockSync.getMediaPosition(mReportedPosition, mReportedTimestamp, mReportReceivedAt,
+					mIsPlaying, SystemClock.elapsedRealtime());
+			mSeekBar.setProgress((int) (position / 1000)); // convert from milliseconds
+		}
 	}
 
 	public void handleClick(View view) {
@@ -97,6 +147,7 @@ public class ControlsActivity extends BasePluginActivity {
 
 	@Override
 	protected void onMessageReceived(@NonNull BroadcastMessage message) {
+		long receivedAt = SystemClock.elapsedRealtime();
 		switch (message.getType()) {
 			case MessageType.COMMAND_EXIT:
 				finish(); // player has exited - we must finish too
@@ -109,10 +160,23 @@ public class ControlsActivity extends BasePluginActivity {
 				}
 				break;
 
+			case MessageType.CLOCK_SYNC_RESPONSE:
+				mClockSync.onResponse(message, receivedAt);
+				break;
+
 			case MessageType.COMMAND_PLAY:
 			case MessageType.COMMAND_PAUSE:
-				mSeekBar.setProgress(message.getIntExtra() / 1000); // convert from milliseconds
+				if (message.getMessage() != null) {
+					mHasTimestampedState = true;
+				} else if (mHasTimestampedState) {
+					break; // a command from another controller, rather than the player's state
+				}
+				mReportedPosition = message.getIntExtra();
+				mReportedTimestamp = message.getMessage();
+				mReportReceivedAt = receivedAt;
 				mIsPlaying = MessageType.COMMAND_PLAY == message.getType();
+				mHandler.removeCallbacks(mProgressRunnable);
+				mProgressRunnable.run();
 				if (mIsPlaying) {
 					mPlayPauseButton.setImageResource(R.drawable.ic_pause_red_800_48dp);
 				} else {
@@ -17,6 +17,8 @@
 package ac.robinson.bettertogether.plugin.base.video.activity;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.ListView;
@@ -26,6 +28,7 @@ import ac.robinson.bettertogether.api.BasePluginActivity;
 import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
 import ac.robinson.bettertogether.plugin.base.video.R;
 import ac.robinson.bettertogether.plugin.base.video.youtube.MessageType;
+import ac.robinson.bettertogether.plugin.base.video.youtube.PlaylistModel;
 import ac.robinson.bettertogether.plugin.base.video.youtube.YouTubeVideoArrayAdapter;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.ActionBar;
@@ -33,10 +36,24 @@ import androidx.appcompat.widget.Toolbar;
 
 public class PlaylistActivity extends BasePluginActivity {
 
+	private static final int SYNC_RETRY_INTERVAL = 2000; // milliseconds; in case a sync request or its response was lost
+	// milliseconds; we can't tell when the most recent change was lost, so check now and then (the player doesn't reply
+	// if we are up to date)
+	private static final int SYNC_CHECK_INTERVAL = 15000;
+	// older players ignore PLAYLIST_SYNC - if this many requests go unanswered, we also ask in the old way
+	private static final int LEGACY_REQUEST_ATTEMPTS = 2;
+
 	private ListView mListView;
 	private ProgressBar mProgressIndicator;
 
-	private String mCurrentPlaylist;
+	// a copy of the player's playlist, kept up to date by applying each change as it arrives (see PlaylistModel)
+	private PlaylistModel mPlaylist;
+	private YouTubeVideoArrayAdapter mAdapter;
+	private long mSyncRequestTime = -1;
+	private int mUnansweredSyncRequests;
+	private boolean mHasSynced; // whether a snapshot or delta has arrived (i.e., the player supports PLAYLIST_SYNC)
+	private boolean mIsLegacyPlayer; // the player only sends whole playlists (JSON_PLAYLIST), on every change
+	private final Handler mHandler = new Handler();
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -56,20 +73,75 @@ public class PlaylistActivity extends BasePluginActivity {
 		mProgressIndicator = findViewById(R.id.playlist_progress_indicator);
 
 		if (savedInstanceState != null) {
-			mCurrentPlaylist = savedInstanceState.getString("mCurrentPlaylist");
+			mPlaylist = savedInstanceState.getParcelable("mPlaylist");
+			mHasSynced = savedInstanceState.getBoolean("mHasSynced");
+			mIsLegacyPlayer = savedInstanceState.getBoolean("mIsLegacyPlayer");
+		}
+		if (mPlaylist == null) {
+			mPlaylist = new PlaylistModel();
+		} else {
+			mProgressIndicator.setVisibility(View.GONE);
 		}
 
-		if (mCurrentPlaylist == null) { // request the playlist if not already loaded
-			BroadcastMessage videoRequest = new BroadcastMessage(MessageType.COMMAND_GET_PLAYLIST, null);
-			sendMessage(videoRequest);
+		mAdapter = YouTubeVideoArrayAdapter.getInstance(PlaylistActivity.this, mPlaylist.getItems(), true);
+		mListView.setAdapter(mAdapter);
+
+		// request the playlist if not already loaded, or any changes we missed while being recreated if it is
+		if (mIsLegacyPlayer) {
+			sendMessage(new BroadcastMessage(MessageType.COMMAND_GET_PLAYLIST, null));
 		} else {
-			parseResult(mCurrentPlaylist);
+			requestSync();
 		}
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mHandler.postDelayed(mSyncCheckRunnable, SYNC_CHECK_INTERVAL);
+		if (mSyncRequestTime >= 0) {
+			mHandler.removeCallbacks(mSyncRetryRunnable);
+			mHandler.postDelayed(mSyncRetryRunnable, SYNC_RETRY_INTERVAL);
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mHandler.removeCallbacks(mSyncCheckRunnable);
+		mHandler.removeCallbacks(mSyncRetryRunnable);
+	}
+
+	// until we are up to date, keep asking - the request or its response may have been lost, or the player may be an
+	// older version that only replies to COMMAND_GET_PLAYLIST
+	private final Runnable mSyncRetryRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (mSyncRequestTime >= 0) {
+				mSyncRequestTime = -1;
+				mUnansweredSyncRequests += 1;
+				if (!mHasSynced && mUnansweredSyncRequests >= LEGACY_REQUEST_ATTEMPTS) {
+					sendMessage(new BroadcastMessage(MessageType.COMMAND_GET_PLAYLIST, null));
+				}
+				requestSync();
+			}
+		}
+	};
+
+	private final Runnable mSyncCheckRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (mSyncRequestTime < 0 && !mIsLegacyPlayer) { // (older players send every change themselves)
+				sendMessage(mPlaylist.createSyncRequest());
+			}
+			mHandler.postDelayed(mSyncCheckRunnable, SYNC_CHECK_INTERVAL);
+		}
+	};
+
 	@Override
 	protected void onSaveInstanceState(@NonNull Bundle outState) {
-		outState.putString("mCurrentPlaylist", mCurrentPlaylist);
+		outState.putParcelable("mPlaylist", mPlaylist);
+		outState.putBoolean("mHasSynced", mHasSynced);
+		outState.putBoolean("mIsLegacyPlayer", mIsLegacyPlayer);
 		super.onSaveInstanceState(outState);
 	}
 
@@ -80,9 +152,42 @@ public class PlaylistActivity extends BasePluginActivity {
 				finish(); // player has exited - we must finish too
 				break;
 
+			case MessageType.PLAYLIST_DELTA:
+				switch (mPlaylist.applyDelta(message)) {
+					case PlaylistModel.RESULT_APPLIED:
+						onSynced();
+						onPlaylistChanged();
+						break;
+
+					case PlaylistModel.RESULT_GAP:
+						requestSync();
+						break;
+
+					default:
+						break;
+				}
+				break;
+
+			case MessageType.PLAYLIST_SNAPSHOT:
+				if (mPlaylist.applySnapshot(message)) {
+					onSynced();
+					onPlaylistChanged();
+				} else {
+					requestSync(); // (or keep waiting for the retry, if we have only just asked)
+				}
+				break;
+
 			case MessageType.JSON_PLAYLIST:
-				mCurrentPlaylist = message.getMessage();
-				parseResult(message.getMessage());
+				// only from an older player - newer ones just send this to older devices, so once we have had a
+				// snapshot or delta it is ignored
+				if (!mHasSynced && mPlaylist.applyPlaylistJSON(message.getMessage())) {
+					mIsLegacyPlayer = true;
+					onPlaylistChanged();
+				}
+				break;
+
+			case MessageType.THUMBNAIL_DATA:
+				YouTubeVideoArrayAdapter.onThumbnailData(mListView, message);
 				break;
 
 			default:
@@ -90,19 +195,26 @@ public class PlaylistActivity extends BasePluginActivity {
 		}
 	}
 
-	private void parseResult(String rawJSON) {
-		// preserve scroll position when updating
-		int listPosition = mListView.getFirstVisiblePosition();
-		View firstView = mListView.getChildAt(0);
-		int firstViewOffset = (firstView == null) ? 0 : firstView.getTop();
-
-		YouTubeVideoArrayAdapter adapter = YouTubeVideoArrayAdapter.getInstance(PlaylistActivity.this, rawJSON, true);
-		if (adapter != null) {
-			mListView.setAdapter(adapter);
-			mListView.setSelectionFromTop(listPosition, firstViewOffset);
-			mProgressIndicator.setVisibility(View.GONE);
-		} else {
-			// TODO: handle errors
+	private void requestSync() {
+		long now = SystemClock.elapsedRealtime();
+		if (mSyncRequestTime < 0 || now - mSyncRequestTime > SYNC_RETRY_INTERVAL) { // one request per gap is enough
+			mSyncRequestTime = now;
+			sendMessage(mPlaylist.createSyncRequest());
+			mHandler.removeCallbacks(mSyncRetryRunnable);
+			mHandler.postDelayed(mSyncRetryRunnable, SYNC_RETRY_INTERVAL);
 		}
 	}
+
+	private void onSynced() {
+		mHasSynced = true;
+		mIsLegacyPlayer = false;
+	}
+
+	private void onPlaylistChanged() {
+		mSyncRequestTime = -1; // up to date (as far as we know)
+		mUnansweredSyncRequests = 0;
+		mHandler.removeCallbacks(mSyncRetryRunnable);
+		mAdapter.notifyDataSetChanged(); // only the visible items are updated, and the scroll position is kept
+		mProgressIndicator.setVisibility(View.GONE);
+	}
 }
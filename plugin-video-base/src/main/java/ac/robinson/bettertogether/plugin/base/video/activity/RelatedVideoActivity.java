@@ -85,6 +85,10 @@ public class RelatedVideoActivity extends BasePluginActivity {
 				parseResult(message.getMessage());
 				break;
 
+			case MessageType.THUMBNAIL_DATA:
+				YouTubeVideoArrayAdapter.onThumbnailData(mListView, message);
+				break;
+
 			default:
 				break;
 		}
@@ -104,6 +104,10 @@ public class SearchActivity extends BasePluginActivity {
 				parseResult(message.getMessage());
 				break;
 
+			case MessageType.THUMBNAIL_DATA:
+				YouTubeVideoArrayAdapter.onThumbnailData(mListView, message);
+				break;
+
 			default:
 				break;
 		}
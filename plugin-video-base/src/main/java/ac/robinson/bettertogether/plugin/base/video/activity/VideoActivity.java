@@ -18,6 +18,7 @@ package ac.robinson.bettertogether.plugin.base.video.activity;
 
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.view.WindowManager;
 
 import com.androidnetworking.AndroidNetworking;
@@ -37,13 +38,15 @@ import org.json.JSONObject;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 
 import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
 import ac.robinson.bettertogether.api.messaging.PluginConnectionDelegate;
 import ac.robinson.bettertogether.plugin.base.video.R;
+import ac.robinson.bettertogether.plugin.base.video.youtube.ClockSync;
 import ac.robinson.bettertogether.plugin.base.video.youtube.DeveloperKey;
 import ac.robinson.bettertogether.plugin.base.video.youtube.MessageType;
+import ac.robinson.bettertogether.plugin.base.video.youtube.PlaylistModel;
+import ac.robinson.bettertogether.plugin.base.video.youtube.ThumbnailStore;
 import ac.robinson.bettertogether.plugin.base.video.youtube.YouTubeFailureRecoveryActivity;
 import ac.robinson.bettertogether.plugin.base.video.youtube.YouTubeVideoItem;
 import androidx.annotation.NonNull;
@@ -54,8 +57,8 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 
 	private PluginConnectionDelegate mDelegate;
 
-	private ArrayList<YouTubeVideoItem> mPlaylist = new ArrayList<>();
-	private int mPlaylistPosition = -1;
+	// remote clients are sent each change to the playlist rather than the whole list (see PlaylistModel)
+	private PlaylistModel mPlaylist = new PlaylistModel();
 	private boolean mHasRequestedRelatedVideos = false;
 	private boolean mHasRequestedComments = false;
 
@@ -67,7 +70,9 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 	private YouTubePlaybackEventListener mPlaybackEventListener;
 
 	private final Handler mStateUpdateHandler = new Handler();
-	private static final int STATE_UPDATE_INTERVAL = 1000; // milliseconds
+	// state updates are timestamped, so controllers can extrapolate the position between them (see ClockSync) - periodic
+	// updates only need to correct for buffering; play, pause and seek events are still sent as soon as they happen
+	private static final int STATE_UPDATE_INTERVAL = 15000; // milliseconds
 
 	public static final String LOADING_JSON = "[{}]"; // hacky!
 
@@ -76,6 +81,7 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 		super.onCreate(savedInstanceState);
 		mDelegate = new PluginConnectionDelegate(VideoActivity.this, mMessageReceivedCallback);
 		mDelegate.onCreate(savedInstanceState);
+		ThumbnailStore.initialise(VideoActivity.this);
 
 		getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 		setContentView(R.layout.mode_youtube_video_player);
@@ -86,13 +92,16 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 		mPlaylistEventListener = new YouTubePlaylistEventListener();
 
 		if (savedInstanceState != null) {
-			mPlaylist = savedInstanceState.getParcelableArrayList("mPlaylist");
-			mPlaylistPosition = savedInstanceState.getInt("mPlaylistPosition", -1);
+			PlaylistModel savedPlaylist = savedInstanceState.getParcelable("mPlaylist");
+			if (savedPlaylist != null) {
+				mPlaylist = savedPlaylist;
+			}
 			mHasRequestedRelatedVideos = savedInstanceState.getBoolean("mHasRequestedRelatedVideos", false);
 			mHasRequestedComments = savedInstanceState.getBoolean("mHasRequestedComments", false);
 		}
-		if (mPlaylistPosition < 0 && mPlaylist.size() > 0) {
-			mPlaylistPosition = 0; // just in case
+		ThumbnailStore.getInstance().setPinned(mPlaylist.getThumbnailHashes());
+		if (mPlaylist.getSelected() < 0 && mPlaylist.size() > 0) {
+			sendPlaylistDelta(mPlaylist.select(0)); // just in case
 		}
 
 		mPlayerView.initialize(DeveloperKey.DEVELOPER_KEY, this);
@@ -103,8 +112,7 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
-		outState.putParcelableArrayList("mPlaylist", mPlaylist);
-		outState.putInt("mPlaylistPosition", mPlaylistPosition);
+		outState.putParcelable("mPlaylist", mPlaylist);
 		outState.putBoolean("mHasRequestedRelatedVideos", mHasRequestedRelatedVideos);
 		outState.putBoolean("mHasRequestedComments", mHasRequestedComments);
 		super.onSaveInstanceState(outState);
@@ -160,10 +168,8 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 	}
 
 	private void onMessageReceived(BroadcastMessage message) {
-		YouTubeVideoItem currentVideo = null;
-		if (mPlaylist.size() > 0) {
-			currentVideo = mPlaylist.get(mPlaylistPosition);
-		}
+		long receivedAt = SystemClock.elapsedRealtime();
+		YouTubeVideoItem currentVideo = mPlaylist.getSelectedItem();
 
 		final int command = message.getType();
 		switch (command) {
@@ -200,17 +206,19 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 				postPlaybackStateUpdate();
 				break;
 
+			case MessageType.CLOCK_SYNC_REQUEST:
+				sendMessage(ClockSync.createResponse(message, receivedAt, SystemClock.elapsedRealtime()));
+				break;
+
 			case MessageType.COMMAND_ADD:
 				try {
 					JSONObject videoJSONObject = new JSONObject(message.getMessage());
 					YouTubeVideoItem videoItem = YouTubeVideoItem.fromJSONObject(videoJSONObject);
 					if (videoItem != null) {
-						mPlaylist.add(videoItem);
+						sendPlaylistDelta(mPlaylist.add(videoItem)); // update the playlist on remote clients
 						if (mPlaylist.size() == 1) {  // auto play if this is the only item in the list
-							mPlaylistPosition = 0;
-							playVideo(mPlaylistPosition);
+							selectVideo(0);
 						}
-						forwardPlaylistJSON(); // update the playlist on remote clients
 					}
 				} catch (JSONException ignored) {
 					// TODO: handle errors
@@ -222,24 +230,12 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 					JSONObject videoJSONObject = new JSONObject(message.getMessage());
 					YouTubeVideoItem videoItem = YouTubeVideoItem.fromJSONObject(videoJSONObject);
 					if (videoItem != null) {
-						int i = 0;
-						boolean videoFound = false;
-						for (YouTubeVideoItem item : mPlaylist) {
-							if (item.mId.equals(videoItem.mId)) {
-								videoFound = true;
-								mPlaylistPosition = i;
-								playVideo(mPlaylistPosition);
-								break;
-							}
-							i += 1;
-						}
-
-						if (!videoFound) { // add and play if not found
-							mPlaylist.add(videoItem);
-							mPlaylistPosition = mPlaylist.size() - 1;
-							playVideo(mPlaylistPosition);
-							forwardPlaylistJSON(); // update the playlist on remote clients
+						int position = mPlaylist.indexOf(videoItem.mId);
+						if (position < 0) { // add and play if not found
+							sendPlaylistDelta(mPlaylist.add(videoItem)); // update the playlist on remote clients
+							position = mPlaylist.size() - 1;
 						}
+						selectVideo(position);
 					}
 				} catch (JSONException ignored) {
 					// TODO: handle errors
@@ -269,10 +265,22 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 				}
 				break;
 
-			case MessageType.COMMAND_GET_PLAYLIST:
+			case MessageType.COMMAND_GET_PLAYLIST: // clients that don't support PLAYLIST_SYNC
 				forwardPlaylistJSON();
 				break;
 
+			case MessageType.THUMBNAIL_REQUEST: // we have every playlist thumbnail (see sendPlaylistDelta)
+				for (BroadcastMessage response : ThumbnailStore.getInstance().createResponses(message)) {
+					sendMessage(response);
+				}
+				break;
+
+			case MessageType.PLAYLIST_SYNC: // a client's copy of the playlist is missing changes
+				for (BroadcastMessage update : mPlaylist.getSyncResponse(message)) {
+					sendMessage(update);
+				}
+				break;
+
 			default:
 				break;
 		}
@@ -286,16 +294,28 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 				mPlayer.previous();
 			}
 		} else {
-			if (direction > 0 && mPlaylist.size() > mPlaylistPosition + 1) {
-				mPlaylistPosition += 1;
-				playVideo(mPlaylistPosition);
-			} else if (direction < 0 && mPlaylistPosition > 0) {
-				mPlaylistPosition -= 1;
-				playVideo(mPlaylistPosition);
+			int position = mPlaylist.getSelected();
+			if (direction > 0 && mPlaylist.size() > position + 1) {
+				selectVideo(position + 1);
+			} else if (direction < 0 && position > 0) {
+				selectVideo(position - 1);
 			}
 		}
 	}
 
+	private void selectVideo(int playlistPosition) {
+		sendPlaylistDelta(mPlaylist.select(playlistPosition));
+		playVideo(playlistPosition);
+	}
+
+	private void sendPlaylistDelta(BroadcastMessage delta) {
+		if (delta != null) {
+			sendMessage(delta);
+			// other devices can ask for the playlist's thumbnails at any time, so they must never be evicted
+			ThumbnailStore.getInstance().setPinned(mPlaylist.getThumbnailHashes());
+		}
+	}
+
 	private void getAndForwardCompactedJSON(final int command, String query) {
 		final String requestCommand;
 		final int resultCommand;
@@ -331,6 +351,11 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 					public void onResponse(String response) {
 						// TODO: note, we get the JSON result, but broadcast to other devices for them to process (hence get as
 						//  string)
+						// video results are sent with thumbnail hashes added (but still with the thumbnails, as older
+						// devices need them) - the items then carry only the hash in playlist changes, etc.
+						if (resultCommand != MessageType.JSON_COMMENTS) {
+							response = YouTubeVideoItem.addThumbnailHashes(response);
+						}
 						BroadcastMessage jsonResult = new BroadcastMessage(resultCommand, response);
 						sendMessage(jsonResult);
 					}
@@ -345,8 +370,8 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 	private void forwardPlaylistJSON() {
 		// convert our playlist to JSON and forward
 		JSONArray playlist = new JSONArray();
-		for (YouTubeVideoItem item : mPlaylist) {
-			JSONObject jsonItem = item.toJSONObject();
+		for (YouTubeVideoItem item : mPlaylist.getItems()) {
+			JSONObject jsonItem = item.toJSONObject(true); // (only older devices ask for the playlist like this)
 			if (jsonItem != null) {
 				playlist.put(jsonItem);
 			} else {
@@ -367,9 +392,11 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 
 	private void postPlaybackStateUpdate() {
 		if (mPlayer != null) {
+			int currentTime = mPlayer.getCurrentTimeMillis();
 			BroadcastMessage playbackState = new BroadcastMessage(
-					mPlayer.isPlaying() ? MessageType.COMMAND_PLAY : MessageType.COMMAND_PAUSE, null);
-			playbackState.setIntExtra(mPlayer.getCurrentTimeMillis());
+					mPlayer.isPlaying() ? MessageType.COMMAND_PLAY : MessageType.COMMAND_PAUSE,
+					ClockSync.createTimestamp(SystemClock.elapsedRealtime()));
+			playbackState.setIntExtra(currentTime);
 			sendMessage(playbackState);
 		}
 	}
@@ -400,23 +427,22 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 
 		@Override
 		public void onVideoStarted() {
-			if (mPlaylist.size() > 0) { // update comments and related videos if applicable
-				YouTubeVideoItem currentVideo = mPlaylist.get(mPlaylistPosition);
-				if (currentVideo != null) {
-					if (mHasRequestedComments) {
-						getAndForwardCompactedJSON(MessageType.COMMAND_GET_COMMENTS, currentVideo.mId);
-					}
-					if (mHasRequestedRelatedVideos) {
-						getAndForwardCompactedJSON(MessageType.COMMAND_GET_RELATED, currentVideo.mId);
-					}
+			YouTubeVideoItem currentVideo = mPlaylist.getSelectedItem();
+			if (currentVideo != null) { // update comments and related videos if applicable
+				if (mHasRequestedComments) {
+					getAndForwardCompactedJSON(MessageType.COMMAND_GET_COMMENTS, currentVideo.mId);
+				}
+				if (mHasRequestedRelatedVideos) {
+					getAndForwardCompactedJSON(MessageType.COMMAND_GET_RELATED, currentVideo.mId);
 				}
 			}
 		}
 
 		@Override
 		public void onVideoEnded() {
-			if (mPlaylist.size() > 0) { // automatically go to the next video if there is one available
-				skipVideo(mPlaylist.get(mPlaylistPosition), 1);
+			YouTubeVideoItem currentVideo = mPlaylist.getSelectedItem();
+			if (currentVideo != null) { // automatically go to the next video if there is one available
+				skipVideo(currentVideo, 1);
 			}
 		}
 
@@ -468,17 +494,15 @@ public class VideoActivity extends YouTubeFailureRecoveryActivity {
 
 		@Override
 		public void onPlaylistEnded() {
-			if (mPlaylist.size() > 0) { // blank comments and related videos if applicable while we load the new content
-				YouTubeVideoItem currentVideo = mPlaylist.get(mPlaylistPosition);
-				if (currentVideo != null) {
-					if (mHasRequestedComments) {
-						BroadcastMessage jsonResult = new BroadcastMessage(MessageType.JSON_COMMENTS, LOADING_JSON);
-						sendMessage(jsonResult);
-					}
-					if (mHasRequestedRelatedVideos) {
-						BroadcastMessage jsonResult = new BroadcastMessage(MessageType.JSON_RELATED, LOADING_JSON);
-						sendMessage(jsonResult);
-					}
+			YouTubeVideoItem currentVideo = mPlaylist.getSelectedItem();
+			if (currentVideo != null) { // blank comments and related videos if applicable while we load the new content
+				if (mHasRequestedComments) {
+					BroadcastMessage jsonResult = new BroadcastMessage(MessageType.JSON_COMMENTS, LOADING_JSON);
+					sendMessage(jsonResult);
+				}
+				if (mHasRequestedRelatedVideos) {
+					BroadcastMessage jsonResult = new BroadcastMessage(MessageType.JSON_RELATED, LOADING_JSON);
+					sendMessage(jsonResult);
 				}
 			}
 		}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.plugin.base.video.youtube;
+
+import java.security.SecureRandom;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+
+// NTP-style estimate of the offset (and drift) between this device's clock and the player's clock, from timestamped
+// request/response messages - used to work out where remote playback is *now*, rather than when a state update was sent
+// all times are SystemClock.elapsedRealtime() milliseconds on the device that recorded them (never wall clock time)
+public class ClockSync {
+
+	public static final int SYNC_BURST_INTERVAL = 250; // milliseconds between requests until we have enough samples
+	public static final int RESYNC_INTERVAL = 30000; // milliseconds between requests afterwards (to track drift)
+
+	private static final int MAX_SAMPLES = 8;
+	private static final int MIN_SAMPLES = 4; // until then, isSynchronised() is false
+	private static final long MIN_SKEW_SPAN = 20000; // only estimate drift from samples at least this far apart (ms)
+	private static final double MAX_SKEW = 0.0005; // clock crystals are within 500ppm - anything larger is noise
+
+	private static final SecureRandom sRandom = new SecureRandom();
+
+	// requests and responses are broadcast to every device, so each estimator only accepts responses to its own requests
+	private final long mId = sRandom.nextLong();
+
+	// a ring of the most recent samples
+	private final long[] mSampleOffsets = new long[MAX_SAMPLES]; // remote time - local time
+	private final long[] mSampleDelays = new long[MAX_SAMPLES]; // round-trip time, minus the responder's processing time
+	private final long[] mSampleTimes = new long[MAX_SAMPLES]; // local time when each sample was taken
+	private int mSampleCount;
+	private int mNextSample;
+
+	private long mOffset;
+	private long mOffsetTime; // local time that mOffset applies to
+	private double mSkew; // change in offset per local millisecond
+
+	// request payload: id, local send time (t0)
+	public BroadcastMessage createRequest(long now) {
+		return new BroadcastMessage(MessageType.CLOCK_SYNC_REQUEST, mId + "," + now);
+	}
+
+	// used by the player - response payload: the request's payload, then request receive time (t1), response send time (t2)
+	public static BroadcastMessage createResponse(BroadcastMessage request, long receivedAt, long now) {
+		return new BroadcastMessage(MessageType.CLOCK_SYNC_RESPONSE, request.getMessage() + "," + receivedAt + "," + now);
+	}
+
+	// returns true if the response was to one of our requests (and has been used); now is the local receive time (t3)
+	public boolean onResponse(BroadcastMessage response, long now) {
+		long[] values = parse(response.getMessage(), 4);
+		if (values == null || values[0] != mId) {
+			return false;
+		}
+		long requestTime = values[1];
+		long delay = (now - requestTime) - (values[3] - values[2]);
+		if (delay < 0 || requestTime > now) {
+			return false; // impossible - a corrupted or replayed message
+		}
+
+		mSampleOffsets[mNextSample] = ((values[2] - requestTime) + (values[3] - now)) / 2;
+		mSampleDelays[mNextSample] = delay;
+		mSampleTimes[mNextSample] = now;
+		mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+		mSampleCount = Math.min(mSampleCount + 1, MAX_SAMPLES);
+		update();
+		return true;
+	}
+
+	// as in NTP, the sample with the smallest round-trip time has the least uncertainty (the asymmetry between the two
+	// directions can't be larger than the delay itself), so we use its offset - older samples add a drift estimate
+	private void update() {
+		int best = 0;
+		for (int i = 1; i < mSampleCount; i++) {
+			if (mSampleDelays[i] < mSampleDelays[best]) {
+				best = i;
+			}
+		}
+
+		// least squares fit of offset against time, using only samples with a delay close to the best one
+		long maxDelay = 2 * mSampleDelays[best] + 1;
+		long firstTime = Long.MAX_VALUE;
+		long lastTime = Long.MIN_VALUE;
+		int count = 0;
+		double meanTime = 0;
+		double meanOffset = 0;
+		for (int i = 0; i < mSampleCount; i++) {
+			if (mSampleDelays[i] <= maxDelay) {
+				firstTime = Math.min(firstTime, mSampleTimes[i]);
+				lastTime = Math.max(lastTime, mSampleTimes[i]);
+				meanTime += mSampleTimes[i] - mSampleTimes[best]; // relative, to keep the values small
+				meanOffset += mSampleOffsets[i];
+				count += 1;
+			}
+		}
+		meanTime /= count;
+		meanOffset /= count;
+		double skew = 0;
+		if (count >= 2 && lastTime - firstTime >= MIN_SKEW_SPAN) {
+			double covariance = 0;
+			double variance = 0;
+			for (int i = 0; i < mSampleCount; i++) {
+				if (mSampleDelays[i] <= maxDelay) {
+					double time = mSampleTimes[i] - mSampleTimes[best] - meanTime;
+					covariance += time * (mSampleOffsets[i] - meanOffset);
+					variance += time * time;
+				}
+			}
+			skew = variance > 0 ? Math.max(-MAX_SKEW, Math.min(MAX_SKEW, covariance / variance)) : 0;
+		}
+
+		mOffset = mSampleOffsets[best];
+		mOffsetTime = mSampleTimes[best];
+		mSkew = skew;
+	}
+
+	public boolean isSynchronised() {
+		return mSampleCount >= MIN_SAMPLES;
+	}
+
+	// remote time minus local time, at the given local time
+	public long getOffset(long now) {
+		return mOffset + Math.round(mSkew * (now - mOffsetTime));
+	}
+
+	public long toLocalTime(long remoteTime, long now) {
+		return remoteTime - getOffset(now);
+	}
+
+	// where the remote player is at local time now, given a position that it reported along with its own timestamp (see
+	// createTimestamp) - if the timestamp is missing (an older player), or we aren't synchronised yet, we can only count
+	// from when the report was received
+	public long getMediaPosition(long reportedPosition, String remoteTimestamp, long receivedAt, boolean playing,
+								 long now) {
+		if (!playing) {
+			return reportedPosition;
+		}
+		long reportedAt = receivedAt;
+		long[] values = parse(remoteTimestamp, 1);
+		if (values != null && isSynchronised()) {
+			reportedAt = toLocalTime(values[0], now);
+		}
+		return reportedPosition + Math.max(0, now - reportedAt);
+	}
+
+	// the payload for timestamped messages (e.g., playback state updates)
+	public static String createTimestamp(long now) {
+		return Long.toString(now);
+	}
+
+	private static long[] parse(String message, int count) {
+		if (message == null) {
+			return null;
+		}
+		String[] parts = message.split(",");
+		if (parts.length != count) {
+			return null;
+		}
+		long[] values = new long[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				values[i] = Long.parseLong(parts[i]);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return values;
+	}
+}
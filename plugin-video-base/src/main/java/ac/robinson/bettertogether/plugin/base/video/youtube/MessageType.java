@@ -38,4 +38,14 @@ public class MessageType {
 	public static final int JSON_RELATED = 15;
 	public static final int JSON_COMMENTS = 16;
 	public static final int JSON_PLAYLIST = 17;
+
+	public static final int CLOCK_SYNC_REQUEST = 18; // see ClockSync
+	public static final int CLOCK_SYNC_RESPONSE = 19;
+
+	public static final int PLAYLIST_DELTA = 20; // see PlaylistModel
+	public static final int PLAYLIST_SYNC = 21;
+	public static final int PLAYLIST_SNAPSHOT = 22;
+
+	public static final int THUMBNAIL_REQUEST = 23; // see ThumbnailStore
+	public static final int THUMBNAIL_DATA = 24;
 }
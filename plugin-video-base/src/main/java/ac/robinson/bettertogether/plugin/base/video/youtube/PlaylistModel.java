@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.plugin.base.video.youtube;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+
+// a playlist that is replicated to other devices by sending each change (add, remove, move, select) as a small numbered
+// delta, rather than the whole playlist (and every thumbnail) - a device that misses a change asks for what it missed,
+// which is either the missing deltas (if the player still has them) or a full snapshot
+// the player owns the playlist and makes every change; other devices only apply what they receive
+public class PlaylistModel implements Parcelable {
+
+	public static final int RESULT_APPLIED = 0;
+	public static final int RESULT_IGNORED = 1; // already applied (e.g., resent for another device)
+	public static final int RESULT_GAP = 2; // out of sequence - send createSyncRequest() to catch up
+
+	private static final String OP_ADD = "add";
+	private static final String OP_REMOVE = "remove";
+	private static final String OP_MOVE = "move";
+	private static final String OP_SELECT = "select";
+
+	private static final int MAX_HISTORY = 32; // recent deltas kept by the player, to resend to devices that missed them
+
+	private static final SecureRandom sRandom = new SecureRandom();
+
+	private final ArrayList<YouTubeVideoItem> mItems;
+	private int mSelected;
+	private int mVersion; // the number of changes made so far
+	private long mEpoch; // identifies this playlist, so that a restarted player's versions aren't mistaken for old ones
+
+	private final ArrayList<String> mHistory = new ArrayList<>(); // player only - the last MAX_HISTORY deltas, in order
+
+	public PlaylistModel() {
+		this(new ArrayList<YouTubeVideoItem>(), -1, 0, sRandom.nextLong());
+	}
+
+	private PlaylistModel(ArrayList<YouTubeVideoItem> items, int selected, int version, long epoch) {
+		mItems = items;
+		mSelected = selected;
+		mVersion = version;
+		mEpoch = epoch;
+	}
+
+	private PlaylistModel(Parcel in) {
+		this(in.createTypedArrayList(YouTubeVideoItem.CREATOR), in.readInt(), in.readInt(), in.readLong());
+	}
+
+	// the live list - adapters can display it directly, and just need to be notified after each change
+	public ArrayList<YouTubeVideoItem> getItems() {
+		return mItems;
+	}
+
+	public int size() {
+		return mItems.size();
+	}
+
+	public YouTubeVideoItem get(int index) {
+		return mItems.get(index);
+	}
+
+	public int indexOf(String id) {
+		for (int i = 0; i < mItems.size(); i++) {
+			if (mItems.get(i).mId.equals(id)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getSelected() {
+		return mSelected;
+	}
+
+	public YouTubeVideoItem getSelectedItem() {
+		return mSelected >= 0 && mSelected < mItems.size() ? mItems.get(mSelected) : null;
+	}
+
+	public int getVersion() {
+		return mVersion;
+	}
+
+	public ArrayList<String> getThumbnailHashes() {
+		ArrayList<String> hashes = new ArrayList<>(mItems.size());
+		for (YouTubeVideoItem item : mItems) {
+			hashes.add(item.mThumbnailHash);
+		}
+		return hashes;
+	}
+
+	// player only: each change returns the delta message to broadcast (or null if the change was invalid)
+	public BroadcastMessage add(YouTubeVideoItem item) {
+		JSONObject delta = createDelta(OP_ADD);
+		try {
+			delta.put("index", mItems.size());
+			delta.put("item", item.toJSONObject());
+		} catch (JSONException e) {
+			return null;
+		}
+		return applyLocal(delta);
+	}
+
+	public BroadcastMessage remove(int index) {
+		JSONObject delta = createDelta(OP_REMOVE);
+		try {
+			delta.put("index", index);
+		} catch (JSONException e) {
+			return null;
+		}
+		return applyLocal(delta);
+	}
+
+	public BroadcastMessage move(int from, int to) {
+		JSONObject delta = createDelta(OP_MOVE);
+		try {
+			delta.put("index", from);
+			delta.put("to", to);
+		} catch (JSONException e) {
+			return null;
+		}
+		return applyLocal(delta);
+	}
+
+	public BroadcastMessage select(int index) {
+		JSONObject delta = createDelta(OP_SELECT);
+		try {
+			delta.put("index", index);
+		} catch (JSONException e) {
+			return null;
+		}
+		return applyLocal(delta);
+	}
+
+	private JSONObject createDelta(String operation) {
+		JSONObject delta = new JSONObject();
+		try {
+			delta.put("epoch", mEpoch);
+			delta.put("version", mVersion + 1);
+			delta.put("op", operation);
+		} catch (JSONException ignored) {
+		}
+		return delta;
+	}
+
+	private BroadcastMessage applyLocal(JSONObject delta) {
+		if (!apply(delta)) {
+			return null;
+		}
+		String rawDelta = delta.toString();
+		mHistory.add(rawDelta);
+		if (mHistory.size() > MAX_HISTORY) {
+			mHistory.remove(0);
+		}
+		return new BroadcastMessage(MessageType.PLAYLIST_DELTA, rawDelta);
+	}
+
+	// other devices: apply a delta from the player
+	public int applyDelta(BroadcastMessage message) {
+		try {
+			JSONObject delta = new JSONObject(message.getMessage());
+			if (delta.getLong("epoch") != mEpoch) {
+				return RESULT_GAP; // a different playlist (e.g., the player restarted)
+			}
+			int version = delta.getInt("version");
+			if (version <= mVersion) {
+				return RESULT_IGNORED;
+			}
+			if (version > mVersion + 1) {
+				return RESULT_GAP;
+			}
+			return apply(delta) ? RESULT_APPLIED : RESULT_GAP; // (an invalid delta means we are out of step somehow)
+		} catch (JSONException | NullPointerException e) {
+			return RESULT_IGNORED;
+		}
+	}
+
+	private boolean apply(JSONObject delta) {
+		try {
+			int index = delta.getInt("index");
+			switch (delta.getString("op")) {
+				case OP_ADD:
+					YouTubeVideoItem item = YouTubeVideoItem.fromJSONObject(delta.getJSONObject("item"));
+					if (item == null || index < 0 || index > mItems.size()) {
+						return false;
+					}
+					mItems.add(index, item);
+					if (mSelected >= index) {
+						mSelected += 1;
+					}
+					break;
+
+				case OP_REMOVE:
+					if (index < 0 || index >= mItems.size()) {
+						return false;
+					}
+					mItems.remove(index);
+					if (mSelected == index) {
+						mSelected = -1;
+					} else if (mSelected > index) {
+						mSelected -= 1;
+					}
+					break;
+
+				case OP_MOVE:
+					int to = delta.getInt("to");
+					if (index < 0 || index >= mItems.size() || to < 0 || to >= mItems.size()) {
+						return false;
+					}
+					mItems.add(to, mItems.remove(index));
+					if (mSelected == index) {
+						mSelected = to;
+					} else if (index < mSelected && to >= mSelected) {
+						mSelected -= 1;
+					} else if (index > mSelected && to <= mSelected) {
+						mSelected += 1;
+					}
+					break;
+
+				case OP_SELECT:
+					if (index < -1 || index >= mItems.size()) {
+						return false;
+					}
+					mSelected = index;
+					break;
+
+				default:
+					return false;
+			}
+		} catch (JSONException e) {
+			return false;
+		}
+		mVersion += 1;
+		return true;
+	}
+
+	// other devices: ask the player for everything after our current version
+	public BroadcastMessage createSyncRequest() {
+		return new BroadcastMessage(MessageType.PLAYLIST_SYNC, mEpoch + "," + mVersion);
+	}
+
+	// player only: the messages that bring the sender of a sync request up to date - the deltas it missed if we still have
+	// them, or otherwise a full snapshot
+	public List<BroadcastMessage> getSyncResponse(BroadcastMessage request) {
+		ArrayList<BroadcastMessage> messages = new ArrayList<>();
+		int firstHistoryVersion = mVersion - mHistory.size() + 1;
+		int version = -1;
+		try {
+			String[] parts = request.getMessage().split(",");
+			if (Long.parseLong(parts[0]) == mEpoch) {
+				version = Integer.parseInt(parts[1]);
+			}
+		} catch (NumberFormatException | NullPointerException | ArrayIndexOutOfBoundsException ignored) {
+		}
+		if (version >= firstHistoryVersion - 1 && version <= mVersion) {
+			for (int i = version + 1 - firstHistoryVersion; i < mHistory.size(); i++) {
+				messages.add(new BroadcastMessage(MessageType.PLAYLIST_DELTA, mHistory.get(i)));
+			}
+		} else {
+			messages.add(createSnapshot());
+		}
+		return messages;
+	}
+
+	private BroadcastMessage createSnapshot() {
+		JSONObject snapshot = new JSONObject();
+		try {
+			JSONArray items = new JSONArray();
+			for (YouTubeVideoItem item : mItems) {
+				items.put(item.toJSONObject());
+			}
+			snapshot.put("epoch", mEpoch);
+			snapshot.put("version", mVersion);
+			snapshot.put("selected", mSelected);
+			snapshot.put("items", items);
+		} catch (JSONException ignored) {
+		}
+		return new BroadcastMessage(MessageType.PLAYLIST_SNAPSHOT, snapshot.toString());
+	}
+
+	// other devices: replace our copy with the player's - returns false if the snapshot is invalid
+	public boolean applySnapshot(BroadcastMessage message) {
+		try {
+			JSONObject snapshot = new JSONObject(message.getMessage());
+			JSONArray items = snapshot.getJSONArray("items");
+			ArrayList<YouTubeVideoItem> newItems = new ArrayList<>(items.length());
+			for (int i = 0; i < items.length(); i++) {
+				YouTubeVideoItem item = YouTubeVideoItem.fromJSONObject(items.getJSONObject(i));
+				if (item == null) {
+					return false;
+				}
+				newItems.add(item);
+			}
+			mEpoch = snapshot.getLong("epoch");
+			mVersion = snapshot.getInt("version");
+			mSelected = snapshot.getInt("selected");
+			mItems.clear(); // the same list, so that adapters displaying it stay valid
+			mItems.addAll(newItems);
+			return true;
+		} catch (JSONException | NullPointerException e) {
+			return false;
+		}
+	}
+
+	// other devices: replace our items with the whole playlist sent by an older player (JSON_PLAYLIST - the reply to
+	// MessageType.COMMAND_GET_PLAYLIST), which doesn't use versions - returns false if the playlist is invalid
+	public boolean applyPlaylistJSON(String rawJSON) {
+		try {
+			JSONArray items = new JSONArray(rawJSON);
+			ArrayList<YouTubeVideoItem> newItems = new ArrayList<>(items.length());
+			for (int i = 0; i < items.length(); i++) {
+				YouTubeVideoItem item = YouTubeVideoItem.fromJSONObject(items.getJSONObject(i));
+				if (item != null) {
+					newItems.add(item);
+				}
+			}
+			mSelected = -1;
+			mItems.clear();
+			mItems.addAll(newItems);
+			return true;
+		} catch (JSONException | NullPointerException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	// note: the history isn't saved - devices that fall behind after the player is recreated are sent a snapshot instead
+	@Override
+	public void writeToParcel(Parcel out, int flags) {
+		out.writeTypedList(mItems);
+		out.writeInt(mSelected);
+		out.writeInt(mVersion);
+		out.writeLong(mEpoch);
+	}
+
+	public static final Creator<PlaylistModel> CREATOR = new Creator<PlaylistModel>() {
+		public PlaylistModel createFromParcel(Parcel in) {
+			return new PlaylistModel(in);
+		}
+
+		public PlaylistModel[] newArray(int size) {
+			return new PlaylistModel[size];
+		}
+	};
+}
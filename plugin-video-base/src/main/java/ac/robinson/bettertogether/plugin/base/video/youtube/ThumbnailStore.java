@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.plugin.base.video.youtube;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.LruCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+
+// thumbnails, stored by the hash of their content - video items (and so every message and saved state that contains
+// them) only carry the hash; devices that need a thumbnail they don't have ask the player for it (THUMBNAIL_REQUEST)
+// thumbnails are kept in memory and on disk, discarding the least recently used once either is full (other than
+// pinned thumbnails - see setPinned)
+// shared by all the plugin's activities in this process
+public class ThumbnailStore {
+
+	private static final int MAX_MEMORY_SIZE = 2 * 1024 * 1024; // bytes
+	private static final int MAX_DISK_SIZE = 8 * 1024 * 1024;
+
+	private static final int HASH_LENGTH = 40; // hex-encoded SHA-1
+	private static final int MAX_REQUEST_COUNT = 32; // hashes per request
+	private static final int MAX_RESPONSE_SIZE = 48 * 1024; // (approximate) base64 bytes per response message
+	private static final int REQUEST_RETRY_INTERVAL = 5000; // milliseconds; ask again if we haven't received a thumbnail
+	private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+	private static ThumbnailStore sInstance;
+
+	private final LruCache<String, byte[]> mMemoryCache = new LruCache<String, byte[]>(MAX_MEMORY_SIZE) {
+		@Override
+		protected int sizeOf(String key, byte[] value) {
+			return value.length;
+		}
+	};
+
+	private File mDiskCacheDirectory; // null until initialise() is called - only the memory cache is used before that
+	private long mDiskCacheSize = -1; // disk thread only - -1 = not yet calculated
+
+	// thumbnails are written to disk, and those that aren't in memory are read from disk (see load), on a background
+	// thread, so that neither new search results nor scrolling lists wait for the disk (or for this store's lock)
+	private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor();
+	private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+	private final HashMap<String, ArrayList<LoadListener>> mLoading = new HashMap<>(); // hash -> waiting listeners
+
+	private final HashMap<String, byte[]> mPinned = new HashMap<>(); // hash -> thumbnail (null until it is loaded)
+
+	private final LinkedHashSet<String> mWanted = new LinkedHashSet<>(); // missing thumbnails not yet requested
+	private final HashMap<String, Long> mRequested = new HashMap<>(); // hash -> time of last request
+
+	public interface LoadListener {
+		// called on the main thread - found is false if we don't have the thumbnail (call request() to fetch it)
+		void onLoaded(String hash, boolean found);
+	}
+
+	public static synchronized ThumbnailStore getInstance() {
+		if (sInstance == null) {
+			sInstance = new ThumbnailStore();
+		}
+		return sInstance;
+	}
+
+	// enables the disk cache - safe to call more than once
+	public static synchronized void initialise(Context context) {
+		ThumbnailStore store = getInstance();
+		if (store.mDiskCacheDirectory == null) {
+			File directory = new File(context.getApplicationContext().getCacheDir(), "thumbnails");
+			if (directory.isDirectory() || directory.mkdirs()) {
+				store.mDiskCacheDirectory = directory;
+			}
+		}
+	}
+
+	// returns the thumbnail's hash, or null if the data isn't valid Base64
+	public String putBase64(String base64Thumbnail) {
+		if (TextUtils.isEmpty(base64Thumbnail)) {
+			return null;
+		}
+		try {
+			return put(Base64.decode(base64Thumbnail, Base64.DEFAULT));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public String put(final byte[] thumbnail) {
+		final String hash = getHash(thumbnail);
+		if (hash == null) {
+			return null;
+		}
+		synchronized (this) {
+			mWanted.remove(hash);
+			mRequested.remove(hash);
+			if (mPinned.containsKey(hash)) {
+				mPinned.put(hash, thumbnail);
+			}
+			if (mMemoryCache.get(hash) != null) {
+				return hash;
+			}
+			mMemoryCache.put(hash, thumbnail);
+		}
+		mDiskExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeToDisk(hash, thumbnail);
+			}
+		});
+		return hash;
+	}
+
+	// thumbnails that must stay available (e.g., those in the player's playlist, which other devices can ask for at any
+	// time) - these are kept in memory and never removed from disk; replaces any thumbnails that were pinned before
+	public void setPinned(Collection<String> hashes) {
+		final ArrayList<String> toLoad = new ArrayList<>();
+		synchronized (this) {
+			HashMap<String, byte[]> previous = new HashMap<>(mPinned);
+			mPinned.clear();
+			for (String hash : hashes) {
+				if (isValidHash(hash)) {
+					byte[] thumbnail = previous.containsKey(hash) ? previous.get(hash) : mMemoryCache.get(hash);
+					mPinned.put(hash, thumbnail);
+					if (thumbnail == null) {
+						toLoad.add(hash);
+					}
+				}
+			}
+		}
+		if (!toLoad.isEmpty()) {
+			mDiskExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (String hash : toLoad) {
+						byte[] thumbnail = readFromDisk(hash);
+						if (thumbnail != null) {
+							synchronized (ThumbnailStore.this) {
+								if (mPinned.containsKey(hash) && mPinned.get(hash) == null) {
+									mPinned.put(hash, thumbnail);
+								}
+							}
+						}
+					}
+				}
+			});
+		}
+	}
+
+	// returns null if we don't have this thumbnail - call request() to fetch it from the player
+	// note: this may read from disk - on the main thread, use getCached() and load() instead
+	public byte[] get(String hash) {
+		byte[] thumbnail = getCached(hash);
+		if (thumbnail == null && isValidHash(hash)) {
+			thumbnail = readFromDisk(hash); // (not holding the lock, so other callers aren't held up)
+			if (thumbnail != null) {
+				synchronized (this) {
+					mMemoryCache.put(hash, thumbnail);
+				}
+			}
+		}
+		return thumbnail;
+	}
+
+	// returns null if this thumbnail isn't in memory - call load() to read it from disk (or find out we don't have it)
+	public synchronized byte[] getCached(String hash) {
+		if (!isValidHash(hash)) {
+			return null;
+		}
+		byte[] thumbnail = mPinned.get(hash);
+		return thumbnail != null ? thumbnail : mMemoryCache.get(hash);
+	}
+
+	// reads a thumbnail into memory on a background thread, then tells the listener (once per call, on the main thread)
+	public void load(final String hash, LoadListener listener) {
+		synchronized (this) {
+			ArrayList<LoadListener> listeners = mLoading.get(hash);
+			if (listeners != null) {
+				listeners.add(listener); // already being loaded
+				return;
+			}
+			listeners = new ArrayList<>();
+			listeners.add(listener);
+			mLoading.put(hash, listeners);
+		}
+		mDiskExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final boolean found = get(hash) != null;
+				mMainThreadHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						ArrayList<LoadListener> listeners;
+						synchronized (ThumbnailStore.this) {
+							listeners = mLoading.remove(hash);
+						}
+						if (listeners != null) {
+							for (LoadListener listener : listeners) {
+								listener.onLoaded(hash, found);
+							}
+						}
+					}
+				});
+			}
+		});
+	}
+
+	// marks a missing thumbnail as wanted - returns true if createRequest() should be called (soon) to ask for it; false
+	// if it has already been asked for recently
+	public synchronized boolean request(String hash) {
+		if (!isValidHash(hash) || mWanted.contains(hash)) {
+			return false;
+		}
+		Long requestTime = mRequested.get(hash);
+		if (requestTime != null && SystemClock.elapsedRealtime() - requestTime < REQUEST_RETRY_INTERVAL) {
+			return false;
+		}
+		mWanted.add(hash);
+		return true;
+	}
+
+	// a request for all the thumbnails wanted since the last request (or null if there are none) - missing thumbnails
+	// are usually found a screen at a time, so requests are batched rather than sent individually
+	public synchronized BroadcastMessage createRequest() {
+		if (mWanted.isEmpty()) {
+			return null;
+		}
+		long now = SystemClock.elapsedRealtime();
+		ArrayList<String> hashes = new ArrayList<>();
+		Iterator<String> iterator = mWanted.iterator();
+		while (iterator.hasNext() && hashes.size() < MAX_REQUEST_COUNT) {
+			String hash = iterator.next();
+			iterator.remove();
+			mRequested.put(hash, now);
+			hashes.add(hash);
+		}
+		return new BroadcastMessage(MessageType.THUMBNAIL_REQUEST, TextUtils.join(",", hashes));
+	}
+
+	// player only: the thumbnails we have from a request, split into messages of a reasonable size
+	public List<BroadcastMessage> createResponses(BroadcastMessage request) {
+		ArrayList<BroadcastMessage> responses = new ArrayList<>();
+		String hashes = request.getMessage();
+		if (hashes == null) {
+			return responses;
+		}
+		JSONObject response = new JSONObject();
+		int responseSize = 0;
+		int count = 0;
+		for (String hash : hashes.split(",")) {
+			if (count++ >= MAX_REQUEST_COUNT) {
+				break;
+			}
+			byte[] thumbnail = get(hash);
+			if (thumbnail == null) {
+				continue;
+			}
+			String base64Thumbnail = Base64.encodeToString(thumbnail, Base64.NO_WRAP);
+			if (responseSize > 0 && responseSize + base64Thumbnail.length() > MAX_RESPONSE_SIZE) {
+				responses.add(new BroadcastMessage(MessageType.THUMBNAIL_DATA, response.toString()));
+				response = new JSONObject();
+				responseSize = 0;
+			}
+			try {
+				response.put(hash, base64Thumbnail);
+				responseSize += base64Thumbnail.length();
+			} catch (JSONException ignored) {
+			}
+		}
+		if (responseSize > 0) {
+			responses.add(new BroadcastMessage(MessageType.THUMBNAIL_DATA, response.toString()));
+		}
+		return responses;
+	}
+
+	// stores received thumbnails (whether or not we asked for them) - returns true if any were new, so that lists can be
+	// redrawn; thumbnails that don't match their hash are ignored
+	public boolean onResponse(BroadcastMessage response) {
+		boolean added = false;
+		try {
+			JSONObject thumbnails = new JSONObject(response.getMessage());
+			Iterator<String> hashes = thumbnails.keys();
+			while (hashes.hasNext()) {
+				String hash = hashes.next();
+				synchronized (this) {
+					if (mMemoryCache.get(hash) != null) {
+						continue;
+					}
+				}
+				if (hash.equals(putBase64(thumbnails.getString(hash)))) {
+					added = true;
+				}
+			}
+		} catch (JSONException | NullPointerException ignored) {
+		}
+		return added;
+	}
+
+	// disk thread only - thumbnails are written to a temporary file first, so that readers never see part of one
+	private void writeToDisk(String hash, byte[] thumbnail) {
+		if (mDiskCacheDirectory == null) {
+			return;
+		}
+		File file = new File(mDiskCacheDirectory, hash);
+		if (file.isFile()) {
+			return;
+		}
+		File temporaryFile = new File(mDiskCacheDirectory, hash + TEMPORARY_FILE_SUFFIX);
+		FileOutputStream outputStream = null;
+		try {
+			outputStream = new FileOutputStream(temporaryFile);
+			outputStream.write(thumbnail);
+		} catch (IOException e) {
+			temporaryFile.delete();
+			return;
+		} finally {
+			if (outputStream != null) {
+				try {
+					outputStream.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		if (!temporaryFile.renameTo(file)) {
+			temporaryFile.delete();
+			return;
+		}
+		if (mDiskCacheSize >= 0) {
+			mDiskCacheSize += thumbnail.length;
+		}
+		trimDiskCache();
+	}
+
+	private byte[] readFromDisk(String hash) {
+		if (mDiskCacheDirectory == null) {
+			return null;
+		}
+		File file = new File(mDiskCacheDirectory, hash);
+		if (!file.isFile()) {
+			return null;
+		}
+		byte[] thumbnail = new byte[(int) file.length()];
+		FileInputStream inputStream = null;
+		try {
+			inputStream = new FileInputStream(file);
+			int position = 0;
+			while (position < thumbnail.length) {
+				int count = inputStream.read(thumbnail, position, thumbnail.length - position);
+				if (count < 0) {
+					return null;
+				}
+				position += count;
+			}
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (inputStream != null) {
+				try {
+					inputStream.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		file.setLastModified(System.currentTimeMillis()); // so the least recently *used* files are removed first
+		return thumbnail;
+	}
+
+	// disk thread only
+	private void trimDiskCache() {
+		File[] files = null;
+		if (mDiskCacheSize < 0) {
+			files = mDiskCacheDirectory.listFiles();
+			if (files == null) {
+				return;
+			}
+			mDiskCacheSize = 0;
+			for (File file : files) {
+				mDiskCacheSize += file.length();
+			}
+		}
+		if (mDiskCacheSize <= MAX_DISK_SIZE) {
+			return;
+		}
+
+		if (files == null) {
+			files = mDiskCacheDirectory.listFiles();
+			if (files == null) {
+				return;
+			}
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File file1, File file2) {
+				long modified1 = file1.lastModified();
+				long modified2 = file2.lastModified();
+				return modified1 < modified2 ? -1 : (modified1 == modified2 ? 0 : 1);
+			}
+		});
+		HashSet<String> pinned;
+		synchronized (this) {
+			pinned = new HashSet<>(mPinned.keySet());
+		}
+		for (File file : files) {
+			if (mDiskCacheSize <= MAX_DISK_SIZE * 3 / 4) { // trim below the limit so we don't do this on every write
+				break;
+			}
+			if (pinned.contains(file.getName())) {
+				continue;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				mDiskCacheSize -= length;
+			}
+		}
+	}
+
+	private static String getHash(byte[] data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(data);
+			StringBuilder hexHash = new StringBuilder(HASH_LENGTH);
+			for (byte b : hash) {
+				hexHash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hexHash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	// hashes come from other devices, and are also used as file names
+	private static boolean isValidHash(String hash) {
+		if (hash == null || hash.length() != HASH_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			if (Character.digit(hash.charAt(i), 16) < 0 || Character.isUpperCase(hash.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
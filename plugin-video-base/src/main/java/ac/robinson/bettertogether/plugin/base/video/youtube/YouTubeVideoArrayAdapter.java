@@ -19,13 +19,14 @@ package ac.robinson.bettertogether.plugin.base.video.youtube;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.util.Base64;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
@@ -45,19 +46,25 @@ public class YouTubeVideoArrayAdapter extends ArrayAdapter<ac.robinson.bettertog
 	private boolean mPlaylistMode;
 	private VideoClickListener mClickListener;
 
+	private static final int THUMBNAIL_REQUEST_DELAY = 100; // milliseconds; so that a screen's requests are sent together
+	private final BasePluginActivity mActivity;
+	private final Handler mThumbnailRequestHandler = new Handler();
+
 	interface VideoClickListener {
 		void onVideoClick(YouTubeVideoItem videoItem, boolean playNow);
 	}
 
-	private YouTubeVideoArrayAdapter(Context context, ArrayList<YouTubeVideoItem> itemsArrayList, boolean playlistMode,
-									 VideoClickListener listener) {
-		super(context, R.layout.youtube_video_list_item, itemsArrayList);
+	private YouTubeVideoArrayAdapter(BasePluginActivity activity, ArrayList<YouTubeVideoItem> itemsArrayList,
+									 boolean playlistMode, VideoClickListener listener) {
+		super(activity, R.layout.youtube_video_list_item, itemsArrayList);
+		mActivity = activity;
 		mVideoList = itemsArrayList;
 		mPlaylistMode = playlistMode;
 		mClickListener = listener;
 	}
 
 	public static YouTubeVideoArrayAdapter getInstance(final BasePluginActivity activity, String rawJSON, boolean playlistMode) {
+		ThumbnailStore.initialise(activity);
 		JSONArray jsonArray;
 		try {
 			jsonArray = new JSONArray(rawJSON);
@@ -78,19 +85,64 @@ public class YouTubeVideoArrayAdapter extends ArrayAdapter<ac.robinson.bettertog
 			}
 		}
 
-		return new YouTubeVideoArrayAdapter(activity, videoResults, playlistMode,
+		return getInstance(activity, videoResults, playlistMode);
+	}
+
+	// displays the given list directly (e.g., PlaylistModel's items) - call notifyDataSetChanged() after changing it
+	public static YouTubeVideoArrayAdapter getInstance(final BasePluginActivity activity,
+													   ArrayList<YouTubeVideoItem> videoItems, boolean playlistMode) {
+		ThumbnailStore.initialise(activity);
+		return new YouTubeVideoArrayAdapter(activity, videoItems, playlistMode,
 				new YouTubeVideoArrayAdapter.VideoClickListener() {
 			@Override
 			public void onVideoClick(YouTubeVideoItem videoItem, boolean playNow) {
 				BroadcastMessage addMessage = new BroadcastMessage(playNow ? MessageType.COMMAND_SELECT :
 						MessageType.COMMAND_ADD, videoItem
-						.toJSONObject()
+						.toJSONObject(true) // (the player may be an older version)
 						.toString());
 				activity.sendMessage(addMessage);
 			}
 		});
 	}
 
+	// stores thumbnails sent by the player (THUMBNAIL_DATA), and redraws the list if any of them were new
+	public static void onThumbnailData(ListView listView, BroadcastMessage message) {
+		if (ThumbnailStore.getInstance().onResponse(message) && listView.getAdapter() instanceof YouTubeVideoArrayAdapter) {
+			((YouTubeVideoArrayAdapter) listView.getAdapter()).notifyDataSetChanged();
+		}
+	}
+
+	// a thumbnail that wasn't in memory has been read from disk (so its row can be redrawn), or isn't stored at all
+	private final ThumbnailStore.LoadListener mThumbnailLoadListener = new ThumbnailStore.LoadListener() {
+		@Override
+		public void onLoaded(String hash, boolean found) {
+			if (found) {
+				mThumbnailRequestHandler.removeCallbacks(mRedrawRunnable); // a screen's thumbnails load together
+				mThumbnailRequestHandler.post(mRedrawRunnable);
+			} else if (ThumbnailStore.getInstance().request(hash)) {
+				mThumbnailRequestHandler.removeCallbacks(mThumbnailRequestRunnable);
+				mThumbnailRequestHandler.postDelayed(mThumbnailRequestRunnable, THUMBNAIL_REQUEST_DELAY);
+			}
+		}
+	};
+
+	private final Runnable mRedrawRunnable = new Runnable() {
+		@Override
+		public void run() {
+			notifyDataSetChanged();
+		}
+	};
+
+	private final Runnable mThumbnailRequestRunnable = new Runnable() {
+		@Override
+		public void run() {
+			BroadcastMessage request = ThumbnailStore.getInstance().createRequest();
+			if (request != null) {
+				mActivity.sendMessage(request);
+			}
+		}
+	};
+
 	private View.OnClickListener mButtonClickListener = new View.OnClickListener() {
 		@Override
 		public void onClick(View view) {
@@ -135,9 +187,15 @@ public class YouTubeVideoArrayAdapter extends ArrayAdapter<ac.robinson.bettertog
 		videoHolder.mTitle.setText(currentVideo.mTitle);
 		videoHolder.mChannel.setText(currentVideo.mChannel);
 
-		byte[] decodedString = Base64.decode(currentVideo.mBase64Thumbnail, Base64.DEFAULT);
-		Bitmap thumbnailBitmap = BitmapFactory.decodeByteArray(decodedString, 0, decodedString.length);
-		videoHolder.mThumbnail.setImageBitmap(thumbnailBitmap);
+		byte[] thumbnail = ThumbnailStore.getInstance().getCached(currentVideo.mThumbnailHash);
+		if (thumbnail != null) {
+			Bitmap thumbnailBitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+			videoHolder.mThumbnail.setImageBitmap(thumbnailBitmap);
+		} else {
+			// redrawn once the thumbnail has been read from disk, or has arrived from the player (see onThumbnailData)
+			videoHolder.mThumbnail.setImageBitmap(null);
+			ThumbnailStore.getInstance().load(currentVideo.mThumbnailHash, mThumbnailLoadListener);
+		}
 		return currentView;
 	}
 
@@ -18,7 +18,9 @@ package ac.robinson.bettertogether.plugin.base.video.youtube;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.Base64;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -27,14 +29,14 @@ public class YouTubeVideoItem implements Parcelable {
 	public boolean mIsPlaylist;
 	String mTitle;
 	String mChannel;
-	String mBase64Thumbnail;
+	String mThumbnailHash; // the thumbnail itself is in the ThumbnailStore
 
-	private YouTubeVideoItem(String id, boolean isPlaylist, String title, String channel, String base64Thumbnail) {
+	private YouTubeVideoItem(String id, boolean isPlaylist, String title, String channel, String thumbnailHash) {
 		mId = id;
 		mIsPlaylist = isPlaylist;
 		mTitle = title;
 		mChannel = channel;
-		mBase64Thumbnail = base64Thumbnail;
+		mThumbnailHash = thumbnailHash;
 	}
 
 	private YouTubeVideoItem(Parcel in) {
@@ -42,17 +44,27 @@ public class YouTubeVideoItem implements Parcelable {
 		mIsPlaylist = in.readByte() != 0;
 		mTitle = in.readString();
 		mChannel = in.readString();
-		mBase64Thumbnail = in.readString();
+		mThumbnailHash = in.readString();
 	}
 
 	public JSONObject toJSONObject() {
+		return toJSONObject(false);
+	}
+
+	// older devices need the thumbnail itself (and drop items without one), so messages that they may read (i.e., any
+	// other than the playlist delta and sync messages) include it - as an empty string if it isn't in memory
+	public JSONObject toJSONObject(boolean includeThumbnail) {
 		try {
 			JSONObject jsonItem = new JSONObject();
 			jsonItem.put("id", mId);
 			jsonItem.put("type", mIsPlaylist ? "playlist" : "video");
 			jsonItem.put("title", mTitle);
 			jsonItem.put("channel", mChannel);
-			jsonItem.put("thumbnail", mBase64Thumbnail);
+			jsonItem.put("thumbnail_hash", mThumbnailHash);
+			if (includeThumbnail) {
+				byte[] thumbnail = ThumbnailStore.getInstance().getCached(mThumbnailHash);
+				jsonItem.put("thumbnail", thumbnail != null ? Base64.encodeToString(thumbnail, Base64.NO_WRAP) : "");
+			}
 			return jsonItem;
 		} catch (JSONException ignored) {
 		}
@@ -65,13 +77,36 @@ public class YouTubeVideoItem implements Parcelable {
 			boolean isPlaylist = "playlist".equals(source.getString("type"));
 			String title = source.getString("title");
 			String channel = source.getString("channel");
-			String base64Thumbnail = source.getString("thumbnail");
-			return new YouTubeVideoItem(id, isPlaylist, title, channel, base64Thumbnail);
+			// items from the server (and older devices) include the thumbnail itself, as do items that older devices
+			// may read (see toJSONObject) - otherwise there is just the hash, and we ask for the thumbnail if needed
+			String thumbnailHash = ThumbnailStore.getInstance().putBase64(source.optString("thumbnail"));
+			if (thumbnailHash == null) {
+				thumbnailHash = source.getString("thumbnail_hash");
+			}
+			return new YouTubeVideoItem(id, isPlaylist, title, channel, thumbnailHash);
 		} catch (JSONException ignored) {
 		}
 		return null;
 	}
 
+	// adds the hashes of their thumbnails to a JSON array of items (storing the thumbnails in the ThumbnailStore) - the
+	// thumbnails themselves are kept, as older devices need them; anything that isn't a valid item is left unchanged
+	public static String addThumbnailHashes(String rawJSON) {
+		try {
+			JSONArray jsonArray = new JSONArray(rawJSON);
+			for (int i = 0; i < jsonArray.length(); i++) {
+				JSONObject jsonItem = jsonArray.optJSONObject(i);
+				YouTubeVideoItem item = jsonItem != null ? fromJSONObject(jsonItem) : null;
+				if (item != null) {
+					jsonItem.put("thumbnail_hash", item.mThumbnailHash);
+				}
+			}
+			return jsonArray.toString();
+		} catch (JSONException | NullPointerException e) {
+			return rawJSON;
+		}
+	}
+
 	@Override
 	public int describeContents() {
 		return 0;
@@ -83,7 +118,7 @@ public class YouTubeVideoItem implements Parcelable {
 		out.writeByte((byte) (mIsPlaylist ? 1 : 0));
 		out.writeString(mTitle);
 		out.writeString(mChannel);
-		out.writeString(mBase64Thumbnail);
+		out.writeString(mThumbnailHash);
 	}
 
 	public static final Creator<YouTubeVideoItem> CREATOR = new Creator<YouTubeVideoItem>() {
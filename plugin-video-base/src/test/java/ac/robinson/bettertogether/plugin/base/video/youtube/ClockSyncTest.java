@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.plugin.base.video.youtube;
+
+import org.junit.Test;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockSyncTest {
+
+	private static final long REMOTE_OFFSET = 4000; // the player's clock is this far ahead of ours (ms)
+
+	private final ClockSync mClockSync = new ClockSync();
+
+	// a request sent at local time sendTime, which takes outward (and back) milliseconds to arrive, and processing
+	// milliseconds at the player
+	private boolean exchange(long sendTime, long outward, long processing, long back) {
+		BroadcastMessage request = mClockSync.createRequest(sendTime);
+		long receivedAt = sendTime + outward + REMOTE_OFFSET;
+		BroadcastMessage response = ClockSync.createResponse(request, receivedAt, receivedAt + processing);
+		return mClockSync.onResponse(response, sendTime + outward + processing + back);
+	}
+
+	@Test
+	public void symmetricDelaysGiveTheExactOffset() {
+		assertTrue(exchange(1000, 10, 2, 10));
+		assertEquals(REMOTE_OFFSET, mClockSync.getOffset(1022));
+		assertEquals(1000, mClockSync.toLocalTime(1000 + REMOTE_OFFSET, 1022));
+	}
+
+	@Test
+	public void synchronisedOnceThereAreEnoughSamples() {
+		for (int i = 0; i < 3; i++) {
+			exchange(1000 + i * 250, 10, 2, 10);
+			assertFalse(mClockSync.isSynchronised());
+		}
+		exchange(2000, 10, 2, 10);
+		assertTrue(mClockSync.isSynchronised());
+	}
+
+	@Test
+	public void fastestSampleIsPreferred() {
+		exchange(1000, 10, 0, 10);
+		exchange(2000, 200, 0, 10); // queued on the way out - its offset is 95ms out
+		exchange(3000, 30, 0, 30);
+		assertEquals(REMOTE_OFFSET, mClockSync.getOffset(3060));
+	}
+
+	@Test
+	public void otherDevicesResponsesAreIgnored() {
+		ClockSync other = new ClockSync();
+		BroadcastMessage request = other.createRequest(1000);
+		assertFalse(mClockSync.onResponse(ClockSync.createResponse(request, 5010, 5012), 1022));
+		assertTrue(other.onResponse(ClockSync.createResponse(request, 5010, 5012), 1022));
+	}
+
+	@Test
+	public void impossibleOrMalformedResponsesAreIgnored() {
+		BroadcastMessage request = mClockSync.createRequest(1000);
+		assertFalse(mClockSync.onResponse(ClockSync.createResponse(request, 5010, 5012), 999)); // before the request
+		assertFalse(mClockSync.onResponse(ClockSync.createResponse(request, 5010, 5100), 1022)); // negative delay
+		assertFalse(mClockSync.onResponse(new BroadcastMessage(MessageType.CLOCK_SYNC_RESPONSE, "1,2"), 1022));
+		assertFalse(mClockSync.onResponse(new BroadcastMessage(MessageType.CLOCK_SYNC_RESPONSE, "a,b,c,d"), 1022));
+		assertFalse(mClockSync.onResponse(new BroadcastMessage(MessageType.CLOCK_SYNC_RESPONSE, null), 1022));
+	}
+
+	@Test
+	public void mediaPosition() {
+		// paused: the reported position is where playback is
+		assertEquals(5000, mClockSync.getMediaPosition(5000, null, 1000, false, 3000));
+		// an older player (no timestamp), or not yet synchronised: count from when the report arrived
+		assertEquals(7000, mClockSync.getMediaPosition(5000, null, 1000, true, 3000));
+		assertEquals(7000, mClockSync.getMediaPosition(5000, ClockSync.createTimestamp(990 + REMOTE_OFFSET), 1000,
+				true, 3000));
+
+		for (int i = 0; i < 4; i++) {
+			exchange(100 + i * 250, 10, 2, 10);
+		}
+		// the report was sent 10ms before it arrived, so playback has moved on by that much more
+		assertEquals(7010, mClockSync.getMediaPosition(5000, ClockSync.createTimestamp(990 + REMOTE_OFFSET), 1000,
+				true, 3000));
+	}
+}
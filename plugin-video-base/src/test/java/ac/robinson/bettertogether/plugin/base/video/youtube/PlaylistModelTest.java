@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Better Together Toolkit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package ac.robinson.bettertogether.plugin.base.video.youtube;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import ac.robinson.bettertogether.api.messaging.BroadcastMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// items are read by YouTubeVideoItem via the ThumbnailStore, which needs the framework (LruCache, Base64)
+@RunWith(RobolectricTestRunner.class)
+public class PlaylistModelTest {
+
+	private PlaylistModel mPlayer;
+	private PlaylistModel mReplica;
+
+	private static JSONObject itemJSON(String id) throws JSONException {
+		JSONObject item = new JSONObject();
+		item.put("id", id);
+		item.put("type", "video");
+		item.put("title", "Title " + id);
+		item.put("channel", "Channel");
+		item.put("thumbnail_hash", "hash-" + id);
+		return item;
+	}
+
+	private static YouTubeVideoItem item(String id) throws JSONException {
+		return YouTubeVideoItem.fromJSONObject(itemJSON(id));
+	}
+
+	private static String ids(PlaylistModel playlist) {
+		StringBuilder ids = new StringBuilder();
+		for (YouTubeVideoItem item : playlist.getItems()) {
+			ids.append(item.mId);
+		}
+		return ids.toString();
+	}
+
+	// a new replica has a different epoch, so its first sync is always a snapshot
+	private void syncReplica() {
+		List<BroadcastMessage> response = mPlayer.getSyncResponse(mReplica.createSyncRequest());
+		assertEquals(1, response.size());
+		assertEquals(MessageType.PLAYLIST_SNAPSHOT, response.get(0).getType());
+		assertTrue(mReplica.applySnapshot(response.get(0)));
+	}
+
+	@Before
+	public void setUp() throws JSONException {
+		mPlayer = new PlaylistModel();
+		mReplica = new PlaylistModel();
+		mPlayer.add(item("a"));
+		mPlayer.add(item("b"));
+		mPlayer.add(item("c"));
+		mPlayer.select(1);
+	}
+
+	@Test
+	public void snapshotCopiesThePlaylist() {
+		syncReplica();
+		assertEquals("abc", ids(mReplica));
+		assertEquals(1, mReplica.getSelected());
+		assertEquals(4, mReplica.getVersion());
+	}
+
+	@Test
+	public void deltasAreAppliedOnceAndInOrder() throws JSONException {
+		syncReplica();
+		BroadcastMessage first = mPlayer.add(item("d"));
+		BroadcastMessage second = mPlayer.remove(0);
+
+		assertEquals(PlaylistModel.RESULT_GAP, mReplica.applyDelta(second));
+		assertEquals(PlaylistModel.RESULT_APPLIED, mReplica.applyDelta(first));
+		assertEquals(PlaylistModel.RESULT_IGNORED, mReplica.applyDelta(first));
+		assertEquals(PlaylistModel.RESULT_APPLIED, mReplica.applyDelta(second));
+		assertEquals("bcd", ids(mReplica));
+		assertEquals(0, mReplica.getSelected());
+		assertEquals(mPlayer.getVersion(), mReplica.getVersion());
+	}
+
+	@Test
+	public void deltasFromAnotherPlaylistAreGaps() throws JSONException {
+		assertEquals(PlaylistModel.RESULT_GAP, mReplica.applyDelta(mPlayer.add(item("d"))));
+	}
+
+	@Test
+	public void syncResponseResendsMissedDeltas() throws JSONException {
+		syncReplica();
+		mPlayer.add(item("d"));
+		mPlayer.move(3, 0);
+
+		List<BroadcastMessage> response = mPlayer.getSyncResponse(mReplica.createSyncRequest());
+		assertEquals(2, response.size());
+		for (BroadcastMessage delta : response) {
+			assertEquals(MessageType.PLAYLIST_DELTA, delta.getType());
+			assertEquals(PlaylistModel.RESULT_APPLIED, mReplica.applyDelta(delta));
+		}
+		assertEquals("dabc", ids(mReplica));
+		assertEquals(2, mReplica.getSelected());
+
+		assertTrue(mPlayer.getSyncResponse(mReplica.createSyncRequest()).isEmpty()); // (up to date)
+	}
+
+	@Test
+	public void syncResponseIsASnapshotWhenTooFarBehind() {
+		syncReplica();
+		for (int i = 0; i < 40; i++) { // more than the player's history
+			mPlayer.select(i % 3);
+		}
+		List<BroadcastMessage> response = mPlayer.getSyncResponse(mReplica.createSyncRequest());
+		assertEquals(1, response.size());
+		assertEquals(MessageType.PLAYLIST_SNAPSHOT, response.get(0).getType());
+		assertTrue(mReplica.applySnapshot(response.get(0)));
+		assertEquals(mPlayer.getVersion(), mReplica.getVersion());
+		assertEquals(mPlayer.getSelected(), mReplica.getSelected());
+	}
+
+	@Test
+	public void selectionFollowsChanges() throws JSONException {
+		mPlayer.move(1, 2); // the selected item moves
+		assertEquals("acb", ids(mPlayer));
+		assertEquals(2, mPlayer.getSelected());
+		mPlayer.move(0, 2); // an earlier item moves past it
+		assertEquals(1, mPlayer.getSelected());
+		mPlayer.add(item("d"));
+		mPlayer.move(2, 0); // a later item moves before it
+		assertEquals(2, mPlayer.getSelected());
+		assertEquals("b", mPlayer.getSelectedItem().mId);
+
+		mPlayer.remove(0);
+		assertEquals(1, mPlayer.getSelected());
+		mPlayer.remove(1);
+		assertEquals(-1, mPlayer.getSelected());
+		assertNull(mPlayer.getSelectedItem());
+	}
+
+	@Test
+	public void invalidChangesAreRejected() {
+		int version = mPlayer.getVersion();
+		assertNull(mPlayer.remove(3));
+		assertNull(mPlayer.move(0, 3));
+		assertNull(mPlayer.move(-1, 0));
+		assertNull(mPlayer.select(-2));
+		assertEquals(version, mPlayer.getVersion());
+		assertEquals(PlaylistModel.RESULT_IGNORED, mReplica.applyDelta(
+				new BroadcastMessage(MessageType.PLAYLIST_DELTA, "not json")));
+		assertFalse(mReplica.applySnapshot(new BroadcastMessage(MessageType.PLAYLIST_SNAPSHOT, "{}")));
+	}
+
+	@Test
+	public void legacyPlaylistSkipsInvalidItems() throws JSONException {
+		String playlist = "[" + itemJSON("x") + ",{\"id\":\"broken\"}," + itemJSON("y") + "]";
+		assertTrue(mReplica.applyPlaylistJSON(playlist));
+		assertEquals("xy", ids(mReplica));
+		assertEquals(-1, mReplica.getSelected());
+		assertFalse(mReplica.applyPlaylistJSON("not json"));
+		assertEquals("xy", ids(mReplica));
+	}
+}